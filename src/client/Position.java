@@ -48,7 +48,7 @@ public class Position {
    * @throws PositionException
    * @throws InvalidPriceOperation
    */
-  public void updatePosition(String product, Price price,
+  public synchronized void updatePosition(String product, Price price,
           BookSide side, int volume) throws PositionException,
           InvalidPriceOperation, PriceException {
     validateInput(product);
@@ -82,7 +82,7 @@ public class Position {
    * @param price
    * @throws PositionException
    */
-  public void updateLastSale(String product, Price price)
+  public synchronized void updateLastSale(String product, Price price)
           throws PositionException {
     validateInput(product);
     validateInput(price);
@@ -96,7 +96,7 @@ public class Position {
    * @return the volume of stock this user owns
    * @throws PositionException
    */
-  public int getStockPositionVolume(String product) throws PositionException {
+  public synchronized int getStockPositionVolume(String product) throws PositionException {
     validateInput(product);
     if (!holdings.containsKey(product)) { return 0; }
     return holdings.get(product);
@@ -108,7 +108,7 @@ public class Position {
    *
    * @return a sorted ArrayList of stock symbols this user owns
    */
-  public ArrayList<String> getHoldings() {
+  public synchronized ArrayList<String> getHoldings() {
     ArrayList<String> h = new ArrayList<>(holdings.keySet());
     Collections.sort(h);
     return h;
@@ -122,7 +122,7 @@ public class Position {
    * @return return the current value of the stock symbol
    * @throws PositionException
    */
-  public Price getStockPositionValue(String product)
+  public synchronized Price getStockPositionValue(String product)
           throws PositionException, InvalidPriceOperation {
     validateInput(product);
     if (!holdings.containsKey(product)) {
@@ -140,7 +140,7 @@ public class Position {
    *
    * @return the account costs
    */
-  public Price getAccountCosts() {
+  public synchronized Price getAccountCosts() {
     return accountCosts;
   }
 
@@ -152,7 +152,7 @@ public class Position {
    * @throws InvalidPriceOperation
    * @throws PositionException
    */
-  public Price getAllStockValue()
+  public synchronized Price getAllStockValue()
           throws InvalidPriceOperation, PositionException, PriceException {
     Price sum = PriceFactory.makeLimitPrice(0);
     for (String key : holdings.keySet()) {
@@ -167,7 +167,7 @@ public class Position {
    *
    * @return the net account value
    */
-  public Price getNetAccountValue()
+  public synchronized Price getNetAccountValue()
           throws PositionException, InvalidPriceOperation, PriceException {
     return getAllStockValue().add(getAccountCosts());
   }
@@ -4,12 +4,11 @@ import client.exceptions.PositionException;
 import client.exceptions.TradeableUserDataException;
 import constants.GlobalConstants.BookSide;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import price.Price;
 import price.exceptions.InvalidPriceOperation;
 import price.exceptions.PriceException;
 import publishers.exceptions.MessagePublisherException;
-import publishers.messages.CancelMessage;
-import publishers.messages.FillMessage;
 import publishers.messages.exceptions.InvalidMessageException;
 import tradeable.TradeableDTO;
 import tradeable.exceptions.InvalidVolumeException;
@@ -28,85 +27,12 @@ import usercommand.exceptions.UserCommandException;
 import usercommand.exceptions.UserNotConnectedException;
 
 
-public interface User {
-
-  /**
-   * This will return the String username of this user.
-   *
-   * @return the user name
-   */
-  public String getUserName();
-
-  /**
-   * This will accept a String stock symbol ("IBM, "GE", etc), a Price object
-   * holding the value of the last sale (trade) of that stock, and the quantity
-   * (volume) of that last sale. This info is used by "Users" to track stock
-   * sales and volumes and is sometimes displayed in a GUI.
-   *
-   * @param product
-   * @param p
-   * @param v
-   */
-  public void acceptLastSale(String product, Price p, int v);
-
-  /**
-   * This will accept a FillMessage object which contains information related to
-   * an order or quote trade. This is like a receipt sent to the user to
-   * document the details when an order or quote-side of theirs trades.
-   *
-   * @param fm
-   */
-  public void acceptMessage(FillMessage fm);
-
-  /**
-   * This will accept a CancelMessage object which contains information related
-   * to an order or quote cancel. This is like a receipt sent to the user to
-   * document the details when an order or quote-side of theirs is canceled.
-   *
-   * @param cm
-   */
-  public void acceptMessage(CancelMessage cm);
-
-  /**
-   * This will accept a String which contains market information related to a
-   * Stock Symbol they are interested in.
-   *
-   * @param message
-   */
-  public void acceptMarketMessage(String message);
-
-  /**
-   * This will accept a stock symbol ("IBM", "GE", etc), a Price object holding
-   * the value of the last sale (trade) of that stock, and a "char" indicator of
-   * whether the "ticker" price represents an increase or decrease in the
-   * Stock's price. This info is used by "users" to track stock price movement,
-   * and is sometimes displayed in a GUI.
-   *
-   * @param product
-   * @param p
-   * @param direction
-   */
-  public void acceptTicker(String product, Price p, char direction);
-
-  /**
-   * This will accept a String stock symbol ("IBM", "GE", etc.), a Price object
-   * holding the current BUY side price for that stock, an int holding the
-   * current BUY side volume (quantity), a Price object holding the current SELL
-   * side price for that stock, and an int holding the current SELL side volume
-   * (quantity). These values as a group tell the user the "current market" for
-   * a stock.<br /><br />
-   * AMZN:   BUY 220@12.80 and SELL 100@12.85.<br /><br />
-   * This info is used by "Users" to update their market display screen so that
-   * they are always looking at the most current market data.
-   *
-   * @param product
-   * @param bp
-   * @param bv
-   * @param sp
-   * @param sv
-   */
-  public void acceptCurrentMarket(String product, Price bp, int bv, Price sp,
-          int sv);
+/**
+ * A user of the trading system, as seen by its client application: the
+ * commands it sends, and its account and position queries. What the trading
+ * system sends back is received through Subscriber.
+ */
+public interface User extends Subscriber {
 
   /**
    * Instructs User object to connect to the trading system.
@@ -140,6 +66,24 @@ public interface User {
           TradeProcessorPriceTimeImplException, MessagePublisherException,
           UserCommandException;
 
+  /**
+   * Allows the User object to submit a new Order request without waiting for
+   * it to be traded. The future completes with the order id once the order
+   * has been accepted.
+   *
+   * @param product
+   * @param price
+   * @param volume
+   * @param side
+   * @return a future for the order id
+   */
+  public CompletableFuture<String> submitOrderAsync(String product,
+          Price price, int volume, BookSide side)
+          throws UserNotConnectedException, InvalidConnectionIdException,
+          InvalidVolumeException, TradeableException,
+          InvalidMarketStateException, NoSuchProductException,
+          ProductServiceException, UserCommandException;
+
   /**
    * Allows the User object to submit a new Order Cancel request.
    *
@@ -7,6 +7,9 @@ import constants.GlobalConstants.BookSide;
 import gui.UserDisplayManager;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import price.Price;
@@ -56,7 +59,8 @@ public class UserImpl implements User {
 
   /**
    * A list of TradableUserData objects that contains information on the orders
-   * this user has submitted (needed for cancelling).
+   * this user has submitted (needed for cancelling). Guarded by its own
+   * lock, since accepted asynchronous orders are added from the book's thread.
    */
   ArrayList<TradeableUserData> trades;
 
@@ -243,7 +247,10 @@ public class UserImpl implements User {
 
   /**
    * This method forwards the new order request to the user command service and
-   * saves the resulting order id.
+   * saves the resulting order id. It waits on submitOrderAsync, so orders
+   * sent either way reach the book in the order they were submitted, and
+   * then for the order to be flushed to the journal, so the id is only
+   * returned once the order is durable.
    *
    * @param product
    * @param price
@@ -261,12 +268,109 @@ public class UserImpl implements User {
           ProductBookException, ProductServiceException,
           TradeProcessorPriceTimeImplException, MessagePublisherException,
           UserCommandException {
-    String id = UserCommandService.getInstance().submitOrder(userName,
-            connectionId, product, price, volume, side);
-    trades.add(new TradeableUserData(userName, product, side, id));
+    CompletableFuture<String> ack = submitOrderAsync(product, price, volume,
+            side);
+    String id;
+    try {
+      id = ack.join();
+    } catch (CompletionException e) {
+      throw rethrow(e.getCause());
+    }
+    UserCommandService.getInstance().awaitDurable();
     return id;
   }
 
+  /**
+   * This method forwards the new order request to the user command service
+   * without waiting for it to be traded. The order id is saved once the
+   * order has been accepted, before the future returned completes.
+   *
+   * @param product
+   * @param price
+   * @param volume
+   * @param side
+   * @return a future for the order id
+   */
+  @Override
+  public final CompletableFuture<String> submitOrderAsync(
+          final String product, Price price, int volume, final BookSide side)
+          throws UserNotConnectedException, InvalidConnectionIdException,
+          InvalidVolumeException, TradeableException,
+          InvalidMarketStateException, NoSuchProductException,
+          ProductServiceException, UserCommandException {
+    return UserCommandService.getInstance().submitOrderAsync(userName,
+            connectionId, product, price, volume, side).thenApply(
+            new Function<String, String>() {
+              @Override
+              public String apply(String id) {
+                try {
+                  TradeableUserData t = new TradeableUserData(userName,
+                          product, side, id);
+                  synchronized (trades) {
+                    trades.add(t);
+                  }
+                } catch (TradeableUserDataException e) {
+                  throw new CompletionException(e);
+                }
+                return id;
+              }
+            });
+  }
+
+  /**
+   * Throws the exception an asynchronous order failed with, as one of the
+   * exceptions submitOrder declares. Anything else is returned as a
+   * UserCommandException for the caller to throw.
+   *
+   * @param t
+   * @return the exception to throw
+   */
+  private UserCommandException rethrow(Throwable t)
+          throws TradeableUserDataException, InvalidMarketStateException,
+          InvalidMessageException, InvalidVolumeException,
+          ProductBookSideException, ProductBookException,
+          ProductServiceException, TradeProcessorPriceTimeImplException,
+          MessagePublisherException {
+    if (t instanceof TradeableUserDataException) {
+      throw (TradeableUserDataException) t;
+    }
+    if (t instanceof InvalidMarketStateException) {
+      throw (InvalidMarketStateException) t;
+    }
+    if (t instanceof InvalidMessageException) {
+      throw (InvalidMessageException) t;
+    }
+    if (t instanceof InvalidVolumeException) {
+      throw (InvalidVolumeException) t;
+    }
+    if (t instanceof ProductBookSideException) {
+      throw (ProductBookSideException) t;
+    }
+    if (t instanceof ProductBookException) {
+      throw (ProductBookException) t;
+    }
+    if (t instanceof ProductServiceException) {
+      throw (ProductServiceException) t;
+    }
+    if (t instanceof TradeProcessorPriceTimeImplException) {
+      throw (TradeProcessorPriceTimeImplException) t;
+    }
+    if (t instanceof MessagePublisherException) {
+      throw (MessagePublisherException) t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    if (t instanceof UserCommandException) {
+      return (UserCommandException) t;
+    }
+    return new UserCommandException(t.getClass().getSimpleName() + ": "
+            + t.getMessage());
+  }
+
   /**
    * This method forwards the order cancel request to the user command service.
    *
@@ -493,14 +597,16 @@ public class UserImpl implements User {
   }
 
   /**
-   * Returns a list of order id’s (a data member) for the orders this user has
-   * submitted.
+   * Returns a copy of the list of order id’s (a data member) for the orders
+   * this user has submitted.
    *
    * @return a list of order id's this user has made
    */
   @Override
   public final ArrayList<TradeableUserData> getOrderIds() {
-    return trades;
+    synchronized (trades) {
+      return new ArrayList<>(trades);
+    }
   }
 
   /**
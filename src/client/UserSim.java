@@ -194,7 +194,7 @@ public class UserSim implements Runnable {
         double price = priceBase * (1 - UserSimSettings.priceVariance);
         price += priceBase * (UserSimSettings.priceVariance * 2) * Math.random();
 
-        return PriceFactory.makeLimitPrice(String.format("%.2f", price));
+        return PriceFactory.makeLimitPrice(Math.round(price * 100));
     }
 
     private int makeRandomVolume(String product) {
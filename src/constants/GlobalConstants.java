@@ -11,4 +11,35 @@ public interface GlobalConstants {
    * An enum type indicating which "side" the Tradeable represents: BUY or SELL
    */
   public static enum BookSide {BUY, SELL}
+
+  /**
+   * An enum type indicating how the ProductService runs its product books:
+   * SYNCHRONIZED runs every operation on the caller's thread under the lock
+   * of the product's shard (one of 16, picked by symbol hash), so products in
+   * different shards trade in parallel and lookups take no lock at all;
+   * THREAD_PER_PRODUCT hands each operation to a thread that owns the
+   * product's book, so different products trade in parallel.
+   */
+  public static enum EngineMode {SYNCHRONIZED, THREAD_PER_PRODUCT}
+
+  /**
+   * An enum type indicating how publishers deliver messages to subscribers:
+   * SYNCHRONOUS calls each subscriber on the publishing thread, ASYNCHRONOUS
+   * puts the message on the subscriber's delivery queue for a worker thread.
+   */
+  public static enum DispatchMode {SYNCHRONOUS, ASYNCHRONOUS}
+
+  /**
+   * An enum type indicating what happens when a subscriber's delivery queue is
+   * full: BLOCK waits for room, DROP_OLDEST discards the oldest queued
+   * message, DISCONNECT stops delivering to that subscriber.
+   */
+  public static enum OverflowPolicy {BLOCK, DROP_OLDEST, DISCONNECT}
+
+  /**
+   * An enum type indicating how market data and messages leave the product
+   * books: DIRECT calls the publishers on the matching thread, RING_BUFFER
+   * writes each event into the market data bus for its consumers to read.
+   */
+  public static enum BusMode {DIRECT, RING_BUFFER}
 }
\ No newline at end of file
@@ -0,0 +1,1666 @@
+package driver;
+
+import client.User;
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.BusMode;
+import constants.GlobalConstants.DispatchMode;
+import constants.GlobalConstants.EngineMode;
+import constants.GlobalConstants.MarketState;
+import feed.FeedReceiver;
+import feed.MarketDataFeed;
+import feed.TopOfBook;
+import gateway.GatewayClient;
+import gateway.GatewayMessage;
+import gateway.GatewayProtocol;
+import gateway.OrderGateway;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import price.Price;
+import price.PriceFactory;
+import publishers.CurrentMarketPublisher;
+import publishers.LastSalePublisher;
+import publishers.MessageDispatcher;
+import publishers.MessagePublisher;
+import publishers.TickerPublisher;
+import publishers.bus.MarketDataBus;
+import publishers.bus.MarketEvent;
+import publishers.bus.MarketEventHandler;
+import publishers.messages.CancelMessage;
+import publishers.messages.FillMessage;
+import tradeable.Order;
+import tradeable.QuoteDTO;
+import tradeprocessing.productservice.ProductService;
+import usercommand.OrderRequest;
+import usercommand.OrderResult;
+import usercommand.UserCommandService;
+
+/**
+ * A simple, dependency free benchmark driver for the trading engine. Each
+ * scenario is run with a warm-up pass followed by a timed pass, and the results
+ * are printed to standard out. The matching, cancel, massquote and snapshot
+ * restore scenarios then check every book against a full recount, and the
+ * run fails if any book is inconsistent.
+ *
+ * Usage: MainBenchmark [scenario...] - with no arguments every scenario runs.
+ */
+public class MainBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int MEASURED = 200000;
+
+    public static void main(String[] args) throws Exception {
+        String[] scenarios = args.length > 0 ? args
+                : new String[]{"matching", "cancel", "engine",
+                    "contention", "price", "parse", "slowsub", "conflate",
+                    "routing", "fanout", "bus", "batch",
+                    "massquote", "async", "sessions", "journal", "snapshot",
+                    "oldentries", "gateway", "feed"};
+        for (String s : scenarios) {
+            switch (s) {
+                case "matching":
+                    matching();
+                    break;
+                case "cancel":
+                    cancel();
+                    break;
+                case "engine":
+                    engine();
+                    break;
+                case "contention":
+                    contention();
+                    break;
+                case "price":
+                    price();
+                    break;
+                case "parse":
+                    parse();
+                    break;
+                case "slowsub":
+                    slowSubscriber();
+                    break;
+                case "conflate":
+                    conflate();
+                    break;
+                case "routing":
+                    routing();
+                    break;
+                case "fanout":
+                    fanout();
+                    break;
+                case "bus":
+                    bus();
+                    break;
+                case "batch":
+                    batch();
+                    break;
+                case "massquote":
+                    massQuote();
+                    break;
+                case "async":
+                    async();
+                    break;
+                case "sessions":
+                    sessions();
+                    break;
+                case "journal":
+                    journal();
+                    break;
+                case "journal-run":
+                    journalRun(args[1]);
+                    return;
+                case "journal-replay":
+                    journalReplay(args[1]);
+                    return;
+                case "snapshot":
+                    snapshot();
+                    break;
+                case "snapshot-run":
+                    snapshotRun(args[1]);
+                    return;
+                case "snapshot-restore":
+                    snapshotRestore(args[1]);
+                    return;
+                case "oldentries":
+                    oldEntries();
+                    break;
+                case "oldentries-run":
+                    oldEntriesRun(args[1]);
+                    return;
+                case "gateway":
+                    gateway();
+                    break;
+                case "feed":
+                    feed();
+                    break;
+                default:
+                    System.out.println("Unknown scenario: " + s);
+            }
+        }
+    }
+
+    /**
+     * Measures match-and-replenish throughput against a SELL side holding 10,
+     * 1,000 and 100,000 price levels. Each operation is a BUY that trades out
+     * the best level, followed by a SELL that rebuilds it.
+     */
+    private static void matching() throws Exception {
+        int[] depths = {10, 1000, 100000};
+        ProductService ps = ProductService.getInstance();
+        ps.setMarketState(MarketState.PREOPEN);
+        for (int depth : depths) {
+            String product = "LVL" + depth;
+            ps.createProduct(product);
+            for (int i = 0; i < depth; i++) {
+                ps.submitOrder(new Order("MAKER", product,
+                        PriceFactory.makeLimitPrice(10000 + i), 100, BookSide.SELL));
+            }
+        }
+        ps.setMarketState(MarketState.OPEN);
+        for (int depth : depths) {
+            String product = "LVL" + depth;
+            runMatches(product, WARMUP);
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            runMatches(product, MEASURED);
+            long nanos = System.nanoTime() - start;
+            report("matching, " + depth + " levels", MEASURED, nanos);
+            reportAllocation("matching, " + depth + " levels", MEASURED,
+                    allocatedBytes() - bytes);
+        }
+        ps.verifyBooks();
+        ps.setMarketState(MarketState.CLOSED);
+        ps.verifyBooks();
+    }
+
+    private static void runMatches(String product, int count) throws Exception {
+        ProductService ps = ProductService.getInstance();
+        for (int i = 0; i < count; i++) {
+            ps.submitOrder(new Order("TAKER", product,
+                    PriceFactory.makeLimitPrice(10000), 100, BookSide.BUY));
+            ps.submitOrder(new Order("MAKER", product,
+                    PriceFactory.makeLimitPrice(10000), 100, BookSide.SELL));
+        }
+    }
+
+    /**
+     * Measures the latency of cancelling a freshly entered order while 1,000,
+     * 10,000 and 100,000 other orders rest in the book.
+     */
+    private static void cancel() throws Exception {
+        int[] sizes = {1000, 10000, 100000};
+        ProductService ps = ProductService.getInstance();
+        ps.setMarketState(MarketState.PREOPEN);
+        for (int size : sizes) {
+            String product = "CXL" + size;
+            ps.createProduct(product);
+            for (int i = 0; i < size; i++) {
+                ps.submitOrder(new Order("MAKER", product,
+                        PriceFactory.makeLimitPrice(10000 + (i % 500)), 100,
+                        BookSide.SELL));
+            }
+        }
+        ps.setMarketState(MarketState.OPEN);
+        for (int size : sizes) {
+            String product = "CXL" + size;
+            runCancels(product, WARMUP);
+            report("cancel, " + size + " resting orders", MEASURED,
+                    runCancels(product, MEASURED));
+        }
+        ps.verifyBooks();
+        ps.setMarketState(MarketState.CLOSED);
+        ps.verifyBooks();
+    }
+
+    private static long runCancels(String product, int count) throws Exception {
+        ProductService ps = ProductService.getInstance();
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            String id = ps.submitOrder(new Order("TAKER", product,
+                    PriceFactory.makeLimitPrice(9000 + (i % 500)), 100,
+                    BookSide.BUY));
+            long start = System.nanoTime();
+            ps.submitOrderCancel(product, BookSide.BUY, id);
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    /**
+     * Measures order throughput across six symbols, with four client threads
+     * per symbol, first with every book operation serialized under the
+     * ProductService lock and then with each book owned by its own engine
+     * thread.
+     */
+    private static void engine() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        for (EngineMode mode : EngineMode.values()) {
+            ps.setEngineMode(mode);
+            String[] symbols = new String[6];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = "E" + mode.ordinal() + "S" + i;
+                ps.createProduct(symbols[i]);
+            }
+            ps.setMarketState(MarketState.PREOPEN);
+            ps.setMarketState(MarketState.OPEN);
+            runClients(symbols, 4, WARMUP / 10);
+            int perClient = MEASURED / 10;
+            long nanos = runClients(symbols, 4, perClient);
+            report("engine, " + mode, symbols.length * 4 * perClient, nanos);
+            ps.setMarketState(MarketState.CLOSED);
+        }
+        ps.setEngineMode(EngineMode.SYNCHRONIZED);
+    }
+
+    /**
+     * Starts the given number of client threads per symbol, each submitting
+     * alternating BUY and SELL orders at one price so every other order
+     * trades, and returns the time taken for all of them to finish.
+     */
+    private static long runClients(String[] symbols, int perSymbol,
+            final int orders) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> clients = new ArrayList<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (final String symbol : symbols) {
+            for (int c = 0; c < perSymbol; c++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ProductService ps = ProductService.getInstance();
+                            Price price = PriceFactory.makeLimitPrice(10000);
+                            start.await();
+                            for (int i = 0; i < orders; i++) {
+                                ps.submitOrder(new Order("CLIENT", symbol,
+                                        price, 100, i % 2 == 0 ? BookSide.BUY
+                                                : BookSide.SELL));
+                            }
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                t.start();
+                clients.add(t);
+            }
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : clients) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return nanos;
+    }
+
+    /**
+     * Runs 64 client threads against six symbols: 32 submit orders and 32
+     * read book depth and market data as fast as they can, the way a large
+     * number of connected displays would. Reports the order entry rate and the
+     * read rate achieved while both run together.
+     */
+    private static void contention() throws Exception {
+        final ProductService ps = ProductService.getInstance();
+        final String[] symbols = new String[6];
+        ps.setMarketState(MarketState.PREOPEN);
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = "CT" + i;
+            ps.createProduct(symbols[i]);
+            for (int l = 0; l < 50; l++) {
+                ps.submitOrder(new Order("MAKER", symbols[i],
+                        PriceFactory.makeLimitPrice(9000 - l), 100,
+                        BookSide.BUY));
+                ps.submitOrder(new Order("MAKER", symbols[i],
+                        PriceFactory.makeLimitPrice(11000 + l), 100,
+                        BookSide.SELL));
+            }
+        }
+        ps.setMarketState(MarketState.OPEN);
+        final int writers = 32;
+        final int readers = 32;
+        final int orders = MEASURED / writers;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        ArrayList<Thread> clients = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final String symbol = symbols[w % symbols.length];
+            clients.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Price price = PriceFactory.makeLimitPrice(10000);
+                        start.await();
+                        for (int i = 0; i < orders; i++) {
+                            ps.submitOrder(new Order("CLIENT", symbol, price,
+                                    100, i % 2 == 0 ? BookSide.BUY
+                                            : BookSide.SELL));
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            final String symbol = symbols[r % symbols.length];
+            clients.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        while (writersDone.getCount() > 0) {
+                            ps.getBookDepth(symbol);
+                            ps.getMarketData(symbol);
+                            n++;
+                        }
+                        reads.addAndGet(n);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread t : clients) {
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        writersDone.await();
+        long nanos = System.nanoTime() - begin;
+        for (Thread t : clients) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        report("contention, order entry", writers * orders, nanos);
+        report("contention, depth reads", (int) reads.get(), nanos);
+        ps.setMarketState(MarketState.CLOSED);
+    }
+
+    /**
+     * Measures PriceFactory flyweight lookups of already created prices, both
+     * in the common cent range and for large (position sized) values.
+     */
+    private static void price() {
+        long[] bases = {10000, 100000000L};
+        for (long base : bases) {
+            int ops = MEASURED * 10;
+            lookupPrices(base, ops);
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            long sum = lookupPrices(base, ops);
+            long nanos = System.nanoTime() - start;
+            String name = "price lookup, from " + base + " cents";
+            report(name, ops, nanos);
+            reportAllocation(name, ops, allocatedBytes() - bytes);
+            if (sum == 0) {
+                System.out.println("(no prices)");
+            }
+        }
+    }
+
+    private static long lookupPrices(long base, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += PriceFactory.makeLimitPrice(base + (i % 1000)).hashCode();
+        }
+        return sum;
+    }
+
+    /**
+     * Compares PriceFactory.parseDollarAmount with the DecimalFormat and regex
+     * based parser it replaced, on "$1,234.56" style amounts, and checks that
+     * both give the same cents for every two decimal amount.
+     */
+    private static void parse() {
+        String[] amounts = new String[1000];
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = String.format("$%,.2f", (i * 7919L % 1000000) / 100.0);
+        }
+        int mismatches = 0;
+        for (String a : amounts) {
+            if (PriceFactory.parseDollarAmount(a) != legacyParse(a)) {
+                mismatches++;
+            }
+        }
+        System.out.println("parse, mismatches with legacy parser: "
+                + mismatches);
+        int ops = MEASURED * 10;
+        long sum = 0;
+        for (int i = 0; i < WARMUP * 10; i++) {
+            sum += PriceFactory.parseDollarAmount(amounts[i % amounts.length]);
+        }
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            sum += PriceFactory.parseDollarAmount(amounts[i % amounts.length]);
+        }
+        long nanos = System.nanoTime() - start;
+        report("parse, parseDollarAmount", ops, nanos);
+        reportAllocation("parse, parseDollarAmount", ops,
+                allocatedBytes() - bytes);
+        ops = MEASURED;
+        for (int i = 0; i < WARMUP; i++) {
+            sum += legacyParse(amounts[i % amounts.length]);
+        }
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            sum += legacyParse(amounts[i % amounts.length]);
+        }
+        nanos = System.nanoTime() - start;
+        report("parse, legacy DecimalFormat", ops, nanos);
+        reportAllocation("parse, legacy DecimalFormat", ops,
+                allocatedBytes() - bytes);
+        if (sum == 0) {
+            System.out.println("(no amounts)");
+        }
+    }
+
+    /**
+     * The parser PriceFactory used before it had its own, kept here as the
+     * reference for the "parse" scenario.
+     */
+    private static long legacyParse(String str) {
+        if (str == null || str.isEmpty()) {
+            return 0;
+        }
+        DecimalFormat formatter = new DecimalFormat("#.00");
+        return Long.parseLong(formatter.format(Double.parseDouble(
+                str.replaceAll("[^-.0-9]", ""))).replaceAll("\\.", ""));
+    }
+
+    /**
+     * Measures order latency on a symbol whose market data and messages go to
+     * a subscriber that takes 100 microseconds to handle each callback, first
+     * with synchronous delivery and then with asynchronous delivery.
+     */
+    private static void slowSubscriber() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+        User slow = slowUser("CLIENT", new AtomicLong());
+        String[] modes = {"SYNCHRONOUS", "ASYNCHRONOUS"};
+        for (String m : modes) {
+            String product = "SLOW" + m.charAt(0);
+            ps.createProduct(product);
+            CurrentMarketPublisher.getInstance().subscribe(slow, product);
+            LastSalePublisher.getInstance().subscribe(slow, product);
+            TickerPublisher.getInstance().subscribe(slow, product);
+            MessagePublisher.getInstance().subscribe(slow, product);
+            dispatcher.setDispatchMode(DispatchMode.valueOf(m));
+            ps.setMarketState(MarketState.PREOPEN);
+            ps.setMarketState(MarketState.OPEN);
+            Price price = PriceFactory.makeLimitPrice(10000);
+            int orders = 2000;
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                ps.submitOrder(new Order("CLIENT", product, price, 100,
+                        i % 2 == 0 ? BookSide.BUY : BookSide.SELL));
+            }
+            report("slow subscriber, " + m, orders, System.nanoTime() - start);
+            dispatcher.awaitDelivery();
+            ps.setMarketState(MarketState.CLOSED);
+            dispatcher.awaitDelivery();
+        }
+        System.out.println("slow subscriber, dropped messages: "
+                + dispatcher.getDroppedCount());
+        dispatcher.setDispatchMode(DispatchMode.SYNCHRONOUS);
+    }
+
+    /**
+     * Measures how long a slow current market subscriber takes to catch up
+     * with a burst of top of book changes, with and without conflation, and
+     * how many updates it is actually sent.
+     */
+    private static void conflate() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+        CurrentMarketPublisher cmp = CurrentMarketPublisher.getInstance();
+        dispatcher.setDispatchMode(DispatchMode.ASYNCHRONOUS);
+        boolean[] modes = {false, true};
+        for (boolean c : modes) {
+            String product = c ? "CONFON" : "CONFOFF";
+            AtomicLong delivered = new AtomicLong();
+            User slow = slowUser("CLIENT", delivered);
+            ps.createProduct(product);
+            cmp.subscribe(slow, product);
+            cmp.setConflating(c);
+            ps.setMarketState(MarketState.PREOPEN);
+            ps.setMarketState(MarketState.OPEN);
+            dispatcher.awaitDelivery();
+            delivered.set(0);
+            long conflatedBefore = cmp.getConflatedCount();
+            int orders = 1000;
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                ps.submitOrder(new Order("CLIENT", product,
+                        PriceFactory.makeLimitPrice(10000 + i), 100,
+                        BookSide.BUY));
+            }
+            dispatcher.awaitDelivery();
+            long nanos = System.nanoTime() - start;
+            String name = "conflation " + (c ? "on" : "off");
+            report(name + ", publish to caught up", orders, nanos);
+            System.out.println(String.format("%-40s %,12d delivered %,10d"
+                    + " conflated", name, delivered.get(),
+                    cmp.getConflatedCount() - conflatedBefore));
+            ps.setMarketState(MarketState.CLOSED);
+            dispatcher.awaitDelivery();
+        }
+        cmp.setConflating(false);
+        dispatcher.setDispatchMode(DispatchMode.SYNCHRONOUS);
+    }
+
+    /**
+     * Measures publishing fills and cancels on a symbol with 10,000
+     * subscribers, each message going to one of them.
+     */
+    private static void routing() throws Exception {
+        MessagePublisher mp = MessagePublisher.getInstance();
+        String product = "ROUTE";
+        int subscribers = 10000;
+        AtomicLong received = new AtomicLong();
+        String[] names = new String[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            names[i] = "SUB" + i;
+            mp.subscribe(proxyUser(names[i], received, 0), product);
+        }
+        Price price = PriceFactory.makeLimitPrice(10000);
+        runRouting(mp, product, names, price, WARMUP);
+        received.set(0);
+        long start = System.nanoTime();
+        runRouting(mp, product, names, price, MEASURED);
+        report("routing, 10k subscribers", MEASURED,
+                System.nanoTime() - start);
+        if (received.get() != MEASURED) {
+            System.out.println("routing, delivered " + received.get()
+                    + " of " + MEASURED);
+        }
+    }
+
+    private static void runRouting(MessagePublisher mp, String product,
+            String[] names, Price price, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            String name = names[(i * 7919) % names.length];
+            if (i % 2 == 0) {
+                mp.publishFill(new FillMessage(name, product, price, 100, 0,
+                        BookSide.BUY, i + 1));
+            } else {
+                mp.publishCancel(new CancelMessage(name, product, price, 100,
+                        "Cancelled", BookSide.SELL, i + 1));
+            }
+        }
+    }
+
+    /**
+     * Measures last sale publishing (which also publishes the ticker) from 1
+     * and 4 threads, each on its own symbol with 100 last sale and ticker
+     * subscribers, while another thread keeps subscribing and un-subscribing.
+     */
+    private static void fanout() throws Exception {
+        final LastSalePublisher lsp = LastSalePublisher.getInstance();
+        final TickerPublisher tp = TickerPublisher.getInstance();
+        final AtomicLong received = new AtomicLong();
+        String[] symbols = {"FAN0", "FAN1", "FAN2", "FAN3"};
+        for (String symbol : symbols) {
+            for (int i = 0; i < 100; i++) {
+                User u = proxyUser("FAN" + i, received, 0);
+                lsp.subscribe(u, symbol);
+                tp.subscribe(u, symbol);
+            }
+        }
+        final User churn = proxyUser("CHURN", received, 0);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread churner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        lsp.subscribe(churn, "FAN0");
+                        lsp.unSubscribe(churn, "FAN0");
+                        Thread.sleep(1);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        churner.setDaemon(true);
+        churner.start();
+        runPublishers(symbols, 1, WARMUP / 100);
+        int[] threads = {1, 4};
+        for (int n : threads) {
+            int perThread = MEASURED / 100;
+            long nanos = runPublishers(symbols, n, perThread);
+            report("fanout, " + n + " publishing threads", n * perThread,
+                    nanos);
+        }
+        running.set(false);
+        churner.join();
+    }
+
+    private static long runPublishers(String[] symbols, int threads,
+            final int count) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> publishers = new ArrayList<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int n = 0; n < threads; n++) {
+            final String symbol = symbols[n];
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        LastSalePublisher lsp = LastSalePublisher.getInstance();
+                        Price price = PriceFactory.makeLimitPrice(10000);
+                        start.await();
+                        for (int i = 0; i < count; i++) {
+                            lsp.publishLastSale(symbol, price, 100);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            t.start();
+            publishers.add(t);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : publishers) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return nanos;
+    }
+
+    /**
+     * Measures matching with every fill, last sale and current market update
+     * published directly on the matching thread, and then written to the
+     * market data bus, which two extra consumers (an event counter and a
+     * fill volume tally) read alongside the publishers. Reports the matching
+     * thread's throughput and allocation, and how long the consumers take to
+     * catch up afterwards.
+     */
+    private static void bus() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        MarketDataBus bus = MarketDataBus.getInstance();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong filled = new AtomicLong();
+        bus.addConsumer(new MarketEventHandler() {
+            @Override
+            public void onEvent(MarketEvent e, long sequence,
+                    boolean endOfBatch) {
+                events.incrementAndGet();
+            }
+        });
+        bus.addConsumer(new MarketEventHandler() {
+            @Override
+            public void onEvent(MarketEvent e, long sequence,
+                    boolean endOfBatch) {
+                if (e.getType() == MarketEvent.Type.FILL) {
+                    filled.addAndGet(e.getVolume());
+                }
+            }
+        });
+        BusMode[] modes = {BusMode.DIRECT, BusMode.RING_BUFFER};
+        for (BusMode m : modes) {
+            String product = "BUS" + m.name().charAt(0);
+            ps.createProduct(product);
+            MessagePublisher.getInstance().subscribe(
+                    proxyUser("TAKER", received, 0), product);
+            MessagePublisher.getInstance().subscribe(
+                    proxyUser("MAKER", received, 0), product);
+            for (int i = 0; i < 8; i++) {
+                User u = proxyUser("WATCH" + i, received, 0);
+                CurrentMarketPublisher.getInstance().subscribe(u, product);
+                LastSalePublisher.getInstance().subscribe(u, product);
+                TickerPublisher.getInstance().subscribe(u, product);
+            }
+            bus.setMode(m);
+            ps.setMarketState(MarketState.PREOPEN);
+            for (int i = 0; i < 10; i++) {
+                ps.submitOrder(new Order("MAKER", product,
+                        PriceFactory.makeLimitPrice(10000 + i), 100,
+                        BookSide.SELL));
+            }
+            ps.setMarketState(MarketState.OPEN);
+            runMatches(product, WARMUP);
+            bus.awaitConsumers();
+            int count = MEASURED / 4;
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            runMatches(product, count);
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedBytes() - bytes;
+            bus.awaitConsumers();
+            long drained = System.nanoTime() - start;
+            report("bus " + m + ", matching thread", count, nanos);
+            reportAllocation("bus " + m + ", matching thread", count,
+                    allocated);
+            report("bus " + m + ", consumers caught up", count, drained);
+            ps.setMarketState(MarketState.CLOSED);
+            bus.setMode(BusMode.DIRECT);
+        }
+        System.out.println("bus, extra consumers saw " + events.get()
+                + " events and " + filled.get() + " filled shares");
+    }
+
+    /**
+     * Measures order entry through UserCommandService with one call per
+     * order and with baskets of 500 orders over 5 symbols, in both engine
+     * modes. Buys and sells alternate at one price, so every other order
+     * trades.
+     */
+    private static void batch() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        UserCommandService ucs = UserCommandService.getInstance();
+        String[] symbols = {"BAT0", "BAT1", "BAT2", "BAT3", "BAT4"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        long connId = ucs.connect(proxyUser("BASKET", new AtomicLong(), 0));
+        Price price = PriceFactory.makeLimitPrice(10000);
+        ArrayList<OrderRequest> basket = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            basket.add(new OrderRequest(symbols[i % symbols.length], price,
+                    100, (i / symbols.length) % 2 == 0 ? BookSide.BUY
+                            : BookSide.SELL));
+        }
+        EngineMode[] modes = {EngineMode.SYNCHRONIZED,
+            EngineMode.THREAD_PER_PRODUCT};
+        for (EngineMode m : modes) {
+            ps.setEngineMode(m);
+            ps.setMarketState(MarketState.PREOPEN);
+            ps.setMarketState(MarketState.OPEN);
+            int baskets = MEASURED / basket.size();
+            runBaskets(ucs, connId, basket, WARMUP / basket.size(), false);
+            long start = System.nanoTime();
+            runBaskets(ucs, connId, basket, baskets, false);
+            report("batch " + m + ", per order", baskets * basket.size(),
+                    System.nanoTime() - start);
+            runBaskets(ucs, connId, basket, WARMUP / basket.size(), true);
+            start = System.nanoTime();
+            runBaskets(ucs, connId, basket, baskets, true);
+            report("batch " + m + ", baskets of " + basket.size(),
+                    baskets * basket.size(), System.nanoTime() - start);
+            ps.setMarketState(MarketState.CLOSED);
+        }
+        ps.setEngineMode(EngineMode.SYNCHRONIZED);
+        ucs.disconnect("BASKET", connId);
+    }
+
+    private static void runBaskets(UserCommandService ucs, long connId,
+            ArrayList<OrderRequest> basket, int count, boolean batched)
+            throws Exception {
+        for (int n = 0; n < count; n++) {
+            if (batched) {
+                for (OrderResult r : ucs.submitOrders("BASKET", connId,
+                        basket)) {
+                    if (!r.isAccepted()) {
+                        throw r.failure;
+                    }
+                }
+                continue;
+            }
+            for (OrderRequest r : basket) {
+                ucs.submitOrder("BASKET", connId, r.product, r.price,
+                        r.volume, r.side);
+            }
+        }
+    }
+
+    /**
+     * Measures a market maker re-quoting 50 symbols on every tick, where a
+     * fifth of the symbols' prices move each tick, with one submitQuote call
+     * per symbol and with one mass quote. Also counts the current market
+     * updates a subscriber to every symbol receives per tick.
+     */
+    private static void massQuote() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        UserCommandService ucs = UserCommandService.getInstance();
+        int count = 50;
+        String[] symbols = new String[count];
+        AtomicLong updates = new AtomicLong();
+        User watcher = proxyUser("MQWATCH", updates, 0);
+        for (int i = 0; i < count; i++) {
+            symbols[i] = "MQ" + i;
+            ps.createProduct(symbols[i]);
+            CurrentMarketPublisher.getInstance().subscribe(watcher,
+                    symbols[i]);
+        }
+        long connId = ucs.connect(proxyUser("MAKER", new AtomicLong(), 0));
+        ps.setMarketState(MarketState.PREOPEN);
+        ps.setMarketState(MarketState.OPEN);
+        int ticks = MEASURED / count / 4;
+        boolean[] modes = {false, true};
+        for (boolean mass : modes) {
+            runQuoteTicks(ucs, connId, symbols, WARMUP / count, mass);
+            updates.set(0);
+            long start = System.nanoTime();
+            runQuoteTicks(ucs, connId, symbols, ticks, mass);
+            long nanos = System.nanoTime() - start;
+            String name = mass ? "mass quote" : "quote per symbol";
+            report(name + ", symbols quoted", ticks * count, nanos);
+            System.out.println(String.format("%-40s %,12.1f current market"
+                    + " updates/tick", name, (double) updates.get() / ticks));
+        }
+        ps.verifyBooks();
+        ps.setMarketState(MarketState.CLOSED);
+        ps.verifyBooks();
+        ucs.disconnect("MAKER", connId);
+    }
+
+    private static void runQuoteTicks(UserCommandService ucs, long connId,
+            String[] symbols, int ticks, boolean mass) throws Exception {
+        ArrayList<QuoteDTO> quotes = new ArrayList<>(symbols.length);
+        for (int t = 0; t < ticks; t++) {
+            quotes.clear();
+            for (int i = 0; i < symbols.length; i++) {
+                // Symbol i moves on every fifth tick, a fifth of the symbols
+                // at a time.
+                long bid = 10000 + ((t + i) / 5) % 10;
+                quotes.add(new QuoteDTO(symbols[i],
+                        PriceFactory.makeLimitPrice(bid), 100,
+                        PriceFactory.makeLimitPrice(bid + 5), 100));
+            }
+            if (mass) {
+                for (OrderResult r : ucs.submitMassQuote("MAKER", connId,
+                        quotes)) {
+                    if (!r.isAccepted()) {
+                        throw r.failure;
+                    }
+                }
+                continue;
+            }
+            for (QuoteDTO q : quotes) {
+                ucs.submitQuote("MAKER", connId, q.product, q.buyPrice,
+                        q.buyVolume, q.sellPrice, q.sellVolume);
+            }
+        }
+    }
+
+    /**
+     * Measures one client thread entering orders over 5 symbols, waiting for
+     * each order before sending the next and pipelining up to 1,000 orders
+     * through submitOrderAsync, in both engine modes. Buys and sells
+     * alternate at one price, so every other order trades.
+     */
+    private static void async() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        UserCommandService ucs = UserCommandService.getInstance();
+        String[] symbols = {"ASY0", "ASY1", "ASY2", "ASY3", "ASY4"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        long connId = ucs.connect(proxyUser("PIPE", new AtomicLong(), 0));
+        EngineMode[] modes = {EngineMode.SYNCHRONIZED,
+            EngineMode.THREAD_PER_PRODUCT};
+        for (EngineMode m : modes) {
+            ps.setEngineMode(m);
+            ps.setMarketState(MarketState.PREOPEN);
+            ps.setMarketState(MarketState.OPEN);
+            boolean[] pipelined = {false, true};
+            for (boolean p : pipelined) {
+                runOrderStream(ucs, connId, symbols, WARMUP, p);
+                long start = System.nanoTime();
+                runOrderStream(ucs, connId, symbols, MEASURED, p);
+                report("async " + m + (p ? ", pipelined" : ", blocking"),
+                        MEASURED, System.nanoTime() - start);
+            }
+            ps.setMarketState(MarketState.CLOSED);
+        }
+        ps.setEngineMode(EngineMode.SYNCHRONIZED);
+        ucs.disconnect("PIPE", connId);
+    }
+
+    private static void runOrderStream(UserCommandService ucs, long connId,
+            String[] symbols, int count, boolean pipelined) throws Exception {
+        Price price = PriceFactory.makeLimitPrice(10000);
+        ArrayDeque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+        for (int i = 0; i < count; i++) {
+            String symbol = symbols[i % symbols.length];
+            BookSide side = (i / symbols.length) % 2 == 0 ? BookSide.BUY
+                    : BookSide.SELL;
+            if (!pipelined) {
+                ucs.submitOrder("PIPE", connId, symbol, price, 100, side);
+                continue;
+            }
+            if (inFlight.size() == 1000) {
+                inFlight.poll().join();
+            }
+            inFlight.add(ucs.submitOrderAsync("PIPE", connId, symbol, price,
+                    100, side));
+        }
+        for (CompletableFuture<String> f : inFlight) {
+            f.join();
+        }
+    }
+
+    /**
+     * Measures the session check every user command makes, through
+     * getMarketState, with 1,000 users connected: on one thread (with its
+     * allocation) and then with 2 and 4 threads each checking every user.
+     */
+    private static void sessions() throws Exception {
+        UserCommandService ucs = UserCommandService.getInstance();
+        int users = 1000;
+        String[] names = new String[users];
+        long[] ids = new long[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "SESSION" + i;
+            ids[i] = ucs.connect(proxyUser(names[i], new AtomicLong(), 0));
+        }
+        runSessionChecks(ucs, names, ids, WARMUP * 10);
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        runSessionChecks(ucs, names, ids, MEASURED * 10);
+        report("sessions, 1 thread", MEASURED * 10, System.nanoTime() - start);
+        reportAllocation("sessions, 1 thread", MEASURED * 10,
+                allocatedBytes() - bytes);
+        int[] threadCounts = {2, 4};
+        for (int threads : threadCounts) {
+            long nanos = runSessionThreads(ucs, names, ids, threads,
+                    MEASURED * 10 / threads);
+            report("sessions, " + threads + " threads", MEASURED * 10, nanos);
+        }
+        for (int i = 0; i < users; i++) {
+            ucs.disconnect(names[i], ids[i]);
+        }
+    }
+
+    private static void runSessionChecks(UserCommandService ucs,
+            String[] names, long[] ids, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            int u = i % names.length;
+            ucs.getMarketState(names[u], ids[u]);
+        }
+    }
+
+    private static long runSessionThreads(final UserCommandService ucs,
+            final String[] names, final long[] ids, int threads,
+            final int count) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> checkers = new ArrayList<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int n = 0; n < threads; n++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        runSessionChecks(ucs, names, ids, count);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            t.start();
+            checkers.add(t);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : checkers) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return nanos;
+    }
+
+    /**
+     * Returns a User whose every callback takes 100 microseconds and is
+     * counted.
+     */
+    private static User slowUser(String name, AtomicLong callbacks) {
+        return proxyUser(name, callbacks, 100000);
+    }
+
+    /**
+     * Returns a User whose every callback is counted and then takes the given
+     * number of nanoseconds.
+     */
+    private static User proxyUser(final String name,
+            final AtomicLong callbacks, final long delayNanos) {
+        return (User) Proxy.newProxyInstance(User.class.getClassLoader(),
+                new Class<?>[]{User.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getUserName":
+                        return name;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (method.getName().startsWith("accept")) {
+                            callbacks.incrementAndGet();
+                            if (delayNanos > 0) {
+                                LockSupport.parkNanos(delayNanos);
+                            }
+                        }
+                        return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Measures order entry with and without the command journal, and how
+     * fast a journal is replayed on startup. The journal can only be opened
+     * on a fresh ProductService, so each part runs in a JVM of its own, the
+     * replay reading the journal the run with it left behind.
+     */
+    private static void journal() throws Exception {
+        File file = File.createTempFile("journal", ".bin");
+        file.delete();
+        try {
+            runChild("journal-run", "-");
+            runChild("journal-run", file.getPath());
+            runChild("journal-replay", file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void runChild(String scenario, String arg)
+            throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                MainBenchmark.class.getName(), scenario, arg)
+                .inheritIO().start();
+        if (p.waitFor() != 0) {
+            throw new IllegalStateException(scenario + " failed");
+        }
+    }
+
+    /**
+     * Enters orders over 5 symbols with the journal in the file passed in
+     * ("-" for none): blocking on 1 and on 4 threads, where each order waits
+     * for the journal to reach the disk, and then 1,000,000 pipelined through
+     * submitOrderAsync, which does not wait.
+     */
+    private static void journalRun(String path) throws Exception {
+        final ProductService ps = ProductService.getInstance();
+        String name = path.equals("-") ? "no journal" : "journal";
+        if (!path.equals("-")) {
+            ps.openJournal(path);
+        }
+        final String[] symbols = {"JRN0", "JRN1", "JRN2", "JRN3", "JRN4"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        ps.setMarketState(MarketState.PREOPEN);
+        ps.setMarketState(MarketState.OPEN);
+        int blocking = 20000;
+        long start = System.nanoTime();
+        runJournalOrders(ps, symbols, "J0", blocking, false);
+        report(name + ", blocking, 1 thread", blocking,
+                System.nanoTime() - start);
+        final int perThread = blocking / 4;
+        Thread[] threads = new Thread[4];
+        start = System.nanoTime();
+        for (int t = 0; t < threads.length; t++) {
+            final String user = "J" + (t + 1);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runJournalOrders(ps, symbols, user, perThread, false);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(name + ", blocking, 4 threads", blocking,
+                System.nanoTime() - start);
+        int pipelined = 1000000;
+        start = System.nanoTime();
+        runJournalOrders(ps, symbols, "J5", pipelined, true);
+        report(name + ", pipelined", pipelined, System.nanoTime() - start);
+        ps.setMarketState(MarketState.CLOSED);
+        ps.closeJournal();
+    }
+
+    private static void runJournalOrders(ProductService ps, String[] symbols,
+            String user, int count, boolean pipelined) throws Exception {
+        Price price = PriceFactory.makeLimitPrice(10000);
+        ArrayDeque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+        for (int i = 0; i < count; i++) {
+            String symbol = symbols[i % symbols.length];
+            BookSide side = (i / symbols.length) % 2 == 0 ? BookSide.BUY
+                    : BookSide.SELL;
+            Order o = new Order(user, symbol, price, 100, side);
+            if (!pipelined) {
+                ps.submitOrder(o);
+                continue;
+            }
+            if (inFlight.size() == 1000) {
+                inFlight.poll().join();
+            }
+            inFlight.add(ps.submitOrderAsync(o));
+        }
+        for (CompletableFuture<String> f : inFlight) {
+            f.join();
+        }
+    }
+
+    /**
+     * Rebuilds the books from the journal in the file passed in, and reports
+     * the replay rate and the time 10,000,000 commands would take at it.
+     */
+    private static void journalReplay(String path) throws Exception {
+        ProductService ps = ProductService.getInstance();
+        long start = System.nanoTime();
+        long commands = ps.openJournal(path);
+        long nanos = System.nanoTime() - start;
+        report("journal replay, " + commands + " commands", (int) commands,
+                nanos);
+        System.out.println(String.format("%-40s %,12.1f seconds (%d failed)",
+                "journal replay, 10M commands at rate",
+                10000000 * (nanos / 1e9) / commands,
+                ps.getFailedReplayCount()));
+        ps.closeJournal();
+    }
+
+    /**
+     * Measures taking a snapshot of 1,000,000 resting orders and restoring
+     * the books from it. Restoring needs a fresh ProductService, so both
+     * parts run in JVMs of their own.
+     */
+    private static void snapshot() throws Exception {
+        File dir = File.createTempFile("snapshots", "");
+        dir.delete();
+        try {
+            runChild("snapshot-run", dir.getPath());
+            runChild("snapshot-restore", dir.getPath());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Rests 1,000,000 orders over 5 symbols, 1,000 prices a side per symbol,
+     * and then takes snapshots into the directory passed in while another
+     * thread keeps entering orders, reporting how long a snapshot takes and
+     * the longest an order waited meanwhile.
+     */
+    private static void snapshotRun(String dir) throws Exception {
+        final ProductService ps = ProductService.getInstance();
+        final String[] symbols = {"SNP0", "SNP1", "SNP2", "SNP3", "SNP4"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        ps.setMarketState(MarketState.PREOPEN);
+        ps.setMarketState(MarketState.OPEN);
+        int resting = 1000000;
+        int perSymbol = resting / symbols.length;
+        for (String symbol : symbols) {
+            ArrayList<Order> batch = new ArrayList<>();
+            for (int i = 0; i < perSymbol; i++) {
+                boolean buy = i % 2 == 0;
+                long cents = buy ? 10000 - (i / 2) % 1000
+                        : 10001 + (i / 2) % 1000;
+                batch.add(new Order("S" + (i % 50), symbol,
+                        PriceFactory.makeLimitPrice(cents), 100,
+                        buy ? BookSide.BUY : BookSide.SELL));
+                if (batch.size() == 1000) {
+                    ps.submitOrders(symbol, batch);
+                    batch.clear();
+                }
+            }
+            ps.submitOrders(symbol, batch);
+        }
+        ps.startSnapshots(dir, 0);
+        ps.takeSnapshot();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong longest = new AtomicLong();
+        final AtomicLong probes = new AtomicLong();
+        Thread probe = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Price p = PriceFactory.makeLimitPrice(5000);
+                try {
+                    while (!done.get()) {
+                        long t = System.nanoTime();
+                        String id = ps.submitOrder(new Order("P", "SNP0", p,
+                                100, BookSide.BUY));
+                        ps.submitOrderCancel("SNP0", BookSide.BUY, id);
+                        longest.set(Math.max(longest.get(),
+                                System.nanoTime() - t));
+                        probes.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        probe.start();
+        int rounds = 5;
+        File file = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            file = ps.takeSnapshot();
+        }
+        long nanos = System.nanoTime() - start;
+        done.set(true);
+        probe.join();
+        ps.stopSnapshots();
+        System.out.println(String.format(
+                "%-40s %,12.1f ms/snapshot %,10d bytes",
+                "snapshot, " + resting + " orders", nanos / 1e6 / rounds,
+                file.length()));
+        System.out.println(String.format(
+                "%-40s %,12.1f ms (%,d orders entered)",
+                "snapshot, longest order meanwhile", longest.get() / 1e6,
+                probes.get()));
+    }
+
+    /**
+     * Rebuilds the books from the newest snapshot in the directory passed in.
+     */
+    private static void snapshotRestore(String dir) throws Exception {
+        ProductService ps = ProductService.getInstance();
+        long start = System.nanoTime();
+        int books = ps.restoreSnapshot(dir);
+        long nanos = System.nanoTime() - start;
+        ps.verifyBooks();
+        int resting = 0;
+        for (String symbol : ps.getProductList()) {
+            resting += ps.getOrdersWithRemainingQty("S0", symbol).size() * 50;
+        }
+        System.out.println(String.format(
+                "%-40s %,12.1f ms (%d books, ~%,d orders)",
+                "snapshot restore", nanos / 1e6, books, resting));
+    }
+
+    /**
+     * Measures the heap held by old (traded out) orders over a long run, and
+     * cancels that come too late, with the old orders kept only in memory
+     * and with them spilled to a file. Spilling can only be turned on before
+     * the market opens, so each part runs in a JVM of its own.
+     */
+    private static void oldEntries() throws Exception {
+        File dir = File.createTempFile("oldentries", "");
+        dir.delete();
+        try {
+            runChild("oldentries-run", "-");
+            runChild("oldentries-run", dir.getPath());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Trades out 4,000,000 orders in one book, reporting the heap in use
+     * after every 1,000,000, and then cancels 100,000 of them, spread over
+     * the whole run, with old entries spilled to the directory passed in
+     * ("-" for none).
+     */
+    private static void oldEntriesRun(String dir) throws Exception {
+        ProductService ps = ProductService.getInstance();
+        String name = dir.equals("-") ? "old entries, in memory"
+                : "old entries, spilled";
+        if (!dir.equals("-")) {
+            ps.setOldEntrySpillDirectory(dir);
+        }
+        ps.createProduct("OLD");
+        ps.setMarketState(MarketState.PREOPEN);
+        ps.setMarketState(MarketState.OPEN);
+        String first = null;
+        String last = null;
+        for (int round = 1; round <= 4; round++) {
+            for (int i = 0; i < 500000; i++) {
+                String id = ps.submitOrder(new Order("MAKER", "OLD",
+                        PriceFactory.makeLimitPrice(10000), 100,
+                        BookSide.SELL));
+                ps.submitOrder(new Order("TAKER", "OLD",
+                        PriceFactory.makeLimitPrice(10000), 100,
+                        BookSide.BUY));
+                if (first == null) {
+                    first = id;
+                }
+                last = id;
+            }
+            System.gc();
+            Runtime rt = Runtime.getRuntime();
+            System.out.println(String.format("%-40s %,12.1f MB heap used",
+                    name + ", " + round + "M traded",
+                    (rt.totalMemory() - rt.freeMemory()) / 1e6));
+        }
+        long low = Long.parseLong(first);
+        long span = Long.parseLong(last) - low;
+        int cancels = 100000;
+        int tooLate = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < cancels; i++) {
+            // Every other id is a maker's, so step by an even number.
+            long id = low + (span * i / cancels) / 2 * 2;
+            try {
+                ps.submitOrderCancel("OLD", BookSide.SELL, Long.toString(id));
+            } catch (Exception e) {
+                continue;
+            }
+            tooLate++;
+        }
+        report(name + ", too late cancels", cancels,
+                System.nanoTime() - start);
+        System.out.println(String.format("%-40s %,12d of %,d",
+                name + ", answered as too late", tooLate, cancels));
+        ps.setMarketState(MarketState.CLOSED);
+        ps.stopOldEntrySpill();
+    }
+
+    /**
+     * Measures order entry through the TCP order gateway on loopback: one
+     * client waiting for each reply before sending the next order, and then
+     * 4 clients each keeping up to 64 orders in flight. Every order trades
+     * with the one before it, so fills come back on the sockets too. Reports
+     * the rate and the round-trip latency percentiles.
+     */
+    private static void gateway() throws Exception {
+        final ProductService ps = ProductService.getInstance();
+        final String[] symbols = {"GW0", "GW1", "GW2", "GW3"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        ps.setMarketState(MarketState.PREOPEN);
+        ps.setMarketState(MarketState.OPEN);
+        OrderGateway gw = new OrderGateway(
+                new InetSocketAddress("127.0.0.1", 0), 2);
+        gw.start();
+        final int port = gw.getPort();
+        try {
+            runGatewayClients(port, symbols, 1, 1, WARMUP, false);
+            runGatewayClients(port, symbols, 1, 1, 20000, true);
+            runGatewayClients(port, symbols, 4, 64, WARMUP, false);
+            runGatewayClients(port, symbols, 4, 64, MEASURED, true);
+        } finally {
+            gw.close();
+        }
+        ps.setMarketState(MarketState.CLOSED);
+    }
+
+    private static void runGatewayClients(final int port,
+            final String[] symbols, int clients, final int window,
+            final int perClient, boolean measured) throws Exception {
+        final long[][] latencies = new long[clients][];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latencies[client] = runGatewayOrders(port,
+                                symbols[client % symbols.length],
+                                "GWU" + client, window, perClient);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        if (!measured) {
+            return;
+        }
+        long[] all = new long[clients * perClient];
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, c * perClient, perClient);
+        }
+        Arrays.sort(all);
+        String name = "gateway, " + clients + " client"
+                + (clients > 1 ? "s" : "") + ", window " + window;
+        report(name, all.length, nanos);
+        System.out.println(String.format(
+                "%-40s p50 %,.1f  p90 %,.1f  p99 %,.1f  p99.9 %,.1f"
+                + "  max %,.1f us",
+                name + " RTT", percentile(all, 50) / 1e3,
+                percentile(all, 90) / 1e3, percentile(all, 99) / 1e3,
+                percentile(all, 99.9) / 1e3, all[all.length - 1] / 1e3));
+    }
+
+    /**
+     * Sends orders for one product through a gateway connection, keeping up
+     * to "window" of them in flight, and returns each order's round trip in
+     * nanoseconds.
+     */
+    private static long[] runGatewayOrders(int port, String product,
+            String user, int window, int count) throws Exception {
+        GatewayClient client = new GatewayClient("127.0.0.1", port);
+        GatewayMessage m = new GatewayMessage();
+        client.connect(-1, user);
+        client.subscribe(-2, GatewayProtocol.CHANNEL_MESSAGES, product);
+        client.flush();
+        for (int replies = 0; replies < 2; ) {
+            if (!client.read(m)) {
+                throw new IllegalStateException("Gateway closed.");
+            }
+            if (m.type == GatewayProtocol.REJECTED) {
+                throw new IllegalStateException(m.error + ": " + m.text);
+            }
+            if (m.correlationId != 0) {
+                replies++;
+            }
+        }
+        long[] sent = new long[count];
+        long[] latencies = new long[count];
+        int next = 0;
+        int done = 0;
+        while (done < count) {
+            while (next < count && next - done < window) {
+                // Correlation id 0 is for events, so order i is sent as i + 1.
+                client.submitOrder(next + 1, product, 10000, 100,
+                        next % 2 == 0 ? GatewayProtocol.SIDE_BUY
+                        : GatewayProtocol.SIDE_SELL);
+                sent[next] = System.nanoTime();
+                next++;
+            }
+            client.flush();
+            if (!client.read(m)) {
+                throw new IllegalStateException("Gateway closed.");
+            }
+            if (m.correlationId == 0) {
+                continue;
+            }
+            if (m.type == GatewayProtocol.REJECTED) {
+                throw new IllegalStateException(m.error + ": " + m.text);
+            }
+            latencies[m.correlationId - 1] = System.nanoTime()
+                    - sent[m.correlationId - 1];
+            done++;
+        }
+        client.disconnect(-3);
+        client.flush();
+        while (client.read(m) && m.correlationId != -3) {
+            // Drain the events still on their way.
+        }
+        client.close();
+        return latencies;
+    }
+
+    /**
+     * Measures the market data feed on loopback multicast: matching on 4
+     * symbols with the bus in RING_BUFFER mode and the feed encoding and
+     * sending every current market, last sale and ticker message. Three
+     * receivers listen: one lossless, one discarding every 20th packet and
+     * filling the gaps from the retransmit service, and one joining after
+     * the feed's history has moved on, which starts from a snapshot. Reports
+     * the feed's rate and checks every receiver rebuilt the feed's books.
+     */
+    private static void feed() throws Exception {
+        ProductService ps = ProductService.getInstance();
+        MarketDataBus bus = MarketDataBus.getInstance();
+        String[] symbols = {"FD0", "FD1", "FD2", "FD3"};
+        for (String symbol : symbols) {
+            ps.createProduct(symbol);
+        }
+        NetworkInterface lo = NetworkInterface.getByInetAddress(
+                InetAddress.getLoopbackAddress());
+        InetSocketAddress group = new InetSocketAddress(
+                InetAddress.getByName("239.255.0.1"), freeUdpPort());
+        MarketDataFeed feed = new MarketDataFeed(group, lo,
+                new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress retransmit = new InetSocketAddress("127.0.0.1",
+                feed.getRetransmitPort());
+        FeedReceiver clean = new FeedReceiver(group, lo, retransmit);
+        FeedReceiver lossy = new FeedReceiver(group, lo, retransmit);
+        lossy.setDropEvery(20);
+        clean.start();
+        lossy.start();
+        feed.start();
+        bus.setMode(BusMode.RING_BUFFER);
+        ps.setMarketState(MarketState.PREOPEN);
+        for (String symbol : symbols) {
+            for (int i = 0; i < 10; i++) {
+                ps.submitOrder(new Order("MAKER", symbol,
+                        PriceFactory.makeLimitPrice(10000 + i), 100,
+                        BookSide.SELL));
+            }
+        }
+        ps.setMarketState(MarketState.OPEN);
+        for (String symbol : symbols) {
+            runMatches(symbol, WARMUP / symbols.length);
+        }
+        bus.awaitConsumers();
+        FeedReceiver late = new FeedReceiver(group, lo, retransmit);
+        late.start();
+        long sequence = feed.getSequence();
+        long packets = feed.getPacketCount();
+        int count = MEASURED / symbols.length;
+        long start = System.nanoTime();
+        for (String symbol : symbols) {
+            runMatches(symbol, count);
+        }
+        bus.awaitConsumers();
+        long nanos = System.nanoTime() - start;
+        int messages = (int) (feed.getSequence() - sequence);
+        report("feed, messages encoded and sent", messages, nanos);
+        System.out.println(String.format("%-40s %,12.1f messages/packet",
+                "feed, packing", (double) messages
+                / (feed.getPacketCount() - packets)));
+        FeedReceiver[] receivers = {clean, lossy, late};
+        String[] names = {"lossless", "every 20th lost", "late joiner"};
+        for (int r = 0; r < receivers.length; r++) {
+            FeedReceiver fr = receivers[r];
+            boolean caughtUp = fr.awaitSequence(feed.getSequence(), 10000);
+            boolean same = caughtUp;
+            for (String symbol : symbols) {
+                TopOfBook b = fr.getBook(symbol);
+                same &= b != null
+                        && b.toString().equals(feed.getBook(symbol).toString());
+            }
+            System.out.println(String.format("%-40s %s, %,d packets, %,d lost,"
+                    + " %,d recovered, %,d snapshots",
+                    "feed, " + names[r] + " receiver",
+                    same ? "books match" : "BOOKS DIFFER",
+                    fr.getPacketCount(), fr.getDroppedCount(),
+                    fr.getRecoveredCount(), fr.getSnapshotCount()));
+        }
+        ps.setMarketState(MarketState.CLOSED);
+        bus.setMode(BusMode.DIRECT);
+        feed.close();
+        for (FeedReceiver fr : receivers) {
+            fr.close();
+        }
+    }
+
+    private static int freeUdpPort() throws Exception {
+        DatagramChannel c = DatagramChannel.open();
+        try {
+            c.bind(new InetSocketAddress(0));
+            return ((InetSocketAddress) c.getLocalAddress()).getPort();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static void report(String name, int ops, long nanos) {
+        System.out.println(String.format("%-40s %,12.0f ops/sec %,10.0f ns/op",
+                name, ops / (nanos / 1e9), (double) nanos / ops));
+    }
+
+    private static void reportAllocation(String name, int ops, long bytes) {
+        if (bytes < 0) {
+            return;
+        }
+        System.out.println(String.format("%-40s %,12.0f bytes/op allocated",
+                name, (double) bytes / ops));
+    }
+
+    /**
+     * Returns the number of bytes the calling thread has allocated so far, or
+     * -1 when the JVM does not report per-thread allocation.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
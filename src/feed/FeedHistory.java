@@ -0,0 +1,249 @@
+package feed;
+
+import constants.GlobalConstants.MarketState;
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+import price.Price;
+
+
+/**
+ * The messages of a MarketDataFeed, each encoded once, into the next slot of
+ * a ring of fixed-size slots, when it is given its sequence. The feed copies
+ * the encoded bytes into its packets, and the retransmit service copies the
+ * newest CAPACITY of them into its replies. Alongside the ring it keeps the
+ * latest state of every product and of the market, for snapshots.
+ *
+ * The feed is the only writer; the retransmit service reads under this
+ * object's lock.
+ */
+final class FeedHistory {
+
+  /**
+   * The number of messages kept for retransmission, a power of two.
+   */
+  static final int CAPACITY = 1 << 16;
+
+  private final byte[] slots = new byte[CAPACITY * FeedProtocol.MAX_MESSAGE];
+
+  private final ByteBuffer ring = ByteBuffer.wrap(slots);
+
+  /**
+   * The sequence the next message will be given. Sequences start at 1.
+   */
+  private long next = 1;
+
+  private final TreeMap<String, TopOfBook> books = new TreeMap<>();
+
+  private MarketState state;
+
+  /**
+   * Encodes a CURRENT_MARKET message and makes it the product's current
+   * market.
+   *
+   * @return the message's sequence
+   */
+  synchronized long currentMarket(String product, Price buyPrice,
+          int buyVolume, Price sellPrice, int sellVolume) {
+    int start = startMessage(FeedProtocol.CURRENT_MARKET);
+    putCurrentMarket(ring, product, buyPrice, buyVolume, sellPrice,
+            sellVolume);
+    TopOfBook b = book(product);
+    b.buyPrice = buyPrice;
+    b.buyVolume = buyVolume;
+    b.sellPrice = sellPrice;
+    b.sellVolume = sellVolume;
+    return endMessage(start);
+  }
+
+  synchronized long lastSale(String product, Price price, int volume) {
+    int start = startMessage(FeedProtocol.LAST_SALE);
+    putLastSale(ring, product, price, volume);
+    TopOfBook b = book(product);
+    b.lastSalePrice = price;
+    b.lastSaleVolume = volume;
+    return endMessage(start);
+  }
+
+  /**
+   * Encodes a TICKER message moving the product's ticker to the price
+   * passed in, in the direction passed in.
+   *
+   * @return the message's sequence
+   */
+  synchronized long ticker(String product, Price price, char direction) {
+    int start = startMessage(FeedProtocol.TICKER);
+    putTicker(ring, product, price, direction);
+    TopOfBook b = book(product);
+    b.tickerPrice = price;
+    b.tickerDirection = direction;
+    return endMessage(start);
+  }
+
+  synchronized long marketState(MarketState s) {
+    int start = startMessage(FeedProtocol.MARKET_STATE);
+    ring.put((byte) s.ordinal());
+    state = s;
+    return endMessage(start);
+  }
+
+  /**
+   * Copies the encoded message with the sequence passed in to the buffer's
+   * position. Only called by the writer, for a message it has just encoded.
+   *
+   * @param sequence
+   * @param out
+   */
+  void copy(long sequence, ByteBuffer out) {
+    int at = offset(sequence);
+    out.put(slots, at, length(at));
+  }
+
+  /**
+   * Returns the encoded size of the message with the sequence passed in.
+   * Only called by the writer.
+   */
+  int size(long sequence) {
+    return length(offset(sequence));
+  }
+
+  /**
+   * Builds a packet of the messages from the sequence passed in, as many of
+   * those asked for as have been sequenced.
+   *
+   * @param first
+   * @param count
+   * @return the packet, ready to be read, or null if the first message is
+   * no longer held
+   */
+  synchronized ByteBuffer packet(long first, int count) {
+    if (first < oldest() || count < 0) {
+      return null;
+    }
+    int n = (int) Math.max(0, Math.min(count, next - first));
+    ByteBuffer out = ByteBuffer.allocate(FeedProtocol.PACKET_HEADER
+            + n * FeedProtocol.MAX_MESSAGE);
+    out.putLong(first);
+    out.putInt(n);
+    for (int i = 0; i < n; i++) {
+      copy(first + i, out);
+    }
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Builds a snapshot packet: the market state and the latest messages of
+   * every product, as of the last message sequenced.
+   *
+   * @return the packet, ready to be read
+   */
+  synchronized ByteBuffer snapshot() {
+    ByteBuffer out = ByteBuffer.allocate(FeedProtocol.PACKET_HEADER
+            + (books.size() * 3 + 1) * FeedProtocol.MAX_MESSAGE);
+    out.putLong(next - 1);
+    out.putInt(0);
+    int count = 0;
+    if (state != null) {
+      int start = FeedProtocol.startMessage(out, FeedProtocol.MARKET_STATE);
+      out.put((byte) state.ordinal());
+      FeedProtocol.endMessage(out, start);
+      count++;
+    }
+    for (TopOfBook b : books.values()) {
+      int start = FeedProtocol.startMessage(out,
+              FeedProtocol.CURRENT_MARKET);
+      putCurrentMarket(out, b.product, b.buyPrice, b.buyVolume, b.sellPrice,
+              b.sellVolume);
+      FeedProtocol.endMessage(out, start);
+      count++;
+      if (b.lastSalePrice != null) {
+        start = FeedProtocol.startMessage(out, FeedProtocol.LAST_SALE);
+        putLastSale(out, b.product, b.lastSalePrice, b.lastSaleVolume);
+        FeedProtocol.endMessage(out, start);
+        count++;
+      }
+      if (b.tickerPrice != null) {
+        start = FeedProtocol.startMessage(out, FeedProtocol.TICKER);
+        putTicker(out, b.product, b.tickerPrice, b.tickerDirection);
+        FeedProtocol.endMessage(out, start);
+        count++;
+      }
+    }
+    out.putInt(8, count);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Returns the sequence of the oldest message still held.
+   */
+  synchronized long oldest() {
+    return Math.max(1, next - CAPACITY);
+  }
+
+  /**
+   * Returns the sequence the next message will be given.
+   */
+  synchronized long next() {
+    return next;
+  }
+
+  synchronized TopOfBook getBook(String product) {
+    TopOfBook b = books.get(product);
+    return b == null ? null : new TopOfBook(b);
+  }
+
+  synchronized MarketState getMarketState() {
+    return state;
+  }
+
+  private TopOfBook book(String product) {
+    TopOfBook b = books.get(product);
+    if (b == null) {
+      b = new TopOfBook(product);
+      books.put(product, b);
+    }
+    return b;
+  }
+
+  private int startMessage(byte type) {
+    ring.position(offset(next));
+    return FeedProtocol.startMessage(ring, type);
+  }
+
+  private long endMessage(int start) {
+    FeedProtocol.endMessage(ring, start);
+    return next++;
+  }
+
+  private static void putCurrentMarket(ByteBuffer out, String product,
+          Price buyPrice, int buyVolume, Price sellPrice, int sellVolume) {
+    FeedProtocol.putString(out, product);
+    out.putLong(FeedProtocol.price(buyPrice));
+    out.putInt(buyVolume);
+    out.putLong(FeedProtocol.price(sellPrice));
+    out.putInt(sellVolume);
+  }
+
+  private static void putLastSale(ByteBuffer out, String product,
+          Price price, int volume) {
+    FeedProtocol.putString(out, product);
+    out.putLong(FeedProtocol.price(price));
+    out.putInt(volume);
+  }
+
+  private static void putTicker(ByteBuffer out, String product, Price price,
+          char direction) {
+    FeedProtocol.putString(out, product);
+    out.putLong(FeedProtocol.price(price));
+    out.putChar(direction);
+  }
+
+  private static int offset(long sequence) {
+    return (int) (sequence & (CAPACITY - 1)) * FeedProtocol.MAX_MESSAGE;
+  }
+
+  private int length(int at) {
+    return 2 + ring.getShort(at);
+  }
+}
@@ -0,0 +1,162 @@
+package feed;
+
+import constants.GlobalConstants.MarketState;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import price.Price;
+import price.PriceFactory;
+
+
+/**
+ * The binary protocol of the market data feed. The feed multicasts packets
+ * over UDP:
+ *
+ *   [long sequence][int count][count messages]
+ *
+ * where the sequence is that of the packet's first message; the messages
+ * that follow carry the next sequences in turn. Every message is
+ *
+ *   [short length][byte type][body]
+ *
+ * where the length counts the type and the body, so a receiver can skip
+ * types it does not know. All values are big-endian; strings are a short
+ * byte count followed by UTF-8; prices are longs in cents, with
+ * MARKET_PRICE for MKT and NO_PRICE for none.
+ *
+ *   CURRENT_MARKET    product, buy price, buy volume, sell price,
+ *                     sell volume
+ *   LAST_SALE         product, price, volume
+ *   TICKER            product, price, direction (a char)
+ *   MARKET_STATE      state (a byte holding the MarketState's ordinal)
+ *
+ * A packet with no messages is a heartbeat, sent while the feed is idle;
+ * its sequence is that of the next message to come, so a receiver can
+ * notice it missed the last packet before the feed went quiet.
+ *
+ * Gaps are filled over TCP by the feed's retransmit service. A request is
+ *
+ *   [int length][byte type][body]
+ *
+ * with the length counting everything after itself:
+ *
+ *   RETRANSMIT        first sequence, count (an int, up to MAX_RETRANSMIT)
+ *   SNAPSHOT
+ *
+ * and each request is answered by one reply of the same shape:
+ *
+ *   RETRANSMIT        a packet holding the messages asked for
+ *   NOT_AVAILABLE     the oldest sequence still held
+ *   SNAPSHOT          a packet whose sequence is that of the last message
+ *                     the snapshot reflects, holding the market state and
+ *                     the latest CURRENT_MARKET, LAST_SALE and TICKER
+ *                     message of every product
+ */
+public final class FeedProtocol {
+
+  public static final byte CURRENT_MARKET = 1;
+
+  public static final byte LAST_SALE = 2;
+
+  public static final byte TICKER = 3;
+
+  public static final byte MARKET_STATE = 4;
+
+  public static final byte RETRANSMIT = 16;
+
+  public static final byte SNAPSHOT = 17;
+
+  public static final byte NOT_AVAILABLE = 18;
+
+  public static final long MARKET_PRICE = Long.MIN_VALUE;
+
+  public static final long NO_PRICE = Long.MIN_VALUE + 1;
+
+  /**
+   * The size of a packet's sequence and count.
+   */
+  public static final int PACKET_HEADER = 12;
+
+  /**
+   * The largest packet the feed multicasts, which fits an Ethernet frame.
+   */
+  public static final int MAX_PACKET = 1400;
+
+  /**
+   * The largest message, length included. Products whose name takes more
+   * than MAX_PRODUCT bytes are not carried by the feed.
+   */
+  public static final int MAX_MESSAGE = 128;
+
+  public static final int MAX_PRODUCT = 64;
+
+  /**
+   * The most messages one RETRANSMIT request can ask for.
+   */
+  public static final int MAX_RETRANSMIT = 1024;
+
+  private FeedProtocol() {
+  }
+
+  /**
+   * Starts a message of the type passed in at the buffer's position,
+   * leaving its length to be filled in by "endMessage".
+   *
+   * @param out
+   * @param type
+   * @return the position of the message, to pass to "endMessage"
+   */
+  public static int startMessage(ByteBuffer out, byte type) {
+    int start = out.position();
+    out.putShort((short) 0);
+    out.put(type);
+    return start;
+  }
+
+  public static void endMessage(ByteBuffer out, int start) {
+    out.putShort(start, (short) (out.position() - start - 2));
+  }
+
+  public static void putString(ByteBuffer out, String s) {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    if (b.length > MAX_PRODUCT) {
+      throw new IllegalArgumentException("String too long for the feed: "
+              + s);
+    }
+    out.putShort((short) b.length);
+    out.put(b);
+  }
+
+  public static String getString(ByteBuffer in) {
+    int n = in.getShort();
+    if (n < 0) {
+      throw new BufferUnderflowException();
+    }
+    byte[] b = new byte[n];
+    in.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  public static long price(Price p) {
+    if (p == null) {
+      return NO_PRICE;
+    }
+    return p.isMarket() ? MARKET_PRICE : p.getValue();
+  }
+
+  public static Price price(long cents) {
+    if (cents == NO_PRICE) {
+      return null;
+    }
+    return cents == MARKET_PRICE ? PriceFactory.makeMarketPrice()
+            : PriceFactory.makeLimitPrice(cents);
+  }
+
+  public static MarketState state(byte b) {
+    MarketState[] states = MarketState.values();
+    if (b < 0 || b >= states.length) {
+      throw new IllegalArgumentException("Unknown market state " + b);
+    }
+    return states[b];
+  }
+}
@@ -0,0 +1,382 @@
+package feed;
+
+import constants.GlobalConstants.MarketState;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A reference receiver of the MarketDataFeed, rebuilding the top of book of
+ * every product from its packets. Packets are applied in sequence order on
+ * the receiver's own thread. When a packet (or heartbeat) shows that
+ * messages were missed, the receiver asks the feed's retransmit service for
+ * them before going on; if the feed no longer holds them, it takes a
+ * snapshot instead and carries on from there.
+ */
+public final class FeedReceiver implements Runnable {
+
+  private static final Logger log =
+          Logger.getLogger(FeedReceiver.class.getName());
+
+  private final DatagramChannel channel;
+
+  private final InetSocketAddress retransmitAddress;
+
+  private final Thread thread;
+
+  private final ByteBuffer packet =
+          ByteBuffer.allocate(FeedProtocol.MAX_PACKET);
+
+  private Socket socket;
+
+  private DataInputStream in;
+
+  private DataOutputStream out;
+
+  /**
+   * The books rebuilt so far, and the market state; guarded by the map.
+   */
+  private final HashMap<String, TopOfBook> books = new HashMap<>();
+
+  private MarketState state;
+
+  /**
+   * The sequence of the next message to apply.
+   */
+  private long expected = 1;
+
+  private int dropEvery;
+
+  private volatile long packets;
+
+  private volatile long dropped;
+
+  private volatile long recovered;
+
+  private volatile long snapshots;
+
+  /**
+   * Creates a receiver of the feed sent to the address passed in, joining
+   * it on the interface passed in if it is a multicast group, and filling
+   * gaps from the retransmit service at the TCP address passed in. Several
+   * receivers can share one port. It does not receive until it is started.
+   *
+   * @param feedAddress
+   * @param networkInterface the interface to join a multicast group on
+   * @param theRetransmitAddress
+   */
+  public FeedReceiver(InetSocketAddress feedAddress,
+          NetworkInterface networkInterface,
+          InetSocketAddress theRetransmitAddress) throws IOException {
+    if (feedAddress == null || theRetransmitAddress == null) {
+      throw new IllegalArgumentException("Argument cannot be null.");
+    }
+    retransmitAddress = theRetransmitAddress;
+    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 22);
+    if (feedAddress.getAddress().isMulticastAddress()) {
+      if (networkInterface == null) {
+        throw new IllegalArgumentException("A network interface is needed"
+                + " to join a multicast group.");
+      }
+      channel.bind(new InetSocketAddress(feedAddress.getPort()));
+      channel.join(feedAddress.getAddress(), networkInterface);
+    } else {
+      channel.bind(feedAddress);
+    }
+    thread = new Thread(this, "FeedReceiver");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Stops receiving, once the packet being applied is done with.
+   */
+  public void close() throws IOException {
+    channel.close();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Has the receiver discard every n-th packet it receives, as though it
+   * had been lost, so its gap filling can be tried out on loopback, where
+   * nothing is lost. Must be set before the receiver is started.
+   *
+   * @param n the packets to discard, 0 for none
+   */
+  public void setDropEvery(int n) {
+    dropEvery = n;
+  }
+
+  /**
+   * Returns a copy of the product's top of book as rebuilt so far.
+   *
+   * @param product
+   * @return the product's TopOfBook, or null if nothing has been received
+   * for it
+   */
+  public TopOfBook getBook(String product) {
+    synchronized (books) {
+      TopOfBook b = books.get(product);
+      return b == null ? null : new TopOfBook(b);
+    }
+  }
+
+  public MarketState getMarketState() {
+    synchronized (books) {
+      return state;
+    }
+  }
+
+  /**
+   * Returns the sequence of the last message applied.
+   *
+   * @return the last sequence applied, 0 before any
+   */
+  public long getSequence() {
+    synchronized (books) {
+      return expected - 1;
+    }
+  }
+
+  /**
+   * Waits until the message with the sequence passed in has been applied.
+   *
+   * @param sequence
+   * @param timeoutMillis
+   * @return true if it has, false if the wait timed out
+   */
+  public boolean awaitSequence(long sequence, long timeoutMillis)
+          throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (books) {
+      while (expected <= sequence) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return false;
+        }
+        books.wait(left);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns the number of packets received, heartbeats and discarded ones
+   * included.
+   */
+  public long getPacketCount() {
+    return packets;
+  }
+
+  /**
+   * Returns the number of packets discarded by "setDropEvery".
+   */
+  public long getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Returns the number of messages recovered from the retransmit service.
+   */
+  public long getRecoveredCount() {
+    return recovered;
+  }
+
+  /**
+   * Returns the number of snapshots taken from the retransmit service.
+   */
+  public long getSnapshotCount() {
+    return snapshots;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        packet.clear();
+        channel.receive(packet);
+        packet.flip();
+        packets++;
+        if (dropEvery > 0 && packets % dropEvery == 0) {
+          dropped++;
+          continue;
+        }
+        if (packet.remaining() < FeedProtocol.PACKET_HEADER) {
+          continue;
+        }
+        long first = packet.getLong(0);
+        if (first > expected) {
+          fill(first - 1);
+        }
+        apply(packet, false);
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by "close".
+    } catch (Exception e) {
+      log.log(Level.SEVERE, null, e);
+    } finally {
+      closeRetransmit();
+    }
+  }
+
+  /**
+   * Fills the gap from the next expected message up to the sequence passed
+   * in from the retransmit service.
+   */
+  private void fill(long last) {
+    try {
+      while (expected <= last) {
+        if (socket == null) {
+          socket = new Socket(retransmitAddress.getAddress(),
+                  retransmitAddress.getPort());
+          socket.setTcpNoDelay(true);
+          in = new DataInputStream(
+                  new BufferedInputStream(socket.getInputStream()));
+          out = new DataOutputStream(
+                  new BufferedOutputStream(socket.getOutputStream()));
+        }
+        long before = expected;
+        out.writeInt(13);
+        out.writeByte(FeedProtocol.RETRANSMIT);
+        out.writeLong(expected);
+        out.writeInt((int) Math.min(last - expected + 1,
+                FeedProtocol.MAX_RETRANSMIT));
+        out.flush();
+        ByteBuffer reply = readReply();
+        byte type = reply.get();
+        if (type == FeedProtocol.RETRANSMIT) {
+          apply(reply.slice(), false);
+          recovered += expected - before;
+        } else if (type == FeedProtocol.NOT_AVAILABLE) {
+          out.writeInt(1);
+          out.writeByte(FeedProtocol.SNAPSHOT);
+          out.flush();
+          reply = readReply();
+          if (reply.get() != FeedProtocol.SNAPSHOT) {
+            throw new IOException("Unexpected retransmit reply.");
+          }
+          apply(reply.slice(), true);
+          snapshots++;
+        } else {
+          throw new IOException("Unexpected retransmit reply " + type);
+        }
+        if (expected == before) {
+          throw new IOException("The retransmit service does not hold "
+                  + before + " yet.");
+        }
+      }
+    } catch (IOException e) {
+      // The books may be stale until the next gap is filled.
+      log.log(Level.SEVERE, "Gap up to " + last + " not filled", e);
+      closeRetransmit();
+    }
+  }
+
+  private ByteBuffer readReply() throws IOException {
+    int length = in.readInt();
+    if (length < 1) {
+      throw new IOException("Bad retransmit reply length " + length);
+    }
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return ByteBuffer.wrap(b);
+  }
+
+  private void closeRetransmit() {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.log(Level.SEVERE, null, e);
+    }
+    socket = null;
+  }
+
+  /**
+   * Applies the messages of the packet passed in that have not been
+   * applied yet. A snapshot instead replaces every book, and the receiver
+   * goes on from the sequence it was taken at.
+   */
+  private void apply(ByteBuffer p, boolean snapshot) {
+    long first = p.getLong();
+    int count = p.getInt();
+    synchronized (books) {
+      if (snapshot) {
+        books.clear();
+        state = null;
+      }
+      for (int i = 0; i < count; i++) {
+        int length = p.getShort();
+        int end = p.position() + length;
+        if (snapshot || first + i >= expected) {
+          applyMessage(p);
+        }
+        p.position(end);
+      }
+      long next = snapshot ? first + 1 : first + count;
+      if (next > expected) {
+        expected = next;
+        books.notifyAll();
+      }
+    }
+  }
+
+  private void applyMessage(ByteBuffer p) {
+    byte type = p.get();
+    if (type == FeedProtocol.MARKET_STATE) {
+      state = FeedProtocol.state(p.get());
+      return;
+    }
+    if (type != FeedProtocol.CURRENT_MARKET && type != FeedProtocol.LAST_SALE
+            && type != FeedProtocol.TICKER) {
+      return;
+    }
+    String product = FeedProtocol.getString(p);
+    TopOfBook b = books.get(product);
+    if (b == null) {
+      b = new TopOfBook(product);
+      books.put(product, b);
+    }
+    switch (type) {
+      case FeedProtocol.CURRENT_MARKET:
+        b.buyPrice = FeedProtocol.price(p.getLong());
+        b.buyVolume = p.getInt();
+        b.sellPrice = FeedProtocol.price(p.getLong());
+        b.sellVolume = p.getInt();
+        break;
+      case FeedProtocol.LAST_SALE:
+        b.lastSalePrice = FeedProtocol.price(p.getLong());
+        b.lastSaleVolume = p.getInt();
+        break;
+      default:
+        b.tickerPrice = FeedProtocol.price(p.getLong());
+        b.tickerDirection = p.getChar();
+        break;
+    }
+  }
+}
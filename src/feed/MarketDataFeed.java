@@ -0,0 +1,285 @@
+package feed;
+
+import constants.GlobalConstants.MarketState;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import publishers.bus.MarketDataBus;
+import publishers.bus.MarketEvent;
+import publishers.bus.MarketEventHandler;
+import publishers.exceptions.MessagePublisherException;
+
+
+/**
+ * A market data feed that carries the current market, last sale, ticker and
+ * market state events off the market data bus as sequenced UDP packets, in
+ * the format described in FeedProtocol. Each event is encoded once and sent
+ * once to a multicast group, however many receivers have joined it (or to a
+ * single receiver's address, when not multicasting).
+ *
+ * The feed reads the bus as one of its consumers, so it only sees events
+ * while the bus is in RING_BUFFER mode. Messages are batched into a packet
+ * until the feed has caught up with the bus or the packet is full. The
+ * feed's newest messages and the latest state of every product are kept for
+ * its TCP retransmit service, from which receivers fill the gaps left by
+ * lost packets, or take a snapshot when they have fallen too far behind.
+ * Fills and cancels are private to their users and are not carried.
+ */
+public final class MarketDataFeed implements MarketEventHandler {
+
+  private static final Logger log =
+          Logger.getLogger(MarketDataFeed.class.getName());
+
+  /**
+   * How often, in milliseconds, an idle feed sends a heartbeat.
+   */
+  private static final long HEARTBEAT_MILLIS = 100;
+
+  private final FeedHistory history = new FeedHistory();
+
+  private final InetSocketAddress destination;
+
+  private final DatagramChannel channel;
+
+  private final RetransmitServer retransmit;
+
+  private ScheduledExecutorService heartbeats;
+
+  private final ByteBuffer packet =
+          ByteBuffer.allocateDirect(FeedProtocol.MAX_PACKET);
+
+  private final ByteBuffer heartbeat =
+          ByteBuffer.allocateDirect(FeedProtocol.PACKET_HEADER);
+
+  /**
+   * The sequence of the first message in the packet being filled, and the
+   * number of messages in it.
+   */
+  private long first;
+
+  private int count;
+
+  /**
+   * The sequence of the next message to be sent, and when the last packet
+   * was sent.
+   */
+  private volatile long sent = 1;
+
+  private volatile long lastSend;
+
+  private final AtomicLong packets = new AtomicLong();
+
+  private boolean started;
+
+  /**
+   * Creates a feed sending to the address passed in, which may be a
+   * multicast group, and answering retransmit requests on the TCP address
+   * passed in. The feed does not read the bus until it is started.
+   *
+   * @param theDestination
+   * @param networkInterface the interface to multicast on, or null for the
+   * system's choice
+   * @param retransmitAddress
+   */
+  public MarketDataFeed(InetSocketAddress theDestination,
+          NetworkInterface networkInterface,
+          InetSocketAddress retransmitAddress) throws IOException {
+    if (theDestination == null || retransmitAddress == null) {
+      throw new IllegalArgumentException("Argument cannot be null.");
+    }
+    destination = theDestination;
+    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    if (destination.getAddress().isMulticastAddress()) {
+      if (networkInterface != null) {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+                networkInterface);
+      }
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+    channel.setOption(StandardSocketOptions.SO_SNDBUF, 1 << 22);
+    retransmit = new RetransmitServer(history, retransmitAddress);
+  }
+
+  /**
+   * Adds the feed to the bus's consumers, starts its retransmit service and
+   * its heartbeats. The bus must be in DIRECT mode, as it only takes new
+   * consumers then.
+   */
+  public synchronized void start() throws MessagePublisherException {
+    if (started) { return; }
+    MarketDataBus.getInstance().addConsumer(this);
+    started = true;
+    retransmit.start();
+    heartbeats = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MarketDataFeed-heartbeat");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+    heartbeats.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sendHeartbeat();
+      }
+    }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Removes the feed from the bus's consumers, which needs the bus back in
+   * DIRECT mode, and stops sending and answering retransmit requests.
+   */
+  public synchronized void close() throws IOException,
+          MessagePublisherException {
+    if (started) {
+      MarketDataBus.getInstance().removeConsumer(this);
+      heartbeats.shutdownNow();
+      try {
+        retransmit.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    channel.close();
+  }
+
+  /**
+   * Returns the port of the TCP retransmit service.
+   *
+   * @return the port
+   */
+  public int getRetransmitPort() {
+    return retransmit.getPort();
+  }
+
+  /**
+   * Returns the sequence of the last message sent.
+   *
+   * @return the last sequence sent, 0 before any
+   */
+  public long getSequence() {
+    return sent - 1;
+  }
+
+  /**
+   * Returns the number of packets sent, heartbeats included.
+   *
+   * @return the packet count
+   */
+  public long getPacketCount() {
+    return packets.get();
+  }
+
+  /**
+   * Returns the feed's own copy of the product's latest market data.
+   *
+   * @param product
+   * @return a copy of the product's TopOfBook, or null if the feed has
+   * carried nothing for it
+   */
+  public TopOfBook getBook(String product) {
+    return history.getBook(product);
+  }
+
+  public MarketState getMarketState() {
+    return history.getMarketState();
+  }
+
+  @Override
+  public void onEvent(MarketEvent e, long sequence, boolean endOfBatch)
+          throws Exception {
+    try {
+      switch (e.getType()) {
+        case CURRENT_MARKET:
+          add(history.currentMarket(e.getProduct(), e.getBuyPrice(),
+                  e.getBuyVolume(), e.getSellPrice(), e.getSellVolume()));
+          break;
+        case LAST_SALE:
+          // A last sale also drives the ticker, as it does for the
+          // publishers, moving it in the direction the bus worked out.
+          add(history.lastSale(e.getProduct(), e.getPrice(),
+                  e.getVolume()));
+          add(history.ticker(e.getProduct(), e.getPrice(),
+                  e.getDirection()));
+          break;
+        case MARKET_STATE:
+          add(history.marketState(e.getState()));
+          break;
+        default:
+          break;
+      }
+    } finally {
+      if (endOfBatch && count > 0) {
+        send();
+      }
+    }
+  }
+
+  /**
+   * Copies the message with the sequence passed in into the packet being
+   * filled, sending the packet first if the message does not fit.
+   */
+  private void add(long sequence) throws IOException {
+    if (count > 0 && packet.position() + history.size(sequence)
+            > FeedProtocol.MAX_PACKET) {
+      send();
+    }
+    if (count == 0) {
+      first = sequence;
+      packet.clear();
+      packet.position(FeedProtocol.PACKET_HEADER);
+    }
+    history.copy(sequence, packet);
+    count++;
+  }
+
+  private void send() throws IOException {
+    packet.putLong(0, first);
+    packet.putInt(8, count);
+    packet.flip();
+    try {
+      channel.send(packet, destination);
+      packets.incrementAndGet();
+    } finally {
+      // A packet that could not be sent is filled in by retransmission,
+      // like any other that is lost.
+      sent = first + count;
+      lastSend = System.nanoTime();
+      count = 0;
+    }
+  }
+
+  /**
+   * Sends a heartbeat if nothing has been sent for a heartbeat interval.
+   * Called on the heartbeat thread.
+   */
+  private void sendHeartbeat() {
+    if (System.nanoTime() - lastSend
+            < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+      return;
+    }
+    heartbeat.clear();
+    heartbeat.putLong(sent);
+    heartbeat.putInt(0);
+    heartbeat.flip();
+    try {
+      channel.send(heartbeat, destination);
+      packets.incrementAndGet();
+    } catch (IOException e) {
+      log.log(Level.SEVERE, null, e);
+    }
+  }
+}
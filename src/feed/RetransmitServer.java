@@ -0,0 +1,154 @@
+package feed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * The TCP retransmit and snapshot service of a MarketDataFeed. Each client
+ * socket is served by a thread of its own, which answers its requests from
+ * the feed's history one at a time. Receivers only connect when they have
+ * lost something, so there are few of them.
+ */
+final class RetransmitServer implements Runnable {
+
+  private static final Logger log =
+          Logger.getLogger(RetransmitServer.class.getName());
+
+  private final FeedHistory history;
+
+  private final ServerSocket server;
+
+  private final Thread thread;
+
+  private final ArrayList<Socket> clients = new ArrayList<>();
+
+  private int clientCount;
+
+  private volatile boolean running = true;
+
+  RetransmitServer(FeedHistory theHistory, InetSocketAddress address)
+          throws IOException {
+    history = theHistory;
+    server = new ServerSocket();
+    server.bind(address);
+    thread = new Thread(this, "MarketDataFeed-retransmit");
+    thread.setDaemon(true);
+  }
+
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void shutdown() throws IOException, InterruptedException {
+    running = false;
+    server.close();
+    thread.join();
+    synchronized (clients) {
+      for (Socket s : clients) {
+        s.close();
+      }
+      clients.clear();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      final Socket s;
+      try {
+        s = server.accept();
+        s.setTcpNoDelay(true);
+      } catch (IOException e) {
+        if (running) {
+          log.log(Level.SEVERE, null, e);
+        }
+        return;
+      }
+      synchronized (clients) {
+        clients.add(s);
+      }
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serve(s);
+        }
+      }, "MarketDataFeed-retransmit-" + (++clientCount));
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private void serve(Socket s) {
+    try {
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(s.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(s.getOutputStream()));
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+        if (length < 1 || length > FeedProtocol.MAX_MESSAGE) {
+          throw new IOException("Bad retransmit request length " + length);
+        }
+        byte type = in.readByte();
+        if (type == FeedProtocol.RETRANSMIT) {
+          long first = in.readLong();
+          int count = Math.min(in.readInt(), FeedProtocol.MAX_RETRANSMIT);
+          ByteBuffer packet = history.packet(first, count);
+          if (packet == null) {
+            out.writeInt(9);
+            out.writeByte(FeedProtocol.NOT_AVAILABLE);
+            out.writeLong(history.oldest());
+          } else {
+            reply(out, FeedProtocol.RETRANSMIT, packet);
+          }
+        } else if (type == FeedProtocol.SNAPSHOT) {
+          reply(out, FeedProtocol.SNAPSHOT, history.snapshot());
+        } else {
+          throw new IOException("Unknown retransmit request " + type);
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      if (running) {
+        log.log(Level.WARNING, "Retransmit client dropped", e);
+      }
+    } finally {
+      synchronized (clients) {
+        clients.remove(s);
+      }
+      try {
+        s.close();
+      } catch (IOException e) {
+        log.log(Level.SEVERE, null, e);
+      }
+    }
+  }
+
+  private static void reply(DataOutputStream out, byte type,
+          ByteBuffer packet) throws IOException {
+    out.writeInt(1 + packet.remaining());
+    out.writeByte(type);
+    out.write(packet.array(), packet.position(), packet.remaining());
+  }
+}
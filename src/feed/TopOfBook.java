@@ -0,0 +1,62 @@
+package feed;
+
+import price.Price;
+
+
+/**
+ * The latest market data of one product as carried by the feed: its current
+ * market, its last sale and its ticker.
+ */
+public class TopOfBook {
+
+  public String product;
+
+  public Price buyPrice;
+
+  public int buyVolume;
+
+  public Price sellPrice;
+
+  public int sellVolume;
+
+  /**
+   * The price and volume of the product's last sale, or null and 0 if it
+   * has not traded yet.
+   */
+  public Price lastSalePrice;
+
+  public int lastSaleVolume;
+
+  /**
+   * The ticker's last price, or null if it has not traded yet, and the
+   * direction it moved: an up or down arrow, '=' or ' ' for the first sale.
+   */
+  public Price tickerPrice;
+
+  public char tickerDirection = ' ';
+
+  public TopOfBook(String product) {
+    this.product = product;
+  }
+
+  public TopOfBook(TopOfBook other) {
+    product = other.product;
+    buyPrice = other.buyPrice;
+    buyVolume = other.buyVolume;
+    sellPrice = other.sellPrice;
+    sellVolume = other.sellVolume;
+    lastSalePrice = other.lastSalePrice;
+    lastSaleVolume = other.lastSaleVolume;
+    tickerPrice = other.tickerPrice;
+    tickerDirection = other.tickerDirection;
+  }
+
+  @Override
+  public String toString() {
+    return "Product: " + product + ". Buy Price: " + buyPrice
+            + ", Buy Volume: " + buyVolume + ", Sell Price: " + sellPrice
+            + ", Sell Volume: " + sellVolume + ", Last Sale: "
+            + lastSaleVolume + "@" + lastSalePrice + ", Ticker: "
+            + tickerPrice + " " + tickerDirection;
+  }
+}
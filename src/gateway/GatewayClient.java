@@ -0,0 +1,219 @@
+package gateway;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A blocking client for the OrderGateway. Requests are buffered and only
+ * sent by "flush" (or when the buffer fills), so a caller can send many
+ * before reading any reply; "read" then returns the replies and events in
+ * the order the gateway sent them. Not thread-safe, although one thread may
+ * write requests while another reads.
+ */
+public final class GatewayClient {
+
+  private static final int BUFFER = 4 * GatewayProtocol.MAX_FRAME;
+
+  private final SocketChannel channel;
+
+  private final ByteBuffer out = ByteBuffer.allocate(BUFFER);
+
+  private final ByteBuffer in = ByteBuffer.allocate(BUFFER);
+
+  /**
+   * Connects to the gateway at the host and port passed in.
+   *
+   * @param host
+   * @param port
+   */
+  public GatewayClient(String host, int port) throws IOException {
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    in.flip();
+  }
+
+  public void connect(int correlationId, String user) throws IOException {
+    int start = frame(GatewayProtocol.CONNECT, correlationId);
+    GatewayProtocol.putString(out, user);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void disconnect(int correlationId) throws IOException {
+    GatewayProtocol.endFrame(out, frame(GatewayProtocol.DISCONNECT,
+            correlationId));
+  }
+
+  public void submitOrder(int correlationId, String product, long price,
+          int volume, byte side) throws IOException {
+    int start = frame(GatewayProtocol.SUBMIT_ORDER, correlationId);
+    GatewayProtocol.putString(out, product);
+    out.putLong(price);
+    out.putInt(volume);
+    out.put(side);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void submitOrderCancel(int correlationId, String product, byte side,
+          String orderId) throws IOException {
+    int start = frame(GatewayProtocol.CANCEL_ORDER, correlationId);
+    GatewayProtocol.putString(out, product);
+    out.put(side);
+    GatewayProtocol.putString(out, orderId);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void submitQuote(int correlationId, String product, long buyPrice,
+          int buyVolume, long sellPrice, int sellVolume) throws IOException {
+    int start = frame(GatewayProtocol.SUBMIT_QUOTE, correlationId);
+    GatewayProtocol.putString(out, product);
+    out.putLong(buyPrice);
+    out.putInt(buyVolume);
+    out.putLong(sellPrice);
+    out.putInt(sellVolume);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void submitQuoteCancel(int correlationId, String product)
+          throws IOException {
+    int start = frame(GatewayProtocol.CANCEL_QUOTE, correlationId);
+    GatewayProtocol.putString(out, product);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void subscribe(int correlationId, byte channelId, String product)
+          throws IOException {
+    int start = frame(GatewayProtocol.SUBSCRIBE, correlationId);
+    out.put(channelId);
+    GatewayProtocol.putString(out, product);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  public void unSubscribe(int correlationId, byte channelId, String product)
+          throws IOException {
+    int start = frame(GatewayProtocol.UNSUBSCRIBE, correlationId);
+    out.put(channelId);
+    GatewayProtocol.putString(out, product);
+    GatewayProtocol.endFrame(out, start);
+  }
+
+  /**
+   * Sends the buffered requests.
+   */
+  public void flush() throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+  }
+
+  /**
+   * Waits for the next reply or event, and reads it into the message passed
+   * in.
+   *
+   * @param m
+   * @return false if the gateway has closed the connection
+   */
+  public boolean read(GatewayMessage m) throws IOException {
+    if (!fill(4)) {
+      return false;
+    }
+    int length = in.getInt(in.position());
+    if (length < GatewayProtocol.HEADER - 4
+            || length > GatewayProtocol.MAX_FRAME - 4) {
+      throw new IOException("Bad frame length " + length);
+    }
+    if (!fill(4 + length)) {
+      throw new EOFException("The gateway closed the connection mid-frame.");
+    }
+    int end = in.position() + 4 + length;
+    in.getInt();
+    m.type = in.get();
+    m.correlationId = in.getInt();
+    switch (m.type) {
+      case GatewayProtocol.OK:
+        break;
+      case GatewayProtocol.CONNECTED:
+        m.connectionId = in.getLong();
+        break;
+      case GatewayProtocol.ORDER_ACCEPTED:
+        m.orderId = GatewayProtocol.getString(in);
+        break;
+      case GatewayProtocol.REJECTED:
+        m.error = GatewayProtocol.getString(in);
+        m.text = GatewayProtocol.getString(in);
+        break;
+      case GatewayProtocol.FILL:
+      case GatewayProtocol.CANCEL:
+        m.product = GatewayProtocol.getString(in);
+        m.price = in.getLong();
+        m.volume = in.getInt();
+        m.side = in.get();
+        m.id = in.getLong();
+        m.text = GatewayProtocol.getString(in);
+        break;
+      case GatewayProtocol.MARKET_MESSAGE:
+        m.text = GatewayProtocol.getString(in);
+        break;
+      case GatewayProtocol.CURRENT_MARKET:
+        m.product = GatewayProtocol.getString(in);
+        m.buyPrice = in.getLong();
+        m.buyVolume = in.getInt();
+        m.sellPrice = in.getLong();
+        m.sellVolume = in.getInt();
+        break;
+      case GatewayProtocol.LAST_SALE:
+        m.product = GatewayProtocol.getString(in);
+        m.price = in.getLong();
+        m.volume = in.getInt();
+        break;
+      case GatewayProtocol.TICKER:
+        m.product = GatewayProtocol.getString(in);
+        m.price = in.getLong();
+        m.direction = in.getChar();
+        break;
+      default:
+        // A type this client does not know; skipped.
+    }
+    in.position(end);
+    return true;
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private int frame(byte type, int correlationId) throws IOException {
+    if (out.remaining() < GatewayProtocol.MAX_FRAME) {
+      flush();
+    }
+    return GatewayProtocol.startFrame(out, type, correlationId);
+  }
+
+  /**
+   * Reads until at least the number of bytes passed in are buffered.
+   *
+   * @return false if the connection closed first
+   */
+  private boolean fill(int n) throws IOException {
+    if (in.remaining() >= n) {
+      return true;
+    }
+    in.compact();
+    try {
+      while (in.position() < n) {
+        if (channel.read(in) < 0) {
+          return false;
+        }
+      }
+    } finally {
+      in.flip();
+    }
+    return true;
+  }
+}
@@ -0,0 +1,636 @@
+package gateway;
+
+import constants.GlobalConstants.BookSide;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import price.Price;
+import usercommand.UserCommandService;
+import usercommand.exceptions.UserNotConnectedException;
+
+
+/**
+ * One client's socket on the OrderGateway. Its requests are read by the
+ * GatewayLoop that owns the socket, which hands them to the trading system
+ * without waiting for them: an order is queued for its book straight from
+ * the loop, and every other request runs on the gateway's workers, one
+ * after another in the order they arrive. An order that comes while other
+ * requests are still waiting goes to the workers behind them, so a
+ * connection's requests always reach the trading system in order.
+ *
+ * Each request's reply is written to the socket's outbound buffer once it
+ * and every earlier reply are ready, by whichever thread finishes it;
+ * events for the connected user are written to the same buffer by whichever
+ * thread publishes them. The loop sends what is buffered once it has read
+ * every whole request it can, so pipelined requests are answered with few
+ * writes.
+ */
+final class GatewayConnection {
+
+  private static final int INITIAL_OUTBOUND = 2 * GatewayProtocol.MAX_FRAME;
+
+  /**
+   * The most a client can leave unread before it is disconnected.
+   */
+  private static final int MAX_OUTBOUND = 16 * 1024 * 1024;
+
+  /**
+   * The most requests a worker runs for one connection before it lets the
+   * other connections have a turn.
+   */
+  private static final int BATCH = 64;
+
+  private final GatewayLoop loop;
+
+  private final SocketChannel channel;
+
+  private SelectionKey key;
+
+  private final ByteBuffer inbound =
+          ByteBuffer.allocate(2 * GatewayProtocol.MAX_FRAME);
+
+  /**
+   * Guarded by this connection's lock, as are "replies", "flushQueued" and
+   * "overflowed".
+   */
+  private ByteBuffer outbound = ByteBuffer.allocate(INITIAL_OUTBOUND);
+
+  /**
+   * The replies not yet written, oldest first.
+   */
+  private final ArrayDeque<Reply> replies = new ArrayDeque<>();
+
+  private boolean flushQueued;
+
+  private boolean overflowed;
+
+  private volatile boolean closed;
+
+  /**
+   * The requests waiting for a worker, oldest first, and whether a worker
+   * has been given them. Guarded by "waiting"'s lock.
+   */
+  private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+  private boolean working;
+
+  /**
+   * The connected user and its connection id, set by CONNECT. Used only by
+   * whoever is running the connection's requests: a worker, or the loop
+   * while no worker has any.
+   */
+  private String userName;
+
+  private long connectionId;
+
+  /**
+   * The products subscribed to through this connection, unsubscribed from
+   * when it closes. Used by the workers only.
+   */
+  private final HashSet<String> subscribed = new HashSet<>();
+
+  /**
+   * Runs the waiting requests on a worker.
+   */
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      for (int i = 0; i < BATCH; i++) {
+        Runnable request;
+        synchronized (waiting) {
+          request = waiting.poll();
+          if (request == null) {
+            working = false;
+            return;
+          }
+        }
+        request.run();
+      }
+      loop.workers().execute(this);
+    }
+  };
+
+  GatewayConnection(GatewayLoop theLoop, SocketChannel theChannel) {
+    loop = theLoop;
+    channel = theChannel;
+  }
+
+  void register() throws IOException {
+    key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+  }
+
+  /**
+   * Reads what the client has sent and hands every whole request in it to
+   * the trading system.
+   */
+  void read() throws IOException {
+    int n = channel.read(inbound);
+    if (n < 0) {
+      close();
+      return;
+    }
+    inbound.flip();
+    while (inbound.remaining() >= 4) {
+      int start = inbound.position();
+      int length = inbound.getInt(start);
+      if (length < GatewayProtocol.HEADER - 4
+              || length > GatewayProtocol.MAX_FRAME - 4) {
+        close();
+        return;
+      }
+      if (inbound.remaining() < 4 + length) {
+        break;
+      }
+      int end = start + 4 + length;
+      inbound.position(start + 4);
+      byte type = inbound.get();
+      Reply r = new Reply(inbound.getInt());
+      synchronized (this) {
+        replies.add(r);
+      }
+      ByteBuffer body = inbound.slice();
+      body.limit(end - inbound.position());
+      if (type == GatewayProtocol.SUBMIT_ORDER && !waiting()) {
+        try {
+          submitOrder(r, body);
+        } catch (Exception e) {
+          fail(r, e);
+        }
+      } else {
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        copy.put(body);
+        copy.flip();
+        runOnWorker(type, r, copy);
+      }
+      inbound.position(end);
+    }
+    inbound.compact();
+  }
+
+  private boolean waiting() {
+    synchronized (waiting) {
+      return working;
+    }
+  }
+
+  private void runOnWorker(final byte type, final Reply r,
+          final ByteBuffer in) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!closed) {
+          GatewayConnection.this.run(type, r, in);
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues the request behind the connection's waiting requests, and gives
+   * them to a worker if none has them.
+   */
+  private void execute(Runnable request) {
+    synchronized (waiting) {
+      waiting.add(request);
+      if (working) { return; }
+      working = true;
+    }
+    loop.workers().execute(drain);
+  }
+
+  private void run(byte type, Reply r, ByteBuffer in) {
+    UserCommandService ucs = UserCommandService.getInstance();
+    try {
+      if (type == GatewayProtocol.CONNECT) {
+        connect(r, GatewayProtocol.getString(in));
+        return;
+      }
+      if (type == GatewayProtocol.SUBMIT_ORDER) {
+        submitOrder(r, in);
+        return;
+      }
+      if (userName == null) {
+        throw new UserNotConnectedException("CONNECT must come first.");
+      }
+      switch (type) {
+        case GatewayProtocol.DISCONNECT:
+          disconnect();
+          break;
+        case GatewayProtocol.CANCEL_ORDER: {
+          String product = GatewayProtocol.getString(in);
+          BookSide side = GatewayProtocol.side(in.get());
+          ucs.submitOrderCancel(userName, connectionId, product, side,
+                  GatewayProtocol.getString(in));
+          break;
+        }
+        case GatewayProtocol.SUBMIT_QUOTE: {
+          String product = GatewayProtocol.getString(in);
+          Price buyPrice = GatewayProtocol.price(in.getLong());
+          int buyVolume = in.getInt();
+          Price sellPrice = GatewayProtocol.price(in.getLong());
+          ucs.submitQuote(userName, connectionId, product, buyPrice,
+                  buyVolume, sellPrice, in.getInt());
+          break;
+        }
+        case GatewayProtocol.CANCEL_QUOTE:
+          ucs.submitQuoteCancel(userName, connectionId,
+                  GatewayProtocol.getString(in));
+          break;
+        case GatewayProtocol.SUBSCRIBE:
+        case GatewayProtocol.UNSUBSCRIBE: {
+          byte channelId = in.get();
+          String product = GatewayProtocol.getString(in);
+          subscribe(type == GatewayProtocol.SUBSCRIBE, channelId, product);
+          break;
+        }
+        default:
+          throw new IllegalArgumentException("Unknown request type " + type);
+      }
+      r.type = GatewayProtocol.OK;
+      finish(r);
+    } catch (Exception e) {
+      fail(r, e);
+    }
+  }
+
+  /**
+   * Queues the order for its book without waiting for it. Once the book has
+   * accepted it, a worker waits for it to be durable before the reply is
+   * written, as a synchronous submit would; without a journal the reply is
+   * written by the book's thread.
+   */
+  private void submitOrder(final Reply r, ByteBuffer in) throws Exception {
+    if (userName == null) {
+      throw new UserNotConnectedException("CONNECT must come first.");
+    }
+    String product = GatewayProtocol.getString(in);
+    Price price = GatewayProtocol.price(in.getLong());
+    int volume = in.getInt();
+    BookSide side = GatewayProtocol.side(in.get());
+    UserCommandService.getInstance().submitOrderAsync(userName, connectionId,
+            product, price, volume, side).whenComplete(
+            new BiConsumer<String, Throwable>() {
+              @Override
+              public void accept(String id, Throwable failure) {
+                if (failure != null) {
+                  fail(r, failure);
+                  return;
+                }
+                r.type = GatewayProtocol.ORDER_ACCEPTED;
+                r.text = id;
+                if (!UserCommandService.getInstance().isJournaling()) {
+                  finish(r);
+                  return;
+                }
+                loop.workers().execute(new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      UserCommandService.getInstance().awaitDurable();
+                      finish(r);
+                    } catch (Exception e) {
+                      fail(r, e);
+                    }
+                  }
+                });
+              }
+            });
+  }
+
+  private void connect(Reply r, String name) throws Exception {
+    if (userName != null) {
+      throw new IllegalStateException("Already connected as " + userName
+              + ".");
+    }
+    long id = UserCommandService.getInstance().connect(
+            new GatewayUser(name, this));
+    userName = name;
+    connectionId = id;
+    r.type = GatewayProtocol.CONNECTED;
+    r.connectionId = id;
+    finish(r);
+  }
+
+  private void disconnect() throws Exception {
+    String name = userName;
+    unsubscribeAll();
+    userName = null;
+    UserCommandService.getInstance().disconnect(name, connectionId);
+  }
+
+  private void subscribe(boolean subscribe, byte channelId, String product)
+          throws Exception {
+    UserCommandService ucs = UserCommandService.getInstance();
+    switch (channelId) {
+      case GatewayProtocol.CHANNEL_CURRENT_MARKET:
+        if (subscribe) {
+          ucs.subscribeCurrentMarket(userName, connectionId, product);
+        } else {
+          ucs.unSubscribeCurrentMarket(userName, connectionId, product);
+        }
+        break;
+      case GatewayProtocol.CHANNEL_LAST_SALE:
+        if (subscribe) {
+          ucs.subscribeLastSale(userName, connectionId, product);
+        } else {
+          ucs.unSubscribeLastSale(userName, connectionId, product);
+        }
+        break;
+      case GatewayProtocol.CHANNEL_MESSAGES:
+        if (subscribe) {
+          ucs.subscribeMessages(userName, connectionId, product);
+        } else {
+          ucs.unSubscribeMessages(userName, connectionId, product);
+        }
+        break;
+      case GatewayProtocol.CHANNEL_TICKER:
+        if (subscribe) {
+          ucs.subscribeTicker(userName, connectionId, product);
+        } else {
+          ucs.unSubscribeTicker(userName, connectionId, product);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown channel " + channelId);
+    }
+    if (subscribe) {
+      subscribed.add(product);
+    }
+  }
+
+  /**
+   * Drops every subscription made through this connection. Unsubscribing
+   * from a channel that was not subscribed to fails, and is ignored.
+   */
+  private void unsubscribeAll() {
+    for (String product : subscribed) {
+      for (byte c = GatewayProtocol.CHANNEL_CURRENT_MARKET;
+              c <= GatewayProtocol.CHANNEL_TICKER; c++) {
+        try {
+          subscribe(false, c, product);
+        } catch (Exception e) {
+          // Not subscribed on this channel.
+        }
+      }
+    }
+    subscribed.clear();
+  }
+
+  private void fail(Reply r, Throwable failure) {
+    if (failure instanceof CompletionException
+            && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    r.type = GatewayProtocol.REJECTED;
+    r.failure = failure;
+    finish(r);
+  }
+
+  /**
+   * Marks the reply ready and writes every ready reply at the head of the
+   * queue. Safe to call from any thread.
+   */
+  private void finish(Reply r) {
+    synchronized (this) {
+      r.ready = true;
+      while (!replies.isEmpty() && replies.peek().ready) {
+        write(replies.poll());
+      }
+    }
+    queueFlush();
+  }
+
+  /**
+   * Writes the reply to the outbound buffer. Called holding this
+   * connection's lock.
+   */
+  private void write(Reply r) {
+    try {
+      int start = frame(r.type, r.correlationId);
+      if (r.type == GatewayProtocol.CONNECTED) {
+        outbound.putLong(r.connectionId);
+      } else if (r.type == GatewayProtocol.REJECTED) {
+        String message = r.failure.getMessage() == null ? ""
+                : r.failure.getMessage();
+        if (message.length() > 1024) {
+          message = message.substring(0, 1024);
+        }
+        GatewayProtocol.putString(outbound,
+                r.failure.getClass().getSimpleName());
+        GatewayProtocol.putString(outbound, message);
+      } else if (r.text != null) {
+        GatewayProtocol.putString(outbound, r.text);
+      }
+      GatewayProtocol.endFrame(outbound, start);
+    } catch (BufferOverflowException e) {
+      overflowed = true;
+    }
+  }
+
+  void sendTradeMessage(byte type, String product, Price price, int volume,
+          BookSide side, long id, String details) {
+    if (closed) { return; }
+    synchronized (this) {
+      try {
+        int start = frame(type, 0);
+        GatewayProtocol.putString(outbound, product);
+        outbound.putLong(GatewayProtocol.price(price));
+        outbound.putInt(volume);
+        outbound.put(GatewayProtocol.side(side));
+        outbound.putLong(id);
+        GatewayProtocol.putString(outbound, details);
+        GatewayProtocol.endFrame(outbound, start);
+      } catch (BufferOverflowException | IllegalArgumentException e) {
+        overflowed = true;
+      }
+    }
+    queueFlush();
+  }
+
+  void sendMarketMessage(String message) {
+    if (closed) { return; }
+    synchronized (this) {
+      try {
+        int start = frame(GatewayProtocol.MARKET_MESSAGE, 0);
+        GatewayProtocol.putString(outbound, message);
+        GatewayProtocol.endFrame(outbound, start);
+      } catch (BufferOverflowException | IllegalArgumentException e) {
+        overflowed = true;
+      }
+    }
+    queueFlush();
+  }
+
+  void sendCurrentMarket(String product, Price buyPrice, int buyVolume,
+          Price sellPrice, int sellVolume) {
+    if (closed) { return; }
+    synchronized (this) {
+      try {
+        int start = frame(GatewayProtocol.CURRENT_MARKET, 0);
+        GatewayProtocol.putString(outbound, product);
+        outbound.putLong(GatewayProtocol.price(buyPrice));
+        outbound.putInt(buyVolume);
+        outbound.putLong(GatewayProtocol.price(sellPrice));
+        outbound.putInt(sellVolume);
+        GatewayProtocol.endFrame(outbound, start);
+      } catch (BufferOverflowException | IllegalArgumentException e) {
+        overflowed = true;
+      }
+    }
+    queueFlush();
+  }
+
+  void sendLastSale(String product, Price price, int volume) {
+    if (closed) { return; }
+    synchronized (this) {
+      try {
+        int start = frame(GatewayProtocol.LAST_SALE, 0);
+        GatewayProtocol.putString(outbound, product);
+        outbound.putLong(GatewayProtocol.price(price));
+        outbound.putInt(volume);
+        GatewayProtocol.endFrame(outbound, start);
+      } catch (BufferOverflowException | IllegalArgumentException e) {
+        overflowed = true;
+      }
+    }
+    queueFlush();
+  }
+
+  void sendTicker(String product, Price price, char direction) {
+    if (closed) { return; }
+    synchronized (this) {
+      try {
+        int start = frame(GatewayProtocol.TICKER, 0);
+        GatewayProtocol.putString(outbound, product);
+        outbound.putLong(GatewayProtocol.price(price));
+        outbound.putChar(direction);
+        GatewayProtocol.endFrame(outbound, start);
+      } catch (BufferOverflowException | IllegalArgumentException e) {
+        overflowed = true;
+      }
+    }
+    queueFlush();
+  }
+
+  /**
+   * Starts a frame in the outbound buffer, first making room for the
+   * largest frame. Called holding this connection's lock.
+   */
+  private int frame(byte type, int correlationId) {
+    if (outbound.remaining() < GatewayProtocol.MAX_FRAME) {
+      if (outbound.capacity() >= MAX_OUTBOUND) {
+        throw new BufferOverflowException();
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(outbound.capacity() * 2);
+      outbound.flip();
+      bigger.put(outbound);
+      outbound = bigger;
+    }
+    return GatewayProtocol.startFrame(outbound, type, correlationId);
+  }
+
+  /**
+   * Asks the loop to send what is buffered, once it has run the requests
+   * it is running now.
+   */
+  private void queueFlush() {
+    synchronized (this) {
+      if (flushQueued) { return; }
+      flushQueued = true;
+    }
+    loop.queueFlush(this);
+  }
+
+  /**
+   * Writes as much of the outbound buffer as the socket takes, and asks to
+   * be told when it takes more if some is left. Called by the loop only.
+   */
+  void flush() throws IOException {
+    if (closed) { return; }
+    boolean pending;
+    synchronized (this) {
+      flushQueued = false;
+      if (overflowed) {
+        pending = false;
+      } else {
+        outbound.flip();
+        channel.write(outbound);
+        outbound.compact();
+        pending = outbound.position() > 0;
+      }
+    }
+    if (overflowed) {
+      // The client is not reading its replies and events.
+      close();
+      return;
+    }
+    int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+            : SelectionKey.OP_READ;
+    if (key.interestOps() != ops) {
+      key.interestOps(ops);
+    }
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes the socket, and has a worker disconnect its user once the
+   * requests already waiting are dropped. Called by the loop only.
+   */
+  void close() {
+    if (closed) { return; }
+    closed = true;
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Already gone.
+    }
+    // Behind the requests still waiting, which see "closed" and are
+    // dropped.
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (userName == null) { return; }
+        try {
+          disconnect();
+        } catch (Exception e) {
+          // The user was already disconnected.
+        }
+      }
+    });
+  }
+
+  /**
+   * A request's reply, written once it is ready and so is every reply
+   * before it. Its fields are set before it is marked ready.
+   */
+  private static final class Reply {
+
+    private final int correlationId;
+
+    private byte type;
+
+    private String text;
+
+    private long connectionId;
+
+    private Throwable failure;
+
+    private boolean ready;
+
+    private Reply(int theCorrelationId) {
+      correlationId = theCorrelationId;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * One event-loop thread of the OrderGateway: a Selector over the sockets it
+ * owns, whose requests it reads and hands to the trading system. The first
+ * loop also accepts new sockets, and hands them out to the loops in turn.
+ */
+final class GatewayLoop implements Runnable {
+
+  private static final Logger log =
+          Logger.getLogger(GatewayLoop.class.getName());
+
+  private final OrderGateway gateway;
+
+  private final Selector selector;
+
+  private final Thread thread;
+
+  /**
+   * Sockets accepted for this loop, registered by the loop itself.
+   */
+  private final ConcurrentLinkedQueue<SocketChannel> accepted =
+          new ConcurrentLinkedQueue<>();
+
+  /**
+   * Connections with something to send.
+   */
+  private final ConcurrentLinkedQueue<GatewayConnection> flushes =
+          new ConcurrentLinkedQueue<>();
+
+  private final ArrayList<GatewayConnection> connections = new ArrayList<>();
+
+  private volatile boolean running = true;
+
+  GatewayLoop(OrderGateway theGateway, String name) throws IOException {
+    gateway = theGateway;
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  Executor workers() {
+    return gateway.workers();
+  }
+
+  Selector selector() {
+    return selector;
+  }
+
+  void listen(ServerSocketChannel server) throws IOException {
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Hands a newly accepted socket to this loop.
+   *
+   * @param channel
+   */
+  void add(SocketChannel channel) {
+    accepted.add(channel);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Has the connection passed in flushed by this loop. When called from
+   * another thread the loop is woken up for it.
+   *
+   * @param c
+   */
+  void queueFlush(GatewayConnection c) {
+    flushes.add(c);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+
+  void shutdown() throws InterruptedException {
+    running = false;
+    selector.wakeup();
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        // Before selecting, as the first loop may have just accepted
+        // sockets for itself.
+        registerAccepted();
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            try {
+              gateway.accept((ServerSocketChannel) key.channel());
+            } catch (IOException e) {
+              // The server socket stays registered; what could not be
+              // accepted now is tried again on the next select.
+              log.log(Level.SEVERE, null, e);
+            }
+            continue;
+          }
+          GatewayConnection c = (GatewayConnection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              c.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              c.flush();
+            }
+          } catch (IOException e) {
+            c.close();
+          }
+        }
+        GatewayConnection c;
+        while ((c = flushes.poll()) != null) {
+          try {
+            c.flush();
+          } catch (IOException e) {
+            c.close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.log(Level.SEVERE, null, e);
+    } finally {
+      for (GatewayConnection c : connections) {
+        c.close();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        log.log(Level.SEVERE, null, e);
+      }
+    }
+  }
+
+  private void registerAccepted() {
+    if (accepted.isEmpty()) { return; }
+    // Forget the connections that have closed since the last accept.
+    for (int i = connections.size() - 1; i >= 0; i--) {
+      if (connections.get(i).isClosed()) {
+        connections.remove(i);
+      }
+    }
+    SocketChannel channel;
+    while ((channel = accepted.poll()) != null) {
+      GatewayConnection c = new GatewayConnection(this, channel);
+      try {
+        c.register();
+        connections.add(c);
+      } catch (IOException e) {
+        c.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package gateway;
+
+
+/**
+ * A reply or event read by a GatewayClient. Only the fields of its type (see
+ * GatewayProtocol) are set; prices are in cents, as on the wire. One message
+ * is reused for every read.
+ */
+public class GatewayMessage {
+
+  public byte type;
+
+  /**
+   * The correlation id of the request a reply answers, 0 for an event.
+   */
+  public int correlationId;
+
+  /**
+   * CONNECTED: the connection id.
+   */
+  public long connectionId;
+
+  /**
+   * ORDER_ACCEPTED: the order id.
+   */
+  public String orderId;
+
+  /**
+   * REJECTED: the simple name of the exception that rejected the request.
+   */
+  public String error;
+
+  /**
+   * REJECTED: the exception's message. FILL and CANCEL: the details.
+   * MARKET_MESSAGE: the message.
+   */
+  public String text;
+
+  public String product;
+
+  /**
+   * FILL, CANCEL, LAST_SALE and TICKER: the price and volume.
+   */
+  public long price;
+
+  public int volume;
+
+  /**
+   * FILL and CANCEL: the side, as GatewayProtocol.SIDE_BUY or SIDE_SELL, and
+   * the Tradeable's id.
+   */
+  public byte side;
+
+  public long id;
+
+  /**
+   * CURRENT_MARKET: the top of the book.
+   */
+  public long buyPrice;
+
+  public int buyVolume;
+
+  public long sellPrice;
+
+  public int sellVolume;
+
+  /**
+   * TICKER: the direction character.
+   */
+  public char direction;
+}
@@ -0,0 +1,206 @@
+package gateway;
+
+import constants.GlobalConstants.BookSide;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import price.Price;
+import price.PriceFactory;
+
+
+/**
+ * The binary protocol spoken between order-entry clients and the
+ * OrderGateway. Every message is a frame:
+ *
+ *   [int length][byte type][int correlation id][body]
+ *
+ * where the length counts everything after itself. All values are
+ * big-endian; strings are a short byte count followed by UTF-8; prices are
+ * longs in cents, with MARKET_PRICE for MKT and NO_PRICE for none; sides are
+ * SIDE_BUY or SIDE_SELL.
+ *
+ * Requests (client to gateway), each answered by one reply carrying the
+ * request's correlation id:
+ *
+ *   CONNECT           user                                 CONNECTED
+ *   DISCONNECT                                             OK
+ *   SUBMIT_ORDER      product, price, volume, side         ORDER_ACCEPTED
+ *   CANCEL_ORDER      product, side, order id              OK
+ *   SUBMIT_QUOTE      product, buy price, buy volume,
+ *                     sell price, sell volume              OK
+ *   CANCEL_QUOTE      product                              OK
+ *   SUBSCRIBE         channel, product                     OK
+ *   UNSUBSCRIBE       channel, product                     OK
+ *
+ * Any request can instead be answered by REJECTED, carrying the simple name
+ * of the exception that rejected it and its message. Replies for one
+ * connection are sent in the order its requests were received, so a client
+ * can pipeline requests without waiting for each reply.
+ *
+ * Replies:
+ *
+ *   OK
+ *   CONNECTED         connection id
+ *   ORDER_ACCEPTED    order id
+ *   REJECTED          exception name, message
+ *
+ * Events (gateway to client, correlation id 0), sent as the connected
+ * user's publishers deliver them:
+ *
+ *   FILL, CANCEL      product, price, volume, side, id, details
+ *   MARKET_MESSAGE    message
+ *   CURRENT_MARKET    product, buy price, buy volume, sell price,
+ *                     sell volume
+ *   LAST_SALE         product, price, volume
+ *   TICKER            product, price, direction (a UTF-16 char: an up or
+ *                     down arrow, '=' or ' ' for the first sale)
+ *
+ * An order is traded before it is acknowledged, so its FILL events can
+ * arrive before its ORDER_ACCEPTED; they carry the order id to match them
+ * up by.
+ */
+public final class GatewayProtocol {
+
+  public static final byte CONNECT = 1;
+
+  public static final byte DISCONNECT = 2;
+
+  public static final byte SUBMIT_ORDER = 3;
+
+  public static final byte CANCEL_ORDER = 4;
+
+  public static final byte SUBMIT_QUOTE = 5;
+
+  public static final byte CANCEL_QUOTE = 6;
+
+  public static final byte SUBSCRIBE = 7;
+
+  public static final byte UNSUBSCRIBE = 8;
+
+  public static final byte OK = 64;
+
+  public static final byte CONNECTED = 65;
+
+  public static final byte ORDER_ACCEPTED = 66;
+
+  public static final byte REJECTED = 67;
+
+  public static final byte FILL = 80;
+
+  public static final byte CANCEL = 81;
+
+  public static final byte MARKET_MESSAGE = 82;
+
+  public static final byte CURRENT_MARKET = 83;
+
+  public static final byte LAST_SALE = 84;
+
+  public static final byte TICKER = 85;
+
+  /**
+   * The channels of the SUBSCRIBE and UNSUBSCRIBE requests.
+   */
+  public static final byte CHANNEL_CURRENT_MARKET = 1;
+
+  public static final byte CHANNEL_LAST_SALE = 2;
+
+  public static final byte CHANNEL_MESSAGES = 3;
+
+  public static final byte CHANNEL_TICKER = 4;
+
+  public static final byte SIDE_BUY = 0;
+
+  public static final byte SIDE_SELL = 1;
+
+  public static final long MARKET_PRICE = Long.MIN_VALUE;
+
+  public static final long NO_PRICE = Long.MIN_VALUE + 1;
+
+  /**
+   * The largest frame either side accepts, length field included.
+   */
+  public static final int MAX_FRAME = 64 * 1024;
+
+  /**
+   * The size of a frame's length, type and correlation id.
+   */
+  public static final int HEADER = 9;
+
+  private GatewayProtocol() {
+  }
+
+  /**
+   * Starts a frame of the type passed in at the buffer's position, leaving
+   * its length to be filled in by "endFrame".
+   *
+   * @param out
+   * @param type
+   * @param correlationId
+   * @return the position of the frame, to pass to "endFrame"
+   */
+  public static int startFrame(ByteBuffer out, byte type, int correlationId) {
+    int start = out.position();
+    out.putInt(0);
+    out.put(type);
+    out.putInt(correlationId);
+    return start;
+  }
+
+  /**
+   * Fills in the length of the frame started at the position passed in.
+   *
+   * @param out
+   * @param start
+   */
+  public static void endFrame(ByteBuffer out, int start) {
+    out.putInt(start, out.position() - start - 4);
+  }
+
+  public static void putString(ByteBuffer out, String s) {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    if (b.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("String too long for a frame.");
+    }
+    out.putShort((short) b.length);
+    out.put(b);
+  }
+
+  public static String getString(ByteBuffer in) {
+    int n = in.getShort();
+    if (n < 0) {
+      throw new BufferUnderflowException();
+    }
+    byte[] b = new byte[n];
+    in.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  public static long price(Price p) {
+    if (p == null) {
+      return NO_PRICE;
+    }
+    return p.isMarket() ? MARKET_PRICE : p.getValue();
+  }
+
+  public static Price price(long cents) {
+    if (cents == NO_PRICE) {
+      return null;
+    }
+    return cents == MARKET_PRICE ? PriceFactory.makeMarketPrice()
+            : PriceFactory.makeLimitPrice(cents);
+  }
+
+  public static byte side(BookSide side) {
+    return side == BookSide.BUY ? SIDE_BUY : SIDE_SELL;
+  }
+
+  public static BookSide side(byte b) {
+    if (b == SIDE_BUY) {
+      return BookSide.BUY;
+    }
+    if (b == SIDE_SELL) {
+      return BookSide.SELL;
+    }
+    throw new IllegalArgumentException("Unknown side " + b);
+  }
+}
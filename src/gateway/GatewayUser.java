@@ -0,0 +1,64 @@
+package gateway;
+
+import client.Subscriber;
+import price.Price;
+import publishers.messages.CancelMessage;
+import publishers.messages.FillMessage;
+
+
+/**
+ * The Subscriber a gateway connection is known by to the trading system.
+ * What the publishers deliver to it is written to its connection as events;
+ * the remote client enters its commands through the protocol.
+ */
+final class GatewayUser implements Subscriber {
+
+  private final String userName;
+
+  private final GatewayConnection connection;
+
+  GatewayUser(String name, GatewayConnection c) {
+    userName = name;
+    connection = c;
+  }
+
+  @Override
+  public String getUserName() {
+    return userName;
+  }
+
+  @Override
+  public void acceptLastSale(String product, Price p, int v) {
+    connection.sendLastSale(product, p, v);
+  }
+
+  @Override
+  public void acceptMessage(FillMessage fm) {
+    connection.sendTradeMessage(GatewayProtocol.FILL, fm.getProduct(),
+            fm.getPrice(), fm.getVolume(), fm.getSide(), fm.getID(),
+            fm.getDetails());
+  }
+
+  @Override
+  public void acceptMessage(CancelMessage cm) {
+    connection.sendTradeMessage(GatewayProtocol.CANCEL, cm.getProduct(),
+            cm.getPrice(), cm.getVolume(), cm.getSide(), cm.getID(),
+            cm.getDetails());
+  }
+
+  @Override
+  public void acceptMarketMessage(String message) {
+    connection.sendMarketMessage(message);
+  }
+
+  @Override
+  public void acceptTicker(String product, Price p, char direction) {
+    connection.sendTicker(product, p, direction);
+  }
+
+  @Override
+  public void acceptCurrentMarket(String product, Price bp, int bv,
+          Price sp, int sv) {
+    connection.sendCurrentMarket(product, bp, bv, sp, sv);
+  }
+}
@@ -0,0 +1,162 @@
+package gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A TCP order-entry gateway in front of the UserCommandService, speaking the
+ * binary protocol described in GatewayProtocol. Each client socket becomes
+ * a user of the trading system once it sends CONNECT; its requests are run
+ * on the UserCommandService, and its replies, fills, cancels and market data
+ * go back on the same socket.
+ *
+ * Sockets are served by a small, fixed set of event-loop threads, each
+ * owning its sockets for their lifetime. A loop never waits on the trading
+ * system: it queues orders for their books and leaves the requests that
+ * wait (for a book, or the journal) to a pool of worker threads, so one
+ * socket's slow request does not hold up the other sockets on its loop.
+ */
+public final class OrderGateway {
+
+  private static final Logger log =
+          Logger.getLogger(OrderGateway.class.getName());
+
+  private final ServerSocketChannel server;
+
+  private final GatewayLoop[] loops;
+
+  /**
+   * Runs the requests the loops hand off, and waits for accepted orders to
+   * be durable before they are acknowledged.
+   */
+  private final ExecutorService workers;
+
+  private int nextLoop;
+
+  private boolean started;
+
+  /**
+   * Creates a gateway listening on the port passed in (0 for any free port)
+   * of every local address, served by the number of loops passed in. It does
+   * not accept connections until it is started.
+   *
+   * @param port
+   * @param loopCount
+   */
+  public OrderGateway(int port, int loopCount) throws IOException {
+    this(new InetSocketAddress(port), loopCount);
+  }
+
+  /**
+   * Creates a gateway listening on the address passed in, served by the
+   * number of loops passed in.
+   *
+   * @param address
+   * @param loopCount
+   */
+  public OrderGateway(InetSocketAddress address, int loopCount)
+          throws IOException {
+    if (loopCount < 1) {
+      throw new IllegalArgumentException("A gateway needs at least one loop.");
+    }
+    server = ServerSocketChannel.open();
+    server.configureBlocking(false);
+    server.bind(address);
+    workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OrderGateway-worker-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+    loops = new GatewayLoop[loopCount];
+    for (int i = 0; i < loopCount; i++) {
+      loops[i] = new GatewayLoop(this, "OrderGateway-" + i);
+    }
+  }
+
+  /**
+   * Starts accepting and serving connections.
+   */
+  public synchronized void start() throws IOException {
+    if (started) { return; }
+    started = true;
+    loops[0].listen(server);
+    for (GatewayLoop loop : loops) {
+      loop.start();
+    }
+  }
+
+  /**
+   * Returns the port the gateway is listening on.
+   *
+   * @return the port
+   */
+  public int getPort() throws IOException {
+    return ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Stops the gateway: it stops listening, closes every connection and
+   * disconnects their users.
+   */
+  public synchronized void close() throws IOException {
+    try {
+      for (GatewayLoop loop : loops) {
+        loop.shutdown();
+      }
+      // After the loops, which have the workers disconnect their users.
+      workers.shutdown();
+      workers.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    server.close();
+  }
+
+  Executor workers() {
+    return workers;
+  }
+
+  /**
+   * Accepts the pending connections and hands them to the loops in turn.
+   * A connection that cannot be set up is logged and closed, and the rest
+   * are still accepted. Called by the first loop.
+   */
+  void accept(ServerSocketChannel s) throws IOException {
+    SocketChannel channel;
+    while ((channel = s.accept()) != null) {
+      try {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Accepted connection dropped", e);
+        try {
+          channel.close();
+        } catch (IOException ex) {
+          log.log(Level.SEVERE, null, ex);
+        }
+        continue;
+      }
+      loops[nextLoop].add(channel);
+      nextLoop = (nextLoop + 1) % loops.length;
+    }
+  }
+}
@@ -7,8 +7,8 @@ import price.exceptions.PriceException;
 public class Price implements Comparable<Price> {
 
   Price self = this;
-  boolean isMarketPrice;
-  long value;
+  final boolean isMarketPrice;
+  final long value;
 
   private final int BEFORE = -1;
   private final int EQUAL = 0;
@@ -20,16 +20,16 @@ public class Price implements Comparable<Price> {
    * @param value
    */
   public Price(long value) {
-    self.value = value;
-    self.isMarketPrice = false;
+    this.value = value;
+    isMarketPrice = false;
   }
 
   /**
    * Creates a Market Price.
    */
   public Price() {
-    self.value = 0;
-    self.isMarketPrice = true;
+    value = 0;
+    isMarketPrice = true;
   }
 
   public Price add(Price p) throws InvalidPriceOperation,
@@ -60,6 +60,15 @@ public class Price implements Comparable<Price> {
     return PriceFactory.makeLimitPrice(self.value * p);
   }
 
+  /**
+   * Returns the value of a limit price in cents, or 0 for a market price.
+   *
+   * @return the price in cents
+   */
+  public long getValue() {
+    return self.value;
+  }
+
   public boolean isMarket() {
     return self.isMarketPrice;
   }
@@ -1,20 +1,66 @@
 package price;
 
-import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 public class PriceFactory {
 
-  private static Map<String, Price> flyweights = new HashMap<>();
+  /**
+   * Limit prices from $0.00 up to this many cents ($2,000.00) are kept in a
+   * dense array indexed by their value in cents, which covers the prices
+   * normally traded. Looking one up only reads an array slot.
+   */
+  private static final int DENSE_LIMIT = 200000;
 
+  /**
+   * The flyweight limit prices in the dense range, created on first use.
+   */
+  private static final AtomicReferenceArray<Price> densePrices =
+          new AtomicReferenceArray<>(DENSE_LIMIT + 1);
+
+  /**
+   * The flyweight limit prices outside the dense range (negative amounts,
+   * position values and other large amounts), indexed by value in cents.
+   */
+  private static final ConcurrentHashMap<Long, Price> otherPrices =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The one market price.
+   */
+  private static final Price marketPrice = new Price();
+
+  /**
+   * Returns the limit price for the value in cents passed in. There is only
+   * ever one Price object for a value, even when several threads ask for a
+   * new value at once: the first one installed wins and the others return it.
+   * Prices are never evicted, so two Prices for the same value are always
+   * the same object.
+   *
+   * @param value
+   * @return the limit Price
+   */
   public static Price makeLimitPrice(long value) {
-    String key = value + "";
-    Price p = PriceFactory.flyweights.get(key);
+    if (value >= 0 && value <= DENSE_LIMIT) {
+      int slot = (int) value;
+      Price p = densePrices.get(slot);
+      if (p == null) {
+        Price created = new Price(value);
+        p = densePrices.compareAndSet(slot, null, created) ? created
+                : densePrices.get(slot);
+      }
+      return p;
+    }
+    Long key = value;
+    Price p = otherPrices.get(key);
     if (p == null) {
-      p = new Price(value);
-      PriceFactory.flyweights.put(key, p);
+      Price created = new Price(value);
+      p = otherPrices.putIfAbsent(key, created);
+      if (p == null) {
+        p = created;
+      }
     }
     return p;
   }
@@ -25,22 +71,130 @@ public class PriceFactory {
     return PriceFactory.makeLimitPrice(parsedValue);
   }
 
+  /**
+   * Returns the limit price for the dollar amount held as ASCII text in the
+   * specified range of the byte array, as read off the wire.
+   *
+   * @param buf
+   * @param offset
+   * @param length
+   * @return the limit Price
+   */
+  public static Price makeLimitPrice(byte[] buf, int offset, int length)
+          throws NumberFormatException {
+    return PriceFactory.makeLimitPrice(
+            PriceFactory.parseDollarAmount(buf, offset, length));
+  }
+
   public static Price makeMarketPrice() {
-    Price p = PriceFactory.flyweights.get("MKT");
-    if (p == null) {
-      p = new Price();
-      PriceFactory.flyweights.put("MKT", p);
+    return marketPrice;
+  }
+
+  /**
+   * Converts a dollar amount such as "$1,234.56" or "-12.5" to cents. Every
+   * character other than digits, a leading '-' and one '.' is ignored, so
+   * dollar signs, commas and spaces may be used freely. Digits past the cents
+   * are rounded half-even from their exact decimal value. A null or empty
+   * amount is zero.
+   *
+   * @param str
+   * @return the amount in cents
+   * @throws NumberFormatException if the amount has no digits, is out of
+   * range, or has a misplaced '-' or more than one '.'
+   */
+  public static long parseDollarAmount(CharSequence str)
+          throws NumberFormatException {
+    if (str == null || str.length() == 0) {
+      return 0;
     }
-    return p;
+    return parse(str, null, 0, str.length());
   }
 
-  private static long parseDollarAmount(String str)
-          throws NumberFormatException, IllegalArgumentException {
-    if (str == null || str.isEmpty()) {
+  /**
+   * Converts a dollar amount held as ASCII text in the specified range of the
+   * byte array to cents, by the same rules as parseDollarAmount(CharSequence).
+   *
+   * @param buf
+   * @param offset
+   * @param length
+   * @return the amount in cents
+   * @throws NumberFormatException
+   */
+  public static long parseDollarAmount(byte[] buf, int offset, int length)
+          throws NumberFormatException {
+    if (buf == null || offset < 0 || length < 0
+            || offset + length > buf.length) {
+      throw new NumberFormatException("Invalid byte range for a dollar"
+              + " amount.");
+    }
+    if (length == 0) {
       return 0;
     }
-    DecimalFormat formatter = new DecimalFormat("#.00");
-    return Long.parseLong(formatter.format(Double.parseDouble(
-            str.replaceAll("[^-.0-9]", ""))).replaceAll("\\.", ""));
+    return parse(null, buf, offset, offset + length);
+  }
+
+  /**
+   * Parses the characters from "start" up to "end" of either the
+   * CharSequence or (when it is null) the byte array, without allocating.
+   */
+  private static long parse(CharSequence str, byte[] buf, int start, int end)
+          throws NumberFormatException {
+    boolean negative = false;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    int fractionDigits = 0;
+    long cents = 0;
+    int roundingDigit = 0;
+    boolean sticky = false;
+    for (int i = start; i < end; i++) {
+      char c = (str != null) ? str.charAt(i) : (char) (buf[i] & 0xff);
+      if (c >= '0' && c <= '9') {
+        int d = c - '0';
+        seenDigit = true;
+        if (!seenPoint) {
+          if (cents > (Long.MAX_VALUE - d * 100L - 100) / 10) {
+            throw badAmount(str, buf, start, end);
+          }
+          cents = cents * 10 + d * 100L;
+        } else if (fractionDigits == 0) {
+          cents += d * 10;
+          fractionDigits++;
+        } else if (fractionDigits == 1) {
+          cents += d;
+          fractionDigits++;
+        } else if (fractionDigits == 2) {
+          roundingDigit = d;
+          fractionDigits++;
+        } else if (d != 0) {
+          sticky = true;
+        }
+      } else if (c == '.') {
+        if (seenPoint) {
+          throw badAmount(str, buf, start, end);
+        }
+        seenPoint = true;
+      } else if (c == '-') {
+        if (negative || seenDigit || seenPoint) {
+          throw badAmount(str, buf, start, end);
+        }
+        negative = true;
+      }
+    }
+    if (!seenDigit) {
+      throw badAmount(str, buf, start, end);
+    }
+    if (roundingDigit > 5 || (roundingDigit == 5 && (sticky
+            || (cents & 1) == 1))) {
+      cents++;
+    }
+    return negative ? -cents : cents;
+  }
+
+  private static NumberFormatException badAmount(CharSequence str,
+          byte[] buf, int start, int end) {
+    String text = (str != null) ? str.toString()
+            : new String(buf, start, end - start,
+                    StandardCharsets.US_ASCII);
+    return new NumberFormatException("Invalid dollar amount: " + text);
   }
-}
\ No newline at end of file
+}
@@ -1,6 +1,6 @@
 package publishers;
 
-import client.User;
+import client.Subscriber;
 import publishers.exceptions.MessagePublisherException;
 import publishers.messages.MarketDataDTO;
 
@@ -27,20 +27,35 @@ public class CurrentMarketPublisher implements CurrentMarketPublisherSpecific {
   }
 
   @Override
-  public synchronized void subscribe(User u, String product)
+  public void subscribe(Subscriber u, String product)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.subscribe(u, product);
   }
 
   @Override
-  public synchronized void unSubscribe(User u, String product) throws
+  public void unSubscribe(Subscriber u, String product) throws
           MessagePublisherException {
     messagePublisherSubjectImpl.unSubscribe(u, product);
   }
 
   @Override
-  public synchronized void publishCurrentMarket(MarketDataDTO m)
+  public void publishCurrentMarket(MarketDataDTO m)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishCurrentMarket(m);
   }
+
+  @Override
+  public void setConflating(boolean c) {
+    messagePublisherSubjectImpl.setConflating(c);
+  }
+
+  @Override
+  public boolean isConflating() {
+    return messagePublisherSubjectImpl.isConflating();
+  }
+
+  @Override
+  public long getConflatedCount() {
+    return messagePublisherSubjectImpl.getConflatedCount();
+  }
 }
\ No newline at end of file
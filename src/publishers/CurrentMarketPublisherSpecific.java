@@ -12,4 +12,23 @@ public interface CurrentMarketPublisherSpecific extends MessagePublisherCommon {
    */
   public void publishCurrentMarket(MarketDataDTO m)
           throws MessagePublisherException;
+
+  /**
+   * Turns conflation of current market updates on or off. While on, a
+   * subscriber that has not yet been sent an update for a stock symbol is
+   * only sent the newest one when it is ready for it.
+   *
+   * @param c
+   */
+  public void setConflating(boolean c);
+
+  public boolean isConflating();
+
+  /**
+   * Returns the number of current market updates that were replaced by a
+   * newer one before the subscriber was sent them.
+   *
+   * @return the number of conflated updates
+   */
+  public long getConflatedCount();
 }
\ No newline at end of file
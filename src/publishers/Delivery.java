@@ -0,0 +1,38 @@
+package publishers;
+
+import client.Subscriber;
+
+
+/**
+ * One published message, ready to be handed to any number of subscribers.
+ * The MessageDispatcher decides whether that happens on the publishing thread
+ * or on one of its worker threads.
+ */
+abstract class Delivery {
+
+  /**
+   * Hands the message to the subscriber passed in.
+   *
+   * @param u
+   */
+  abstract void deliverTo(Subscriber u);
+
+  /**
+   * Returns true if the message is market data that the next message of its
+   * kind replaces, so the dispatcher may discard it when the subscriber's
+   * queue is full. Fills, cancels and market messages are never discarded
+   * that way.
+   *
+   * @return true if the message may be dropped for a newer one
+   */
+  boolean replaceable() {
+    return false;
+  }
+
+  /**
+   * Called instead of "deliverTo" when the dispatcher discards the message
+   * because the subscriber's queue overflowed.
+   */
+  void discarded() {
+  }
+}
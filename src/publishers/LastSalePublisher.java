@@ -1,6 +1,6 @@
 package publishers;
 
-import client.User;
+import client.Subscriber;
 import price.Price;
 import publishers.exceptions.MessagePublisherException;
 
@@ -28,17 +28,19 @@ public class LastSalePublisher implements
   }
 
   @Override
-  public synchronized void subscribe(User u, String product) throws MessagePublisherException {
+  public void subscribe(Subscriber u, String product)
+          throws MessagePublisherException {
     messagePublisherSubjectImpl.subscribe(u, product);
   }
 
   @Override
-  public synchronized void unSubscribe(User u, String product) throws MessagePublisherException {
+  public void unSubscribe(Subscriber u, String product)
+          throws MessagePublisherException {
     messagePublisherSubjectImpl.unSubscribe(u, product);
   }
 
   @Override
-  public synchronized void publishLastSale(String product, Price p, int v)
+  public void publishLastSale(String product, Price p, int v)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishLastSale(product, p, v);
   }
@@ -0,0 +1,418 @@
+package publishers;
+
+import client.Subscriber;
+import constants.GlobalConstants.DispatchMode;
+import constants.GlobalConstants.OverflowPolicy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import publishers.exceptions.MessagePublisherException;
+
+
+/**
+ * Decides how the publishers hand messages to their subscribers. In
+ * SYNCHRONOUS mode (the default) each subscriber is called on the publishing
+ * thread. In ASYNCHRONOUS mode each subscriber has a bounded delivery queue
+ * that a pool of worker threads drains, so publishing only enqueues and a
+ * slow subscriber can no longer hold up matching. Messages for one subscriber
+ * are always delivered one at a time and in the order they were published.
+ *
+ * The overflow policy only ever discards market data that a newer message
+ * replaces. When a subscriber's queue is full, its fills, cancels and market
+ * messages wait for room under DROP_OLDEST as well as under BLOCK; only
+ * DISCONNECT stops them, along with everything else for that subscriber.
+ */
+public class MessageDispatcher {
+
+  private volatile static MessageDispatcher instance;
+
+  private static final Logger log =
+          Logger.getLogger(MessageDispatcher.class.getName());
+
+  /**
+   * The number of queued messages a worker delivers to one subscriber before
+   * giving other subscribers a turn.
+   */
+  private static final int BATCH = 64;
+
+  private volatile DispatchMode mode = DispatchMode.SYNCHRONOUS;
+
+  private volatile OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+
+  /**
+   * The capacity of each subscriber's delivery queue. Changing it only
+   * affects queues created afterwards.
+   */
+  private volatile int capacity = 1024;
+
+  /**
+   * The delivery queue of every subscriber with at least one subscription,
+   * or with messages still to be delivered. Queues are created and removed
+   * holding the map's lock.
+   */
+  private final ConcurrentHashMap<Subscriber, SubscriberQueue> queues =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The worker threads, created the first time ASYNCHRONOUS mode is used.
+   */
+  private ExecutorService workers;
+
+  private final AtomicLong pending = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong disconnected = new AtomicLong();
+
+  public static MessageDispatcher getInstance() {
+    if (instance == null) {
+      synchronized (MessageDispatcher.class) {
+        if (instance == null) {
+          instance = new MessageDispatcher();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private MessageDispatcher() {
+  }
+
+  public DispatchMode getDispatchMode() {
+    return mode;
+  }
+
+  /**
+   * This method switches between delivering on the publishing thread and
+   * delivering from the subscribers' queues. Messages already queued are
+   * still delivered after switching back to SYNCHRONOUS.
+   *
+   * @param m
+   */
+  public synchronized void setDispatchMode(DispatchMode m)
+          throws MessagePublisherException {
+    validateInput(m);
+    if (m == DispatchMode.ASYNCHRONOUS && workers == null) {
+      final AtomicInteger count = new AtomicInteger();
+      workers = Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "MessageDispatcher-"
+                  + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    mode = m;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return policy;
+  }
+
+  /**
+   * This method sets what happens when a subscriber's delivery queue is full.
+   *
+   * @param p
+   */
+  public void setOverflowPolicy(OverflowPolicy p)
+          throws MessagePublisherException {
+    validateInput(p);
+    policy = p;
+  }
+
+  public int getQueueCapacity() {
+    return capacity;
+  }
+
+  /**
+   * This method sets the capacity of subscriber delivery queues created from
+   * now on.
+   *
+   * @param c
+   */
+  public void setQueueCapacity(int c) throws MessagePublisherException {
+    if (c <= 0) {
+      throw new MessagePublisherException("Queue capacity must be greater"
+              + " than zero.");
+    }
+    capacity = c;
+  }
+
+  /**
+   * Returns the number of market data messages discarded because a
+   * subscriber's queue was full (DROP_OLDEST), and of messages discarded
+   * because the subscriber had been disconnected (DISCONNECT).
+   *
+   * @return the number of dropped messages
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of times a subscriber was disconnected for falling
+   * behind.
+   *
+   * @return the number of disconnects
+   */
+  public long getDisconnectedCount() {
+    return disconnected.get();
+  }
+
+  /**
+   * Returns the number of messages queued and not yet delivered.
+   *
+   * @return the number of pending messages
+   */
+  public long getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * Waits until every queued message has been delivered or dropped.
+   */
+  public void awaitDelivery() throws InterruptedException {
+    while (pending.get() > 0) {
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Counts a new subscription of the subscriber's, and clears its
+   * disconnected state, so messages are delivered to it again. Called by the
+   * hub when the subscriber subscribes.
+   *
+   * @param u
+   */
+  void subscribed(Subscriber u) {
+    synchronized (queues) {
+      SubscriberQueue q = queue(u);
+      q.subscriptions++;
+      q.disconnected = false;
+    }
+  }
+
+  /**
+   * Counts a dropped subscription of the subscriber's. Once its last one is
+   * dropped its queue is removed, as soon as it has nothing left to deliver.
+   * Called by the hub when the subscriber un-subscribes.
+   *
+   * @param u
+   */
+  void unsubscribed(Subscriber u) {
+    synchronized (queues) {
+      SubscriberQueue q = queues.get(u);
+      if (q != null && q.subscriptions > 0) {
+        q.subscriptions--;
+        q.removeIfDone();
+      }
+    }
+  }
+
+  /**
+   * Returns the subscriber's queue, creating it if it has none. Called
+   * holding the map's lock.
+   */
+  private SubscriberQueue queue(Subscriber u) {
+    SubscriberQueue q = queues.get(u);
+    if (q == null) {
+      q = new SubscriberQueue(u, capacity);
+      queues.put(u, q);
+    }
+    return q;
+  }
+
+  /**
+   * Hands the message to the subscriber, either directly or through the
+   * subscriber's delivery queue depending on the dispatch mode.
+   *
+   * @param u
+   * @param d
+   */
+  void dispatch(Subscriber u, Delivery d) {
+    if (mode == DispatchMode.SYNCHRONOUS) {
+      d.deliverTo(u);
+      return;
+    }
+    SubscriberQueue q = queues.get(u);
+    if (q == null) {
+      // A message published as the subscriber was un-subscribing; its
+      // queue goes again once the message is delivered.
+      synchronized (queues) {
+        q = queue(u);
+      }
+    }
+    q.enqueue(d);
+  }
+
+  private void validateInput(Object o) throws MessagePublisherException {
+    if (o == null) {
+      throw new MessagePublisherException("Argument cannot be null.");
+    }
+  }
+
+  /**
+   * One subscriber's bounded delivery queue. It is scheduled on the worker
+   * pool whenever it has messages and is not already scheduled, so at most
+   * one worker delivers to the subscriber at a time.
+   */
+  private final class SubscriberQueue implements Runnable {
+
+    private final Subscriber user;
+    private final ArrayBlockingQueue<Delivery> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean disconnected;
+
+    /**
+     * The number of the subscriber's subscriptions, guarded by the map's
+     * lock.
+     */
+    private int subscriptions;
+
+    SubscriberQueue(Subscriber u, int c) {
+      user = u;
+      queue = new ArrayBlockingQueue<>(c);
+    }
+
+    void enqueue(Delivery d) {
+      if (disconnected) {
+        d.discarded();
+        dropped.incrementAndGet();
+        return;
+      }
+      pending.incrementAndGet();
+      if (!queue.offer(d)) {
+        switch (policy) {
+          case BLOCK:
+            if (!put(d)) {
+              return;
+            }
+            break;
+          case DROP_OLDEST:
+            while (!queue.offer(d)) {
+              // Only market data is dropped to make room; when there is
+              // none left to drop, or the message is not market data, the
+              // message waits for room instead.
+              if (!d.replaceable() || !dropOldestReplaceable()) {
+                if (!put(d)) {
+                  return;
+                }
+                break;
+              }
+            }
+            break;
+          default:
+            disconnect();
+            d.discarded();
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+      }
+      schedule();
+    }
+
+    /**
+     * Waits for room for the message in the queue.
+     *
+     * @return false if the wait was interrupted and the message dropped
+     */
+    private boolean put(Delivery d) {
+      schedule();
+      try {
+        queue.put(d);
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        d.discarded();
+        pending.decrementAndGet();
+        dropped.incrementAndGet();
+        return false;
+      }
+    }
+
+    /**
+     * Discards the oldest queued market data message.
+     *
+     * @return false if no queued message may be discarded
+     */
+    private boolean dropOldestReplaceable() {
+      for (Delivery oldest : queue) {
+        if (oldest.replaceable()) {
+          if (queue.remove(oldest)) {
+            oldest.discarded();
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Removes this queue from the map if the subscriber has no
+     * subscriptions left and nothing is waiting to be delivered to it.
+     * Called holding the map's lock.
+     */
+    private void removeIfDone() {
+      if (subscriptions == 0 && queue.isEmpty() && !scheduled.get()
+              && queues.get(user) == this) {
+        queues.remove(user);
+      }
+    }
+
+    private void disconnect() {
+      disconnected = true;
+      MessageDispatcher.this.disconnected.incrementAndGet();
+      int discarded = 0;
+      for (Delivery d = queue.poll(); d != null; d = queue.poll()) {
+        d.discarded();
+        discarded++;
+      }
+      pending.addAndGet(-discarded);
+      dropped.addAndGet(discarded);
+      log.log(Level.WARNING, "Stopped delivering to {0}: delivery queue"
+              + " full.", user.getUserName());
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        workers.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < BATCH; i++) {
+        Delivery d = queue.poll();
+        if (d == null) {
+          break;
+        }
+        try {
+          d.deliverTo(user);
+        } catch (RuntimeException e) {
+          log.log(Level.SEVERE, null, e);
+        } finally {
+          pending.decrementAndGet();
+        }
+      }
+      scheduled.set(false);
+      if (!queue.isEmpty()) {
+        schedule();
+      } else {
+        synchronized (queues) {
+          removeIfDone();
+        }
+      }
+    }
+  }
+}
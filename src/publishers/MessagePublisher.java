@@ -1,6 +1,6 @@
 package publishers;
 
-import client.User;
+import client.Subscriber;
 import publishers.exceptions.MessagePublisherException;
 import publishers.messages.CancelMessage;
 import publishers.messages.FillMessage;
@@ -29,31 +29,31 @@ public class MessagePublisher implements
   }
 
   @Override
-  public synchronized void subscribe(User u, String product)
+  public void subscribe(Subscriber u, String product)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.subscribe(u, product);
   }
 
   @Override
-  public synchronized void unSubscribe(User u, String product)
+  public void unSubscribe(Subscriber u, String product)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.unSubscribe(u, product);
   }
 
   @Override
-  public synchronized void publishCancel(CancelMessage cm)
+  public void publishCancel(CancelMessage cm)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishCancel(cm);
   }
 
   @Override
-  public synchronized void publishFill(FillMessage fm)
+  public void publishFill(FillMessage fm)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishFill(fm);
   }
 
   @Override
-  public synchronized void publishMarketMessage(MarketMessage mm)
+  public void publishMarketMessage(MarketMessage mm)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishMarketMessage(mm);
   }
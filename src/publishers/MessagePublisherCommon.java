@@ -1,6 +1,6 @@
 package publishers;
 
-import client.User;
+import client.Subscriber;
 import publishers.exceptions.MessagePublisherException;
 
 
@@ -16,7 +16,7 @@ public interface MessagePublisherCommon {
    * @param product
    * @throws MessagePublisherException
    */
-  public void subscribe(User u, String product)
+  public void subscribe(Subscriber u, String product)
           throws MessagePublisherException;
 
   /**
@@ -29,6 +29,6 @@ public interface MessagePublisherCommon {
    * @param product
    * @throws MessagePublisherException
    */
-  public void unSubscribe(User u, String product)
+  public void unSubscribe(Subscriber u, String product)
           throws MessagePublisherException;
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package publishers;
 
+import publishers.PublisherHub.Topic;
+
 
 class MessagePublisherSubjectFactory {
 
@@ -10,7 +12,7 @@ class MessagePublisherSubjectFactory {
    */
   private synchronized static
           CurrentMarketPublisherSpecific createCurrentMarketPublisherImpl() {
-    return new MessagePublisherSubjectImpl();
+    return new MessagePublisherSubjectImpl(Topic.CURRENT_MARKET);
   }
 
   /**
@@ -20,7 +22,7 @@ class MessagePublisherSubjectFactory {
    */
   private synchronized static
           LastSalePublisherSpecific createLastSalePublisherSubjectImpl() {
-    return new MessagePublisherSubjectImpl();
+    return new MessagePublisherSubjectImpl(Topic.LAST_SALE);
   }
 
   /**
@@ -30,7 +32,7 @@ class MessagePublisherSubjectFactory {
    */
   private synchronized static
           TickerPublisherSpecific createTickerPublisherSubjectImpl() {
-    return new MessagePublisherSubjectImpl();
+    return new MessagePublisherSubjectImpl(Topic.TICKER);
   }
 
   /**
@@ -40,7 +42,7 @@ class MessagePublisherSubjectFactory {
    */
   private synchronized static
           MessagePublisherSpecific createMessagePublisherSpecificSubjectImpl() {
-    return new MessagePublisherSubjectImpl();
+    return new MessagePublisherSubjectImpl(Topic.MESSAGES);
   }
 
   /**
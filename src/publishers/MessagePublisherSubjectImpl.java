@@ -1,196 +1,100 @@
 package publishers;
 
-import client.User;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import client.Subscriber;
 import price.Price;
+import publishers.PublisherHub.Topic;
 import publishers.exceptions.MessagePublisherException;
 import publishers.messages.CancelMessage;
 import publishers.messages.FillMessage;
 import publishers.messages.MarketDataDTO;
 import publishers.messages.MarketMessage;
 
+/**
+ * One publisher's view of the PublisherHub. Subscriptions made through it
+ * are kept under its topic; publishing goes straight to the hub.
+ */
 class MessagePublisherSubjectImpl
   implements CurrentMarketPublisherSpecific,
   LastSalePublisherSpecific, TickerPublisherSpecific,
   MessagePublisherSpecific {
 
   /**
-   * A hash map of of keys representing stock symbols and a HashSet of users
-   * subscribed to those symbols for stock market updates.
+   * The topic subscriptions made through this publisher are kept under.
    */
-  private Map<String, Set<User>> subscribers;
+  private final Topic topic;
 
-  /**
-   * A hash map of the most recent ticker price for a stock symbol.
-   */
-  private Map<String, Price> stockTickerValue;
+  private final PublisherHub hub;
 
-  protected MessagePublisherSubjectImpl() {
-    subscribers = new HashMap<>();
-    stockTickerValue = new HashMap<>();
+  protected MessagePublisherSubjectImpl(Topic t) {
+    topic = t;
+    hub = PublisherHub.getInstance();
   }
 
   @Override
-  public synchronized final void subscribe(User u, String product)
+  public final void subscribe(Subscriber u, String product)
           throws MessagePublisherException {
-    validateInput(u);
-    validateInput(product);
-    // Create the HashSet of users if the Product does not exist in the
-    // subscribers hash map
-    createUserSetForProduct(product);
-    Set<User> set = subscribers.get(product);
-    if (set.contains(u)) {
-      throw new MessagePublisherException("The users is already subscribed to "
-              + "receive updates for this stock symbol: " + product);
-    }
-    set.add(u);
+    hub.subscribe(topic, u, product);
   }
 
   @Override
-  public synchronized final void unSubscribe(User u, String product)
+  public final void unSubscribe(Subscriber u, String product)
           throws MessagePublisherException {
-    validateInput(u);
-    validateInput(product);
-    Set<User> set = subscribers.get(product);
-    if (set == null) {
-      throw new MessagePublisherException("No one is registered for this "
-              + "stock symbol: " + product);
-    }
-    if (!set.contains(u)) {
-      throw new MessagePublisherException("The user is not subscribed to "
-              + "receive updates for this stock symbol: " + product);
-    }
-    set.remove(u);
+    hub.unSubscribe(topic, u, product);
   }
 
-  private synchronized void createUserSetForProduct(String product)
+  @Override
+  public void publishCurrentMarket(MarketDataDTO m)
           throws MessagePublisherException {
-    validateInput(product);
-    if (!subscribers.containsKey(product)) {
-      subscribers.put(product, new HashSet<User>());
-    }
+    hub.publishCurrentMarket(m);
   }
 
   @Override
-  public synchronized void publishCurrentMarket(MarketDataDTO m)
-          throws MessagePublisherException {
-    validateInput(m);
-    if (!subscribers.containsKey(m.product)) { return; }
-    Set<User> users = subscribers.get(m.product);
-    for (User u : users) {
-      u.acceptCurrentMarket(m.product, m.buyPrice, m.buyVolume, m.sellPrice,
-              m.sellVolume);
-    }
+  public void setConflating(boolean c) {
+    hub.setConflating(c);
   }
 
   @Override
-  public synchronized void publishLastSale(String product, Price p, int v)
-          throws MessagePublisherException {
-    validateInput(p);
-    validateInput(product);
-    if (!subscribers.containsKey(product)) { return; }
-    Set<User> users = subscribers.get(product);
-    for (User u : users) {
-      u.acceptLastSale(product, p, v);
-    }
-    TickerPublisher.getInstance().publishTicker(product, p);
+  public boolean isConflating() {
+    return hub.isConflating();
   }
 
   @Override
-  public synchronized void publishTicker(String product, Price p)
-          throws MessagePublisherException {
-    validateInput(p);
-    validateInput(product);
-    if (!subscribers.containsKey(product)) { return; }
-    char direction = ' ';
-    Price val = stockTickerValue.get(product);
-    if (val != null) {
-      if (p.equals(val)) {
-        direction = '=';
-      } else if (p.greaterThan(val)) {
-        direction = '\u2191';
-      } else if (p.lessThan(val)) {
-        direction = '\u2193';
-      }
-    }
-    stockTickerValue.put(product, p);
-    Set<User> users = subscribers.get(product);
-    for (User u : users) {
-      u.acceptTicker(product, p, direction);
-    }
+  public long getConflatedCount() {
+    return hub.getConflatedCount();
   }
 
   @Override
-  public synchronized void publishCancel(CancelMessage cm)
+  public void publishLastSale(String product, Price p, int v)
           throws MessagePublisherException {
-    validateInput(cm);
-    String p = cm.getProduct();
-    if (!subscribers.containsKey(p)) { return; }
-    for (User u : subscribers.get(p)) {
-      if (u.getUserName().equals(cm.getUser())) {
-        u.acceptMessage(cm);
-      }
-    }
+    hub.publishLastSale(product, p, v);
   }
 
   @Override
-  public synchronized void publishFill(FillMessage fm)
+  public void publishTicker(String product, Price p)
           throws MessagePublisherException {
-    validateInput(fm);
-    String p = fm.getProduct();
-    if (!subscribers.containsKey(p)) { return; }
-    for (User u : subscribers.get(p)) {
-      if (u.getUserName().equals(fm.getUser())) {
-        u.acceptMessage(fm);
-      }
-    }
+    hub.publishTicker(product, p);
   }
 
   @Override
-  public synchronized void publishMarketMessage(MarketMessage mm)
+  public void setLastTicker(String product, Price p)
           throws MessagePublisherException {
-    validateInput(mm);
-    HashSet<User> allUsers = new HashSet<>();
-    for (Set<User> users : subscribers.values()) {
-      for (User u : users) {
-        if (!allUsers.contains(u)) {
-          allUsers.add(u);
-        }
-      }
-    }
-    for (User u : allUsers) {
-      u.acceptMarketMessage(mm.getState().toString());
-    }
+    hub.setLastTicker(product, p);
   }
 
-  private void validateInput(String o)
+  @Override
+  public void publishCancel(CancelMessage cm)
           throws MessagePublisherException {
-    if (o == null || o.isEmpty()) {
-      throw new MessagePublisherException("Argument must be of type String and"
-        + " cannot be null or empty.");
-    }
-  }
-
-  private void validateInput(User o) throws MessagePublisherException {
-    if (o == null) {
-      throw new MessagePublisherException("Argument must be of type User and"
-              + " cannot be null.");
-    }
+    hub.publishCancel(cm);
   }
 
-  private void validateInput(Price o) throws MessagePublisherException {
-    if (o == null || !(o instanceof Price)) {
-      throw new MessagePublisherException("Argument must be of type Price and"
-              + " cannot be null.");
-    }
+  @Override
+  public void publishFill(FillMessage fm) throws MessagePublisherException {
+    hub.publishFill(fm);
   }
 
-  private void validateInput(Object o) throws MessagePublisherException {
-    if (o == null) {
-      throw new MessagePublisherException("Argument cannot be null.");
-    }
+  @Override
+  public void publishMarketMessage(MarketMessage mm)
+          throws MessagePublisherException {
+    hub.publishMarketMessage(mm);
   }
-}
\ No newline at end of file
+}
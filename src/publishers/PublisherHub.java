@@ -0,0 +1,458 @@
+package publishers;
+
+import client.Subscriber;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import price.Price;
+import publishers.exceptions.MessagePublisherException;
+import publishers.messages.CancelMessage;
+import publishers.messages.FillMessage;
+import publishers.messages.MarketDataDTO;
+import publishers.messages.MarketMessage;
+
+
+/**
+ * The one place subscriptions are kept and messages are published from, for
+ * all four publishers. Each topic and stock symbol has an immutable snapshot
+ * of its subscribers that is replaced (copy-on-write) when someone subscribes
+ * or un-subscribes. Subscribing and un-subscribing are synchronized, but
+ * publishing only reads the current snapshots and takes no locks, so
+ * publishers never wait on each other or on a subscription change.
+ */
+class PublisherHub {
+
+  /**
+   * The kinds of data users subscribe to, one per publisher.
+   */
+  enum Topic {
+    CURRENT_MARKET, LAST_SALE, TICKER, MESSAGES
+  }
+
+  private volatile static PublisherHub instance;
+
+  /**
+   * The subscriber snapshots of each topic, keyed by stock symbol. A
+   * symbol's entry is created the first time anyone subscribes to it and is
+   * kept after everyone has un-subscribed.
+   */
+  private final Map<Topic, ConcurrentHashMap<String, Subscribers>> topics;
+
+  /**
+   * Every user subscribed to at least one symbol of the MESSAGES topic, each
+   * once. Market messages go to all of them.
+   */
+  private volatile Subscriber[] messageUsers = new Subscriber[0];
+
+  /**
+   * When true, current market updates are conflated: each subscriber keeps
+   * only the latest update per stock symbol that it has not been sent yet.
+   */
+  private volatile boolean conflating;
+
+  /**
+   * The number of current market updates that replaced an update the
+   * subscriber had not been sent yet.
+   */
+  private final AtomicLong conflated = new AtomicLong();
+
+  static PublisherHub getInstance() {
+    if (instance == null) {
+      synchronized (PublisherHub.class) {
+        if (instance == null) {
+          instance = new PublisherHub();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private PublisherHub() {
+    topics = new EnumMap<>(Topic.class);
+    for (Topic t : Topic.values()) {
+      topics.put(t, new ConcurrentHashMap<String, Subscribers>());
+    }
+  }
+
+  synchronized void subscribe(Topic t, Subscriber u, String product)
+          throws MessagePublisherException {
+    validateInput(u);
+    validateInput(product);
+    ConcurrentHashMap<String, Subscribers> symbols = topics.get(t);
+    Subscribers current = symbols.get(product);
+    if (current == null) {
+      current = Subscribers.EMPTY;
+    }
+    if (current.indexOf(u) >= 0) {
+      throw new MessagePublisherException("The users is already subscribed to "
+              + "receive updates for this stock symbol: " + product);
+    }
+    symbols.put(product, current.with(u, t == Topic.CURRENT_MARKET));
+    if (t == Topic.MESSAGES) {
+      refreshMessageUsers();
+    }
+    MessageDispatcher.getInstance().subscribed(u);
+  }
+
+  synchronized void unSubscribe(Topic t, Subscriber u, String product)
+          throws MessagePublisherException {
+    validateInput(u);
+    validateInput(product);
+    ConcurrentHashMap<String, Subscribers> symbols = topics.get(t);
+    Subscribers current = symbols.get(product);
+    if (current == null) {
+      throw new MessagePublisherException("No one is registered for this "
+              + "stock symbol: " + product);
+    }
+    int i = current.indexOf(u);
+    if (i < 0) {
+      throw new MessagePublisherException("The user is not subscribed to "
+              + "receive updates for this stock symbol: " + product);
+    }
+    symbols.put(product, current.without(i));
+    if (t == Topic.MESSAGES) {
+      refreshMessageUsers();
+    }
+    MessageDispatcher.getInstance().unsubscribed(u);
+  }
+
+  private void refreshMessageUsers() {
+    Set<Subscriber> all = new LinkedHashSet<>();
+    for (Subscribers s : topics.get(Topic.MESSAGES).values()) {
+      Collections.addAll(all, s.users);
+    }
+    messageUsers = all.toArray(new Subscriber[all.size()]);
+  }
+
+  void setConflating(boolean c) {
+    conflating = c;
+  }
+
+  boolean isConflating() {
+    return conflating;
+  }
+
+  long getConflatedCount() {
+    return conflated.get();
+  }
+
+  void publishCurrentMarket(MarketDataDTO m)
+          throws MessagePublisherException {
+    validateInput(m);
+    Subscribers s = topics.get(Topic.CURRENT_MARKET).get(m.product);
+    if (s == null) { return; }
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    if (conflating) {
+      MarketDataDTO latest = new MarketDataDTO(m.product, m.buyPrice,
+              m.buyVolume, m.sellPrice, m.sellVolume);
+      for (int i = 0; i < s.users.length; i++) {
+        if (s.slots[i].offer(latest)) {
+          dispatcher.dispatch(s.users[i], s.slots[i]);
+        } else {
+          conflated.incrementAndGet();
+        }
+      }
+      return;
+    }
+    final String product = m.product;
+    final Price buyPrice = m.buyPrice;
+    final int buyVolume = m.buyVolume;
+    final Price sellPrice = m.sellPrice;
+    final int sellVolume = m.sellVolume;
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptCurrentMarket(product, buyPrice, buyVolume, sellPrice,
+                sellVolume);
+      }
+
+      @Override
+      boolean replaceable() {
+        return true;
+      }
+    };
+    for (Subscriber u : s.users) {
+      dispatcher.dispatch(u, d);
+    }
+  }
+
+  void publishLastSale(final String product, final Price p, final int v)
+          throws MessagePublisherException {
+    validateInput(p);
+    validateInput(product);
+    Subscribers s = topics.get(Topic.LAST_SALE).get(product);
+    if (s == null) { return; }
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptLastSale(product, p, v);
+      }
+
+      @Override
+      boolean replaceable() {
+        return true;
+      }
+    };
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    for (Subscriber u : s.users) {
+      dispatcher.dispatch(u, d);
+    }
+    publishTicker(product, p);
+  }
+
+  void publishTicker(final String product, final Price p)
+          throws MessagePublisherException {
+    validateInput(p);
+    validateInput(product);
+    Subscribers s = topics.get(Topic.TICKER).get(product);
+    if (s == null) { return; }
+    final char dir = TickerPublisher.direction(s.lastTicker.getAndSet(p), p);
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptTicker(product, p, dir);
+      }
+
+      @Override
+      boolean replaceable() {
+        return true;
+      }
+    };
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    for (Subscriber u : s.users) {
+      dispatcher.dispatch(u, d);
+    }
+  }
+
+  /**
+   * Sets the symbol's last ticker price, creating its (empty) TICKER entry if
+   * no one has subscribed yet, so the price is kept for later subscribers.
+   *
+   * @param product
+   * @param p
+   */
+  synchronized void setLastTicker(String product, Price p)
+          throws MessagePublisherException {
+    validateInput(p);
+    validateInput(product);
+    ConcurrentHashMap<String, Subscribers> symbols = topics.get(Topic.TICKER);
+    Subscribers s = symbols.get(product);
+    if (s == null) {
+      s = new Subscribers(new Subscriber[0], new LatestMarket[0],
+              Collections.<String, Subscriber[]>emptyMap(), null);
+      symbols.put(product, s);
+    }
+    s.lastTicker.set(p);
+  }
+
+  void publishCancel(final CancelMessage cm)
+          throws MessagePublisherException {
+    validateInput(cm);
+    Subscribers s = topics.get(Topic.MESSAGES).get(cm.getProduct());
+    if (s == null) { return; }
+    Subscriber[] recipients = s.routes.get(cm.getUser());
+    if (recipients == null) { return; }
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptMessage(cm);
+      }
+    };
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    for (Subscriber u : recipients) {
+      dispatcher.dispatch(u, d);
+    }
+  }
+
+  void publishFill(final FillMessage fm) throws MessagePublisherException {
+    validateInput(fm);
+    Subscribers s = topics.get(Topic.MESSAGES).get(fm.getProduct());
+    if (s == null) { return; }
+    Subscriber[] recipients = s.routes.get(fm.getUser());
+    if (recipients == null) { return; }
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptMessage(fm);
+      }
+    };
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    for (Subscriber u : recipients) {
+      dispatcher.dispatch(u, d);
+    }
+  }
+
+  void publishMarketMessage(MarketMessage mm)
+          throws MessagePublisherException {
+    validateInput(mm);
+    final String state = mm.getState().toString();
+    Delivery d = new Delivery() {
+      @Override
+      void deliverTo(Subscriber u) {
+        u.acceptMarketMessage(state);
+      }
+    };
+    MessageDispatcher dispatcher = MessageDispatcher.getInstance();
+    for (Subscriber u : messageUsers) {
+      dispatcher.dispatch(u, d);
+    }
+  }
+
+  private void validateInput(String o)
+          throws MessagePublisherException {
+    if (o == null || o.isEmpty()) {
+      throw new MessagePublisherException("Argument must be of type String and"
+        + " cannot be null or empty.");
+    }
+  }
+
+  private void validateInput(Subscriber o) throws MessagePublisherException {
+    if (o == null) {
+      throw new MessagePublisherException("Argument must be of type User and"
+              + " cannot be null.");
+    }
+  }
+
+  private void validateInput(Price o) throws MessagePublisherException {
+    if (o == null) {
+      throw new MessagePublisherException("Argument must be of type Price and"
+              + " cannot be null.");
+    }
+  }
+
+  private void validateInput(Object o) throws MessagePublisherException {
+    if (o == null) {
+      throw new MessagePublisherException("Argument cannot be null.");
+    }
+  }
+
+  /**
+   * An immutable snapshot of one topic's subscribers to one stock symbol.
+   * The users array, the routing index by user name and (for current market
+   * data) each user's latest value slot always describe the same
+   * subscribers. The routing index holds every subscriber with the name, as
+   * more than one (a reconnected user and its stale self, say) may share
+   * it. The last ticker price belongs to the symbol rather than the
+   * snapshot, so it is carried over to every replacement.
+   */
+  private static final class Subscribers {
+
+    static final Subscribers EMPTY = new Subscribers(new Subscriber[0],
+            new LatestMarket[0], Collections.<String, Subscriber[]>emptyMap(),
+            null);
+
+    final Subscriber[] users;
+    final LatestMarket[] slots;
+    final Map<String, Subscriber[]> routes;
+    final AtomicReference<Price> lastTicker;
+
+    private Subscribers(Subscriber[] u, LatestMarket[] s,
+            Map<String, Subscriber[]> r, AtomicReference<Price> t) {
+      users = u;
+      slots = s;
+      routes = r;
+      lastTicker = t != null ? t : new AtomicReference<Price>();
+    }
+
+    int indexOf(Subscriber u) {
+      for (int i = 0; i < users.length; i++) {
+        if (users[i].equals(u)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    Subscribers with(Subscriber u, boolean withSlot) {
+      int n = users.length;
+      Subscriber[] u2 = new Subscriber[n + 1];
+      LatestMarket[] s2 = new LatestMarket[n + 1];
+      System.arraycopy(users, 0, u2, 0, n);
+      System.arraycopy(slots, 0, s2, 0, n);
+      u2[n] = u;
+      s2[n] = withSlot ? new LatestMarket() : null;
+      Map<String, Subscriber[]> r2 = new HashMap<>(routes);
+      Subscriber[] named = routes.get(u.getUserName());
+      if (named == null) {
+        r2.put(u.getUserName(), new Subscriber[]{u});
+      } else {
+        Subscriber[] n2 = Arrays.copyOf(named, named.length + 1);
+        n2[named.length] = u;
+        r2.put(u.getUserName(), n2);
+      }
+      return new Subscribers(u2, s2, r2, this == EMPTY ? null : lastTicker);
+    }
+
+    Subscribers without(int i) {
+      int n = users.length;
+      Subscriber removed = users[i];
+      Subscriber[] u2 = new Subscriber[n - 1];
+      LatestMarket[] s2 = new LatestMarket[n - 1];
+      System.arraycopy(users, 0, u2, 0, i);
+      System.arraycopy(users, i + 1, u2, i, n - i - 1);
+      System.arraycopy(slots, 0, s2, 0, i);
+      System.arraycopy(slots, i + 1, s2, i, n - i - 1);
+      Map<String, Subscriber[]> r2 = new HashMap<>(routes);
+      Subscriber[] named = routes.get(removed.getUserName());
+      if (named != null) {
+        int j = Arrays.asList(named).indexOf(removed);
+        if (j >= 0 && named.length == 1) {
+          r2.remove(removed.getUserName());
+        } else if (j >= 0) {
+          Subscriber[] n2 = new Subscriber[named.length - 1];
+          System.arraycopy(named, 0, n2, 0, j);
+          System.arraycopy(named, j + 1, n2, j, named.length - j - 1);
+          r2.put(removed.getUserName(), n2);
+        }
+      }
+      return new Subscribers(u2, s2, r2, lastTicker);
+    }
+  }
+
+  /**
+   * One subscriber's latest value slot for one stock symbol. The slot is
+   * itself the Delivery, so it is queued at most once at a time and reads
+   * whatever update is newest when the subscriber gets to it.
+   */
+  private static final class LatestMarket extends Delivery {
+
+    private final AtomicReference<MarketDataDTO> latest =
+            new AtomicReference<>();
+
+    /**
+     * Replaces the slot's update.
+     *
+     * @param m
+     * @return true if the slot was empty and so needs to be delivered
+     */
+    boolean offer(MarketDataDTO m) {
+      return latest.getAndSet(m) == null;
+    }
+
+    @Override
+    void deliverTo(Subscriber u) {
+      MarketDataDTO m = latest.getAndSet(null);
+      if (m != null) {
+        u.acceptCurrentMarket(m.product, m.buyPrice, m.buyVolume,
+                m.sellPrice, m.sellVolume);
+      }
+    }
+
+    @Override
+    boolean replaceable() {
+      return true;
+    }
+
+    @Override
+    void discarded() {
+      latest.set(null);
+    }
+  }
+}
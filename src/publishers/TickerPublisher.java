@@ -1,6 +1,6 @@
 package publishers;
 
-import client.User;
+import client.Subscriber;
 import price.Price;
 import publishers.exceptions.MessagePublisherException;
 
@@ -23,25 +23,54 @@ public class TickerPublisher implements
     return instance;
   }
 
+  /**
+   * This method returns the direction a ticker moved to the price passed in
+   * from the one before it: an up or down arrow, '=' if it did not move, or
+   * ' ' if there is no price before it.
+   *
+   * @param previous the price before, or null
+   * @param p
+   * @return the ticker direction
+   */
+  public static char direction(Price previous, Price p) {
+    if (previous == null) {
+      return ' ';
+    }
+    if (p.equals(previous)) {
+      return '=';
+    } else if (p.greaterThan(previous)) {
+      return '\u2191';
+    } else if (p.lessThan(previous)) {
+      return '\u2193';
+    }
+    return ' ';
+  }
+
   protected TickerPublisher(TickerPublisherSpecific impl) {
     messagePublisherSubjectImpl = impl;
   }
 
   @Override
-  public synchronized void subscribe(User u, String product)
+  public void subscribe(Subscriber u, String product)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.subscribe(u, product);
   }
 
   @Override
-  public synchronized void unSubscribe(User u, String product)
+  public void unSubscribe(Subscriber u, String product)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.unSubscribe(u, product);
   }
 
   @Override
-  public synchronized void publishTicker(String product, Price p)
+  public void publishTicker(String product, Price p)
           throws MessagePublisherException {
     messagePublisherSubjectImpl.publishTicker(product, p);
   }
+
+  @Override
+  public void setLastTicker(String product, Price p)
+          throws MessagePublisherException {
+    messagePublisherSubjectImpl.setLastTicker(product, p);
+  }
 }
\ No newline at end of file
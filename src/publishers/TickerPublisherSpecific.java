@@ -15,4 +15,15 @@ public interface TickerPublisherSpecific extends MessagePublisherCommon {
    */
   public void publishTicker(String product, Price p)
           throws MessagePublisherException;
+
+  /**
+   * Sets the last ticker price of the given stock, which the next ticker's
+   * direction is shown against, without notifying anyone. Used when a book
+   * is restored with the last sale it had.
+   *
+   * @param product
+   * @param p
+   */
+  public void setLastTicker(String product, Price p)
+          throws MessagePublisherException;
 }
\ No newline at end of file
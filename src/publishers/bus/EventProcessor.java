@@ -0,0 +1,71 @@
+package publishers.bus;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Runs one consumer of the bus on its own thread: waits for events at its
+ * barrier, hands each one to the handler and then advances its sequence,
+ * which frees the slots for the producers.
+ */
+final class EventProcessor implements Runnable {
+
+  private static final Logger log =
+          Logger.getLogger(EventProcessor.class.getName());
+
+  private final RingBuffer ring;
+  private final SequenceBarrier barrier;
+  private final MarketEventHandler handler;
+  private final Sequence sequence = new Sequence(-1);
+  private volatile boolean running = true;
+  private Thread thread;
+
+  EventProcessor(RingBuffer r, SequenceBarrier b, MarketEventHandler h) {
+    ring = r;
+    barrier = b;
+    handler = h;
+  }
+
+  Sequence getSequence() {
+    return sequence;
+  }
+
+  boolean isRunning() {
+    return running;
+  }
+
+  Thread start(String name) {
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Stops the processor once it has handled what it can currently read.
+   */
+  void halt() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(thread);
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    long next = sequence.get() + 1;
+    while (running) {
+      long available = barrier.waitFor(next, this);
+      while (next <= available) {
+        try {
+          handler.onEvent(ring.get(next), next, next == available);
+        } catch (Exception e) {
+          log.log(Level.SEVERE, null, e);
+        }
+        next++;
+      }
+      sequence.set(available);
+    }
+  }
+}
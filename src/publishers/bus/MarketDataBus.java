@@ -0,0 +1,308 @@
+package publishers.bus;
+
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.BusMode;
+import constants.GlobalConstants.MarketState;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import price.Price;
+import publishers.CurrentMarketPublisher;
+import publishers.LastSalePublisher;
+import publishers.MessagePublisher;
+import publishers.TickerPublisher;
+import publishers.bus.MarketEvent.CancelReason;
+import publishers.exceptions.MessagePublisherException;
+import publishers.messages.CancelMessage;
+import publishers.messages.FillMessage;
+import publishers.messages.MarketDataDTO;
+import publishers.messages.MarketMessage;
+import publishers.messages.exceptions.InvalidMessageException;
+
+
+/**
+ * The single, sequenced stream of fills, cancels, current market, last sale
+ * and market state events leaving the product books.
+ *
+ * In DIRECT mode (the default) each event is handed to the publishers on the
+ * matching thread, as it always has been. In RING_BUFFER mode each event is
+ * written into a reused slot of a preallocated ring and the matching thread
+ * moves on; the publishers, and any other consumers added to the bus, each
+ * read the stream on their own thread at their own pace. Validation of the
+ * messages built from the events then happens on the publishing consumer,
+ * which logs anything it rejects.
+ */
+public class MarketDataBus {
+
+  private volatile static MarketDataBus instance;
+
+  private volatile BusMode mode = BusMode.DIRECT;
+
+  /**
+   * The number of slots in the ring, always a power of two.
+   */
+  private int capacity = 8192;
+
+  /**
+   * The consumers that read the ring besides the publishers.
+   */
+  private final ArrayList<MarketEventHandler> handlers = new ArrayList<>();
+
+  /**
+   * The last sale price of every product that has traded (or been restored
+   * with one), which the ticker direction of its next last sale is worked
+   * out against. A product's sales are published by one thread at a time.
+   */
+  private final ConcurrentHashMap<String, Price> lastSales =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The ring while in RING_BUFFER mode, otherwise null.
+   */
+  private volatile RingBuffer ring;
+
+  private EventProcessor[] processors;
+
+  public static MarketDataBus getInstance() {
+    if (instance == null) {
+      synchronized (MarketDataBus.class) {
+        if (instance == null) {
+          instance = new MarketDataBus();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private MarketDataBus() {
+  }
+
+  public BusMode getMode() {
+    return mode;
+  }
+
+  /**
+   * This method switches between publishing on the matching thread and
+   * publishing through the ring. Switching to DIRECT waits until every
+   * consumer has read every event already on the ring. The mode should only
+   * be changed while nothing is trading.
+   *
+   * @param m
+   */
+  public synchronized void setMode(BusMode m)
+          throws MessagePublisherException, InterruptedException {
+    validateInput(m);
+    if (m == mode) {
+      return;
+    }
+    if (m == BusMode.RING_BUFFER) {
+      start();
+    } else {
+      stop();
+    }
+  }
+
+  public synchronized int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * This method sets the number of slots in the ring. It can only be changed
+   * in DIRECT mode.
+   *
+   * @param c a power of two
+   */
+  public synchronized void setCapacity(int c)
+          throws MessagePublisherException {
+    checkDirect();
+    if (c <= 0 || Integer.bitCount(c) != 1) {
+      throw new MessagePublisherException("Bus capacity must be a power of"
+              + " two greater than zero: " + c);
+    }
+    capacity = c;
+  }
+
+  /**
+   * This method adds a consumer that will read every event alongside the
+   * publishers once the bus is in RING_BUFFER mode. Consumers can only be
+   * added or removed in DIRECT mode.
+   *
+   * @param h
+   */
+  public synchronized void addConsumer(MarketEventHandler h)
+          throws MessagePublisherException {
+    validateInput(h);
+    checkDirect();
+    handlers.add(h);
+  }
+
+  public synchronized void removeConsumer(MarketEventHandler h)
+          throws MessagePublisherException {
+    validateInput(h);
+    checkDirect();
+    handlers.remove(h);
+  }
+
+  /**
+   * Returns the sequence of the last event claimed on the ring, or -1 in
+   * DIRECT mode.
+   *
+   * @return the ring's cursor
+   */
+  public long getCursor() {
+    RingBuffer r = ring;
+    return r == null ? -1 : r.getCursor();
+  }
+
+  /**
+   * Waits until every consumer has read every event put on the ring so far.
+   */
+  public void awaitConsumers() throws InterruptedException {
+    RingBuffer r = ring;
+    if (r == null) {
+      return;
+    }
+    awaitConsumers(r);
+  }
+
+  private void awaitConsumers(RingBuffer r) throws InterruptedException {
+    long target = r.getCursor();
+    while (r.minimumGating(target) < target) {
+      Thread.sleep(1);
+    }
+  }
+
+  private void start() {
+    RingBuffer r = new RingBuffer(capacity);
+    ArrayList<MarketEventHandler> all = new ArrayList<>();
+    all.add(new PublishingHandler());
+    all.addAll(handlers);
+    processors = new EventProcessor[all.size()];
+    Sequence[] gating = new Sequence[all.size()];
+    for (int i = 0; i < processors.length; i++) {
+      processors[i] = new EventProcessor(r,
+              new SequenceBarrier(r, new Sequence[0]), all.get(i));
+      gating[i] = processors[i].getSequence();
+    }
+    r.setGating(gating);
+    Thread[] threads = new Thread[processors.length];
+    for (int i = 0; i < processors.length; i++) {
+      threads[i] = processors[i].start("MarketDataBus-" + i);
+    }
+    r.setWaiters(threads);
+    mode = BusMode.RING_BUFFER;
+    ring = r;
+  }
+
+  private void stop() throws InterruptedException {
+    RingBuffer r = ring;
+    ring = null;
+    mode = BusMode.DIRECT;
+    awaitConsumers(r);
+    for (EventProcessor p : processors) {
+      p.halt();
+    }
+    processors = null;
+  }
+
+  public void publishFill(String user, String product, Price price,
+          int volume, int leaving, BookSide side, long id)
+          throws InvalidMessageException, MessagePublisherException {
+    RingBuffer r = ring;
+    if (r == null) {
+      MessagePublisher.getInstance().publishFill(new FillMessage(user,
+              product, price, volume, leaving, side, id));
+      return;
+    }
+    long sequence = r.next();
+    r.get(sequence).setFill(user, product, price, volume, leaving, side, id);
+    r.publish(sequence);
+  }
+
+  public void publishCancel(String user, String product, Price price,
+          int volume, CancelReason reason, BookSide side, long id)
+          throws InvalidMessageException, MessagePublisherException {
+    RingBuffer r = ring;
+    if (r == null) {
+      MessagePublisher.getInstance().publishCancel(new CancelMessage(user,
+              product, price, volume,
+              MarketEvent.cancelDetails(reason, side, id), side, id));
+      return;
+    }
+    long sequence = r.next();
+    r.get(sequence).setCancel(user, product, price, volume, reason, side, id);
+    r.publish(sequence);
+  }
+
+  public void publishCurrentMarket(MarketDataDTO m)
+          throws MessagePublisherException {
+    RingBuffer r = ring;
+    if (r == null) {
+      CurrentMarketPublisher.getInstance().publishCurrentMarket(m);
+      return;
+    }
+    validateInput(m);
+    long sequence = r.next();
+    r.get(sequence).setCurrentMarket(m.product, m.buyPrice, m.buyVolume,
+            m.sellPrice, m.sellVolume);
+    r.publish(sequence);
+  }
+
+  public void publishLastSale(String product, Price p, int v)
+          throws MessagePublisherException {
+    validateInput(product);
+    validateInput(p);
+    Price previous = lastSales.put(product, p);
+    RingBuffer r = ring;
+    if (r == null) {
+      LastSalePublisher.getInstance().publishLastSale(product, p, v);
+      return;
+    }
+    long sequence = r.next();
+    r.get(sequence).setLastSale(product, p, v,
+            TickerPublisher.direction(previous, p));
+    r.publish(sequence);
+  }
+
+  /**
+   * This method sets the product's last sale price, as restored from a
+   * snapshot, for the ticker direction of the product's next last sale,
+   * both on the bus and at the ticker publisher.
+   *
+   * @param product
+   * @param p
+   */
+  public void restoreLastSale(String product, Price p)
+          throws MessagePublisherException {
+    validateInput(product);
+    validateInput(p);
+    lastSales.put(product, p);
+    TickerPublisher.getInstance().setLastTicker(product, p);
+  }
+
+  public void publishMarketState(MarketState s)
+          throws InvalidMessageException, MessagePublisherException {
+    RingBuffer r = ring;
+    if (r == null) {
+      MessagePublisher.getInstance().publishMarketMessage(
+              new MarketMessage(s));
+      return;
+    }
+    validateInput(s);
+    long sequence = r.next();
+    r.get(sequence).setMarketState(s);
+    r.publish(sequence);
+  }
+
+  private void checkDirect() throws MessagePublisherException {
+    if (mode != BusMode.DIRECT) {
+      throw new MessagePublisherException("The bus can only be configured"
+              + " in DIRECT mode.");
+    }
+  }
+
+  private void validateInput(Object o) throws MessagePublisherException {
+    if (o == null) {
+      throw new MessagePublisherException("Argument cannot be null.");
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package publishers.bus;
+
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.MarketState;
+import price.Price;
+
+
+/**
+ * One slot of the market data bus. Slots are created once, when the bus
+ * starts, and are overwritten by every event that passes through them, so
+ * consumers must copy anything they want to keep before returning from
+ * "onEvent". Only the fields used by the event's type are meaningful.
+ */
+public final class MarketEvent {
+
+  /**
+   * The kinds of event the product books put on the bus. A LAST_SALE event
+   * also drives the ticker, just as a last sale publish does.
+   */
+  public static enum Type {FILL, CANCEL, CURRENT_MARKET, LAST_SALE,
+    MARKET_STATE}
+
+  /**
+   * Why a CANCEL event was sent. The cancel message details are built from
+   * the reason by the consumer, so the matching thread does not build them.
+   */
+  public static enum CancelReason {ORDER_CANCELLED, QUOTE_CANCELLED, TOO_LATE}
+
+  private Type type;
+  private String user;
+  private String product;
+  private Price price;
+  private int volume;
+  private char direction;
+  private int leaving;
+  private BookSide side;
+  private long id;
+  private CancelReason reason;
+  private Price buyPrice;
+  private int buyVolume;
+  private Price sellPrice;
+  private int sellVolume;
+  private MarketState state;
+
+  MarketEvent() {
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public String getProduct() {
+    return product;
+  }
+
+  /**
+   * Returns the fill, cancel or last sale price.
+   *
+   * @return the event's Price
+   */
+  public Price getPrice() {
+    return price;
+  }
+
+  /**
+   * Returns the filled, cancelled or last sale volume.
+   *
+   * @return the event's volume
+   */
+  public int getVolume() {
+    return volume;
+  }
+
+  /**
+   * Returns the direction of the ticker move made by a last sale, worked out
+   * when it was put on the bus the same way the ticker publisher works it
+   * out.
+   *
+   * @return an up or down arrow, '=' or ' ' for the first sale
+   */
+  public char getDirection() {
+    return direction;
+  }
+
+  /**
+   * Returns the volume the filled Tradeable has left.
+   *
+   * @return the leaving volume
+   */
+  public int getLeaving() {
+    return leaving;
+  }
+
+  public BookSide getSide() {
+    return side;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public CancelReason getCancelReason() {
+    return reason;
+  }
+
+  public Price getBuyPrice() {
+    return buyPrice;
+  }
+
+  public int getBuyVolume() {
+    return buyVolume;
+  }
+
+  public Price getSellPrice() {
+    return sellPrice;
+  }
+
+  public int getSellVolume() {
+    return sellVolume;
+  }
+
+  public MarketState getState() {
+    return state;
+  }
+
+  /**
+   * Builds the details text of a CANCEL event, worded the same way as the
+   * cancel messages the product books have always sent.
+   *
+   * @return the cancel message details
+   */
+  public String getCancelDetails() {
+    return cancelDetails(reason, side, id);
+  }
+
+  static String cancelDetails(CancelReason r, BookSide s, long i) {
+    switch (r) {
+      case QUOTE_CANCELLED:
+        return "Quote " + s + "-Side Cancelled.";
+      case TOO_LATE:
+        return "Too late to cancel order ID: " + i;
+      default:
+        return s + " Order Cancelled";
+    }
+  }
+
+  void setFill(String u, String p, Price pr, int v, int l, BookSide s,
+          long i) {
+    type = Type.FILL;
+    user = u;
+    product = p;
+    price = pr;
+    volume = v;
+    leaving = l;
+    side = s;
+    id = i;
+  }
+
+  void setCancel(String u, String p, Price pr, int v, CancelReason r,
+          BookSide s, long i) {
+    type = Type.CANCEL;
+    user = u;
+    product = p;
+    price = pr;
+    volume = v;
+    reason = r;
+    side = s;
+    id = i;
+  }
+
+  void setCurrentMarket(String p, Price bp, int bv, Price sp, int sv) {
+    type = Type.CURRENT_MARKET;
+    product = p;
+    buyPrice = bp;
+    buyVolume = bv;
+    sellPrice = sp;
+    sellVolume = sv;
+  }
+
+  void setLastSale(String p, Price pr, int v, char d) {
+    type = Type.LAST_SALE;
+    product = p;
+    price = pr;
+    volume = v;
+    direction = d;
+  }
+
+  void setMarketState(MarketState s) {
+    type = Type.MARKET_STATE;
+    state = s;
+  }
+}
@@ -0,0 +1,20 @@
+package publishers.bus;
+
+
+/**
+ * A consumer of the market data bus. Each handler is called from its own
+ * thread, for every event in sequence order, at its own pace.
+ */
+public interface MarketEventHandler {
+
+  /**
+   * Handles one event. The event slot is reused once this method returns.
+   *
+   * @param e
+   * @param sequence the event's position in the bus's stream
+   * @param endOfBatch true if no further event is available yet, which is a
+   * good moment to flush anything batched up
+   */
+  public void onEvent(MarketEvent e, long sequence, boolean endOfBatch)
+          throws Exception;
+}
@@ -0,0 +1,48 @@
+package publishers.bus;
+
+import publishers.CurrentMarketPublisher;
+import publishers.LastSalePublisher;
+import publishers.MessagePublisher;
+import publishers.messages.CancelMessage;
+import publishers.messages.FillMessage;
+import publishers.messages.MarketDataDTO;
+import publishers.messages.MarketMessage;
+
+
+/**
+ * The bus consumer that hands every event to the publishers, building the
+ * messages they deliver to users.
+ */
+final class PublishingHandler implements MarketEventHandler {
+
+  @Override
+  public void onEvent(MarketEvent e, long sequence, boolean endOfBatch)
+          throws Exception {
+    switch (e.getType()) {
+      case FILL:
+        MessagePublisher.getInstance().publishFill(new FillMessage(
+                e.getUser(), e.getProduct(), e.getPrice(), e.getVolume(),
+                e.getLeaving(), e.getSide(), e.getId()));
+        break;
+      case CANCEL:
+        MessagePublisher.getInstance().publishCancel(new CancelMessage(
+                e.getUser(), e.getProduct(), e.getPrice(), e.getVolume(),
+                e.getCancelDetails(), e.getSide(), e.getId()));
+        break;
+      case CURRENT_MARKET:
+        CurrentMarketPublisher.getInstance().publishCurrentMarket(
+                new MarketDataDTO(e.getProduct(), e.getBuyPrice(),
+                        e.getBuyVolume(), e.getSellPrice(),
+                        e.getSellVolume()));
+        break;
+      case LAST_SALE:
+        LastSalePublisher.getInstance().publishLastSale(e.getProduct(),
+                e.getPrice(), e.getVolume());
+        break;
+      case MARKET_STATE:
+        MessagePublisher.getInstance().publishMarketMessage(
+                new MarketMessage(e.getState()));
+        break;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package publishers.bus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The bus's preallocated ring of event slots and the sequencing that lets
+ * several producer threads fill it while the consumers read it.
+ *
+ * Producers claim the next sequence from the cursor, wait until the slowest
+ * consumer has moved far enough ahead that the slot is free, fill the slot
+ * and then mark it available. Because producers may finish out of order,
+ * each slot records which lap of the ring it was last published on, and a
+ * consumer only reads up to the first slot that is not yet available.
+ */
+final class RingBuffer {
+
+  /**
+   * How many times a producer waiting for a free slot yields before it
+   * starts parking.
+   */
+  private static final int SPINS = 100;
+
+  private final MarketEvent[] entries;
+  private final int mask;
+  private final int shift;
+
+  /**
+   * The highest sequence claimed by a producer.
+   */
+  private final Sequence cursor = new Sequence(-1);
+
+  /**
+   * The lap of the ring each slot was last published on.
+   */
+  private final AtomicIntegerArray available;
+
+  /**
+   * The sequences of the consumers producers must not overtake.
+   */
+  private volatile Sequence[] gating = new Sequence[0];
+
+  /**
+   * The slowest consumer sequence last seen by a producer. It only ever
+   * lags behind the real value, so it lets producers skip reading every
+   * consumer sequence on each claim.
+   */
+  private volatile long gatingCache = -1;
+
+  /**
+   * The number of consumers currently parked waiting for events.
+   */
+  private final AtomicInteger sleepers = new AtomicInteger();
+
+  private volatile Thread[] waiters = new Thread[0];
+
+  RingBuffer(int size) {
+    entries = new MarketEvent[size];
+    for (int i = 0; i < size; i++) {
+      entries[i] = new MarketEvent();
+    }
+    mask = size - 1;
+    shift = Integer.numberOfTrailingZeros(size);
+    available = new AtomicIntegerArray(size);
+    for (int i = 0; i < size; i++) {
+      available.set(i, -1);
+    }
+  }
+
+  int getSize() {
+    return entries.length;
+  }
+
+  MarketEvent get(long sequence) {
+    return entries[(int) sequence & mask];
+  }
+
+  long getCursor() {
+    return cursor.get();
+  }
+
+  void setGating(Sequence[] g) {
+    gating = g;
+  }
+
+  void setWaiters(Thread[] w) {
+    waiters = w;
+  }
+
+  /**
+   * Claims the next slot, waiting for the slowest consumer if the ring is
+   * full.
+   *
+   * @return the claimed sequence
+   */
+  long next() {
+    long sequence = cursor.getAndAdd(1) + 1;
+    long wrapPoint = sequence - entries.length;
+    if (wrapPoint > gatingCache) {
+      int spins = 0;
+      long min;
+      while (wrapPoint > (min = minimumGating(sequence - 1))) {
+        if (spins < SPINS) {
+          spins++;
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(1000);
+        }
+      }
+      gatingCache = min;
+    }
+    return sequence;
+  }
+
+  /**
+   * Makes the claimed slot visible to the consumers and wakes any that are
+   * parked.
+   *
+   * @param sequence
+   */
+  void publish(long sequence) {
+    available.set((int) sequence & mask, (int) (sequence >>> shift));
+    if (sleepers.get() > 0) {
+      for (Thread t : waiters) {
+        LockSupport.unpark(t);
+      }
+    }
+  }
+
+  boolean isAvailable(long sequence) {
+    return available.get((int) sequence & mask) == (int) (sequence >>> shift);
+  }
+
+  /**
+   * Returns the highest sequence from "lowerBound" to "upperBound" that can
+   * be read without passing a slot that is not yet available.
+   *
+   * @param lowerBound
+   * @param upperBound
+   * @return the highest readable sequence, or lowerBound - 1
+   */
+  long highestPublished(long lowerBound, long upperBound) {
+    for (long s = lowerBound; s <= upperBound; s++) {
+      if (!isAvailable(s)) {
+        return s - 1;
+      }
+    }
+    return upperBound;
+  }
+
+  /**
+   * Returns the sequence of the slowest consumer, or the given default when
+   * there are no consumers.
+   *
+   * @param defaultValue
+   * @return the minimum consumer sequence
+   */
+  long minimumGating(long defaultValue) {
+    long min = defaultValue;
+    for (Sequence s : gating) {
+      min = Math.min(min, s.get());
+    }
+    return min;
+  }
+
+  /**
+   * Parks the calling consumer until an event is published, unless one
+   * became available after it registered as a sleeper. The timeout only
+   * guards against a missed wake-up.
+   *
+   * @param barrier
+   * @param sequence
+   */
+  void awaitPublish(SequenceBarrier barrier, long sequence) {
+    sleepers.incrementAndGet();
+    try {
+      if (barrier.availableFrom(sequence) < sequence) {
+        LockSupport.parkNanos(this, 1000000);
+      }
+    } finally {
+      sleepers.decrementAndGet();
+    }
+  }
+}
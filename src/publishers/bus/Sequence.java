@@ -0,0 +1,46 @@
+package publishers.bus;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+/**
+ * A position in the bus's event stream, owned by the producers (the claimed
+ * cursor) or by one consumer (the last event it has handled). The value is
+ * padded on both sides so sequences written by different threads do not
+ * share a cache line.
+ */
+public final class Sequence {
+
+  private static final AtomicLongFieldUpdater<Sequence> VALUE =
+          AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+  @SuppressWarnings("unused")
+  private long p1, p2, p3, p4, p5, p6, p7;
+
+  private volatile long value;
+
+  @SuppressWarnings("unused")
+  private long q1, q2, q3, q4, q5, q6, q7;
+
+  Sequence(long initial) {
+    value = initial;
+  }
+
+  public long get() {
+    return value;
+  }
+
+  /**
+   * Sets the value with an ordered write, which is all a single writer needs
+   * to publish it to readers.
+   *
+   * @param v
+   */
+  void set(long v) {
+    VALUE.lazySet(this, v);
+  }
+
+  long getAndAdd(long delta) {
+    return VALUE.getAndAdd(this, delta);
+  }
+}
@@ -0,0 +1,70 @@
+package publishers.bus;
+
+
+/**
+ * Tells a consumer how far it may read. A consumer with no dependencies may
+ * read every published event; a consumer that depends on other consumers
+ * may only read events all of them have already handled.
+ */
+final class SequenceBarrier {
+
+  /**
+   * How many times a consumer yields while waiting before it parks.
+   */
+  private static final int SPINS = 100;
+
+  private final RingBuffer ring;
+  private final Sequence[] dependents;
+
+  SequenceBarrier(RingBuffer r, Sequence[] d) {
+    ring = r;
+    dependents = d;
+  }
+
+  /**
+   * Returns the highest sequence, at or above the one given, that the
+   * consumer may read now, or sequence - 1 if it may not read it yet.
+   *
+   * @param sequence
+   * @return the highest readable sequence
+   */
+  long availableFrom(long sequence) {
+    if (dependents.length == 0) {
+      long cursor = ring.getCursor();
+      if (cursor < sequence) {
+        return sequence - 1;
+      }
+      return ring.highestPublished(sequence, cursor);
+    }
+    long min = Long.MAX_VALUE;
+    for (Sequence s : dependents) {
+      min = Math.min(min, s.get());
+    }
+    return min;
+  }
+
+  /**
+   * Waits until the sequence may be read, or the processor is halted.
+   *
+   * @param sequence
+   * @param processor
+   * @return the highest readable sequence, which is below the one asked for
+   * only when the processor was halted
+   */
+  long waitFor(long sequence, EventProcessor processor) {
+    int spins = 0;
+    long available;
+    while ((available = availableFrom(sequence)) < sequence) {
+      if (!processor.isRunning()) {
+        return available;
+      }
+      if (spins < SPINS) {
+        spins++;
+        Thread.yield();
+      } else {
+        ring.awaitPublish(this, sequence);
+      }
+    }
+    return available;
+  }
+}
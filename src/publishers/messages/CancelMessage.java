@@ -24,7 +24,7 @@ public class CancelMessage implements GeneralMarketMessage,
    */
   public CancelMessage(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     cancelMessageImpl = MessageFactory.createCancelMessageImpl(user,
             product, price, volume, details, side, id);
@@ -61,7 +61,7 @@ public class CancelMessage implements GeneralMarketMessage,
   }
 
   @Override
-  public String getID() {
+  public long getID() {
     return cancelMessageImpl.getID();
   }
 
@@ -8,8 +8,21 @@ import publishers.messages.exceptions.InvalidMessageException;
 public class FillMessage implements GeneralMarketMessage,
         Comparable<FillMessage> {
 
+  /**
+   * The details placeholder a fill created from a "leaving" volume carries
+   * until its details are first read.
+   */
+  private static final String PENDING_DETAILS = "leaving";
+
   protected GeneralMarketMessage fillMessageImpl;
 
+  /**
+   * The volume the filled Tradeable had left, used to build the "leaving N"
+   * details the first time they are read. -1 once the details are built or
+   * when they were supplied as text.
+   */
+  private int leaving = -1;
+
     /**
    * Creates a cancel message object.
    *
@@ -24,12 +37,38 @@ public class FillMessage implements GeneralMarketMessage,
    */
   public FillMessage(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     fillMessageImpl = MessageFactory.createFillMessageImpl(user,
             product, price, volume, details, side, id);
   }
 
+  /**
+   * Creates a fill message whose "leaving N" details are only built if a
+   * subscriber reads them, so the matching path does not build detail
+   * strings nobody looks at.
+   *
+   * @param user
+   * @param product
+   * @param price
+   * @param volume
+   * @param leaving
+   * @param side
+   * @param id
+   * @throws InvalidMessageException
+   */
+  public FillMessage(String user,
+          String product, Price price, int volume, int leaving,
+          BookSide side, long id)
+          throws InvalidMessageException {
+    this(user, product, price, volume, PENDING_DETAILS, side, id);
+    if (leaving < 0) {
+      throw new InvalidMessageException("Argument leaving cannot be"
+              + " negative.");
+    }
+    this.leaving = leaving;
+  }
+
   @Override
   public String getUser() {
     return fillMessageImpl.getUser();
@@ -52,6 +91,7 @@ public class FillMessage implements GeneralMarketMessage,
 
   @Override
   public String getDetails() {
+    buildDetails();
     return fillMessageImpl.getDetails();
   }
 
@@ -61,7 +101,7 @@ public class FillMessage implements GeneralMarketMessage,
   }
 
   @Override
-  public String getID() {
+  public long getID() {
     return fillMessageImpl.getID();
   }
 
@@ -72,6 +112,7 @@ public class FillMessage implements GeneralMarketMessage,
 
   @Override
   public String toString() {
+    buildDetails();
     return fillMessageImpl.toString();
   }
 
@@ -81,7 +122,23 @@ public class FillMessage implements GeneralMarketMessage,
   }
 
   @Override
-  public void setDetails(String details) throws InvalidMessageException {
+  public synchronized void setDetails(String details)
+          throws InvalidMessageException {
     fillMessageImpl.setDetails(details);
+    leaving = -1;
+  }
+
+  /**
+   * Replaces the placeholder details with "leaving N" the first time the
+   * details are needed.
+   */
+  private synchronized void buildDetails() {
+    if (leaving < 0) { return; }
+    try {
+      fillMessageImpl.setDetails("leaving " + leaving);
+    } catch (InvalidMessageException ex) {
+      // "leaving N" is never null or empty.
+    }
+    leaving = -1;
   }
 }
\ No newline at end of file
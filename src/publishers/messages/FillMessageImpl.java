@@ -23,7 +23,7 @@ public class FillMessageImpl implements GeneralMarketMessage {
    */
   public FillMessageImpl(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     generalMessage = MessageFactory.createGeneralMarketMessageImpl(user,
             product, price, volume, details, side, id);
@@ -60,7 +60,7 @@ public class FillMessageImpl implements GeneralMarketMessage {
   }
 
   @Override
-  public String getID() {
+  public long getID() {
     return generalMessage.getID();
   }
 
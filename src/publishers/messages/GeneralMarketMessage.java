@@ -57,7 +57,7 @@ public interface GeneralMarketMessage {
   /**
    * Returns the ID associated with this cancel/fill message.
    */
-  public String getID();
+  public long getID();
 
   /**
    * Sets the Volume of a message.
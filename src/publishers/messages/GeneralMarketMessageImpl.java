@@ -42,10 +42,10 @@ public class GeneralMarketMessageImpl implements GeneralMarketMessage {
   private BookSide side;
 
   /**
-   * The String identifier of the cancelled/filled order or quote-side.
-   * Cannot be null.
+   * The numeric identifier of the cancelled/filled order or quote-side.
+   * Must be positive.
    */
-  public String id;
+  public long id;
 
   /**
    * Creates a general implementation that will be delegated to be cancel and
@@ -61,7 +61,7 @@ public class GeneralMarketMessageImpl implements GeneralMarketMessage {
    * @throws InvalidMessageException
    */
   public GeneralMarketMessageImpl(String user, String product, Price price,
-          int volume, String details, BookSide side, String id)
+          int volume, String details, BookSide side, long id)
             throws InvalidMessageException {
     setUser(user);
     setProduct(product);
@@ -103,7 +103,7 @@ public class GeneralMarketMessageImpl implements GeneralMarketMessage {
   }
 
   @Override
-  public final String getID() {
+  public final long getID() {
     return id;
   }
 
@@ -139,7 +139,7 @@ public class GeneralMarketMessageImpl implements GeneralMarketMessage {
     this.side = side;
   }
 
-  private void setId(String id) throws InvalidMessageException {
+  private void setId(long id) throws InvalidMessageException {
     validateInput(id);
     this.id = id;
   }
@@ -179,6 +179,12 @@ public class GeneralMarketMessageImpl implements GeneralMarketMessage {
     }
   }
 
+  private void validateInput(long o) throws InvalidMessageException {
+    if (o <= 0) {
+      throw new InvalidMessageException("Id must be a positive number.");
+    }
+  }
+
   private void validateInput(int o) throws InvalidMessageException {
     if (o < 0) {
       throw new InvalidMessageException("Argument cannot be negative.");
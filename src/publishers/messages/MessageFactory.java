@@ -23,7 +23,7 @@ class MessageFactory {
    */
   public static CancelMessageImpl createCancelMessageImpl(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     return new CancelMessageImpl(user, product, price, volume,
             details, side, id);
@@ -44,7 +44,7 @@ class MessageFactory {
    */
   public static FillMessageImpl createFillMessageImpl(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     return new FillMessageImpl(user, product, price, volume,
             details, side, id);
@@ -78,7 +78,7 @@ class MessageFactory {
    */
   protected static GeneralMarketMessage createGeneralMarketMessageImpl(String user,
           String product, Price price, int volume, String details,
-          BookSide side, String id)
+          BookSide side, long id)
           throws InvalidMessageException {
     return new GeneralMarketMessageImpl(user, product, price, volume,
             details, side, id);
@@ -16,7 +16,20 @@ public class Order implements Tradeable {
           throws InvalidVolumeException, TradeableException {
     thisOrder = TrabeableImplFactory.createTradeable(theUserName,
             theProductSymbol, theOrderPrice, theOriginalVolume, false, theSide,
-            theUserName + theProductSymbol + theOrderPrice + System.nanoTime());
+            OrderIdGenerator.nextId());
+  }
+
+  /**
+   * Creates an Order that keeps the id it was first given, for rebuilding a
+   * book from its journal.
+   */
+  public Order(String theUserName, String theProductSymbol,
+          Price theOrderPrice, int theOriginalVolume,
+          BookSide theSide, long theId)
+          throws InvalidVolumeException, TradeableException {
+    thisOrder = TrabeableImplFactory.createTradeable(theUserName,
+            theProductSymbol, theOrderPrice, theOriginalVolume, false, theSide,
+            theId);
   }
 
   @Override
@@ -72,7 +85,7 @@ public class Order implements Tradeable {
   }
 
   @Override
-  public String getId() {
+  public long getId() {
     return thisOrder.getId();
   }
 
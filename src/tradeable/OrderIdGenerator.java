@@ -0,0 +1,78 @@
+package tradeable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Hands out the ids of Orders and QuoteSides. An id is a positive 64-bit
+ * number, issued in increasing order and never reused while the system runs.
+ * Inside the system ids are kept as primitive longs; they are only turned
+ * into strings where they are handed to, or taken back from, a user.
+ */
+public final class OrderIdGenerator {
+
+  /**
+   * The last id handed out. Ids start at 1, so 0 is never an order's id.
+   */
+  private static final AtomicLong last = new AtomicLong();
+
+  private OrderIdGenerator() {
+  }
+
+  /**
+   * Returns a new, unique order id. Safe to call from any thread.
+   *
+   * @return the next order id
+   */
+  public static long nextId() {
+    return last.incrementAndGet();
+  }
+
+  /**
+   * Makes sure every id handed out from now on is greater than the one
+   * passed in, such as the largest id found in a journal being replayed.
+   *
+   * @param id
+   */
+  public static void advanceTo(long id) {
+    long current = last.get();
+    while (current < id && !last.compareAndSet(current, id)) {
+      current = last.get();
+    }
+  }
+
+  /**
+   * Returns the string form of the order id passed in, as shown to users.
+   *
+   * @param id
+   * @return the id as a string
+   */
+  public static String toString(long id) {
+    return Long.toString(id);
+  }
+
+  /**
+   * Returns the order id a user passed back in its string form, or 0 (which
+   * is never an order's id) if the string is not an order id.
+   *
+   * @param id
+   * @return the order id, or 0
+   */
+  public static long parse(String id) {
+    if (id == null || id.isEmpty() || id.length() > 19) {
+      return 0;
+    }
+    long value = 0;
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (c < '0' || c > '9') {
+        return 0;
+      }
+      value = value * 10 + (c - '0');
+      if (value < 0) {
+        return 0;
+      }
+    }
+    return value;
+  }
+}
@@ -24,6 +24,21 @@ public class Quote {
             BookSide.SELL);
   }
 
+  /**
+   * Creates a Quote whose sides keep the ids passed in, for replaying a
+   * journaled quote.
+   */
+  public Quote(String userName, String productSymbol, Price buyPrice,
+          int buyVolume, Price sellPrice, int sellVolume, long buyId,
+          long sellId) throws InvalidVolumeException, TradeableException {
+    user = userName;
+    product = productSymbol;
+    buyQuoteSide = new QuoteSide(userName, productSymbol, buyPrice, buyVolume,
+            BookSide.BUY, buyId);
+    sellQuoteSide = new QuoteSide(userName, productSymbol, sellPrice,
+            sellVolume, BookSide.SELL, sellId);
+  }
+
   public String getUserName() {
     return user;
   }
@@ -32,6 +47,42 @@ public class Quote {
     return product;
   }
 
+  /**
+   * Returns the price of the quote's side passed in, without copying the
+   * QuoteSide.
+   *
+   * @param side
+   * @return the side's price
+   */
+  public Price getPrice(BookSide side) {
+    return side.equals(BookSide.BUY) ? buyQuoteSide.getPrice()
+            : sellQuoteSide.getPrice();
+  }
+
+  /**
+   * Returns the original volume of the quote's side passed in, without
+   * copying the QuoteSide.
+   *
+   * @param side
+   * @return the side's volume
+   */
+  public int getVolume(BookSide side) {
+    return side.equals(BookSide.BUY) ? buyQuoteSide.getOriginalVolume()
+            : sellQuoteSide.getOriginalVolume();
+  }
+
+  /**
+   * Returns the id of the quote's side passed in, which the side keeps in
+   * the book.
+   *
+   * @param side
+   * @return the side's id
+   */
+  public long getId(BookSide side) {
+    return side.equals(BookSide.BUY) ? buyQuoteSide.getId()
+            : sellQuoteSide.getId();
+  }
+
   public QuoteSide getQuoteSide(BookSide side)
           throws TradeableException, InvalidVolumeException {
     if (side.equals(BookSide.BUY)) {
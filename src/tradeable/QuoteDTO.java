@@ -0,0 +1,47 @@
+package tradeable;
+
+import price.Price;
+
+
+public class QuoteDTO {
+
+  /**
+   * The product (i.e., IBM, GOOG, AAPL, etc.) that the quote is for.
+   */
+  public String product;
+
+  /**
+   * The price of the BUY side of the quote.
+   */
+  public Price buyPrice;
+
+  /**
+   * The volume of the BUY side of the quote.
+   */
+  public int buyVolume;
+
+  /**
+   * The price of the SELL side of the quote.
+   */
+  public Price sellPrice;
+
+  /**
+   * The volume of the SELL side of the quote.
+   */
+  public int sellVolume;
+
+  public QuoteDTO(String theProduct, Price theBuyPrice, int theBuyVolume,
+          Price theSellPrice, int theSellVolume) {
+    product = theProduct;
+    buyPrice = theBuyPrice;
+    buyVolume = theBuyVolume;
+    sellPrice = theSellPrice;
+    sellVolume = theSellVolume;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s quote: %s@%s - %s@%s", product, buyVolume,
+            buyPrice, sellVolume, sellPrice);
+  }
+}
@@ -15,19 +15,31 @@ public class QuoteSide implements Tradeable {
           BookSide theSide) throws InvalidVolumeException, TradeableException {
     thisQuoteSide = TrabeableImplFactory.createTradeable(theUserName,
             theProductSymbol, theOrderPrice, theOriginalVolume,
-            true, theSide, theUserName + theProductSymbol +
-            System.nanoTime());
+            true, theSide, OrderIdGenerator.nextId());
   }
 
   /**
-   * Copy Constructor.
+   * Creates a QuoteSide that keeps the id it was first given, for restoring a
+   * book from a snapshot.
+   */
+  public QuoteSide(String theUserName, String theProductSymbol,
+          Price theOrderPrice, int theOriginalVolume,
+          BookSide theSide, long theId)
+          throws InvalidVolumeException, TradeableException {
+    thisQuoteSide = TrabeableImplFactory.createTradeable(theUserName,
+            theProductSymbol, theOrderPrice, theOriginalVolume,
+            true, theSide, theId);
+  }
+
+  /**
+   * Copy Constructor. The copy keeps the id of the QuoteSide passed in, so
+   * the id a quote is journaled with is the one its side trades under.
    */
   public QuoteSide(QuoteSide qs)
           throws InvalidVolumeException, TradeableException {
     thisQuoteSide = TrabeableImplFactory.createTradeable(qs.getUser(),
             qs.getProduct(), qs.getPrice(), qs.getOriginalVolume(),
-            qs.isQuote(), qs.getSide(), qs.getUser() + qs.getProduct() +
-            System.nanoTime());
+            qs.isQuote(), qs.getSide(), qs.getId());
   }
 
   @Override
@@ -83,7 +95,7 @@ public class QuoteSide implements Tradeable {
   }
 
   @Override
-  public String getId() {
+  public long getId() {
     return thisQuoteSide.getId();
   }
 
@@ -25,7 +25,7 @@ public class TrabeableImplFactory {
   public static TradeableImpl createTradeable(String theUserName,
           String theProductSymbol, Price theOrderPrice,
           int theOriginalVolume, boolean isItAQuote,
-          BookSide theSide, String theId) throws InvalidVolumeException,
+          BookSide theSide, long theId) throws InvalidVolumeException,
           TradeableException {
     // This function only returns one type of Impl. object at the moment.
     return new TradeableImpl(theUserName, theProductSymbol, theOrderPrice,
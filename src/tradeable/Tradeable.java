@@ -69,5 +69,5 @@ public interface Tradeable {
   /**
    * @return the Tradeable "id"
    */
-  String getId();
+  long getId();
 }
@@ -53,14 +53,14 @@ public class TradeableImpl implements Tradeable {
 
   /**
    * The Tradeable "id" - the value each tradeable is given once it is received
-   * by the system.
+   * by the system (see OrderIdGenerator).
    */
-  private String id;
+  private long id;
 
   public TradeableImpl(String theUserName,
           String theProductSymbol, Price theOrderPrice,
           int theOriginalVolume, boolean isItAQuote,
-          BookSide theSide, String theId)
+          BookSide theSide, long theId)
           throws InvalidVolumeException, TradeableException {
     setUser(theUserName);
     setProduct(theProductSymbol);
@@ -163,11 +163,11 @@ public class TradeableImpl implements Tradeable {
   }
 
   @Override
-  public final String getId() {
+  public final long getId() {
     return id;
   }
 
-  private void setId(String id) throws TradeableException {
+  private void setId(long id) throws TradeableException {
     validateInput(id);
     self.id = id;
   }
@@ -194,6 +194,12 @@ public class TradeableImpl implements Tradeable {
     }
   }
 
+  private void validateInput(long o) throws TradeableException {
+    if (o <= 0) {
+      throw new TradeableException("Id must be a positive number.");
+    }
+  }
+
   private void validateInput(int o) throws InvalidVolumeException {
     if (o < 0 || o > originalVolume) {
       throw new InvalidVolumeException("Argument cannot be negative "
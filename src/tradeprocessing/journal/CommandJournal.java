@@ -0,0 +1,536 @@
+package tradeprocessing.journal;
+
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.MarketState;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import price.Price;
+import tradeprocessing.journal.JournalRecord.Type;
+
+
+/**
+ * An append-only, memory-mapped log of every command the ProductService has
+ * accepted, in a compact binary form, from which the product books can be
+ * rebuilt after a restart.
+ *
+ * The file is a 16 byte header followed by fixed size regions, each mapped
+ * on its own as it is reached. A record is a 4 byte body length, the CRC-32
+ * of the body, and the body (a type byte and the command's fields). The
+ * length is written last, so a record cut short by a JVM crash reads as the
+ * end of the journal; the CRC covers a power loss, after which the pages of
+ * a record may have reached the disk out of order, so a length can stand in
+ * front of a torn or zeroed body. A record whose CRC does not match also
+ * reads as the end of the journal. A record never spans two regions: one
+ * that does not fit is
+ * written at the start of the next region, and a length of -1 (or fewer
+ * than 4 bytes left) marks the rest of a region as unused.
+ *
+ * A record is in the operating system's page cache, and so survives the JVM
+ * going down, as soon as it is appended. Writing it to disk is left to a
+ * group commit thread, which flushes everything appended so far whenever a
+ * caller is waiting in "awaitSynced" (or every SYNC_INTERVAL_MILLIS
+ * otherwise), so one flush covers the commands of every thread that arrived
+ * while the previous one ran.
+ */
+public final class CommandJournal {
+
+  private static final Logger log =
+          Logger.getLogger(CommandJournal.class.getName());
+
+  private static final int MAGIC = 0x44534A31;
+
+  private static final int VERSION = 3;
+
+  static final int HEADER = 16;
+
+  /**
+   * The size of each mapped region of the file.
+   */
+  static final int REGION = 64 << 20;
+
+  /**
+   * How often appended records are flushed when nobody is waiting for them.
+   */
+  private static final long SYNC_INTERVAL_MILLIS = 10;
+
+  /**
+   * Prices are written in cents, with this value standing for MKT.
+   */
+  static final long MARKET_PRICE = Long.MIN_VALUE;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  /**
+   * Every region mapped so far, in file order. Guarded by this journal's
+   * lock.
+   */
+  private final ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * The region records are being appended to.
+   */
+  private MappedByteBuffer current;
+
+  /**
+   * The file offset just past the last record appended.
+   */
+  private volatile long written;
+
+  /**
+   * The file offset up to which records have been flushed to disk. Guarded
+   * by syncLock.
+   */
+  private long synced;
+
+  private boolean syncRequested;
+
+  /**
+   * The exception the last flush failed with, or null. Guarded by syncLock.
+   */
+  private IOException syncFailure;
+
+  private volatile boolean running = true;
+
+  private final Object syncLock = new Object();
+
+  private final Thread syncer;
+
+  /**
+   * The number of records in the journal when it was opened.
+   */
+  private final long recovered;
+
+  /**
+   * The largest order or quote side id found in the journal when it was
+   * opened.
+   */
+  private final long maxOrderId;
+
+  /**
+   * Opens the journal in the file at the path passed in, creating it if it
+   * does not exist. Records already in the file are scanned to find where
+   * new ones go; anything after the last whole record is cleared.
+   *
+   * @param path
+   * @return the open journal
+   */
+  public static CommandJournal open(String path) throws IOException {
+    if (path == null || path.isEmpty()) {
+      throw new IOException("A journal path is needed.");
+    }
+    return new CommandJournal(new RandomAccessFile(path, "rw"));
+  }
+
+  private CommandJournal(RandomAccessFile f) throws IOException {
+    file = f;
+    channel = f.getChannel();
+    long size = channel.size();
+    if (size == 0) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      header.putInt(MAGIC).putInt(VERSION).putInt(REGION).flip();
+      channel.write(header, 0);
+      size = HEADER + REGION;
+    } else if (size < HEADER || f.readInt() != MAGIC
+            || f.readInt() != VERSION || f.readInt() != REGION) {
+      channel.close();
+      throw new IOException("Not a version " + VERSION + " command journal.");
+    }
+    int count = (int) ((size - HEADER + REGION - 1) / REGION);
+    for (int i = 0; i < count; i++) {
+      map(i);
+    }
+    JournalReader scan = new JournalReader(regions, 0, Long.MAX_VALUE);
+    JournalRecord r = new JournalRecord();
+    long records = 0;
+    long maxId = 0;
+    while (scan.next(r)) {
+      records++;
+      if (r.type == Type.ORDER || r.type == Type.QUOTE
+              || r.type == Type.QUOTE_UPDATE) {
+        maxId = Math.max(maxId, r.id);
+      }
+      if (r.type == Type.QUOTE || r.type == Type.QUOTE_UPDATE) {
+        maxId = Math.max(maxId, r.sellId);
+      }
+    }
+    recovered = records;
+    maxOrderId = maxId;
+    written = scan.getPosition();
+    synced = written;
+    truncateAfter(written);
+    syncer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        syncLoop();
+      }
+    }, "CommandJournal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Returns the number of records that were in the journal when it was
+   * opened.
+   *
+   * @return the number of recovered records
+   */
+  public long getRecoveredCount() {
+    return recovered;
+  }
+
+  /**
+   * Returns the largest order or quote side id in the journal when it was
+   * opened, or 0.
+   *
+   * @return the largest journaled id
+   */
+  public long getMaxOrderId() {
+    return maxOrderId;
+  }
+
+  /**
+   * Returns the file offset just past the last record appended.
+   *
+   * @return the journal's end
+   */
+  public long getPosition() {
+    return written;
+  }
+
+  /**
+   * Returns a reader over the records appended so far.
+   *
+   * @return a reader starting at the first record
+   */
+  public synchronized JournalReader reader() {
+    return reader(0);
+  }
+
+  /**
+   * Returns a reader over the records appended so far, starting with the
+   * record at the file offset passed in, which must be one returned by an
+   * append or "getPosition".
+   *
+   * @param from
+   * @return a reader starting at that record
+   */
+  public synchronized JournalReader reader(long from) {
+    return new JournalReader(new ArrayList<>(regions), from, written);
+  }
+
+  /**
+   * Each append method writes one record and returns the file offset just
+   * past it, to be passed to "awaitSynced".
+   */
+  public synchronized long appendCreateProduct(String product)
+          throws IOException {
+    int length = length(product);
+    MappedByteBuffer b = start(Type.CREATE_PRODUCT, length);
+    putString(b, product);
+    return finish(b, length);
+  }
+
+  public synchronized long appendServiceState(MarketState s)
+          throws IOException {
+    MappedByteBuffer b = start(Type.SERVICE_STATE, 1);
+    b.put((byte) s.ordinal());
+    return finish(b, 1);
+  }
+
+  public synchronized long appendBookState(String product, MarketState s)
+          throws IOException {
+    int length = 1 + length(product);
+    MappedByteBuffer b = start(Type.BOOK_STATE, length);
+    b.put((byte) s.ordinal());
+    putString(b, product);
+    return finish(b, length);
+  }
+
+  public synchronized long appendOrder(long id, String user, String product,
+          Price price, int volume, BookSide side) throws IOException {
+    int length = 8 + 8 + 4 + 1 + length(product) + length(user);
+    MappedByteBuffer b = start(Type.ORDER, length);
+    b.putLong(id);
+    putPrice(b, price);
+    b.putInt(volume);
+    b.put((byte) side.ordinal());
+    putString(b, product);
+    putString(b, user);
+    return finish(b, length);
+  }
+
+  /**
+   * Appends a quote: a whole new QUOTE, or a QUOTE_UPDATE that only
+   * replaces the sides that changed (see ProductBook.updateQuote). The ids
+   * are those the quote's sides are given, so a replayed quote trades under
+   * the same ids.
+   */
+  public synchronized long appendQuote(boolean update, String user,
+          String product, Price buyPrice, int buyVolume, Price sellPrice,
+          int sellVolume, long buyId, long sellId) throws IOException {
+    int length = 8 + 8 + 8 + 4 + 8 + 4 + length(product) + length(user);
+    MappedByteBuffer b = start(update ? Type.QUOTE_UPDATE : Type.QUOTE,
+            length);
+    b.putLong(buyId);
+    b.putLong(sellId);
+    putPrice(b, buyPrice);
+    b.putInt(buyVolume);
+    putPrice(b, sellPrice);
+    b.putInt(sellVolume);
+    putString(b, product);
+    putString(b, user);
+    return finish(b, length);
+  }
+
+  public synchronized long appendOrderCancel(String product, BookSide side,
+          long id) throws IOException {
+    int length = 8 + 1 + length(product);
+    MappedByteBuffer b = start(Type.ORDER_CANCEL, length);
+    b.putLong(id);
+    b.put((byte) side.ordinal());
+    putString(b, product);
+    return finish(b, length);
+  }
+
+  public synchronized long appendQuoteCancel(String user, String product)
+          throws IOException {
+    int length = length(product) + length(user);
+    MappedByteBuffer b = start(Type.QUOTE_CANCEL, length);
+    putString(b, product);
+    putString(b, user);
+    return finish(b, length);
+  }
+
+  /**
+   * Waits until every record up to the file offset passed in (as returned
+   * by an append) has been flushed to disk. If the last flush failed, its
+   * exception is thrown instead.
+   *
+   * @param position
+   */
+  public void awaitSynced(long position) throws IOException {
+    boolean interrupted = false;
+    try {
+      synchronized (syncLock) {
+        while (synced < position && running) {
+          if (syncFailure != null) {
+            throw syncFailure;
+          }
+          // Only the first waiter wakes the group commit thread; the rest
+          // are covered by the same flush.
+          if (!syncRequested) {
+            syncRequested = true;
+            syncLock.notifyAll();
+          }
+          try {
+            syncLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Flushes everything appended, stops the group commit thread and closes
+   * the file. The journal cannot be used afterwards.
+   */
+  public void close() throws IOException {
+    running = false;
+    synchronized (syncLock) {
+      syncLock.notifyAll();
+    }
+    try {
+      syncer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    force(0, written);
+    channel.close();
+    file.close();
+  }
+
+  /**
+   * Makes room for a record with a body of the length passed in, moving to
+   * the next region if it does not fit in this one, writes the type byte and
+   * returns the region positioned just past it.
+   */
+  private MappedByteBuffer start(Type t, int length) throws IOException {
+    // The type byte is counted here; the callers' lengths exclude it.
+    int needed = 8 + 1 + length;
+    if (current.remaining() < needed) {
+      if (current.remaining() >= 4) {
+        current.putInt(current.position(), -1);
+      }
+      current = map(regions.size());
+    }
+    current.position(current.position() + 8);
+    current.put((byte) t.ordinal());
+    return current;
+  }
+
+  /**
+   * Writes the CRC-32 and then the length in front of the record's body,
+   * making the record visible to readers, and returns the file offset just
+   * past it.
+   */
+  private long finish(MappedByteBuffer b, int length) {
+    int body = 1 + length;
+    int start = b.position() - body;
+    ByteBuffer bytes = b.duplicate();
+    bytes.limit(b.position());
+    bytes.position(start);
+    crc.reset();
+    crc.update(bytes);
+    b.putInt(start - 4, (int) crc.getValue());
+    b.putInt(start - 8, body);
+    written = HEADER + (long) (regions.size() - 1) * REGION + b.position();
+    return written;
+  }
+
+  private MappedByteBuffer map(int index) throws IOException {
+    MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE,
+            HEADER + (long) index * REGION, REGION);
+    regions.add(b);
+    current = b;
+    return b;
+  }
+
+  /**
+   * Clears every byte after the last whole record, so records appended from
+   * now on cannot run into the remains of one cut short, and drops any
+   * regions past the current one.
+   */
+  private void truncateAfter(long end) throws IOException {
+    int index = (int) ((end - HEADER) / REGION);
+    if (index >= regions.size()) {
+      index = regions.size() - 1;
+    }
+    while (regions.size() > index + 1) {
+      regions.remove(regions.size() - 1);
+    }
+    current = regions.get(index);
+    int offset = (int) (end - HEADER - (long) index * REGION);
+    current.position(offset);
+    int i = offset;
+    for (; i + 8 <= REGION; i += 8) {
+      if (current.getLong(i) != 0) {
+        current.putLong(i, 0);
+      }
+    }
+    for (; i < REGION; i++) {
+      current.put(i, (byte) 0);
+    }
+    channel.truncate(HEADER + (long) (index + 1) * REGION);
+  }
+
+  private void syncLoop() {
+    while (true) {
+      long from;
+      long target;
+      synchronized (syncLock) {
+        if (running && !syncRequested) {
+          try {
+            syncLock.wait(SYNC_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) {
+          syncLock.notifyAll();
+          return;
+        }
+        syncRequested = false;
+        from = synced;
+        target = written;
+        if (target == from) {
+          continue;
+        }
+      }
+      IOException failure = null;
+      try {
+        force(from, target);
+      } catch (IOException e) {
+        log.log(Level.SEVERE, null, e);
+        failure = e;
+      }
+      synchronized (syncLock) {
+        if (failure == null) {
+          synced = target;
+        }
+        syncFailure = failure;
+        syncLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Flushes the regions holding the file offsets between the two passed in.
+   */
+  private void force(long from, long to) throws IOException {
+    int first = (int) ((Math.max(from, HEADER) - HEADER) / REGION);
+    int last = (int) ((Math.max(to - 1, HEADER) - HEADER) / REGION);
+    ArrayList<MappedByteBuffer> dirty = new ArrayList<>();
+    synchronized (this) {
+      for (int i = first; i <= last && i < regions.size(); i++) {
+        dirty.add(regions.get(i));
+      }
+    }
+    for (MappedByteBuffer b : dirty) {
+      b.force();
+    }
+  }
+
+  private static int length(String s) throws IOException {
+    int n = s.length();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        n += c >= 0x800 ? 2 : 1;
+      }
+    }
+    if (n > Short.MAX_VALUE) {
+      throw new IOException("String too long for the journal.");
+    }
+    return 2 + n;
+  }
+
+  private static void putString(MappedByteBuffer b, String s) {
+    int start = b.position();
+    b.position(start + 2);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        b.put((byte) c);
+      } else if (c < 0x800) {
+        b.put((byte) (0xC0 | (c >> 6)));
+        b.put((byte) (0x80 | (c & 0x3F)));
+      } else {
+        b.put((byte) (0xE0 | (c >> 12)));
+        b.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        b.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    b.putShort(start, (short) (b.position() - start - 2));
+  }
+
+  private static void putPrice(MappedByteBuffer b, Price p) {
+    b.putLong(p.isMarket() ? MARKET_PRICE : p.getValue());
+  }
+}
@@ -0,0 +1,210 @@
+package tradeprocessing.journal;
+
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.MarketState;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+import price.Price;
+import price.PriceFactory;
+import tradeprocessing.journal.JournalRecord.Type;
+
+
+/**
+ * Reads the records of a CommandJournal back in the order they were
+ * appended. The reader stops at the first record that is not whole, or
+ * whose CRC-32 does not match its body, which is where the journal ends.
+ */
+public final class JournalReader {
+
+  private static final Type[] TYPES = Type.values();
+
+  private static final BookSide[] SIDES = BookSide.values();
+
+  private static final MarketState[] STATES = MarketState.values();
+
+  /**
+   * The number of recently read strings kept for reuse, so the product
+   * symbols and user names repeated in every record are not decoded into a
+   * new String each time.
+   */
+  private static final int STRING_CACHE = 1024;
+
+  private final ByteBuffer[] regions;
+
+  /**
+   * The file offset past which nothing is read.
+   */
+  private final long limit;
+
+  private int region;
+
+  private final String[] strings = new String[STRING_CACHE];
+
+  private byte[] scratch = new byte[64];
+
+  private final CRC32 crc = new CRC32();
+
+  JournalReader(List<MappedByteBuffer> mapped, long start, long end) {
+    regions = new ByteBuffer[mapped.size()];
+    for (int i = 0; i < regions.length; i++) {
+      regions[i] = mapped.get(i).duplicate();
+      regions[i].position(0);
+    }
+    if (start > CommandJournal.HEADER) {
+      long offset = start - CommandJournal.HEADER;
+      region = (int) Math.min(offset / CommandJournal.REGION,
+              regions.length - 1);
+      regions[region].position((int) Math.min(offset
+              - (long) region * CommandJournal.REGION,
+              CommandJournal.REGION));
+    }
+    limit = end;
+  }
+
+  /**
+   * Returns the file offset just past the last record read.
+   *
+   * @return the reader's position
+   */
+  public long getPosition() {
+    int r = Math.min(region, regions.length - 1);
+    return CommandJournal.HEADER + (long) r * CommandJournal.REGION
+            + regions[r].position();
+  }
+
+  /**
+   * Reads the next record into the one passed in.
+   *
+   * @param r the record to fill in
+   * @return true if a record was read, false at the end of the journal
+   */
+  public boolean next(JournalRecord r) {
+    while (region < regions.length && getPosition() < limit) {
+      ByteBuffer b = regions[region];
+      int offset = b.position();
+      int length = b.remaining() < 4 ? -1 : b.getInt(offset);
+      if (length == -1) {
+        if (region + 1 == regions.length) {
+          return false;
+        }
+        region++;
+        continue;
+      }
+      if (length <= 0 || length > b.remaining() - 8) {
+        return false;
+      }
+      ByteBuffer body = b.duplicate();
+      body.position(offset + 8);
+      body.limit(offset + 8 + length);
+      crc.reset();
+      crc.update(body);
+      if ((int) crc.getValue() != b.getInt(offset + 4)) {
+        return false;
+      }
+      try {
+        b.position(offset + 8);
+        read(b, r);
+        if (b.position() != offset + 8 + length) {
+          throw new IllegalStateException();
+        }
+        return true;
+      } catch (RuntimeException e) {
+        // A damaged record ends the journal like a missing one does.
+        b.position(offset);
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private void read(ByteBuffer b, JournalRecord r) {
+    r.type = TYPES[b.get()];
+    r.product = null;
+    r.user = null;
+    switch (r.type) {
+      case CREATE_PRODUCT:
+        r.product = getString(b);
+        break;
+      case SERVICE_STATE:
+        r.state = STATES[b.get()];
+        break;
+      case BOOK_STATE:
+        r.state = STATES[b.get()];
+        r.product = getString(b);
+        break;
+      case ORDER:
+        r.id = b.getLong();
+        r.price = getPrice(b);
+        r.volume = b.getInt();
+        r.side = SIDES[b.get()];
+        r.product = getString(b);
+        r.user = getString(b);
+        break;
+      case QUOTE:
+      case QUOTE_UPDATE:
+        r.id = b.getLong();
+        r.sellId = b.getLong();
+        r.price = getPrice(b);
+        r.volume = b.getInt();
+        r.sellPrice = getPrice(b);
+        r.sellVolume = b.getInt();
+        r.product = getString(b);
+        r.user = getString(b);
+        break;
+      case ORDER_CANCEL:
+        r.id = b.getLong();
+        r.side = SIDES[b.get()];
+        r.product = getString(b);
+        break;
+      default:
+        r.product = getString(b);
+        r.user = getString(b);
+    }
+  }
+
+  private static Price getPrice(ByteBuffer b) {
+    long value = b.getLong();
+    return value == CommandJournal.MARKET_PRICE
+            ? PriceFactory.makeMarketPrice()
+            : PriceFactory.makeLimitPrice(value);
+  }
+
+  private String getString(ByteBuffer b) {
+    int length = b.getShort();
+    if (length > scratch.length) {
+      scratch = new byte[length];
+    }
+    b.get(scratch, 0, length);
+    int hash = length;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + scratch[i];
+    }
+    int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE - 1);
+    String s = strings[slot];
+    if (s == null || !sameAscii(s, length)) {
+      s = new String(scratch, 0, length, StandardCharsets.UTF_8);
+      strings[slot] = s;
+    }
+    return s;
+  }
+
+  /**
+   * Returns true if the string is the same as the first bytes of the scratch
+   * buffer, for strings made only of ASCII characters (anything else is
+   * simply decoded again).
+   */
+  private boolean sameAscii(String s, int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != scratch[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
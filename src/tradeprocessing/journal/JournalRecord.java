@@ -0,0 +1,96 @@
+package tradeprocessing.journal;
+
+import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.MarketState;
+import price.Price;
+
+
+/**
+ * One command read back from the CommandJournal. A JournalReader fills the
+ * same record in for every command it reads, so only the fields used by the
+ * record's type hold meaningful values.
+ */
+public class JournalRecord {
+
+  public static enum Type {
+    CREATE_PRODUCT, SERVICE_STATE, BOOK_STATE, ORDER, QUOTE, QUOTE_UPDATE,
+    ORDER_CANCEL, QUOTE_CANCEL
+  }
+
+  public Type type;
+
+  /**
+   * The product the command was for. Null for SERVICE_STATE.
+   */
+  public String product;
+
+  /**
+   * The user who sent the ORDER, QUOTE, QUOTE_UPDATE or QUOTE_CANCEL.
+   */
+  public String user;
+
+  /**
+   * The id of the ORDER, of the order an ORDER_CANCEL cancels, or of the
+   * buy side of a QUOTE or QUOTE_UPDATE.
+   */
+  public long id;
+
+  /**
+   * The id of the sell side of a QUOTE or QUOTE_UPDATE.
+   */
+  public long sellId;
+
+  /**
+   * The side of the ORDER or ORDER_CANCEL.
+   */
+  public BookSide side;
+
+  /**
+   * The price of the ORDER, or the buy price of a QUOTE or QUOTE_UPDATE.
+   */
+  public Price price;
+
+  /**
+   * The volume of the ORDER, or the buy volume of a QUOTE or QUOTE_UPDATE.
+   */
+  public int volume;
+
+  /**
+   * The sell price of a QUOTE or QUOTE_UPDATE.
+   */
+  public Price sellPrice;
+
+  /**
+   * The sell volume of a QUOTE or QUOTE_UPDATE.
+   */
+  public int sellVolume;
+
+  /**
+   * The new state of a SERVICE_STATE or BOOK_STATE.
+   */
+  public MarketState state;
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case CREATE_PRODUCT:
+        return type + " " + product;
+      case SERVICE_STATE:
+        return type + " " + state;
+      case BOOK_STATE:
+        return type + " " + product + " " + state;
+      case ORDER:
+        return String.format("%s %s %s %s %s at %s, ID: %d", type, user, side,
+                volume, product, price, id);
+      case QUOTE:
+      case QUOTE_UPDATE:
+        return String.format("%s %s %s %s x %s - %s x %s, IDs: %d, %d",
+                type, user, product, price, volume, sellPrice, sellVolume, id,
+                sellId);
+      case ORDER_CANCEL:
+        return type + " " + product + " " + side + " ID: " + id;
+      default:
+        return type + " " + user + " " + product;
+    }
+  }
+}
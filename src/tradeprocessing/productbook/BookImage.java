@@ -0,0 +1,82 @@
+package tradeprocessing.productbook;
+
+import constants.GlobalConstants.MarketState;
+import price.Price;
+
+
+/**
+ * A point-in-time copy of one ProductBook, for snapshots: its market state,
+ * last sale, the users with quotes and every Tradeable resting on each side.
+ * It is filled in by "ProductBook.captureImage" with flat copies of the
+ * book's values, so the book is only held for the copy and the image can be
+ * written out afterwards while the book goes on trading. A book is rebuilt
+ * from an image by "ProductBook.restore".
+ */
+public class BookImage {
+
+  public String symbol;
+
+  public MarketState marketState;
+
+  /**
+   * The price of the book's last sale, or null if it has not traded.
+   */
+  public Price lastSalePrice;
+
+  public int lastSaleVolume;
+
+  /**
+   * The users who have quoted in the book.
+   */
+  public String[] userQuotes;
+
+  public SideImage buy;
+
+  public SideImage sell;
+
+  /**
+   * The command journal's position when the image was taken, or -1 if no
+   * journal was open. Journaled commands for this book from this position on
+   * are not in the image.
+   */
+  public long journalPosition = -1;
+
+  /**
+   * The Tradeables resting on one side of a book, best price first and in
+   * time priority within a price, held column by column.
+   */
+  public static class SideImage {
+
+    public int count;
+
+    public long[] ids;
+
+    public Price[] prices;
+
+    public int[] originalVolumes;
+
+    public int[] remainingVolumes;
+
+    public int[] cancelledVolumes;
+
+    public boolean[] quotes;
+
+    public String[] users;
+
+    /**
+     * Creates an image with room for the number of Tradeables passed in.
+     *
+     * @param n
+     */
+    public SideImage(int n) {
+      count = n;
+      ids = new long[n];
+      prices = new Price[n];
+      originalVolumes = new int[n];
+      remainingVolumes = new int[n];
+      cancelledVolumes = new int[n];
+      quotes = new boolean[n];
+      users = new String[n];
+    }
+  }
+}
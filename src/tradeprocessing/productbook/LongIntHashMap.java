@@ -0,0 +1,130 @@
+package tradeprocessing.productbook;
+
+
+/**
+ * A map from positive long keys (order ids) to int values, laid out like
+ * LongHashMap but with the values in an int array, so neither keys nor
+ * values are boxed. 0 marks an empty slot, so 0 cannot be used as a key;
+ * "get" returns -1 for a missing key, so values should not be negative.
+ *
+ * Not thread-safe; it is guarded by whatever guards its book.
+ */
+final class LongIntHashMap {
+
+  /**
+   * The table is doubled whenever it would become more than half full, so
+   * probe runs stay short.
+   */
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] keys = new long[INITIAL_CAPACITY];
+
+  private int[] values = new int[INITIAL_CAPACITY];
+
+  /**
+   * The number of bits of the table size; the table holds 1 << bits slots.
+   */
+  private int bits = Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+
+  private int size;
+
+  int size() {
+    return size;
+  }
+
+  int get(long key) {
+    int mask = keys.length - 1;
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      long k = keys[i];
+      if (k == key) {
+        return values[i];
+      }
+      if (k == 0) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Maps the key to the value, replacing and returning any previous value.
+   *
+   * @param key a positive id
+   * @param value
+   * @return the previous value, or -1
+   */
+  int put(long key, int value) {
+    if (key == 0) {
+      throw new IllegalArgumentException("0 cannot be used as a key.");
+    }
+    int mask = keys.length - 1;
+    int i = slot(key);
+    for (; keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        int old = values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > keys.length / 2) {
+      grow();
+    }
+    return -1;
+  }
+
+  /**
+   * Removes the key, shifting back any later entries of its probe run so
+   * that no tombstones are left behind.
+   *
+   * @param key
+   * @return the value that was mapped to the key, or -1
+   */
+  int remove(long key) {
+    int mask = keys.length - 1;
+    int i = slot(key);
+    for (; keys[i] != key; i = (i + 1) & mask) {
+      if (keys[i] == 0) {
+        return -1;
+      }
+    }
+    int old = values[i];
+    size--;
+    int gap = i;
+    for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      // An entry can move back into the gap unless its home slot lies
+      // (cyclically) after the gap and at or before its current slot.
+      int home = slot(keys[j]);
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    keys[gap] = 0;
+    return old;
+  }
+
+  private int slot(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+    bits++;
+    int mask = keys.length - 1;
+    for (int n = 0; n < oldKeys.length; n++) {
+      if (oldKeys[n] != 0) {
+        int i = slot(oldKeys[n]);
+        while (keys[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[n];
+        values[i] = oldValues[n];
+      }
+    }
+  }
+}
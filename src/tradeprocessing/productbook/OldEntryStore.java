@@ -0,0 +1,390 @@
+package tradeprocessing.productbook;
+
+import constants.GlobalConstants.BookSide;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import price.Price;
+import price.PriceFactory;
+import tradeable.Tradeable;
+
+
+/**
+ * The "old" Tradeables of one book (those that have been completely traded or
+ * cancelled), kept only for answering cancels that come too late. Each one is
+ * reduced to a fixed record of primitives (id, price in cents, volumes, side,
+ * quote flag and an index into a table of user names) held column by column.
+ *
+ * The newest WINDOW records are kept in memory, in a ring indexed by id. When
+ * the ring is full its oldest CHUNK records are evicted at once: if a spill
+ * file has been set they are sorted by id and written to it as one block, and
+ * otherwise they are dropped. Only the lowest and highest id of each spilled
+ * block stay in memory, so the heap used stays flat however many Tradeables
+ * the book retires in a day. A spilled record is found by binary searching
+ * the blocks whose id range holds its id.
+ *
+ * Not thread-safe; it is guarded by its book's lock.
+ */
+final class OldEntryStore {
+
+  /**
+   * The number of old Tradeables kept in memory.
+   */
+  static final int WINDOW = 1 << 17;
+
+  /**
+   * The number of records evicted from memory, and spilled, at a time.
+   */
+  private static final int CHUNK = 4096;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * The size of a spilled record: id, price, original volume, cancelled
+   * volume, user index and a flags byte, padded to 32 bytes.
+   */
+  private static final int RECORD = 32;
+
+  private static final int BLOCK = CHUNK * RECORD;
+
+  /**
+   * The spill file is mapped this many bytes at a time; a whole number of
+   * blocks, so no block spans two regions.
+   */
+  private static final int REGION = 256 * BLOCK;
+
+  private static final long MARKET_PRICE = Long.MIN_VALUE;
+
+  private static final byte SELL = 1;
+
+  private static final byte QUOTE = 2;
+
+  private long[] ids = new long[INITIAL_CAPACITY];
+
+  private long[] prices = new long[INITIAL_CAPACITY];
+
+  private int[] originalVolumes = new int[INITIAL_CAPACITY];
+
+  private int[] cancelledVolumes = new int[INITIAL_CAPACITY];
+
+  private int[] users = new int[INITIAL_CAPACITY];
+
+  private byte[] flags = new byte[INITIAL_CAPACITY];
+
+  /**
+   * The ring slot of the oldest record in memory, and the number of records
+   * in memory.
+   */
+  private int first;
+
+  private int count;
+
+  /**
+   * Maps the id of each record in memory to its ring slot.
+   */
+  private final LongIntHashMap index = new LongIntHashMap();
+
+  private final ArrayList<String> userNames = new ArrayList<>();
+
+  private final HashMap<String, Integer> userIndexes = new HashMap<>();
+
+  private RandomAccessFile spill;
+
+  private File spillFile;
+
+  private final ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+
+  /**
+   * The lowest and highest id in each spilled block.
+   */
+  private long[] blockMin = new long[16];
+
+  private long[] blockMax = new long[16];
+
+  private int blocks;
+
+  private long dropped;
+
+  /**
+   * Spills the records evicted from memory from now on to the file passed in,
+   * instead of dropping them. The file is emptied first; it only holds
+   * records for as long as this store is in use.
+   *
+   * @param file
+   */
+  void spillTo(File file) throws IOException {
+    if (spill != null) {
+      throw new IOException("Old entries are already spilled to a file.");
+    }
+    RandomAccessFile f = new RandomAccessFile(file, "rw");
+    f.setLength(0);
+    spill = f;
+    spillFile = file;
+  }
+
+  /**
+   * Stops spilling: the spill file is closed and deleted, and the records in
+   * it are forgotten, as though they had been dropped. Records evicted from
+   * now on are dropped too, until "spillTo" is called again.
+   */
+  void close() throws IOException {
+    if (spill == null) {
+      return;
+    }
+    dropped += spilled();
+    blocks = 0;
+    // The mappings are released once they are no longer referenced.
+    regions.clear();
+    try {
+      spill.close();
+    } finally {
+      spill = null;
+      if (!spillFile.delete() && spillFile.exists()) {
+        spillFile.deleteOnExit();
+      }
+      spillFile = null;
+    }
+  }
+
+  /**
+   * Returns the number of old Tradeables in memory.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Returns the number of old Tradeables in the spill file.
+   */
+  long spilled() {
+    return (long) blocks * CHUNK;
+  }
+
+  /**
+   * Returns the number of old Tradeables evicted with no spill file set,
+   * which can no longer be found.
+   */
+  long dropped() {
+    return dropped;
+  }
+
+  /**
+   * Adds the old Tradeable passed in as the newest record.
+   *
+   * @param t
+   */
+  void add(Tradeable t) throws IOException {
+    if (count == ids.length) {
+      if (ids.length < WINDOW) {
+        grow();
+      } else {
+        evict();
+      }
+    }
+    int slot = (first + count) & (ids.length - 1);
+    Price p = t.getPrice();
+    ids[slot] = t.getId();
+    prices[slot] = p.isMarket() ? MARKET_PRICE : p.getValue();
+    originalVolumes[slot] = t.getOriginalVolume();
+    cancelledVolumes[slot] = t.getCancelledVolume();
+    users[slot] = userIndex(t.getUser());
+    flags[slot] = (byte) ((t.getSide() == BookSide.SELL ? SELL : 0)
+            | (t.isQuote() ? QUOTE : 0));
+    index.put(t.getId(), slot);
+    count++;
+  }
+
+  /**
+   * Finds the old Tradeable with the id passed in, in memory or in the spill
+   * file.
+   *
+   * @param id
+   * @return the old Tradeable's values, or null if it is not held
+   */
+  OldEntry find(long id) {
+    int slot = index.get(id);
+    if (slot >= 0) {
+      return new OldEntry(id, price(prices[slot]), originalVolumes[slot],
+              cancelledVolumes[slot], userNames.get(users[slot]),
+              flags[slot]);
+    }
+    // Newest blocks first, as cancels are more often late by a little than
+    // by a lot.
+    for (int b = blocks - 1; b >= 0; b--) {
+      if (id >= blockMin[b] && id <= blockMax[b]) {
+        OldEntry e = findSpilled(b, id);
+        if (e != null) {
+          return e;
+        }
+      }
+    }
+    return null;
+  }
+
+  private OldEntry findSpilled(int block, long id) {
+    MappedByteBuffer region = regions.get((int) ((long) block * BLOCK
+            / REGION));
+    int base = (int) ((long) block * BLOCK % REGION);
+    int low = 0;
+    int high = CHUNK - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int at = base + mid * RECORD;
+      long found = region.getLong(at);
+      if (found < id) {
+        low = mid + 1;
+      } else if (found > id) {
+        high = mid - 1;
+      } else {
+        return new OldEntry(id, price(region.getLong(at + 8)),
+                region.getInt(at + 16), region.getInt(at + 20),
+                userNames.get(region.getInt(at + 24)), region.get(at + 28));
+      }
+    }
+    return null;
+  }
+
+  private void grow() {
+    // The ring has not wrapped yet (nothing is evicted before it reaches
+    // WINDOW), so its records start at slot 0.
+    int n = ids.length * 2;
+    ids = Arrays.copyOf(ids, n);
+    prices = Arrays.copyOf(prices, n);
+    originalVolumes = Arrays.copyOf(originalVolumes, n);
+    cancelledVolumes = Arrays.copyOf(cancelledVolumes, n);
+    users = Arrays.copyOf(users, n);
+    flags = Arrays.copyOf(flags, n);
+  }
+
+  /**
+   * Removes the oldest CHUNK records from memory, spilling them if there is
+   * a spill file.
+   */
+  private void evict() throws IOException {
+    if (spill != null) {
+      writeBlock();
+    } else {
+      dropped += CHUNK;
+    }
+    int mask = ids.length - 1;
+    for (int i = 0; i < CHUNK; i++) {
+      int slot = (first + i) & mask;
+      // An id added twice is indexed to its newest slot only.
+      if (index.get(ids[slot]) == slot) {
+        index.remove(ids[slot]);
+      }
+    }
+    first = (first + CHUNK) & mask;
+    count -= CHUNK;
+  }
+
+  private void writeBlock() throws IOException {
+    int[] order = new int[CHUNK];
+    int mask = ids.length - 1;
+    for (int i = 0; i < CHUNK; i++) {
+      order[i] = (first + i) & mask;
+    }
+    sortById(order, new int[CHUNK], 0, CHUNK);
+    long offset = (long) blocks * BLOCK;
+    int r = (int) (offset / REGION);
+    if (r == regions.size()) {
+      regions.add(spill.getChannel().map(FileChannel.MapMode.READ_WRITE,
+              offset, REGION));
+    }
+    MappedByteBuffer region = regions.get(r);
+    int at = (int) (offset % REGION);
+    for (int slot : order) {
+      region.putLong(at, ids[slot]);
+      region.putLong(at + 8, prices[slot]);
+      region.putInt(at + 16, originalVolumes[slot]);
+      region.putInt(at + 20, cancelledVolumes[slot]);
+      region.putInt(at + 24, users[slot]);
+      region.put(at + 28, flags[slot]);
+      at += RECORD;
+    }
+    if (blocks == blockMin.length) {
+      blockMin = Arrays.copyOf(blockMin, blocks * 2);
+      blockMax = Arrays.copyOf(blockMax, blocks * 2);
+    }
+    blockMin[blocks] = ids[order[0]];
+    blockMax[blocks] = ids[order[CHUNK - 1]];
+    blocks++;
+  }
+
+  /**
+   * Merge sorts the ring slots in order[from, to) by id. The slots are
+   * already close to id order, so most merges are skipped.
+   */
+  private void sortById(int[] order, int[] tmp, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    sortById(order, tmp, from, mid);
+    sortById(order, tmp, mid, to);
+    if (ids[order[mid - 1]] <= ids[order[mid]]) {
+      return;
+    }
+    System.arraycopy(order, from, tmp, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < mid && ids[tmp[i]] <= ids[tmp[j]])) {
+        order[k] = tmp[i++];
+      } else {
+        order[k] = tmp[j++];
+      }
+    }
+  }
+
+  private int userIndex(String user) {
+    Integer i = userIndexes.get(user);
+    if (i == null) {
+      i = userNames.size();
+      userNames.add(user);
+      userIndexes.put(user, i);
+    }
+    return i;
+  }
+
+  private static Price price(long cents) {
+    return cents == MARKET_PRICE ? PriceFactory.makeMarketPrice()
+            : PriceFactory.makeLimitPrice(cents);
+  }
+
+  /**
+   * The values kept for one old Tradeable. It has no remaining volume.
+   */
+  static final class OldEntry {
+
+    final long id;
+
+    final Price price;
+
+    final int originalVolume;
+
+    final int cancelledVolume;
+
+    final String user;
+
+    final BookSide side;
+
+    final boolean quote;
+
+    private OldEntry(long theId, Price thePrice, int original, int cancelled,
+            String theUser, byte flags) {
+      id = theId;
+      price = thePrice;
+      originalVolume = original;
+      cancelledVolume = cancelled;
+      user = theUser;
+      side = (flags & SELL) != 0 ? BookSide.SELL : BookSide.BUY;
+      quote = (flags & QUOTE) != 0;
+    }
+  }
+}
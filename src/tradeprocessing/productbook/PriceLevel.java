@@ -0,0 +1,206 @@
+package tradeprocessing.productbook;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import price.Price;
+import tradeable.Tradeable;
+
+
+public class PriceLevel implements Iterable<Tradeable> {
+
+  /**
+   * The Price that every Tradeable in this level rests at.
+   */
+  private Price price;
+
+  /**
+   * The first (oldest) node in this level's time priority queue.
+   */
+  private Node head;
+
+  /**
+   * The last (newest) node in this level's time priority queue.
+   */
+  private Node tail;
+
+  /**
+   * The running total of the remaining volume of every Tradeable in this
+   * level.
+   */
+  private int volume;
+
+  /**
+   * The number of Tradeables in this level.
+   */
+  private int count;
+
+  PriceLevel(Price p) {
+    price = p;
+  }
+
+  public Price getPrice() {
+    return price;
+  }
+
+  /**
+   * Returns the total remaining volume at this price without recounting.
+   *
+   * @return the total remaining volume
+   */
+  public int getVolume() {
+    return volume;
+  }
+
+  /**
+   * Returns the number of Tradeables at this price without recounting.
+   *
+   * @return the number of Tradeables
+   */
+  public int getCount() {
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Adds the Tradeable to the back of this level's queue and adds its
+   * remaining volume to the level's total.
+   *
+   * @param t
+   * @return the queue node now holding the Tradeable
+   */
+  Node add(Tradeable t) {
+    Node n = new Node(t, this);
+    n.prev = tail;
+    if (tail == null) {
+      head = n;
+    } else {
+      tail.next = n;
+    }
+    tail = n;
+    volume += t.getRemainingVolume();
+    count++;
+    return n;
+  }
+
+  /**
+   * Unlinks the node from this level's queue and takes whatever remaining
+   * volume its Tradeable still has off the level's total.
+   *
+   * @param n
+   * @return true if the node was in this level
+   */
+  boolean remove(Node n) {
+    if (n.level != this) { return false; }
+    if (n.prev == null) {
+      head = n.next;
+    } else {
+      n.prev.next = n.next;
+    }
+    if (n.next == null) {
+      tail = n.prev;
+    } else {
+      n.next.prev = n.prev;
+    }
+    n.level = null;
+    volume -= n.tradeable.getRemainingVolume();
+    count--;
+    return true;
+  }
+
+  /**
+   * Takes traded volume off the level's total. Must be called for every trade
+   * that reduces the remaining volume of a Tradeable while it is resting in
+   * this level.
+   *
+   * @param v
+   */
+  void reduceVolume(int v) {
+    volume -= v;
+  }
+
+  /**
+   * Returns an Iterator over the Tradeables in this level in time priority.
+   * The Tradeable most recently returned may be removed from the level (for
+   * example when it trades out) without disturbing the iteration.
+   *
+   * @return an Iterator of Tradeables
+   */
+  @Override
+  public Iterator<Tradeable> iterator() {
+    return new Iterator<Tradeable>() {
+      private Node nextNode = head;
+
+      @Override
+      public boolean hasNext() {
+        return nextNode != null;
+      }
+
+      @Override
+      public Tradeable next() {
+        if (nextNode == null) {
+          throw new NoSuchElementException();
+        }
+        Node n = nextNode;
+        nextNode = n.next;
+        return n.tradeable;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Remove Tradeables through"
+                + " the ProductBookSide.");
+      }
+    };
+  }
+
+  /**
+   * Recounts the volume and number of Tradeables in this level, checking the
+   * queue links along the way, and compares them with the running totals.
+   *
+   * @return null if the totals are correct, otherwise a description of the
+   * difference
+   */
+  String verify() {
+    int v = 0;
+    int c = 0;
+    Node prev = null;
+    for (Node n = head; n != null; n = n.next) {
+      if (n.prev != prev || n.level != this) {
+        return "Level " + price + " has a broken queue link at " +
+                n.tradeable.getId();
+      }
+      v += n.tradeable.getRemainingVolume();
+      c++;
+      prev = n;
+    }
+    if (prev != tail) {
+      return "Level " + price + " has a tail that is not the last node.";
+    }
+    if (v != volume || c != count) {
+      return "Level " + price + " has volume " + volume + " and count " +
+              count + " but recounts to volume " + v + " and count " + c;
+    }
+    return null;
+  }
+
+  /**
+   * A node in a price level's time priority queue. Each resting Tradeable has
+   * exactly one node, which knows the level it is linked into, so it can be
+   * unlinked in constant time when it is cancelled or trades out.
+   */
+  static final class Node {
+
+    final Tradeable tradeable;
+    PriceLevel level;
+    Node prev;
+    Node next;
+
+    Node(Tradeable t, PriceLevel l) {
+      tradeable = t;
+      level = l;
+    }
+  }
+}
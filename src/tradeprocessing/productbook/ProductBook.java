@@ -2,24 +2,22 @@ package tradeprocessing.productbook;
 
 import constants.GlobalConstants.BookSide;
 import constants.GlobalConstants.MarketState;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.ListIterator;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 import price.Price;
 import price.PriceFactory;
-import publishers.CurrentMarketPublisher;
-import publishers.LastSalePublisher;
-import publishers.MessagePublisher;
+import publishers.bus.MarketDataBus;
+import publishers.bus.MarketEvent.CancelReason;
 import publishers.exceptions.MessagePublisherException;
-import publishers.messages.CancelMessage;
-import publishers.messages.FillMessage;
 import publishers.messages.MarketDataDTO;
 import publishers.messages.exceptions.InvalidMessageException;
 import tradeable.Order;
 import tradeable.Quote;
+import tradeable.QuoteSide;
 import tradeable.Tradeable;
 import tradeable.TradeableDTO;
 import tradeable.exceptions.InvalidVolumeException;
@@ -28,7 +26,7 @@ import tradeprocessing.productbook.exceptions.DataValidationException;
 import tradeprocessing.productbook.exceptions.OrderNotFoundException;
 import tradeprocessing.productbook.exceptions.ProductBookException;
 import tradeprocessing.productbook.exceptions.ProductBookSideException;
-import tradeprocessing.productservice.ProductService;
+import tradeprocessing.tradeprocessor.FillBuffer;
 import tradeprocessing.tradeprocessor.exceptions.InvalidProductBookSideValueException;
 import tradeprocessing.tradeprocessor.exceptions.TradeProcessorFactoryException;
 import tradeprocessing.tradeprocessor.exceptions.TradeProcessorPriceTimeImplException;
@@ -52,10 +50,25 @@ public class ProductBook {
   private ProductBookSide sellSide;
 
   /**
-   * A String that will hold the toString results of the latest Market Data
-   * values (the prices and the volumes at the top of the buy and sell sides).
+   * The latest Market Data values published (the prices and the volumes at
+   * the top of the buy and sell sides). A volume of -1 means nothing has been
+   * published yet.
    */
-  private String lastCurrentMarket = "";
+  private Price lastBuyPrice;
+
+  private int lastBuyVolume = -1;
+
+  private Price lastSellPrice;
+
+  private int lastSellVolume = -1;
+
+  /**
+   * The price and volume of the book's last sale, as last published. The
+   * price is null until the book has traded.
+   */
+  private Price lastSalePrice;
+
+  private int lastSaleVolume;
 
   /**
    * A list of the current quotes in this book for each user.
@@ -63,12 +76,44 @@ public class ProductBook {
   private HashSet<String> userQuotes = new HashSet<>();
 
   /**
-   * A list of “old” Tradeables (those that have been completely traded or
-   * cancelled) organized by price and by user. This should be represented like
-   * you represented the book entries for one side of the book in the
-   * ProductBookSide class.
+   * The “old” Tradeables (those that have been completely traded or
+   * cancelled), reduced to the values a too late to cancel reply needs and
+   * bounded in memory (see OldEntryStore).
+   */
+  private final OldEntryStore oldEntries = new OldEntryStore();
+
+  /**
+   * The market state this book is trading under. It is changed through
+   * "setMarketState" in the same order as the book's other operations, so an
+   * order always trades (or rests) under the state that was in force when the
+   * book processed it.
+   */
+  private MarketState marketState = MarketState.CLOSED;
+
+  /**
+   * Counts the changes made to this book. It is bumped by
+   * "updateCurrentMarket", which every operation that changes the book calls
+   * once it is done, and tells readers whether "depth" is still current.
+   */
+  private volatile long changeCount;
+
+  /**
+   * The market data (top of book) as of the last change, read without taking
+   * the book's lock.
+   */
+  private volatile MarketDataDTO marketData;
+
+  /**
+   * The book depth as of some change, read without taking the book's lock.
+   * Rebuilt on demand by one reader at a time once the book has changed.
    */
-  private HashMap<Price, ArrayList<Tradeable>> oldEntries = new HashMap<>();
+  private volatile DepthSnapshot depth;
+
+  /**
+   * Set while a reader is rebuilding "depth", so other readers return the
+   * previous snapshot instead of also queuing for the book's lock.
+   */
+  private final AtomicBoolean refreshingDepth = new AtomicBoolean();
 
   public ProductBook(String sym)
           throws ProductBookException, ProductBookSideException,
@@ -76,6 +121,22 @@ public class ProductBook {
     setSymbol(sym);
     buySide = new ProductBookSide(this, BookSide.BUY);
     sellSide = new ProductBookSide(this, BookSide.SELL);
+    marketData = makeMarketData();
+  }
+
+  /**
+   * Creates an empty book that starts out in the market state passed in, for
+   * products created after the market has left the CLOSED state.
+   *
+   * @param sym
+   * @param ms
+   */
+  public ProductBook(String sym, MarketState ms)
+          throws ProductBookException, ProductBookSideException,
+          InvalidProductBookSideValueException, TradeProcessorFactoryException {
+    this(sym);
+    validateInput(ms);
+    marketState = ms;
   }
 
   private void setSymbol(String sym) throws ProductBookException {
@@ -83,6 +144,36 @@ public class ProductBook {
     symbol = sym;
   }
 
+  public final String getSymbol() {
+    return symbol;
+  }
+
+  public synchronized final MarketState getMarketState() {
+    return marketState;
+  }
+
+  /**
+   * This method moves the book to the market state passed in, opening the
+   * book for trading when the new state is OPEN and closing it when the new
+   * state is CLOSED.
+   *
+   * @param ms
+   */
+  public synchronized final void setMarketState(MarketState ms)
+          throws InvalidMessageException, OrderNotFoundException,
+          InvalidVolumeException, ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException,
+          TradeableException, MessagePublisherException {
+    validateInput(ms);
+    marketState = ms;
+    if (ms.equals(MarketState.OPEN)) {
+      openMarket();
+    }
+    if (ms.equals(MarketState.CLOSED)) {
+      closeMarket();
+    }
+  }
+
 
   public synchronized final ArrayList<TradeableDTO>
           getOrdersWithRemainingQty(String userName)
@@ -100,59 +191,76 @@ public class ProductBook {
    *
    * @param orderId
    */
-  public synchronized final void checkTooLateToCancel(String orderId)
+  public synchronized final void checkTooLateToCancel(long orderId)
           throws OrderNotFoundException, InvalidMessageException,
           ProductBookException, MessagePublisherException {
-    validateInput(orderId);
-    boolean isFound = false;
-    for(Entry<Price, ArrayList<Tradeable>> row : oldEntries.entrySet()) {
-      ListIterator<Tradeable> iterator = row.getValue().listIterator();
-      while (iterator.hasNext()) {
-        Tradeable t = iterator.next();
-        if (t.getId().equals(orderId)) {
-          isFound = true;
-          MessagePublisher.getInstance().publishCancel(new CancelMessage(
-                  t.getUser(), t.getProduct(), t.getPrice(),
-                  // is this remaining volume or cancelled volume
-                  t.getRemainingVolume(), "Too late to cancel order ID: " +
-                  t.getId(), t.getSide(), t.getId()));
-        }
-      }
-    }
-    if (!isFound) {
+    OldEntryStore.OldEntry t = oldEntries.find(orderId);
+    if (t == null) {
       throw new OrderNotFoundException("The order with the"
               + " specified order id: " + orderId + "; could not be found.");
     }
+    // An old Tradeable's remaining volume is always 0.
+    MarketDataBus.getInstance().publishCancel(t.user, symbol, t.price, 0,
+            CancelReason.TOO_LATE, t.side, t.id);
   }
 
   /**
    * This method is should return a 2-dimensional array of Strings that contain
    * the prices and volumes at all prices present in the buy and sell sides of
-   * the book.
+   * the book. The depth comes from a snapshot and does not take the book's
+   * lock unless the book has changed since the snapshot was taken and no
+   * other reader is already rebuilding it; in that case the slightly older
+   * snapshot is returned.
    *
    * @return 2-dimensional array of Strings
    */
-  public synchronized final String[][] getBookDepth() {
+  public final String[][] getBookDepth() {
+    DepthSnapshot snap = depth;
+    if (snap == null || snap.changeCount != changeCount) {
+      if (refreshingDepth.compareAndSet(false, true)) {
+        try {
+          snap = takeDepthSnapshot();
+          depth = snap;
+        } finally {
+          refreshingDepth.set(false);
+        }
+      } else if (snap == null) {
+        snap = takeDepthSnapshot();
+      }
+    }
     String[][] bd = new String[2][];
-    bd[0] = buySide.getBookDepth();
-    bd[1] = sellSide.getBookDepth();
+    bd[0] = snap.buy.clone();
+    bd[1] = snap.sell.clone();
     return bd;
   }
 
+  private synchronized DepthSnapshot takeDepthSnapshot() {
+    return new DepthSnapshot(changeCount, buySide.getBookDepth(),
+            sellSide.getBookDepth());
+  }
+
   /**
    * This method should create a MarketDataDTO containing the best buy side
-   * price and volume, and the best sell side price an volume.
+   * price and volume, and the best sell side price an volume. The values come
+   * from the snapshot taken after the last change, so this does not take the
+   * book's lock.
    *
    * @return MarketDataDTO
    */
-  public synchronized final MarketDataDTO getMarketData() {
+  public final MarketDataDTO getMarketData() {
+    MarketDataDTO m = marketData;
+    return new MarketDataDTO(m.product, m.buyPrice, m.buyVolume, m.sellPrice,
+            m.sellVolume);
+  }
+
+  private synchronized MarketDataDTO makeMarketData() {
     Price topBuyPrice = buySide.topOfBookPrice();
     Price topSellPrice = sellSide.topOfBookPrice();
     if (topBuyPrice == null) {
-      topBuyPrice = PriceFactory.makeLimitPrice("0");
+      topBuyPrice = PriceFactory.makeLimitPrice(0);
     }
     if (topSellPrice == null) {
-      topSellPrice = PriceFactory.makeLimitPrice("0");
+      topSellPrice = PriceFactory.makeLimitPrice(0);
     }
     int bestBuySideVolume = buySide.topOfBookVolume();
     int bestSellSideVolume = sellSide.topOfBookVolume();
@@ -161,19 +269,55 @@ public class ProductBook {
   }
 
   /**
-   * This method should add the Tradable passed in to the "oldEntries" HashMap.
+   * This method should add the Tradable passed in to the "oldEntries" store.
    *
    * @param t
    */
   public synchronized final void addOldEntry(Tradeable t)
           throws InvalidVolumeException, ProductBookException {
     validateInput(t);
-    if (!oldEntries.containsKey(t.getPrice())) {
-      oldEntries.put(t.getPrice(), new ArrayList<Tradeable>());
-    }
     t.setCancelledVolume(t.getRemainingVolume());
     t.setRemainingVolume(0);
-    oldEntries.get(t.getPrice()).add(t);
+    try {
+      oldEntries.add(t);
+    } catch (IOException e) {
+      throw new ProductBookException("Could not spill the old entries of "
+              + symbol + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * This method makes the book write the old Tradeables that no longer fit
+   * in memory to the file at the path passed in, instead of forgetting them,
+   * so that cancels for them can still be answered as too late. The file is
+   * emptied first and is only scratch space for this run.
+   *
+   * @param path
+   */
+  public synchronized final void spillOldEntries(String path)
+          throws ProductBookException {
+    validateInput(path);
+    try {
+      oldEntries.spillTo(new File(path));
+    } catch (IOException e) {
+      throw new ProductBookException("Could not open " + path + " for the"
+              + " old entries of " + symbol + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * This method stops the book spilling its old Tradeables, closing and
+   * deleting the spill file. The old Tradeables in the file are forgotten,
+   * so cancels for them are answered as not found.
+   */
+  public synchronized final void closeOldEntrySpill()
+          throws ProductBookException {
+    try {
+      oldEntries.close();
+    } catch (IOException e) {
+      throw new ProductBookException("Could not close the old entries file"
+              + " of " + symbol + ": " + e.getMessage());
+    }
   }
 
   /**
@@ -189,11 +333,13 @@ public class ProductBook {
     if (buyPrice == null || sellPrice == null) { return; }
     while (buyPrice.greaterOrEqual(sellPrice) || buyPrice.isMarket()
             || sellPrice.isMarket()) {
-      ArrayList<Tradeable> topOfBuySide = buySide.getEntriesAtPrice(buyPrice);
-      HashMap<String, FillMessage> allFills = null;
+      PriceLevel topOfBuySide = buySide.getEntriesAtPrice(buyPrice);
+      FillBuffer allFills = null;
       ArrayList<Tradeable> toRemove = new ArrayList<>();
       for (Tradeable t : topOfBuySide) {
+        int before = t.getRemainingVolume();
         allFills = sellSide.tryTrade(t);
+        buySide.recordTradedVolume(t, before - t.getRemainingVolume());
         if (t.getRemainingVolume() == 0) {
           toRemove.add(t);
         }
@@ -203,9 +349,9 @@ public class ProductBook {
         addOldEntry(t);
       }
       updateCurrentMarket();
-      Price lastSalePrice = determineLastSalePrice(allFills);
-      int lastSaleVolume = determineLastSaleQuantity(allFills);
-      LastSalePublisher.getInstance().publishLastSale(symbol, lastSalePrice,
+      lastSalePrice = determineLastSalePrice(allFills);
+      lastSaleVolume = determineLastSaleQuantity(allFills);
+      MarketDataBus.getInstance().publishLastSale(symbol, lastSalePrice,
               lastSaleVolume);
       buyPrice = buySide.topOfBookPrice();
       sellPrice = sellSide.topOfBookPrice();
@@ -232,12 +378,11 @@ public class ProductBook {
    * @param side
    * @param orderId
    */
-  public synchronized final void cancelOrder(BookSide side, String orderId)
+  public synchronized final void cancelOrder(BookSide side, long orderId)
           throws InvalidMessageException, OrderNotFoundException,
           InvalidVolumeException, ProductBookSideException,
           ProductBookException, MessagePublisherException {
     validateInput(side);
-    validateInput(orderId);
     if (side.equals(BookSide.BUY)) {
       buySide.submitOrderCancel(orderId);
     } else {
@@ -276,26 +421,24 @@ public class ProductBook {
           ProductBookException, TradeProcessorPriceTimeImplException,
           TradeableException, MessagePublisherException {
     validateInput(q);
-    if (q.getQuoteSide(BookSide.SELL).getPrice().lessOrEqual(
-            q.getQuoteSide(BookSide.BUY).getPrice())) {
+    if (q.getPrice(BookSide.SELL).lessOrEqual(q.getPrice(BookSide.BUY))) {
       throw new DataValidationException("Sell Price is less than or equal to"
               + " buy price.");
     }
-    if (q.getQuoteSide(BookSide.SELL).getPrice().lessOrEqual(
-            PriceFactory.makeLimitPrice("0")) ||
-            q.getQuoteSide(BookSide.BUY).getPrice().lessOrEqual(
-            PriceFactory.makeLimitPrice("0"))) {
+    if (q.getPrice(BookSide.SELL).lessOrEqual(
+            PriceFactory.makeLimitPrice(0)) ||
+            q.getPrice(BookSide.BUY).lessOrEqual(
+            PriceFactory.makeLimitPrice(0))) {
       throw new DataValidationException("Buy or Sell Price cannot be less than"
               + " or equal to zero.");
     }
-    if (q.getQuoteSide(BookSide.SELL).getOriginalVolume() <= 0 ||
-            q.getQuoteSide(BookSide.BUY).getOriginalVolume() <= 0) {
+    if (q.getVolume(BookSide.SELL) <= 0 || q.getVolume(BookSide.BUY) <= 0) {
       throw new DataValidationException("Volume of a Buy or Sell side quote"
               + " cannot be less than or equal to zero,");
     }
     if (userQuotes.contains(q.getUserName())) {
-      buySide.removeQuote(q.getUserName());
-      sellSide.removeQuote(q.getUserName());
+      buySide.dropQuote(q.getUserName());
+      sellSide.dropQuote(q.getUserName());
       updateCurrentMarket();
     }
     addToBook(BookSide.BUY, q.getQuoteSide(BookSide.BUY));
@@ -304,6 +447,78 @@ public class ProductBook {
     updateCurrentMarket();
   }
 
+  /**
+   * This method replaces the user's quote in this book as one step, for mass
+   * quoting. A side whose price and volume are unchanged (and which has not
+   * traded since it was entered) is left in the book as it is, keeping its
+   * time priority. Only the final state of the book is published as current
+   * market data, not the state between removing and adding the sides.
+   *
+   * @param userName
+   * @param buyPrice
+   * @param buyVolume
+   * @param sellPrice
+   * @param sellVolume
+   * @param buyId the id a replaced buy side is given
+   * @param sellId the id a replaced sell side is given
+   * @return true if either side was replaced
+   */
+  public synchronized final boolean updateQuote(String userName,
+          Price buyPrice, int buyVolume, Price sellPrice, int sellVolume,
+          long buyId, long sellId) throws InvalidVolumeException,
+          DataValidationException, InvalidMessageException,
+          ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException,
+          TradeableException, MessagePublisherException {
+    validateInput(userName);
+    if (buyPrice == null || sellPrice == null) {
+      throw new DataValidationException("Buy and Sell Price cannot be null.");
+    }
+    if (sellPrice.lessOrEqual(buyPrice)) {
+      throw new DataValidationException("Sell Price is less than or equal to"
+              + " buy price.");
+    }
+    if (sellPrice.lessOrEqual(PriceFactory.makeLimitPrice(0)) ||
+            buyPrice.lessOrEqual(PriceFactory.makeLimitPrice(0))) {
+      throw new DataValidationException("Buy or Sell Price cannot be less than"
+              + " or equal to zero.");
+    }
+    if (sellVolume <= 0 || buyVolume <= 0) {
+      throw new DataValidationException("Volume of a Buy or Sell side quote"
+              + " cannot be less than or equal to zero,");
+    }
+    boolean buyChanged = !isUnchanged(buySide.getQuote(userName), buyPrice,
+            buyVolume);
+    boolean sellChanged = !isUnchanged(sellSide.getQuote(userName),
+            sellPrice, sellVolume);
+    if (!buyChanged && !sellChanged) {
+      return false;
+    }
+    if (buyChanged) {
+      buySide.dropQuote(userName);
+    }
+    if (sellChanged) {
+      sellSide.dropQuote(userName);
+    }
+    if (buyChanged) {
+      addToBook(BookSide.BUY, new QuoteSide(userName, symbol, buyPrice,
+              buyVolume, BookSide.BUY, buyId));
+    }
+    if (sellChanged) {
+      addToBook(BookSide.SELL, new QuoteSide(userName, symbol, sellPrice,
+              sellVolume, BookSide.SELL, sellId));
+    }
+    userQuotes.add(userName);
+    updateCurrentMarket();
+    return true;
+  }
+
+  private boolean isUnchanged(Tradeable t, Price p, int volume) {
+    return t != null && t.getPrice().equals(p) &&
+            t.getOriginalVolume() == volume &&
+            t.getRemainingVolume() == volume;
+  }
+
   /**
    * This method should add the provided Order to the appropriate
    * ProductSideBook.
@@ -325,60 +540,154 @@ public class ProductBook {
    */
   public synchronized final void updateCurrentMarket()
           throws MessagePublisherException {
-    String var = buySide.topOfBookPrice() +
-            String.valueOf(buySide.topOfBookVolume()) +
-            sellSide.topOfBookPrice() +
-            String.valueOf(sellSide.topOfBookVolume());
-    if (!lastCurrentMarket.equals(var)) {
-      MarketDataDTO current = new MarketDataDTO(symbol,
-              (buySide.topOfBookPrice() == null) ?
-              PriceFactory.makeLimitPrice("0")
-              : buySide.topOfBookPrice(),
-              buySide.topOfBookVolume(),
-              (sellSide.topOfBookPrice() == null) ?
-              PriceFactory.makeLimitPrice("0") : sellSide.topOfBookPrice(),
-              sellSide.topOfBookVolume());
-      CurrentMarketPublisher.getInstance().publishCurrentMarket(current);
-      lastCurrentMarket = var;
-    }
-  }
-
-  /**
-   * This method will take a HashMap of FillMessages passed in and determine
-   * from the information it contains what the Last Sale price is.
+    Price buyPrice = buySide.topOfBookPrice();
+    int buyVolume = buySide.topOfBookVolume();
+    Price sellPrice = sellSide.topOfBookPrice();
+    int sellVolume = sellSide.topOfBookVolume();
+    changeCount++;
+    if (buyVolume != lastBuyVolume || sellVolume != lastSellVolume
+            || !samePrice(buyPrice, lastBuyPrice)
+            || !samePrice(sellPrice, lastSellPrice)) {
+      MarketDataDTO current = makeMarketData();
+      marketData = current;
+      MarketDataBus.getInstance().publishCurrentMarket(current);
+      lastBuyPrice = buyPrice;
+      lastBuyVolume = buyVolume;
+      lastSellPrice = sellPrice;
+      lastSellVolume = sellVolume;
+    }
+  }
+
+  /**
+   * Returns true if the two prices (either of which may be null) would print
+   * the same.
+   */
+  private static boolean samePrice(Price a, Price b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.isMarket() || b.isMarket()) {
+      return a.isMarket() == b.isMarket();
+    }
+    return a.getValue() == b.getValue();
+  }
+
+  /**
+   * This method copies the book's state into a new BookImage: its market
+   * state, last sale, the users with quotes and every resting Tradeable. It
+   * holds the book only for the copy; nothing is written out here.
+   *
+   * @return the book's image
+   */
+  public synchronized final BookImage captureImage() {
+    BookImage img = new BookImage();
+    img.symbol = symbol;
+    img.marketState = marketState;
+    img.lastSalePrice = lastSalePrice;
+    img.lastSaleVolume = lastSaleVolume;
+    img.userQuotes = userQuotes.toArray(new String[userQuotes.size()]);
+    img.buy = buySide.captureImage();
+    img.sell = sellSide.captureImage();
+    return img;
+  }
+
+  /**
+   * This method creates a book from the image passed in, with the same
+   * market state, last sale, quoting users and resting Tradeables (keeping
+   * their ids and time priority). Nothing is traded or published while the
+   * book is loaded; the image is taken to be a book that was already
+   * consistent.
+   *
+   * @param img
+   * @return the restored book
+   */
+  public static ProductBook restore(BookImage img)
+          throws ProductBookException, ProductBookSideException,
+          InvalidProductBookSideValueException, TradeProcessorFactoryException,
+          InvalidVolumeException, TradeableException {
+    if (img == null || img.buy == null || img.sell == null) {
+      throw new ProductBookException("A complete book image is needed.");
+    }
+    ProductBook book = new ProductBook(img.symbol, img.marketState);
+    synchronized (book) {
+      book.buySide.restore(img.buy);
+      book.sellSide.restore(img.sell);
+      book.lastSalePrice = img.lastSalePrice;
+      book.lastSaleVolume = img.lastSaleVolume;
+      if (img.userQuotes != null) {
+        book.userQuotes.addAll(Arrays.asList(img.userQuotes));
+      }
+      book.lastBuyPrice = book.buySide.topOfBookPrice();
+      book.lastBuyVolume = book.buySide.topOfBookVolume();
+      book.lastSellPrice = book.sellSide.topOfBookPrice();
+      book.lastSellVolume = book.sellSide.topOfBookVolume();
+      book.marketData = book.makeMarketData();
+      book.changeCount++;
+    }
+    return book;
+  }
+
+  /**
+   * Checks the running volume and order count totals and the indexes of both
+   * sides of the book against a full recount. Intended for tests and
+   * debugging; this walks the whole book.
+   *
+   * @throws ProductBookSideException if either side is inconsistent
+   */
+  public synchronized final void verifyAggregates()
+          throws ProductBookSideException {
+    buySide.verifyAggregates();
+    sellSide.verifyAggregates();
+  }
+
+  /**
+   * This method will take a FillBuffer passed in and determine from the
+   * information it contains what the Last Sale price is.
    *
    * @param fills
    * @return the last sale price
    */
-  private synchronized Price determineLastSalePrice(
-          HashMap<String, FillMessage> fills) throws ProductBookException {
+  private synchronized Price determineLastSalePrice(FillBuffer fills)
+          throws ProductBookException {
     validateInput(fills);
     if (fills.isEmpty()) {
       throw new ProductBookException("Argument fills in determineLastSalePrice"
               + " cannot be empty.");
     }
-    ArrayList<FillMessage> msgs = new ArrayList<>(fills.values());
-    Collections.sort(msgs);
-    return msgs.get(0).getPrice();
+    return fills.getPrice(lowestPricedFill(fills));
   }
 
   /**
-   * This method will take a HashMap of FillMessages passed in and determine
-   * from the information it contains what the Last Sale quantity (volume) is.
+   * This method will take a FillBuffer passed in and determine from the
+   * information it contains what the Last Sale quantity (volume) is.
    *
    * @param fills
    * @return
    */
-  private synchronized int determineLastSaleQuantity(
-          HashMap<String, FillMessage> fills) throws ProductBookException {
+  private synchronized int determineLastSaleQuantity(FillBuffer fills)
+          throws ProductBookException {
     validateInput(fills);
     if (fills.isEmpty()) {
       throw new ProductBookException("Argument fills in"
               + " determineLastSaleQuantity cannot be empty.");
     }
-    ArrayList<FillMessage> msgs = new ArrayList<>(fills.values());
-    Collections.sort(msgs);
-    return msgs.get(0).getVolume();
+    return fills.getVolume(lowestPricedFill(fills));
+  }
+
+  /**
+   * Returns the index of the first fill at the lowest price in the buffer.
+   *
+   * @param fills
+   * @return a fill index
+   */
+  private int lowestPricedFill(FillBuffer fills) {
+    int lowest = 0;
+    for (int i = 1; i < fills.size(); i++) {
+      if (fills.getPrice(i).compareTo(fills.getPrice(lowest)) < 0) {
+        lowest = i;
+      }
+    }
+    return lowest;
   }
 
   /**
@@ -395,8 +704,7 @@ public class ProductBook {
           TradeProcessorPriceTimeImplException, MessagePublisherException {
     validateInput(side);
     validateInput(trd);
-    if (ProductService.getInstance().getMarketState().equals(
-            MarketState.PREOPEN)) {
+    if (marketState.equals(MarketState.PREOPEN)) {
       if (side.equals(BookSide.BUY)) {
         buySide.addToBook(trd);
       } else {
@@ -404,7 +712,7 @@ public class ProductBook {
       }
       return;
     }
-    HashMap<String, FillMessage> allFills = null;
+    FillBuffer allFills = null;
     if (side.equals(BookSide.BUY)) {
       allFills = sellSide.tryTrade(trd);
     } else {
@@ -413,17 +721,18 @@ public class ProductBook {
     if (allFills != null && !allFills.isEmpty()) {
       updateCurrentMarket();
       int diff = trd.getOriginalVolume() - trd.getRemainingVolume();
-      Price lastSalePrice = determineLastSalePrice(allFills);
-      LastSalePublisher.getInstance().publishLastSale(symbol,
+      lastSalePrice = determineLastSalePrice(allFills);
+      lastSaleVolume = diff;
+      MarketDataBus.getInstance().publishLastSale(symbol,
               lastSalePrice, diff);
     }
     if (trd.getRemainingVolume() > 0) {
       if (trd.getPrice().isMarket()) {
-          MessagePublisher.getInstance().publishCancel(new CancelMessage(
-                  trd.getUser(), trd.getProduct(), trd.getPrice(),
+          MarketDataBus.getInstance().publishCancel(trd.getUser(),
+                  trd.getProduct(), trd.getPrice(),
                   // is this remaining volume or cancelled volume
-                  trd.getRemainingVolume(), trd.getSide() + " Order Cancelled",
-                  trd.getSide(), trd.getId()));
+                  trd.getRemainingVolume(), CancelReason.ORDER_CANCELLED,
+                  trd.getSide(), trd.getId());
           addOldEntry(trd);
       } else {
         if (side.equals(BookSide.BUY)) {
@@ -476,4 +785,20 @@ public class ProductBook {
       throw new ProductBookException("Argument cannot be null.");
     }
   }
+
+  /**
+   * The depth of both sides of the book as of one change count.
+   */
+  private static final class DepthSnapshot {
+
+    final long changeCount;
+    final String[] buy;
+    final String[] sell;
+
+    DepthSnapshot(long count, String[] b, String[] s) {
+      changeCount = count;
+      buy = b;
+      sell = s;
+    }
+  }
 }
\ No newline at end of file
@@ -2,25 +2,27 @@ package tradeprocessing.productbook;
 
 import constants.GlobalConstants.BookSide;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeMap;
 import price.Price;
 import price.PriceFactory;
-import publishers.MessagePublisher;
+import publishers.bus.MarketDataBus;
+import publishers.bus.MarketEvent.CancelReason;
 import publishers.exceptions.MessagePublisherException;
-import publishers.messages.CancelMessage;
-import publishers.messages.FillMessage;
 import publishers.messages.exceptions.InvalidMessageException;
+import tradeable.Order;
+import tradeable.OrderIdGenerator;
+import tradeable.QuoteSide;
 import tradeable.TrabeableImplFactory;
 import tradeable.Tradeable;
 import tradeable.TradeableDTO;
 import tradeable.exceptions.InvalidVolumeException;
+import tradeable.exceptions.TradeableException;
 import tradeprocessing.productbook.exceptions.OrderNotFoundException;
 import tradeprocessing.productbook.exceptions.ProductBookException;
 import tradeprocessing.productbook.exceptions.ProductBookSideException;
+import tradeprocessing.tradeprocessor.FillBuffer;
 import tradeprocessing.tradeprocessor.TradeProcessor;
 import tradeprocessing.tradeprocessor.TradeProcessorFactory;
 import tradeprocessing.tradeprocessor.exceptions.InvalidProductBookSideValueException;
@@ -38,20 +40,30 @@ public class ProductBookSide {
   private BookSide side;
 
   /**
-   * A HashMap<Price, ArrayList<Tradeable>> of book entries for this side.
+   * A TreeMap<Price, PriceLevel> of book entries for this side, kept in
+   * best-price-first order (see "priceOrder").
    */
-  private Map<Price, ArrayList<Tradeable>> bookEntries;
+  private TreeMap<Price, PriceLevel> bookEntries;
 
   /**
-   * Holds keys with no Tradeables to be removed at order/quote cancel.
+   * The best Price currently in "bookEntries", or null if the side is empty.
+   * Cached so that top of book queries do not have to walk the tree.
    */
-  private ArrayList<Price> removeBookEntryKeys = new ArrayList<>();
+  private Price topOfBook;
 
   /**
-   * Holds Tradeables to be removed from the bookEntried;
+   * A LongHashMap<PriceLevel.Node> holding the price level queue node of
+   * every Tradeable resting on this side, indexed by Tradeable id, so an order
+   * can be found and unlinked without walking the book.
    */
-  private HashMap<Price, ArrayList<Tradeable>> removedTradeables =
-          new HashMap<>();
+  private LongHashMap<PriceLevel.Node> entriesById = new LongHashMap<>();
+
+  /**
+   * A HashMap<String, Tradeable> of the QuoteSide resting on this side for
+   * each user, indexed by user name, so a quote can be replaced or cancelled
+   * without walking the book.
+   */
+  private HashMap<String, Tradeable> quotesByUser = new HashMap<>();
 
   /**
    * A reference to the "TradeProcessor" object which will be used to execute
@@ -59,6 +71,12 @@ public class ProductBookSide {
    */
   private TradeProcessor processor;
 
+  /**
+   * The FillBuffer the TradeProcessor writes this side's fills into. It is
+   * cleared and reused for every trade rather than allocated per trade.
+   */
+  private final FillBuffer fills = new FillBuffer();
+
   /**
    * A reference back to the ProductBook object that this ProductBookSideBehaviors
    * belongs to.
@@ -69,9 +87,9 @@ public class ProductBookSide {
           throws ProductBookSideException,
           InvalidProductBookSideValueException,
           TradeProcessorFactoryException {
-    bookEntries = new HashMap<>();
     setBookSide(s);
     setParentProductBook(p);
+    bookEntries = new TreeMap<>(priceOrder(side));
     processor = TradeProcessorFactory.createTradeProcessor("price-time", self);
   }
 
@@ -98,13 +116,14 @@ public class ProductBookSide {
           throws ProductBookSideException {
     validateInput(userName);
     ArrayList<TradeableDTO> l = new ArrayList<>();
-    for (Entry<Price, ArrayList<Tradeable>> row : bookEntries.entrySet()) {
-      for (Tradeable t : row.getValue()) {
+    for (PriceLevel level : bookEntries.values()) {
+      for (Tradeable t : level) {
         if (t.getUser().equals(userName) &&
                 t.getRemainingVolume() > 0 && !t.isQuote()) {
           l.add(new TradeableDTO(t.getProduct(), t.getPrice(), t.getOriginalVolume(),
                   t.getRemainingVolume(), t.getCancelledVolume(), t.getUser(),
-                  t.getSide(), t.isQuote(), t.getId()));
+                  t.getSide(), t.isQuote(),
+                  OrderIdGenerator.toString(t.getId())));
         }
       }
     }
@@ -112,30 +131,35 @@ public class ProductBookSide {
   }
 
   /**
-   * Helper method to sort prices in the bookEntries HashMap.
+   * Creates the Comparator used to order the prices in the bookEntries
+   * TreeMap so that the best price for the given side comes first: highest
+   * first on the BUY side, lowest first on the SELL side. A Market Price always
+   * ranks ahead of any limit price.
    *
-   * @return an ArrayList of sorted Prices
+   * @param s
+   * @return a Comparator of Prices, best first
    */
-  private synchronized ArrayList<Price> sortPrices() {
-    ArrayList<Price> sorted = new ArrayList<>(bookEntries.keySet());
-    Collections.sort(sorted);
-    if (side.equals(BookSide.BUY)) {
-      Collections.reverse(sorted);
-    }
-    return sorted;
+  private static Comparator<Price> priceOrder(final BookSide s) {
+    return new Comparator<Price>() {
+      @Override
+      public int compare(Price p1, Price p2) {
+        if (p1.isMarket() || p2.isMarket()) {
+          return (p1.isMarket() ? 0 : 1) - (p2.isMarket() ? 0 : 1);
+        }
+        return s.equals(BookSide.BUY) ? p2.compareTo(p1) : p1.compareTo(p2);
+      }
+    };
   }
 
   /**
-   * This method should return an ArrayList of the Tradeables that are at
-   * the best price in the "bookEntries" HashMap.
+   * This method should return the PriceLevel holding the Tradeables that are
+   * at the best price in the "bookEntries" TreeMap, in time priority.
    *
-   * @return an ArrayList of Tradeables at the best price in the "bookEntries"
-   * HashMap.
+   * @return the PriceLevel at the best price in the "bookEntries" TreeMap.
    */
-  public synchronized final ArrayList<Tradeable> getEntriesAtTopOfBook() {
+  public synchronized final PriceLevel getEntriesAtTopOfBook() {
     if (bookEntries.isEmpty()) { return null; }
-    ArrayList<Price> sorted = sortPrices();
-    return bookEntries.get(sorted.get(0));
+    return bookEntries.get(topOfBook);
   }
 
   /**
@@ -150,14 +174,8 @@ public class ProductBookSide {
     }
     ArrayList<String> str = new ArrayList<>();
     String[] s = new String[bookEntries.size()];
-    ArrayList<Price> sorted = sortPrices();
-    for (Price p : sorted) {
-      ArrayList<Tradeable> tradeable = bookEntries.get(p);
-      int sum = 0;
-      for (Tradeable t : tradeable) {
-        sum += t.getRemainingVolume();
-      }
-      str.add(p + " x " + sum);
+    for (PriceLevel level : bookEntries.values()) {
+      str.add(level.getPrice() + " x " + level.getVolume());
     }
     return str.toArray(s);
   }
@@ -167,18 +185,17 @@ public class ProductBookSide {
    * specified price.
    *
    * @param price
-   * @return an ArrayList of all Tradeables at the specified price
+   * @return the PriceLevel of all Tradeables at the specified price
    */
-  synchronized final ArrayList<Tradeable> getEntriesAtPrice(Price price)
+  synchronized final PriceLevel getEntriesAtPrice(Price price)
           throws ProductBookSideException {
     validateInput(price);
-    if (!bookEntries.containsKey(price)) { return null; }
     return bookEntries.get(price);
   }
 
   /**
    * This method should return true if the product book
-   * (the "bookEntries" HashMap) contains a Market Price
+   * (the "bookEntries" TreeMap) contains a Market Price
    *
    * @return true or false if the product book contains a Market Price
    */
@@ -199,19 +216,17 @@ public class ProductBookSide {
 
   /**
    * This method should return the best Price in the book side. If the
-   * "bookEntries" HashMap is empty, then return null.
+   * "bookEntries" TreeMap is empty, then return null.
    *
    * @return return best Price in book otherwise return null
    */
   public synchronized final Price topOfBookPrice() {
-    if (bookEntries.isEmpty()) { return null; }
-    ArrayList<Price> sorted = sortPrices();
-    return sorted.get(0);
+    return topOfBook;
   }
 
   /**
    * This method should return the volume associated with the best Price in
-   * the book side. If the "bookEntries" HashMap is empty, then return zero.
+   * the book side. If the "bookEntries" TreeMap is empty, then return zero.
    *
    * @return the volume associated with the best Price otherwise 0
    */
@@ -219,13 +234,7 @@ public class ProductBookSide {
     if (bookEntries.isEmpty()) {
       return 0;
     }
-    ArrayList<Price> sorted = sortPrices();
-    ArrayList<Tradeable> tradeables = bookEntries.get(sorted.get(0));
-    int s = 0;
-    for (Tradeable t : tradeables) {
-      s += t.getRemainingVolume();
-    }
-    return s;
+    return bookEntries.get(topOfBook).getVolume();
   }
 
   /**
@@ -245,12 +254,13 @@ public class ProductBookSide {
           throws InvalidMessageException, OrderNotFoundException,
           InvalidVolumeException, ProductBookSideException,
           ProductBookException, MessagePublisherException {
-    // Make a temp list of the Prices - the keys
-    ArrayList<Price> prices = new ArrayList<>(bookEntries.keySet());
-    // Make a copy of the bookEntries HashMap.
-    HashMap<Price, ArrayList<Tradeable>> tempHash = new HashMap<>(bookEntries);
-    for (Price p : prices) {
-      ArrayList<Tradeable> tempList = new ArrayList<>(tempHash.get(p));
+    // Make a temp list of the price levels, as cancelling removes them
+    ArrayList<PriceLevel> levels = new ArrayList<>(bookEntries.values());
+    for (PriceLevel level : levels) {
+      ArrayList<Tradeable> tempList = new ArrayList<>(level.getCount());
+      for (Tradeable t : level) {
+        tempList.add(t);
+      }
       for (Tradeable t: tempList) {
         if (t.isQuote()) {
           submitQuoteCancel(t.getUser());
@@ -259,12 +269,21 @@ public class ProductBookSide {
         }
       }
     }
-    removeBookEntryEmptyKeys();
   }
 
   /**
-   * This method should search the book (the “bookEntries” HashMap) for a Quote
-   * from the specified user, once found, remove the Quote from the book, and
+   * Returns the QuoteSide the user currently has resting on this side.
+   *
+   * @param user
+   * @return the user's quote side, or null if there is none
+   */
+  synchronized final Tradeable getQuote(String user) {
+    return quotesByUser.get(user);
+  }
+
+  /**
+   * This method should look up the Quote from the specified user (the
+   * "quotesByUser" HashMap), once found, remove the Quote from the book, and
    * create a TradableDTO using data from that QuoteSide, and return the DTO
    * from the method.
    *
@@ -275,72 +294,62 @@ public class ProductBookSide {
           throws ProductBookSideException, InvalidVolumeException,
           ProductBookException {
     validateInput(user);
-    TradeableDTO quote = null;
-    for (Entry<Price, ArrayList<Tradeable>> row : bookEntries.entrySet()) {
-      ListIterator<Tradeable> iterator = row.getValue().listIterator();
-      int size = row.getValue().size();
-      while (iterator.hasNext()) {
-        Tradeable t = iterator.next();
-        if (t.isQuote() && t.getUser().equals(user)) {
-          quote = new TradeableDTO(t.getProduct(), t.getPrice(), t.getOriginalVolume(),
-                  t.getRemainingVolume(), t.getCancelledVolume(), t.getUser(),
-                  t.getSide(), false, t.getId());
-          if (!removedTradeables.containsKey(row.getKey())) {
-            removedTradeables.put(row.getKey(), new ArrayList<Tradeable>());
-          }
-          removedTradeables.get(row.getKey()).add(t);
-          addOldEntry(t);
-          if (size == 1) {
-            removeBookEntryKeys.add(row.getKey());
-          }
-        }
-      }
-    }
-    removeBookEntryEmptyKeys();
-    removeTradeablesFromBookEntries();
+    Tradeable t = quotesByUser.get(user);
+    if (t == null) { return null; }
+    TradeableDTO quote = new TradeableDTO(t.getProduct(), t.getPrice(),
+            t.getOriginalVolume(), t.getRemainingVolume(),
+            t.getCancelledVolume(), t.getUser(), t.getSide(), false,
+            OrderIdGenerator.toString(t.getId()));
+    retire(t);
     return quote;
   }
 
+  /**
+   * Removes the user's QuoteSide from the book, as removeQuote does, without
+   * building a TradeableDTO of it.
+   *
+   * @param user
+   * @return the QuoteSide removed, or null if the user had none
+   */
+  synchronized final Tradeable dropQuote(String user)
+          throws ProductBookSideException, InvalidVolumeException,
+          ProductBookException {
+    Tradeable t = quotesByUser.get(user);
+    if (t != null) {
+      retire(t);
+    }
+    return t;
+  }
+
+  private void retire(Tradeable t) throws ProductBookSideException,
+          InvalidVolumeException, ProductBookException {
+    removeTradeable(t);
+    addOldEntry(t);
+  }
+
   /**
    * This method should cancel the Order (if possible) that has the specified
    * identifier.
    *
    * @param orderId
    */
-  public synchronized final void submitOrderCancel(String orderId)
+  public synchronized final void submitOrderCancel(long orderId)
           throws InvalidMessageException, OrderNotFoundException,
           InvalidVolumeException, ProductBookSideException,
           ProductBookException, MessagePublisherException {
-    validateInput(orderId);
-    boolean isFound = false;
-    for (Entry<Price, ArrayList<Tradeable>> row : bookEntries.entrySet()) {
-      ListIterator<Tradeable> iterator = row.getValue().listIterator();
-      int size = row.getValue().size();
-      while (iterator.hasNext()) {
-        Tradeable t = iterator.next();
-        if (t.getId().equals(orderId)) {
-          isFound = true;
-          MessagePublisher.getInstance().publishCancel(new CancelMessage(
-                  t.getUser(), t.getProduct(), t.getPrice(),
-                  // is this remaining volume or cancelled volume
-                  t.getRemainingVolume(), t.getSide() + " Order Cancelled",
-                  t.getSide(), t.getId()));
-          if (!removedTradeables.containsKey(row.getKey())) {
-            removedTradeables.put(row.getKey(), new ArrayList<Tradeable>());
-          }
-          removedTradeables.get(row.getKey()).add(t);
-          addOldEntry(t);
-          if (size == 1) {
-            removeBookEntryKeys.add(row.getKey());
-          }
-        }
-      }
-    }
-    removeBookEntryEmptyKeys();
-    removeTradeablesFromBookEntries();
-    if (!isFound) {
+    PriceLevel.Node n = entriesById.get(orderId);
+    if (n == null) {
       parent.checkTooLateToCancel(orderId);
+      return;
     }
+    Tradeable t = n.tradeable;
+    MarketDataBus.getInstance().publishCancel(t.getUser(), t.getProduct(),
+            t.getPrice(),
+            // is this remaining volume or cancelled volume
+            t.getRemainingVolume(), CancelReason.ORDER_CANCELLED, t.getSide(),
+            t.getId());
+    removeTradeable(t);
+    addOldEntry(t);
   }
 
   /**
@@ -354,13 +363,12 @@ public class ProductBookSide {
           InvalidVolumeException, ProductBookException,
           MessagePublisherException {
     validateInput(userName);
-    TradeableDTO quote = removeQuote(userName);
-    if (quote != null) {
-      MessagePublisher.getInstance().publishCancel(new CancelMessage(
-              quote.user, quote.product, quote.price, quote.remainingVolume,
-              "Quote " + quote.side + "-Side Cancelled.", quote.side,
-              quote.id));
-    }
+    Tradeable t = quotesByUser.get(userName);
+    if (t == null) { return; }
+    MarketDataBus.getInstance().publishCancel(t.getUser(), t.getProduct(),
+            t.getPrice(), t.getRemainingVolume(), CancelReason.QUOTE_CANCELLED,
+            t.getSide(), t.getId());
+    retire(t);
   }
 
   /**
@@ -378,42 +386,54 @@ public class ProductBookSide {
 
   /**
    * This method should add the Tradable passed in to the book
-   * (the "bookEntries" HashMap).
+   * (the "bookEntries" TreeMap).
    *
    * @param trd
    */
   public synchronized final void addToBook(Tradeable trd)
           throws ProductBookSideException {
     validateInput(trd);
-    if (bookEntries.containsKey(trd.getPrice())) {
-      bookEntries.get(trd.getPrice()).add(trd);
-    } else {
-      ArrayList<Tradeable> l = new ArrayList<>();
-      l.add(trd);
+    PriceLevel l = bookEntries.get(trd.getPrice());
+    if (l == null) {
+      l = new PriceLevel(trd.getPrice());
       bookEntries.put(trd.getPrice(), l);
+      if (topOfBook == null ||
+              bookEntries.comparator().compare(trd.getPrice(), topOfBook) < 0) {
+        topOfBook = trd.getPrice();
+      }
+    }
+    entriesById.put(trd.getId(), l.add(trd));
+    if (trd.isQuote()) {
+      quotesByUser.put(trd.getUser(), trd);
     }
   }
 
   /**
    * This method will attempt to trade the provided Tradable against entries in
-   * this ProductBookSide.
+   * this ProductBookSide, then publish a fill for every fill.
+   * The FillBuffer returned is reused by this book side, so its content is
+   * only valid until the next trade against this side.
    *
    * @param trd
-   * @return a HashMap of filled messages
+   * @return the FillBuffer holding this trade's fills
    */
-  public HashMap<String, FillMessage> tryTrade(Tradeable trd)
+  public FillBuffer tryTrade(Tradeable trd)
           throws InvalidMessageException, InvalidVolumeException,
           ProductBookSideException, ProductBookException,
           TradeProcessorPriceTimeImplException, MessagePublisherException {
     validateInput(trd);
-    HashMap<String, FillMessage> allFills;
+    FillBuffer allFills;
     if (side.equals(BookSide.BUY)) {
       allFills = trySellAgainstBuySideTrade(trd);
     } else {
       allFills = tryBuyAgainstSellSideTrade(trd);
     }
-    for (Entry<String, FillMessage> row : allFills.entrySet()) {
-      MessagePublisher.getInstance().publishFill(row.getValue());
+    MarketDataBus bus = MarketDataBus.getInstance();
+    for (int i = 0; i < allFills.size(); i++) {
+      Tradeable t = allFills.getTradeable(i);
+      bus.publishFill(t.getUser(), t.getProduct(), allFills.getPrice(i),
+              allFills.getVolume(i), allFills.getLeaving(i), t.getSide(),
+              t.getId());
     }
     return allFills;
   }
@@ -423,24 +443,19 @@ public class ProductBookSide {
    * content of the book.
    *
    * @param trd
-   * @return a HashMap of filled messages
+   * @return the FillBuffer holding this trade's fills
    */
-  public synchronized HashMap<String, FillMessage>
-          trySellAgainstBuySideTrade(Tradeable trd)
-          throws InvalidMessageException, InvalidVolumeException,
-          ProductBookSideException, ProductBookException,
-          TradeProcessorPriceTimeImplException {
+  public synchronized FillBuffer trySellAgainstBuySideTrade(Tradeable trd)
+          throws InvalidVolumeException, ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException {
     validateInput(trd);
-    HashMap<String, FillMessage> allFills = new HashMap<>();
-    HashMap<String, FillMessage> fillMsgs = new HashMap<>();
+    fills.clear();
     while((trd.getRemainingVolume() > 0 && !bookEntries.isEmpty()) &&
             (trd.getPrice().lessOrEqual(topOfBookPrice()) ||
             trd.getPrice().isMarket())) {
-      HashMap<String, FillMessage> temp = processor.doTrade(trd);
-      fillMsgs = mergeFills(fillMsgs, temp);
+      tradeAtTopOfBook(trd);
     }
-    allFills.putAll(fillMsgs);
-    return allFills;
+    return fills;
   }
 
   /**
@@ -448,121 +463,202 @@ public class ProductBookSide {
    * content of the book.
    *
    * @param trd
-   * @return a HashMap of fill messages
+   * @return the FillBuffer holding this trade's fills
    */
-  public synchronized HashMap<String, FillMessage>
-          tryBuyAgainstSellSideTrade(Tradeable trd)
-          throws InvalidMessageException, InvalidVolumeException,
-          ProductBookSideException, ProductBookException,
-          TradeProcessorPriceTimeImplException {
+  public synchronized FillBuffer tryBuyAgainstSellSideTrade(Tradeable trd)
+          throws InvalidVolumeException, ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException {
     validateInput(trd);
-    HashMap<String, FillMessage> allFills = new HashMap<>();
-    HashMap<String, FillMessage> fillMsgs = new HashMap<>();
+    fills.clear();
     while((trd.getRemainingVolume() > 0 && !bookEntries.isEmpty()) &&
             (trd.getPrice().greaterOrEqual(topOfBookPrice()) ||
             trd.getPrice().isMarket())) {
-      HashMap<String, FillMessage> temp = processor.doTrade(trd);
-      fillMsgs = mergeFills(fillMsgs, temp);
+      tradeAtTopOfBook(trd);
     }
-    allFills.putAll(fillMsgs);
-    return allFills;
+    return fills;
   }
 
   /**
-   * This method is designed to merge multiple fill messages together into
-   * one consistent HashMap.
+   * Has the TradeProcessor trade the Tradable passed in against the best
+   * price level, then takes the volume that traded off that level's running
+   * total. All of the volume traded in one doTrade call is at the top of book.
    *
-   * @param existing
-   * @param newOnes
-   * @return a HashMap of fill messages
-   */
-  private HashMap<String, FillMessage> mergeFills(
-          HashMap<String, FillMessage> existing,
-          HashMap<String, FillMessage> newOnes)
-          throws InvalidMessageException, ProductBookSideException {
-    validateInput(newOnes);
-    if (newOnes.isEmpty()) {
-      throw new ProductBookSideException("Argument newOnes cannot be empty in"
-              + " mergeFills.");
-    }
-    validateInput(existing);
-    if (existing.isEmpty()) {
-      return new HashMap<>(newOnes);
-    }
-    HashMap<String, FillMessage> results = new HashMap<>(existing);
-    for (String key : newOnes.keySet()) { // For each Trade Id key in the "newOnes" HashMap
-      if (!existing.containsKey(key)) { // If the "existing" HashMap does not have that key...
-        results.put(key, newOnes.get(key)); // ...then simply add this entry to the "results" HashMap
-      } else { // Otherwise, the "existing" HashMap does have that key – we need to update the data
-        FillMessage fm = results.get(key); // Get the FillMessage from the "results" HashMap
-        // NOTE – for the below, you will need to make these 2 FillMessage methods "public"!
-        fm.setVolume(newOnes.get(key).getVolume()); // Update the fill volume
-        fm.setDetails(newOnes.get(key).getDetails()); // Update the fill details
-      }
+   * @param trd
+   */
+  private void tradeAtTopOfBook(Tradeable trd)
+          throws InvalidVolumeException, ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException {
+    PriceLevel level = bookEntries.get(topOfBook);
+    int before = trd.getRemainingVolume();
+    processor.doTrade(trd, fills);
+    level.reduceVolume(before - trd.getRemainingVolume());
+  }
+
+  /**
+   * Records that a Tradeable resting on this side traded the specified volume
+   * while acting against the other side of the book (as happens when the
+   * market opens), so the running total of its price level stays correct.
+   *
+   * @param t
+   * @param volume
+   */
+  synchronized final void recordTradedVolume(Tradeable t, int volume)
+          throws ProductBookSideException {
+    validateInput(t);
+    PriceLevel level = bookEntries.get(t.getPrice());
+    if (level != null) {
+      level.reduceVolume(volume);
     }
-    return results;
   }
 
   /**
    * This method will remove an key/value pair from the book (the "bookEntries"
-   * HashMap) if the ArrayList associated with the Price passed in is empty.
+   * TreeMap) if the ArrayList associated with the Price passed in is empty.
    *
    * @param p
    */
   public synchronized void clearIfEmpty(Price p)
           throws ProductBookSideException {
     validateInput(p);
-    if (bookEntries.get(p).isEmpty()) {
+    PriceLevel entries = bookEntries.get(p);
+    if (entries != null && entries.isEmpty()) {
       bookEntries.remove(p);
+      if (bookEntries.comparator().compare(p, topOfBook) == 0) {
+        topOfBook = bookEntries.isEmpty() ? null : bookEntries.firstKey();
+      }
     }
   }
 
   /**
    * This method is design to remove the Tradable passed in from the book
-   * (when it has been traded or cancelled).
+   * (when it has been traded or cancelled). The Tradeable's queue node is
+   * found through the id index and unlinked in constant time.
    *
    * @param t
    */
   public synchronized void removeTradeable(Tradeable t)
           throws ProductBookSideException {
     validateInput(t);
-    ArrayList<Tradeable> entries = bookEntries.get(t.getPrice());
-    if (entries == null) { return; }
-    boolean removeOp = entries.remove(t);
-    if (!removeOp) { return; }
+    PriceLevel.Node n = entriesById.get(t.getId());
+    if (n == null || n.tradeable != t) { return; }
+    PriceLevel entries = n.level;
+    if (!entries.remove(n)) { return; }
+    entriesById.remove(t.getId());
+    if (t.isQuote() && quotesByUser.get(t.getUser()) == t) {
+      quotesByUser.remove(t.getUser());
+    }
     if (entries.isEmpty()) {
       clearIfEmpty(t.getPrice());
     }
   }
 
   /**
-   * Removes all empty keys from the bookEntries HashMap.
+   * Copies every Tradeable resting on this side into a new SideImage, best
+   * price first and in time priority within a price.
+   *
+   * @return the side's image
    */
-  private synchronized void removeBookEntryEmptyKeys()
-          throws ProductBookSideException {
-    for (Price key : removeBookEntryKeys) {
-      //bookEntries.remove(key);
-      clearIfEmpty(key);
+  synchronized final BookImage.SideImage captureImage() {
+    BookImage.SideImage img = new BookImage.SideImage(entriesById.size());
+    int i = 0;
+    for (PriceLevel level : bookEntries.values()) {
+      for (Tradeable t : level) {
+        img.ids[i] = t.getId();
+        img.prices[i] = t.getPrice();
+        img.originalVolumes[i] = t.getOriginalVolume();
+        img.remainingVolumes[i] = t.getRemainingVolume();
+        img.cancelledVolumes[i] = t.getCancelledVolume();
+        img.quotes[i] = t.isQuote();
+        img.users[i] = t.getUser();
+        i++;
+      }
     }
-    removeBookEntryKeys = new ArrayList<>();
+    return img;
   }
 
   /**
-   * Remove tradeables from the book entries.
+   * Loads the Tradeables of the image passed in into this side, which must be
+   * empty. The image is already in book order, so each Tradeable is appended
+   * to its price level without trading, and the id index is sized for all of
+   * them up front.
+   *
+   * @param img
    */
-  private synchronized void removeTradeablesFromBookEntries()
+  synchronized final void restore(BookImage.SideImage img)
+          throws ProductBookSideException, InvalidVolumeException,
+          TradeableException {
+    validateInput(img);
+    if (!bookEntries.isEmpty()) {
+      throw new ProductBookSideException("Only an empty side can be"
+              + " restored.");
+    }
+    entriesById = new LongHashMap<>(img.count);
+    String product = parent.getSymbol();
+    PriceLevel level = null;
+    for (int i = 0; i < img.count; i++) {
+      Price p = img.prices[i];
+      if (level == null || bookEntries.comparator().compare(p,
+              level.getPrice()) != 0) {
+        level = new PriceLevel(p);
+        bookEntries.put(p, level);
+      }
+      Tradeable t = img.quotes[i]
+              ? new QuoteSide(img.users[i], product, p,
+                      img.originalVolumes[i], side, img.ids[i])
+              : new Order(img.users[i], product, p, img.originalVolumes[i],
+                      side, img.ids[i]);
+      t.setRemainingVolume(img.remainingVolumes[i]);
+      t.setCancelledVolume(img.cancelledVolumes[i]);
+      entriesById.put(t.getId(), level.add(t));
+      if (t.isQuote()) {
+        quotesByUser.put(t.getUser(), t);
+      }
+    }
+    topOfBook = bookEntries.isEmpty() ? null : bookEntries.firstKey();
+  }
+
+  /**
+   * Recounts every price level on this side and checks the running volume and
+   * order count totals, and the id and quote indexes, against the recount.
+   * Intended for tests and debugging; this walks the whole side.
+   *
+   * @throws ProductBookSideException if any total or index is inconsistent
+   */
+  public synchronized final void verifyAggregates()
           throws ProductBookSideException {
-    for (Entry<Price, ArrayList<Tradeable>> row :
-            removedTradeables.entrySet()) {
-      if (bookEntries.containsKey(row.getKey()) &&
-              bookEntries.get(row.getKey()) != null) {
-        for (Tradeable t : row.getValue()) {
-          //bookEntries.get(row.getKey()).remove(t);
-          removeTradeable(t);
+    int count = 0;
+    for (PriceLevel level : bookEntries.values()) {
+      String error = level.verify();
+      if (error != null) {
+        throw new ProductBookSideException(side + " side: " + error);
+      }
+      if (level.isEmpty()) {
+        throw new ProductBookSideException(side + " side: level " +
+                level.getPrice() + " is empty but still in the book.");
+      }
+      for (Tradeable t : level) {
+        PriceLevel.Node n = entriesById.get(t.getId());
+        if (n == null || n.tradeable != t || n.level != level) {
+          throw new ProductBookSideException(side + " side: " + t.getId() +
+                  " is missing from the id index.");
+        }
+        if (t.isQuote() && quotesByUser.get(t.getUser()) != t) {
+          throw new ProductBookSideException(side + " side: quote " +
+                  t.getId() + " is missing from the quote index.");
         }
       }
+      count += level.getCount();
+    }
+    if (count != entriesById.size()) {
+      throw new ProductBookSideException(side + " side: id index holds " +
+              entriesById.size() + " entries but the book holds " + count);
+    }
+    Price best = bookEntries.isEmpty() ? null : bookEntries.firstKey();
+    if ((best == null) != (topOfBook == null) || (best != null &&
+            bookEntries.comparator().compare(best, topOfBook) != 0)) {
+      throw new ProductBookSideException(side + " side: cached top of book "
+              + topOfBook + " does not match " + best);
     }
-    removedTradeables.clear();
   }
 
   private void validateInput(String o)
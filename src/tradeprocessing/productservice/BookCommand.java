@@ -0,0 +1,90 @@
+package tradeprocessing.productservice;
+
+import java.util.concurrent.locks.LockSupport;
+import tradeprocessing.productbook.ProductBook;
+
+
+/**
+ * One operation (submit order, submit quote, cancel, cancel quote, market
+ * state change) queued for the thread that owns a ProductBook. The thread
+ * that creates the command can wait for the owning thread to run it and then
+ * pick up whatever exception it threw, or the command can override
+ * "completed" to hand the outcome on without anyone waiting.
+ */
+abstract class BookCommand {
+
+  /**
+   * The next command in the owning engine's CommandQueue.
+   */
+  volatile BookCommand next;
+
+  /**
+   * Set once the command has run. Written after "failure" so a waiter that
+   * sees it set also sees the failure.
+   */
+  private volatile boolean done;
+
+  /**
+   * The exception the command threw, or null if it completed normally.
+   */
+  private Exception failure;
+
+  /**
+   * The thread that created the command and may be waiting for it.
+   */
+  private final Thread waiter = Thread.currentThread();
+
+  /**
+   * Performs the operation against the book. Only ever called on the book's
+   * engine thread.
+   *
+   * @param book
+   */
+  abstract void execute(ProductBook book) throws Exception;
+
+  /**
+   * Called on the book's thread once the command has run, with the exception
+   * it threw or null. Does nothing unless overridden.
+   *
+   * @param failure
+   */
+  void completed(Exception failure) {
+  }
+
+  /**
+   * Runs the command against the book passed in, records any failure, reports
+   * the outcome to "completed" and wakes the waiting thread.
+   *
+   * @param book
+   */
+  final void run(ProductBook book) {
+    try {
+      execute(book);
+    } catch (Exception e) {
+      failure = e;
+    }
+    done = true;
+    completed(failure);
+    LockSupport.unpark(waiter);
+  }
+
+  /**
+   * Waits until the command has run. An interrupt does not abandon the wait,
+   * since the command has already been queued; it is restored on return.
+   *
+   * @return the exception the command threw, or null
+   */
+  final Exception await() {
+    boolean interrupted = false;
+    while (!done) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return failure;
+  }
+}
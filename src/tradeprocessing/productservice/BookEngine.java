@@ -0,0 +1,89 @@
+package tradeprocessing.productservice;
+
+import java.util.concurrent.locks.LockSupport;
+import tradeprocessing.productbook.ProductBook;
+
+
+/**
+ * Owns one ProductBook: a dedicated thread takes BookCommands off a lock-free
+ * CommandQueue and runs them against the book one at a time, so the book
+ * never sees two threads at once and different books trade in parallel.
+ */
+final class BookEngine implements Runnable {
+
+  /**
+   * How many times the engine thread polls an empty queue (yielding between
+   * polls) before it parks until a command is offered.
+   */
+  private static final int SPINS = 100;
+
+  private final ProductBook book;
+
+  private final CommandQueue commands = new CommandQueue();
+
+  private final Thread thread;
+
+  /**
+   * Cleared to stop the engine once the queued commands have run.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Set while the engine thread is parked (or about to park), so producers
+   * know to wake it.
+   */
+  private volatile boolean parked;
+
+  BookEngine(ProductBook b) {
+    book = b;
+    thread = new Thread(this, "BookEngine-" + b.getSymbol());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues the command for the engine thread. Safe to call from any thread.
+   *
+   * @param c
+   */
+  void submit(BookCommand c) {
+    commands.offer(c);
+    if (parked) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Stops the engine once every command already queued has run, and waits
+   * for its thread to finish.
+   */
+  void shutdown() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(thread);
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    int idle = 0;
+    while (running || !commands.isEmpty()) {
+      BookCommand c = commands.poll();
+      if (c != null) {
+        idle = 0;
+        c.run(book);
+      } else if (++idle < SPINS) {
+        Thread.yield();
+      } else {
+        // A producer links its command in before it reads "parked", and the
+        // queue is re-checked after "parked" is set, so one of the two always
+        // sees the other and no wake-up is lost.
+        parked = true;
+        if (running && commands.isEmpty()) {
+          LockSupport.park(this);
+        }
+        parked = false;
+        idle = 0;
+      }
+    }
+  }
+}
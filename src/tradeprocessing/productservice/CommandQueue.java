@@ -0,0 +1,69 @@
+package tradeprocessing.productservice;
+
+import java.util.concurrent.atomic.AtomicReference;
+import tradeprocessing.productbook.ProductBook;
+
+
+/**
+ * A lock-free, unbounded, multiple producer / single consumer queue of
+ * BookCommands. Producers link commands in with a single atomic swap of the
+ * tail; only the owning engine thread may call "poll" and "isEmpty".
+ *
+ * The queue always holds one already consumed command (initially a stub) as
+ * its head, so producers and the consumer never touch the same field except
+ * the "next" link between them.
+ */
+final class CommandQueue {
+
+  /**
+   * The last command consumed (or the stub). Read and written by the
+   * consumer only.
+   */
+  private BookCommand head;
+
+  /**
+   * The most recently offered command.
+   */
+  private final AtomicReference<BookCommand> tail;
+
+  CommandQueue() {
+    BookCommand stub = new BookCommand() {
+      @Override
+      void execute(ProductBook book) {
+      }
+    };
+    head = stub;
+    tail = new AtomicReference<>(stub);
+  }
+
+  /**
+   * Adds the command to the back of the queue. Safe to call from any thread.
+   *
+   * @param c
+   */
+  void offer(BookCommand c) {
+    c.next = null;
+    BookCommand prev = tail.getAndSet(c);
+    prev.next = c;
+  }
+
+  /**
+   * Removes and returns the command at the front of the queue, or returns
+   * null if there is none (or one is still being linked in).
+   *
+   * @return the next command, or null
+   */
+  BookCommand poll() {
+    BookCommand n = head.next;
+    if (n == null) {
+      return null;
+    }
+    head.next = null;
+    head = n;
+    return n;
+  }
+
+  boolean isEmpty() {
+    return head.next == null && tail.get() == head;
+  }
+}
@@ -1,21 +1,39 @@
 package tradeprocessing.productservice;
 
 import constants.GlobalConstants.BookSide;
+import constants.GlobalConstants.EngineMode;
 import constants.GlobalConstants.MarketState;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import publishers.MessagePublisher;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import publishers.bus.MarketDataBus;
 import publishers.exceptions.MessagePublisherException;
 import publishers.messages.MarketDataDTO;
-import publishers.messages.MarketMessage;
 import publishers.messages.exceptions.InvalidMessageException;
 import tradeable.Order;
+import tradeable.OrderIdGenerator;
 import tradeable.Quote;
+import tradeable.QuoteDTO;
 import tradeable.TradeableDTO;
 import tradeable.exceptions.InvalidVolumeException;
 import tradeable.exceptions.TradeableException;
+import tradeprocessing.journal.CommandJournal;
+import tradeprocessing.journal.JournalReader;
+import tradeprocessing.journal.JournalRecord;
+import tradeprocessing.productbook.BookImage;
 import tradeprocessing.productbook.ProductBook;
 import tradeprocessing.productbook.exceptions.DataValidationException;
 import tradeprocessing.productbook.exceptions.NoSuchProductException;
@@ -26,6 +44,8 @@ import tradeprocessing.productbook.exceptions.ProductBookSideException;
 import tradeprocessing.productservice.exceptions.InvalidMarketStateException;
 import tradeprocessing.productservice.exceptions.InvalidMarketStateTransitionException;
 import tradeprocessing.productservice.exceptions.ProductServiceException;
+import tradeprocessing.snapshot.Snapshot;
+import tradeprocessing.snapshot.SnapshotStore;
 import tradeprocessing.tradeprocessor.exceptions.InvalidProductBookSideValueException;
 import tradeprocessing.tradeprocessor.exceptions.TradeProcessorFactoryException;
 import tradeprocessing.tradeprocessor.exceptions.TradeProcessorPriceTimeImplException;
@@ -34,17 +54,98 @@ import tradeprocessing.tradeprocessor.exceptions.TradeProcessorPriceTimeImplExce
 public class ProductService {
   private volatile static ProductService instance;
 
+  private static final Logger log =
+          Logger.getLogger(ProductService.class.getName());
+
   /**
    * As this class must own all the product books, you will need a structure
    * that contains all product books, accessible by the stock symbol name.
    */
-  private HashMap<String, ProductBook> allBooks = new HashMap<>();
+  private ConcurrentHashMap<String, ProductBook> allBooks =
+          new ConcurrentHashMap<>();
 
   /**
    * As this class must maintain a data member that holds the current market
-   * state.
+   * state. Volatile so the state can be read without taking the service lock.
+   */
+  private volatile MarketState state = MarketState.CLOSED;
+
+  /**
+   * The number of shards the product books are split into, by symbol hash,
+   * for locking in SYNCHRONIZED mode.
+   */
+  private static final int SHARDS = 16;
+
+  /**
+   * One lock per shard of product books. Orders, quotes and cancels take
+   * only the lock of their product's shard, so they no longer queue behind
+   * every other product.
+   */
+  private final Object[] shardLocks = new Object[SHARDS];
+
+  /**
+   * How product book operations are run; see EngineMode.
+   */
+  private volatile EngineMode engineMode = EngineMode.SYNCHRONIZED;
+
+  /**
+   * The BookEngine that owns each product book, indexed by stock symbol.
+   * Only populated in THREAD_PER_PRODUCT mode.
+   */
+  private ConcurrentHashMap<String, BookEngine> engines =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The queue of asynchronous commands for each product book, indexed by
+   * stock symbol. Only used in SYNCHRONIZED mode, and created on first use.
+   */
+  private ConcurrentHashMap<String, SymbolQueue> symbolQueues =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The daemon threads that drain the SymbolQueues, created on first use.
+   */
+  private volatile ExecutorService asyncExecutor;
+
+  /**
+   * The journal every accepted command is written to before it is run, or
+   * null if the service is not journaling.
+   */
+  private volatile CommandJournal journal;
+
+  /**
+   * The number of journaled commands that failed when they were replayed.
+   */
+  private volatile long failedReplays;
+
+  /**
+   * Where snapshots of the books are written, or null if snapshots have not
+   * been started.
+   */
+  private volatile SnapshotStore snapshots;
+
+  /**
+   * The daemon thread that takes periodic snapshots, or null.
+   */
+  private ScheduledExecutorService snapshotTimer;
+
+  /**
+   * The snapshot the books were restored from, until a journal is opened and
+   * replays the commands that came after it; null otherwise.
+   */
+  private Snapshot restored;
+
+  /**
+   * The directory the books spill their old entries to, or null if they
+   * keep only the newest ones.
    */
-  private MarketState state = MarketState.CLOSED;
+  private volatile String oldEntrySpillDir;
+
+  private ProductService() {
+    for (int i = 0; i < SHARDS; i++) {
+      shardLocks[i] = new Object();
+    }
+  }
 
   /**
    * As this is a Façade, this class should be implemented as a thread-safe
@@ -71,7 +172,7 @@ public class ProductService {
    * @param product
    * @return a list of TradeableDTOs
    */
-  public synchronized ArrayList<TradeableDTO> getOrdersWithRemainingQty(
+  public ArrayList<TradeableDTO> getOrdersWithRemainingQty(
           String userName, String product)
           throws ProductBookSideException, ProductBookException,
           ProductServiceException {
@@ -87,7 +188,7 @@ public class ProductService {
    * @param product
    * @return a List of MarketDataDTO
    */
-  public synchronized MarketDataDTO getMarketData(String product)
+  public MarketDataDTO getMarketData(String product)
           throws ProductServiceException {
     validateInput(product);
     return allBooks.get(product).getMarketData();
@@ -98,7 +199,7 @@ public class ProductService {
    *
    * @return the current market state
    */
-  public synchronized MarketState getMarketState() {
+  public MarketState getMarketState() {
     return state;
   }
 
@@ -108,7 +209,7 @@ public class ProductService {
    * @param product
    * @return a 2-D array of the product book depth
    */
-  public synchronized String[][] getBookDepth(String product)
+  public String[][] getBookDepth(String product)
           throws NoSuchProductException, ProductServiceException {
     validateInput(product);
     if (!allBooks.containsKey(product)) {
@@ -124,10 +225,29 @@ public class ProductService {
    *
    * @return an ArrayList of all Products
    */
-  public synchronized ArrayList<String> getProductList() {
+  public ArrayList<String> getProductList() {
     return new ArrayList<>(allBooks.keySet());
   }
 
+  /**
+   * This method checks the running volume and order count totals and the
+   * indexes of every product book against a full recount. It walks every
+   * book, so it is meant for tests and benchmarks, run while nothing is
+   * trading.
+   *
+   * @throws ProductServiceException naming the first inconsistent book
+   */
+  public void verifyBooks() throws ProductServiceException {
+    for (ProductBook book : allBooks.values()) {
+      try {
+        book.verifyAggregates();
+      } catch (ProductBookSideException e) {
+        throw new ProductServiceException("The product book: "
+                + book.getSymbol() + "; is inconsistent: " + e.getMessage());
+      }
+    }
+  }
+
   private synchronized boolean isValidTransition(MarketState ms)
           throws ProductServiceException {
     validateInput(ms);
@@ -157,18 +277,551 @@ public class ProductService {
       throw new InvalidMarketStateTransitionException("The market state transition: " +
               ms + "; is invalid, current market state is: " + state);
     }
+    journalServiceState(ms);
     state = ms;
-    MessagePublisher.getInstance().publishMarketMessage(
-            new MarketMessage(state));
-    if (state.equals(MarketState.OPEN)) {
-      for (Entry<String, ProductBook> row : allBooks.entrySet()) {
-        row.getValue().openMarket();
+    MarketDataBus.getInstance().publishMarketState(state);
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      for (ProductBook book : allBooks.values()) {
+        synchronized (shardLock(book.getSymbol())) {
+          journalBookState(book.getSymbol(), ms);
+          book.setMarketState(ms);
+        }
+      }
+      awaitDurable();
+      return;
+    }
+    // Every book changes state on its own engine thread, in order with the
+    // commands already queued for it, and the books open or close in
+    // parallel.
+    final MarketState newState = ms;
+    ArrayList<BookCommand> pending = new ArrayList<>();
+    for (BookEngine engine : engines.values()) {
+      BookCommand c = new BookCommand() {
+        @Override
+        void execute(ProductBook book) throws Exception {
+          journalBookState(book.getSymbol(), newState);
+          book.setMarketState(newState);
+        }
+      };
+      engine.submit(c);
+      pending.add(c);
+    }
+    Exception failure = null;
+    for (BookCommand c : pending) {
+      Exception e = c.await();
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    awaitDurable();
+    if (failure instanceof OrderNotFoundException) {
+      throw (OrderNotFoundException) failure;
+    }
+    if (failure instanceof TradeProcessorPriceTimeImplException) {
+      throw (TradeProcessorPriceTimeImplException) failure;
+    }
+    if (failure instanceof TradeableException) {
+      throw (TradeableException) failure;
+    }
+    rethrow(failure);
+  }
+
+  /**
+   * Returns how product book operations are currently run.
+   *
+   * @return the engine mode
+   */
+  public EngineMode getEngineMode() {
+    return engineMode;
+  }
+
+  /**
+   * This method switches how product book operations are run. In
+   * THREAD_PER_PRODUCT mode every product book is owned by its own BookEngine
+   * thread; switching back to SYNCHRONIZED stops those threads once their
+   * queued commands have run. The mode can only be changed while the market
+   * is closed.
+   *
+   * @param mode
+   */
+  public synchronized void setEngineMode(EngineMode mode)
+          throws InvalidMarketStateException, ProductServiceException {
+    if (mode == null) {
+      throw new ProductServiceException("Argument cannot be null.");
+    }
+    if (!state.equals(MarketState.CLOSED)) {
+      throw new InvalidMarketStateException("The engine mode can only be"
+              + " changed while the market is closed.");
+    }
+    if (mode == engineMode) { return; }
+    if (mode == EngineMode.THREAD_PER_PRODUCT) {
+      try {
+        for (SymbolQueue q : symbolQueues.values()) {
+          q.awaitIdle();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ProductServiceException("Interrupted while waiting for the"
+                + " asynchronous orders to run.");
+      }
+      for (ProductBook book : allBooks.values()) {
+        engines.put(book.getSymbol(), new BookEngine(book));
+      }
+    } else {
+      try {
+        for (BookEngine engine : engines.values()) {
+          engine.shutdown();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ProductServiceException("Interrupted while stopping the"
+                + " book engines.");
+      }
+      engines.clear();
+    }
+    engineMode = mode;
+  }
+
+  /**
+   * This method opens the command journal in the file at the path passed in
+   * and rebuilds the product books from the commands already in it, by
+   * running each of them again through the books' normal matching in the
+   * order they were first run. From then on every command the service
+   * accepts is written to the journal before its book runs it, and the
+   * synchronous submit methods do not return until their commands have been
+   * flushed to disk.
+   *
+   * The journal can only be opened while the market is closed and before any
+   * product has been created. Users are not told about trades made while the
+   * books are rebuilt. A command that fails again on replay (as one that was
+   * rejected by its book the first time will) is counted and skipped.
+   *
+   * @param path
+   * @return the number of journaled commands that were replayed
+   */
+  public synchronized long openJournal(String path)
+          throws ProductServiceException {
+    validateInput(path);
+    if (journal != null) {
+      throw new ProductServiceException("A journal is already open.");
+    }
+    if (restored == null && (!state.equals(MarketState.CLOSED)
+            || !allBooks.isEmpty())) {
+      throw new ProductServiceException("A journal can only be opened while"
+              + " the market is closed and before any product is created,"
+              + " or straight after restoring a snapshot.");
+    }
+    CommandJournal j;
+    try {
+      j = CommandJournal.open(path);
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not open the journal " + path
+              + ": " + e.getMessage());
+    }
+    OrderIdGenerator.advanceTo(j.getMaxOrderId());
+    HashMap<String, ProductBook> books = new HashMap<>();
+    HashMap<String, Long> positions = new HashMap<>();
+    MarketState replayed = MarketState.CLOSED;
+    long from = 0;
+    if (restored != null) {
+      // Only the commands the snapshot does not hold are replayed: for each
+      // book those from the position its image was taken at, and for the
+      // service those from the position the snapshot was started at.
+      from = restored.journalPosition;
+      for (BookImage img : restored.books) {
+        positions.put(img.symbol, img.journalPosition);
+        from = Math.min(from, img.journalPosition);
+      }
+      if (from < 0 && j.getRecoveredCount() > 0) {
+        try {
+          j.close();
+        } catch (IOException e) {
+          log.log(Level.WARNING, null, e);
+        }
+        throw new ProductServiceException("The snapshot was not taken with"
+                + " the journal " + path + " open.");
+      }
+      books.putAll(allBooks);
+      replayed = state;
+    }
+    JournalReader reader = j.reader(Math.max(from, 0));
+    JournalRecord r = new JournalRecord();
+    long count = 0;
+    long failed = 0;
+    long start = reader.getPosition();
+    while (reader.next(r)) {
+      Long since = r.type == JournalRecord.Type.CREATE_PRODUCT ? null
+              : positions.get(r.product);
+      boolean inSnapshot = since != null ? start < since
+              : restored != null && start < restored.journalPosition;
+      start = reader.getPosition();
+      if (inSnapshot) {
+        continue;
+      }
+      count++;
+      try {
+        if (r.type == JournalRecord.Type.CREATE_PRODUCT) {
+          if (!books.containsKey(r.product)) {
+            ProductBook book = new ProductBook(r.product, replayed);
+            spillOldEntries(book);
+            books.put(r.product, book);
+          }
+        } else if (r.type == JournalRecord.Type.SERVICE_STATE) {
+          replayed = r.state;
+        } else {
+          replay(books.get(r.product), r);
+        }
+      } catch (Exception e) {
+        failed++;
+      }
+    }
+    failedReplays = failed;
+    for (ProductBook book : books.values()) {
+      if (allBooks.putIfAbsent(book.getSymbol(), book) == null
+              && engineMode == EngineMode.THREAD_PER_PRODUCT) {
+        engines.put(book.getSymbol(), new BookEngine(book));
+      }
+    }
+    state = replayed;
+    restored = null;
+    journal = j;
+    return count;
+  }
+
+  /**
+   * Returns the number of journaled commands that failed when they were
+   * replayed by "openJournal".
+   *
+   * @return the number of failed replays
+   */
+  public long getFailedReplayCount() {
+    return failedReplays;
+  }
+
+  /**
+   * Runs one journaled book command again on the book passed in.
+   *
+   * @param book
+   * @param r
+   */
+  private void replay(ProductBook book, JournalRecord r) throws Exception {
+    if (book == null) {
+      throw new NoSuchProductException("Product does not exist in any book.");
+    }
+    switch (r.type) {
+      case BOOK_STATE:
+        book.setMarketState(r.state);
+        break;
+      case ORDER:
+        book.addToBook(new Order(r.user, r.product, r.price, r.volume, r.side,
+                r.id));
+        break;
+      case QUOTE:
+        book.addToBook(new Quote(r.user, r.product, r.price, r.volume,
+                r.sellPrice, r.sellVolume, r.id, r.sellId));
+        break;
+      case QUOTE_UPDATE:
+        book.updateQuote(r.user, r.price, r.volume, r.sellPrice,
+                r.sellVolume, r.id, r.sellId);
+        break;
+      case ORDER_CANCEL:
+        book.cancelOrder(r.side, r.id);
+        break;
+      default:
+        book.cancelQuote(r.user);
+    }
+  }
+
+  /**
+   * This method returns whether the service is journaling commands, that
+   * is, whether awaitDurable has anything to wait for.
+   *
+   * @return true while a command journal is open
+   */
+  public boolean isJournaling() {
+    return journal != null;
+  }
+
+  /**
+   * This method flushes and closes the command journal, if one is open. The
+   * service stops journaling commands.
+   */
+  public synchronized void closeJournal() throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    journal = null;
+    try {
+      j.close();
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not close the journal: "
+              + e.getMessage());
+    }
+  }
+
+  /**
+   * This method starts keeping snapshots of the product books in the
+   * directory passed in, taking one every "intervalMillis" milliseconds on a
+   * background thread (or only when "takeSnapshot" is called, if the
+   * interval is 0).
+   *
+   * @param dir
+   * @param intervalMillis
+   */
+  public synchronized void startSnapshots(String dir, long intervalMillis)
+          throws ProductServiceException {
+    validateInput(dir);
+    if (intervalMillis < 0) {
+      throw new ProductServiceException("The snapshot interval cannot be"
+              + " negative.");
+    }
+    stopSnapshots();
+    try {
+      snapshots = new SnapshotStore(dir);
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not open the snapshot"
+              + " directory " + dir + ": " + e.getMessage());
+    }
+    if (intervalMillis == 0) { return; }
+    snapshotTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProductService-snapshot");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+    snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          takeSnapshot();
+        } catch (ProductServiceException e) {
+          log.log(Level.SEVERE, null, e);
+        }
       }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * This method stops taking periodic snapshots. A snapshot being written
+   * is finished first.
+   */
+  public synchronized void stopSnapshots() {
+    if (snapshotTimer != null) {
+      snapshotTimer.shutdown();
+      snapshotTimer = null;
     }
-    if (state.equals(MarketState.CLOSED)) {
-      for (Entry<String, ProductBook> row : allBooks.entrySet()) {
-        row.getValue().closeMarket();
+    snapshots = null;
+  }
+
+  /**
+   * This method takes a snapshot of every product book and writes it to the
+   * snapshot directory. Each book is held only while its resting Tradeables
+   * are copied out (see ProductBook.captureImage); the copy is written to
+   * disk after every book has been let go, so order entry carries on while
+   * the snapshot is written. Product creation and market state changes wait
+   * for the copying to finish.
+   *
+   * @return the snapshot's file
+   */
+  public File takeSnapshot() throws ProductServiceException {
+    SnapshotStore store = snapshots;
+    if (store == null) {
+      throw new ProductServiceException("Snapshots have not been started.");
+    }
+    Snapshot s = captureSnapshot();
+    try {
+      return store.write(s);
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not write the snapshot: "
+              + e.getMessage());
+    }
+  }
+
+  private synchronized Snapshot captureSnapshot()
+          throws ProductServiceException {
+    Snapshot s = new Snapshot();
+    s.time = System.currentTimeMillis();
+    s.state = state;
+    s.journalPosition = journalPosition();
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      for (ProductBook book : allBooks.values()) {
+        synchronized (shardLock(book.getSymbol())) {
+          BookImage img = book.captureImage();
+          img.journalPosition = journalPosition();
+          s.books.add(img);
+        }
       }
+      return s;
+    }
+    // Every engine copies its own book, in order with the commands already
+    // queued for it, and the books are copied in parallel.
+    final BookImage[] images = new BookImage[engines.size()];
+    ArrayList<BookCommand> pending = new ArrayList<>();
+    for (BookEngine engine : engines.values()) {
+      final int slot = pending.size();
+      BookCommand c = new BookCommand() {
+        @Override
+        void execute(ProductBook book) throws Exception {
+          images[slot] = book.captureImage();
+          images[slot].journalPosition = journalPosition();
+        }
+      };
+      engine.submit(c);
+      pending.add(c);
+    }
+    for (BookCommand c : pending) {
+      Exception e = c.await();
+      if (e != null) {
+        throw new ProductServiceException("Could not copy a book for the"
+                + " snapshot: " + e.getMessage());
+      }
+    }
+    s.books.addAll(Arrays.asList(images));
+    return s;
+  }
+
+  private long journalPosition() {
+    CommandJournal j = journal;
+    return j == null ? -1 : j.getPosition();
+  }
+
+  /**
+   * This method rebuilds the product books, and the market state, from the
+   * newest snapshot in the directory passed in. Each book is loaded in bulk
+   * from the snapshot without trading or publishing anything. If the
+   * snapshot was taken while journaling, "openJournal" should be called next,
+   * before any user connects, to replay the journaled commands that came
+   * after the snapshot.
+   *
+   * Like "openJournal", this can only be done while the market is closed and
+   * before any product has been created.
+   *
+   * @param dir
+   * @return the number of books restored
+   */
+  public synchronized int restoreSnapshot(String dir)
+          throws ProductServiceException {
+    validateInput(dir);
+    if (!state.equals(MarketState.CLOSED) || !allBooks.isEmpty()
+            || journal != null) {
+      throw new ProductServiceException("A snapshot can only be restored"
+              + " while the market is closed, before any product is created"
+              + " and before the journal is opened.");
+    }
+    Snapshot s;
+    try {
+      s = new SnapshotStore(dir).readLatest();
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not read a snapshot from "
+              + dir + ": " + e.getMessage());
+    }
+    if (s == null) { return 0; }
+    HashMap<String, ProductBook> books = new HashMap<>(s.books.size() * 2);
+    try {
+      for (BookImage img : s.books) {
+        ProductBook book = ProductBook.restore(img);
+        spillOldEntries(book);
+        books.put(img.symbol, book);
+        advancePastIds(img.buy);
+        advancePastIds(img.sell);
+        if (img.lastSalePrice != null) {
+          MarketDataBus.getInstance().restoreLastSale(img.symbol,
+                  img.lastSalePrice);
+        }
+      }
+    } catch (Exception e) {
+      throw new ProductServiceException("Could not restore the snapshot: "
+              + e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+    allBooks.putAll(books);
+    if (engineMode == EngineMode.THREAD_PER_PRODUCT) {
+      for (ProductBook book : books.values()) {
+        engines.put(book.getSymbol(), new BookEngine(book));
+      }
+    }
+    state = s.state;
+    restored = s;
+    return books.size();
+  }
+
+  private void advancePastIds(BookImage.SideImage side) {
+    long max = 0;
+    for (int i = 0; i < side.count; i++) {
+      max = Math.max(max, side.ids[i]);
+    }
+    OrderIdGenerator.advanceTo(max);
+  }
+
+  /**
+   * This method makes every product book write the old (traded out or
+   * cancelled) Tradeables that no longer fit in memory to a file of its own
+   * in the directory passed in, so that cancels for them can still be
+   * answered as too late. Without it each book only remembers its newest
+   * old Tradeables. The files are scratch space for this run and are emptied
+   * when a book starts spilling, and deleted by "stopOldEntrySpill".
+   * Spilling can only be turned on while the market is closed.
+   *
+   * @param dir
+   */
+  public synchronized void setOldEntrySpillDirectory(String dir)
+          throws InvalidMarketStateException, ProductServiceException {
+    validateInput(dir);
+    if (!state.equals(MarketState.CLOSED)) {
+      throw new InvalidMarketStateException("Old entry spilling can only be"
+              + " turned on while the market is closed.");
+    }
+    if (oldEntrySpillDir != null) {
+      throw new ProductServiceException("Old entries are already spilled to "
+              + oldEntrySpillDir + ".");
+    }
+    File d = new File(dir);
+    if (!d.isDirectory() && !d.mkdirs()) {
+      throw new ProductServiceException("Could not create " + dir + ".");
+    }
+    oldEntrySpillDir = dir;
+    try {
+      for (ProductBook book : allBooks.values()) {
+        spillOldEntries(book);
+      }
+    } catch (ProductBookException e) {
+      throw new ProductServiceException(e.getMessage());
+    }
+  }
+
+  /**
+   * This method undoes "setOldEntrySpillDirectory": every product book stops
+   * spilling its old Tradeables, and closes and deletes its file in the
+   * spill directory. The old Tradeables that were spilled are forgotten. It
+   * can only be called while the market is closed.
+   */
+  public synchronized void stopOldEntrySpill()
+          throws InvalidMarketStateException, ProductServiceException {
+    if (!state.equals(MarketState.CLOSED)) {
+      throw new InvalidMarketStateException("Old entry spilling can only be"
+              + " turned off while the market is closed.");
+    }
+    if (oldEntrySpillDir == null) { return; }
+    oldEntrySpillDir = null;
+    ProductBookException failure = null;
+    for (ProductBook book : allBooks.values()) {
+      try {
+        book.closeOldEntrySpill();
+      } catch (ProductBookException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw new ProductServiceException(failure.getMessage());
+    }
+  }
+
+  private void spillOldEntries(ProductBook book) throws ProductBookException {
+    String dir = oldEntrySpillDir;
+    if (dir != null) {
+      book.spillOldEntries(new File(dir, book.getSymbol() + ".old")
+              .getPath());
     }
   }
 
@@ -189,7 +842,14 @@ public class ProductService {
       throw new ProductAlreadyExistsException("Product " + product +
               " already exists in the ProductBook.");
     }
-    allBooks.put(product, new ProductBook(product));
+    journalCreateProduct(product);
+    ProductBook book = new ProductBook(product, state);
+    spillOldEntries(book);
+    allBooks.put(product, book);
+    if (engineMode == EngineMode.THREAD_PER_PRODUCT) {
+      engines.put(product, new BookEngine(book));
+    }
+    awaitDurable();
   }
 
   /**
@@ -198,7 +858,7 @@ public class ProductService {
    *
    * @param q
    */
-  public synchronized void submitQuote(Quote q)
+  public void submitQuote(final Quote q)
           throws InvalidMarketStateException, NoSuchProductException,
           InvalidVolumeException, DataValidationException,
           InvalidMessageException, ProductBookSideException,
@@ -206,16 +866,113 @@ public class ProductService {
           TradeProcessorPriceTimeImplException, TradeableException,
           MessagePublisherException {
     validateInput(q);
-    if (state.equals(MarketState.CLOSED)) {
-      throw new InvalidMarketStateException("Marekt is closed!");
+    checkNotClosed(state);
+    ProductBook book = findBook(q.getProduct());
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(q.getProduct())) {
+        checkNotClosed(book.getMarketState());
+        journalQuote(q);
+        book.addToBook(q);
+      }
+      awaitDurable();
+      return;
     }
-    if (!allBooks.containsKey(q.getProduct())) {
-      throw new NoSuchProductException("Product does not exist in any book.");
+    Exception e = runOnEngine(q.getProduct(), new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        checkNotClosed(book.getMarketState());
+        journalQuote(q);
+        book.addToBook(q);
+      }
+    });
+    awaitDurable();
+    if (e instanceof InvalidMarketStateException) {
+      throw (InvalidMarketStateException) e;
+    }
+    if (e instanceof DataValidationException) {
+      throw (DataValidationException) e;
+    }
+    if (e instanceof TradeProcessorPriceTimeImplException) {
+      throw (TradeProcessorPriceTimeImplException) e;
     }
-    allBooks.get(q.getProduct()).addToBook(q);
+    if (e instanceof TradeableException) {
+      throw (TradeableException) e;
+    }
+    rethrow(e);
   }
 
 
+  /**
+   * This method replaces the user's quotes in many products in one call.
+   * Each product's quote is replaced as one step in its book (see
+   * ProductBook.updateQuote), and a quote that is rejected leaves the user's
+   * existing quote in that product as it was. In THREAD_PER_PRODUCT mode
+   * every product's engine is handed its quote before any is waited for, so
+   * the books are updated in parallel.
+   *
+   * @param userName
+   * @param quotes
+   * @return for each quote, the exception it was rejected with, or null
+   */
+  public Exception[] submitMassQuote(final String userName,
+          List<QuoteDTO> quotes) throws InvalidMarketStateException,
+          ProductServiceException {
+    validateInput(userName);
+    if (quotes == null) {
+      throw new ProductServiceException("Argument cannot be null.");
+    }
+    checkNotClosed(state);
+    Exception[] results = new Exception[quotes.size()];
+    BookCommand[] pending = new BookCommand[quotes.size()];
+    for (int i = 0; i < quotes.size(); i++) {
+      final QuoteDTO q = quotes.get(i);
+      try {
+        if (q == null) {
+          throw new ProductServiceException("Argument cannot be null.");
+        }
+        validateInput(q.product);
+        ProductBook book = findBook(q.product);
+        if (engineMode == EngineMode.SYNCHRONIZED) {
+          synchronized (shardLock(q.product)) {
+            checkNotClosed(book.getMarketState());
+            long buyId = OrderIdGenerator.nextId();
+            long sellId = OrderIdGenerator.nextId();
+            journalQuoteUpdate(userName, q, buyId, sellId);
+            book.updateQuote(userName, q.buyPrice, q.buyVolume, q.sellPrice,
+                    q.sellVolume, buyId, sellId);
+          }
+          continue;
+        }
+        BookEngine engine = engines.get(q.product);
+        if (engine == null) {
+          throw new NoSuchProductException("Product does not exist in any"
+                  + " book.");
+        }
+        pending[i] = new BookCommand() {
+          @Override
+          void execute(ProductBook book) throws Exception {
+            checkNotClosed(book.getMarketState());
+            long buyId = OrderIdGenerator.nextId();
+            long sellId = OrderIdGenerator.nextId();
+            journalQuoteUpdate(userName, q, buyId, sellId);
+            book.updateQuote(userName, q.buyPrice, q.buyVolume, q.sellPrice,
+                    q.sellVolume, buyId, sellId);
+          }
+        };
+        engine.submit(pending[i]);
+      } catch (Exception e) {
+        results[i] = e;
+      }
+    }
+    for (int i = 0; i < pending.length; i++) {
+      if (pending[i] != null) {
+        results[i] = pending[i].await();
+      }
+    }
+    awaitDurable();
+    return results;
+  }
+
   /**
    * This method should forward the provided Order to the appropriate product
    * book.
@@ -223,25 +980,227 @@ public class ProductService {
    * @param o
    * @return the string id of the order
    */
-  public synchronized String submitOrder(Order o)
+  public String submitOrder(final Order o)
           throws InvalidMarketStateException, NoSuchProductException,
           InvalidMessageException, InvalidVolumeException,
           ProductBookSideException, ProductBookException,
           ProductServiceException, TradeProcessorPriceTimeImplException,
           MessagePublisherException {
     validateInput(o);
-    if (state.equals(MarketState.CLOSED)) {
-      throw new InvalidMarketStateException("Marekt is closed!");
+    checkCanAccept(state, o);
+    ProductBook book = findBook(o.getProduct());
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(o.getProduct())) {
+        checkCanAccept(book.getMarketState(), o);
+        journalOrder(o);
+        book.addToBook(o);
+      }
+      awaitDurable();
+      return OrderIdGenerator.toString(o.getId());
     }
-    if (state.equals(MarketState.PREOPEN) && o.getPrice().isMarket()) {
-      throw new InvalidMarketStateException("Marekt is pre-open, cannot submit"
-              + " MKT orders at this time.");
+    Exception e = runOnEngine(o.getProduct(), new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        checkCanAccept(book.getMarketState(), o);
+        journalOrder(o);
+        book.addToBook(o);
+      }
+    });
+    awaitDurable();
+    if (e instanceof InvalidMarketStateException) {
+      throw (InvalidMarketStateException) e;
+    }
+    if (e instanceof TradeProcessorPriceTimeImplException) {
+      throw (TradeProcessorPriceTimeImplException) e;
+    }
+    rethrow(e);
+    return OrderIdGenerator.toString(o.getId());
+  }
+
+  /**
+   * This method forwards the provided Order to the appropriate product book
+   * without waiting for it to be traded. The Order is checked against the
+   * market state and queued straight away; the future returned completes
+   * with the order id once the book has accepted it, or exceptionally with
+   * the exception the book rejected it with. Asynchronous Orders for the
+   * same product are run in the order they were submitted.
+   *
+   * The future is completed on the thread that runs the book, so anything
+   * chained onto it with the non-async CompletableFuture methods runs there
+   * too and holds up the book; slow work should use the "Async" variants.
+   *
+   * When the service is journaling, the Order is in the journal before the
+   * future completes, but the future does not wait for the journal to be
+   * flushed to disk.
+   *
+   * @param o
+   * @return a future for the string id of the order
+   */
+  public CompletableFuture<String> submitOrderAsync(final Order o)
+          throws InvalidMarketStateException, NoSuchProductException,
+          ProductServiceException {
+    validateInput(o);
+    checkCanAccept(state, o);
+    ProductBook book = findBook(o.getProduct());
+    final CompletableFuture<String> ack = new CompletableFuture<>();
+    BookCommand c = new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        checkCanAccept(book.getMarketState(), o);
+        journalOrder(o);
+        book.addToBook(o);
+      }
+
+      @Override
+      void completed(Exception failure) {
+        if (failure == null) {
+          ack.complete(OrderIdGenerator.toString(o.getId()));
+        } else {
+          ack.completeExceptionally(failure);
+        }
+      }
+    };
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      symbolQueue(book).submit(c);
+      return ack;
     }
-    if (!allBooks.containsKey(o.getProduct())) {
+    BookEngine engine = engines.get(o.getProduct());
+    if (engine == null) {
       throw new NoSuchProductException("Product does not exist in any book.");
     }
-    allBooks.get(o.getProduct()).addToBook(o);
-    return o.getId();
+    engine.submit(c);
+    return ack;
+  }
+
+  /**
+   * This method forwards a batch of Orders for one product to its book,
+   * taking the book (its shard lock, or a single trip to its engine) once
+   * for the whole batch. Each Order is checked and traded in turn, and one
+   * Order being rejected does not stop the rest.
+   *
+   * @param product
+   * @param orders
+   * @return for each Order, the exception it was rejected with, or null
+   */
+  public Exception[] submitOrders(String product, final List<Order> orders)
+          throws InvalidMarketStateException, NoSuchProductException,
+          InvalidMessageException, InvalidVolumeException,
+          ProductBookSideException, ProductBookException,
+          ProductServiceException, MessagePublisherException {
+    validateInput(product);
+    if (orders == null) {
+      throw new ProductServiceException("Argument cannot be null.");
+    }
+    for (Order o : orders) {
+      validateInput(o);
+      if (!o.getProduct().equals(product)) {
+        throw new ProductServiceException("Order " + o.getId() + " is not"
+                + " for product " + product);
+      }
+    }
+    checkNotClosed(state);
+    ProductBook book = findBook(product);
+    final Exception[] results = new Exception[orders.size()];
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(product)) {
+        addAllToBook(book, orders, results);
+      }
+      awaitDurable();
+      return results;
+    }
+    Exception e = runOnEngine(product, new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        addAllToBook(book, orders, results);
+      }
+    });
+    awaitDurable();
+    rethrow(e);
+    return results;
+  }
+
+  private void addAllToBook(ProductBook book, List<Order> orders,
+          Exception[] results) {
+    for (int i = 0; i < orders.size(); i++) {
+      Order o = orders.get(i);
+      try {
+        checkCanAccept(book.getMarketState(), o);
+        journalOrder(o);
+        book.addToBook(o);
+      } catch (Exception e) {
+        results[i] = e;
+      }
+    }
+  }
+
+  /**
+   * This method forwards a batch of Order Cancels for one product to its
+   * book, taking the book once for the whole batch. One cancel failing does
+   * not stop the rest.
+   *
+   * @param product
+   * @param sides
+   * @param orderIds
+   * @return for each cancel, the exception it failed with, or null
+   */
+  public Exception[] submitOrderCancels(String product,
+          final List<BookSide> sides, final List<String> orderIds)
+          throws InvalidMarketStateException, NoSuchProductException,
+          InvalidMessageException, InvalidVolumeException,
+          ProductBookSideException, ProductBookException,
+          ProductServiceException, MessagePublisherException {
+    validateInput(product);
+    if (sides == null || orderIds == null || sides.size() != orderIds.size()) {
+      throw new ProductServiceException("A side and an order id are needed"
+              + " for every cancel.");
+    }
+    for (int i = 0; i < sides.size(); i++) {
+      validateInput(sides.get(i));
+      validateInput(orderIds.get(i));
+    }
+    checkNotClosed(state);
+    ProductBook book = findBook(product);
+    final Exception[] results = new Exception[orderIds.size()];
+    final long[] ids = new long[orderIds.size()];
+    for (int i = 0; i < ids.length; i++) {
+      try {
+        ids[i] = parseOrderId(orderIds.get(i));
+      } catch (OrderNotFoundException e) {
+        results[i] = e;
+      }
+    }
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(product)) {
+        cancelAll(book, sides, ids, results);
+      }
+      awaitDurable();
+      return results;
+    }
+    Exception e = runOnEngine(product, new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        cancelAll(book, sides, ids, results);
+      }
+    });
+    awaitDurable();
+    rethrow(e);
+    return results;
+  }
+
+  private void cancelAll(ProductBook book, List<BookSide> sides,
+          long[] ids, Exception[] results) {
+    for (int i = 0; i < ids.length; i++) {
+      if (results[i] != null) {
+        continue;
+      }
+      try {
+        checkNotClosed(book.getMarketState());
+        journalOrderCancel(book.getSymbol(), sides.get(i), ids[i]);
+        book.cancelOrder(sides.get(i), ids[i]);
+      } catch (Exception e) {
+        results[i] = e;
+      }
+    }
   }
 
   /**
@@ -257,7 +1216,7 @@ public class ProductService {
    * @throws OrderNotFoundException
    * @throws InvalidVolumeException
    */
-  public synchronized void submitOrderCancel(String product, BookSide side,
+  public void submitOrderCancel(String product, final BookSide side,
           String orderId) throws InvalidMarketStateException,
           NoSuchProductException, InvalidMessageException,
           OrderNotFoundException, InvalidVolumeException,
@@ -266,13 +1225,34 @@ public class ProductService {
     validateInput(product);
     validateInput(side);
     validateInput(orderId);
-    if (state.equals(MarketState.CLOSED)) {
-      throw new InvalidMarketStateException("Marekt is closed!");
+    checkNotClosed(state);
+    ProductBook book = findBook(product);
+    final long id = parseOrderId(orderId);
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(product)) {
+        checkNotClosed(book.getMarketState());
+        journalOrderCancel(book.getSymbol(), side, id);
+        book.cancelOrder(side, id);
+      }
+      awaitDurable();
+      return;
     }
-    if (!allBooks.containsKey(product)) {
-      throw new NoSuchProductException("Product does not exist in any book.");
+    Exception e = runOnEngine(product, new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        checkNotClosed(book.getMarketState());
+        journalOrderCancel(book.getSymbol(), side, id);
+        book.cancelOrder(side, id);
+      }
+    });
+    awaitDurable();
+    if (e instanceof InvalidMarketStateException) {
+      throw (InvalidMarketStateException) e;
+    }
+    if (e instanceof OrderNotFoundException) {
+      throw (OrderNotFoundException) e;
     }
-    allBooks.get(product).cancelOrder(side, orderId);
+    rethrow(e);
   }
 
   /**
@@ -282,20 +1262,307 @@ public class ProductService {
    * @param userName
    * @param product
    */
-  public synchronized void submitQuoteCancel(String userName, String product)
+  public void submitQuoteCancel(final String userName, String product)
           throws InvalidMarketStateException, NoSuchProductException,
           InvalidMessageException, ProductBookSideException,
           ProductBookException, ProductServiceException,
           InvalidVolumeException, MessagePublisherException {
     validateInput(userName);
     validateInput(product);
-    if (state.equals(MarketState.CLOSED)) {
+    checkNotClosed(state);
+    ProductBook book = findBook(product);
+    if (engineMode == EngineMode.SYNCHRONIZED) {
+      synchronized (shardLock(product)) {
+        checkNotClosed(book.getMarketState());
+        journalQuoteCancel(userName, book.getSymbol());
+        book.cancelQuote(userName);
+      }
+      awaitDurable();
+      return;
+    }
+    Exception e = runOnEngine(product, new BookCommand() {
+      @Override
+      void execute(ProductBook book) throws Exception {
+        checkNotClosed(book.getMarketState());
+        journalQuoteCancel(userName, book.getSymbol());
+        book.cancelQuote(userName);
+      }
+    });
+    awaitDurable();
+    if (e instanceof InvalidMarketStateException) {
+      throw (InvalidMarketStateException) e;
+    }
+    rethrow(e);
+  }
+
+  /*
+   * The journal methods below write a command to the journal, if one is
+   * open, just before its book runs it. They are called while holding the
+   * book (its shard lock, or on its engine thread), so each book's commands
+   * are journaled in the order the book runs them.
+   */
+
+  private void journalCreateProduct(String product)
+          throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendCreateProduct(product);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalServiceState(MarketState ms)
+          throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendServiceState(ms);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalBookState(String product, MarketState ms)
+          throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendBookState(product, ms);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalOrder(Order o) throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendOrder(o.getId(), o.getUser(), o.getProduct(), o.getPrice(),
+              o.getOriginalVolume(), o.getSide());
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalQuote(Quote q) throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendQuote(false, q.getUserName(), q.getProduct(),
+              q.getPrice(BookSide.BUY), q.getVolume(BookSide.BUY),
+              q.getPrice(BookSide.SELL), q.getVolume(BookSide.SELL),
+              q.getId(BookSide.BUY), q.getId(BookSide.SELL));
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalQuoteUpdate(String userName, QuoteDTO q, long buyId,
+          long sellId) throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    if (q.buyPrice == null || q.sellPrice == null) {
+      // Rejected by the book before it changes anything.
+      return;
+    }
+    try {
+      j.appendQuote(true, userName, q.product, q.buyPrice, q.buyVolume,
+              q.sellPrice, q.sellVolume, buyId, sellId);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalOrderCancel(String product, BookSide side, long id)
+          throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendOrderCancel(product, side, id);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private void journalQuoteCancel(String userName, String product)
+          throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.appendQuoteCancel(userName, product);
+    } catch (IOException e) {
+      throw journalFailed(e);
+    }
+  }
+
+  private ProductServiceException journalFailed(IOException e) {
+    return new ProductServiceException("Could not write to the journal: "
+            + e.getMessage());
+  }
+
+  /**
+   * This method waits until every command journaled so far, including the
+   * caller's, has been flushed to disk, and returns straight away when the
+   * service is not journaling. It is called after the caller has let go of
+   * the book, so the commands of many threads share one flush. Callers of
+   * submitOrderAsync use it to wait for their orders to be durable.
+   */
+  public void awaitDurable() throws ProductServiceException {
+    CommandJournal j = journal;
+    if (j == null) { return; }
+    try {
+      j.awaitSynced(j.getPosition());
+    } catch (IOException e) {
+      throw new ProductServiceException("Could not flush the journal: "
+              + e.getMessage());
+    }
+  }
+
+  private void checkNotClosed(MarketState ms)
+          throws InvalidMarketStateException {
+    if (ms.equals(MarketState.CLOSED)) {
       throw new InvalidMarketStateException("Marekt is closed!");
     }
-    if (!allBooks.containsKey(product)) {
+  }
+
+  private void checkCanAccept(MarketState ms, Order o)
+          throws InvalidMarketStateException {
+    checkNotClosed(ms);
+    if (ms.equals(MarketState.PREOPEN) && o.getPrice().isMarket()) {
+      throw new InvalidMarketStateException("Marekt is pre-open, cannot submit"
+              + " MKT orders at this time.");
+    }
+  }
+
+  /**
+   * Turns an order id passed in by a user back into the id the book knows the
+   * order by.
+   *
+   * @param orderId
+   * @return the order id
+   */
+  private long parseOrderId(String orderId) throws OrderNotFoundException {
+    long id = OrderIdGenerator.parse(orderId);
+    if (id == 0) {
+      throw new OrderNotFoundException("The order with the specified order"
+              + " id: " + orderId + "; could not be found.");
+    }
+    return id;
+  }
+
+  private ProductBook findBook(String product) throws NoSuchProductException {
+    ProductBook book = allBooks.get(product);
+    if (book == null) {
       throw new NoSuchProductException("Product does not exist in any book.");
     }
-    allBooks.get(product).cancelQuote(userName);
+    return book;
+  }
+
+  /**
+   * Returns the lock of the shard the product belongs to. In SYNCHRONIZED
+   * mode operations on products in different shards run in parallel, and
+   * operations on products in the same shard take turns.
+   *
+   * @param product
+   * @return the shard's lock
+   */
+  private Object shardLock(String product) {
+    return shardLocks[(product.hashCode() & 0x7fffffff) % SHARDS];
+  }
+
+  /**
+   * Returns the queue that runs the book's asynchronous commands in
+   * SYNCHRONIZED mode, creating it (and the threads that drain it) if needed.
+   *
+   * @param book
+   * @return the book's SymbolQueue
+   */
+  private SymbolQueue symbolQueue(ProductBook book) {
+    SymbolQueue q = symbolQueues.get(book.getSymbol());
+    if (q != null) {
+      return q;
+    }
+    q = new SymbolQueue(book, shardLock(book.getSymbol()), asyncExecutor());
+    SymbolQueue existing = symbolQueues.putIfAbsent(book.getSymbol(), q);
+    return existing == null ? q : existing;
+  }
+
+  private ExecutorService asyncExecutor() {
+    if (asyncExecutor == null) {
+      synchronized (symbolQueues) {
+        if (asyncExecutor == null) {
+          asyncExecutor = Executors.newFixedThreadPool(
+                  Runtime.getRuntime().availableProcessors(),
+                  new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                      Thread t = new Thread(r, "ProductService-async-"
+                              + count.incrementAndGet());
+                      t.setDaemon(true);
+                      return t;
+                    }
+                  });
+        }
+      }
+    }
+    return asyncExecutor;
+  }
+
+  /**
+   * Hands the command to the engine that owns the product's book and waits
+   * for it to run.
+   *
+   * @param product
+   * @param c
+   * @return the exception the command threw, or null
+   */
+  private Exception runOnEngine(String product, BookCommand c)
+          throws NoSuchProductException {
+    BookEngine engine = engines.get(product);
+    if (engine == null) {
+      throw new NoSuchProductException("Product does not exist in any book.");
+    }
+    engine.submit(c);
+    return c.await();
+  }
+
+  /**
+   * Rethrows an exception a book command failed with, as thrown by the
+   * product book, if it is one every book operation declares. Any other
+   * checked exception is reported as a ProductServiceException. Callers
+   * rethrow the exceptions specific to their operation first.
+   *
+   * @param e
+   */
+  private void rethrow(Exception e)
+          throws InvalidMessageException, InvalidVolumeException,
+          ProductBookSideException, ProductBookException,
+          MessagePublisherException, ProductServiceException {
+    if (e == null) { return; }
+    if (e instanceof InvalidMessageException) {
+      throw (InvalidMessageException) e;
+    }
+    if (e instanceof InvalidVolumeException) {
+      throw (InvalidVolumeException) e;
+    }
+    if (e instanceof ProductBookSideException) {
+      throw (ProductBookSideException) e;
+    }
+    if (e instanceof ProductBookException) {
+      throw (ProductBookException) e;
+    }
+    if (e instanceof MessagePublisherException) {
+      throw (MessagePublisherException) e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    throw new ProductServiceException(e.getClass().getSimpleName() + ": " +
+            e.getMessage());
   }
 
   private void validateInput(String o)
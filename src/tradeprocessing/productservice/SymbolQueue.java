@@ -0,0 +1,84 @@
+package tradeprocessing.productservice;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import tradeprocessing.productbook.ProductBook;
+
+
+/**
+ * Runs the asynchronous commands for one ProductBook in SYNCHRONIZED mode.
+ * Commands are queued on a lock-free CommandQueue and drained, in the order
+ * they were submitted, by one task at a time on a shared executor. Each batch
+ * is run under the book's shard lock, so it takes turns with the synchronous
+ * operations on the same shard exactly as they take turns with each other.
+ */
+final class SymbolQueue implements Runnable {
+
+  /**
+   * The most commands run per task before the queue gives its executor
+   * thread back, so a busy product cannot hold a thread other products need.
+   */
+  private static final int BATCH = 64;
+
+  private final ProductBook book;
+
+  private final Object lock;
+
+  private final Executor executor;
+
+  private final CommandQueue commands = new CommandQueue();
+
+  /**
+   * Set while a task draining this queue is scheduled or running. Only the
+   * thread that sets it may poll the queue.
+   */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  SymbolQueue(ProductBook b, Object l, Executor e) {
+    book = b;
+    lock = l;
+    executor = e;
+  }
+
+  /**
+   * Queues the command and makes sure a task will run it. Safe to call from
+   * any thread.
+   *
+   * @param c
+   */
+  void submit(BookCommand c) {
+    commands.offer(c);
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(this);
+    }
+  }
+
+  /**
+   * Waits until no task is draining the queue.
+   */
+  void awaitIdle() throws InterruptedException {
+    while (scheduled.get()) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Override
+  public void run() {
+    synchronized (lock) {
+      for (int i = 0; i < BATCH; i++) {
+        BookCommand c = commands.poll();
+        if (c == null) {
+          break;
+        }
+        c.run(book);
+      }
+    }
+    // A producer links its command in before it tries to schedule a task, so
+    // either the check below sees the command or the producer's attempt
+    // succeeds once "scheduled" is cleared.
+    scheduled.set(false);
+    if (!commands.isEmpty() && scheduled.compareAndSet(false, true)) {
+      executor.execute(this);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package tradeprocessing.snapshot;
+
+import constants.GlobalConstants.MarketState;
+import java.util.ArrayList;
+import tradeprocessing.productbook.BookImage;
+
+
+/**
+ * A point-in-time copy of every product book in the ProductService, as
+ * written to and read back from a SnapshotStore.
+ */
+public class Snapshot {
+
+  /**
+   * When the snapshot was taken, in milliseconds since the epoch.
+   */
+  public long time;
+
+  /**
+   * The service's market state when the snapshot was taken.
+   */
+  public MarketState state;
+
+  /**
+   * The command journal's position when the snapshot was started, or -1 if
+   * no journal was open. Journaled product and market state changes from
+   * this position on are not in the snapshot.
+   */
+  public long journalPosition = -1;
+
+  public ArrayList<BookImage> books = new ArrayList<>();
+}
@@ -0,0 +1,440 @@
+package tradeprocessing.snapshot;
+
+import constants.GlobalConstants.MarketState;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import price.Price;
+import price.PriceFactory;
+import tradeprocessing.productbook.BookImage;
+import tradeprocessing.productbook.BookImage.SideImage;
+
+
+/**
+ * Keeps snapshots of the product books in a directory, one file per
+ * snapshot, in a compact binary form:
+ *
+ *   header:  magic, version, time, service state, journal position, books
+ *   book:    symbol, market state, journal position, last sale, the table of
+ *            user names used in the book, the users with quotes (as table
+ *            indexes), then the buy side and the sell side
+ *   side:    count, then for each Tradeable in book order its id, price,
+ *            original, remaining and cancelled volume, quote flag and user
+ *            (as a table index)
+ *   trailer: the CRC-32 of everything before it
+ *
+ * A snapshot is written to a temporary file, flushed to disk and then renamed
+ * into place, and the directory is flushed before older snapshots are
+ * removed, so a crash while writing never leaves a partial snapshot under a
+ * snapshot's name, nor leaves the directory without a whole one. Only the
+ * newest RETAINED snapshots are kept. Reading maps the file and checks its
+ * CRC before decoding, and falls back to the previous snapshot if the newest
+ * is damaged.
+ */
+public final class SnapshotStore {
+
+  private static final int MAGIC = 0x44535331;
+
+  private static final int VERSION = 1;
+
+  private static final String PREFIX = "snapshot-";
+
+  private static final String SUFFIX = ".bin";
+
+  /**
+   * The number of snapshots kept in the directory.
+   */
+  private static final int RETAINED = 2;
+
+  /**
+   * The size of the buffer snapshots are written through.
+   */
+  private static final int BUFFER = 1 << 20;
+
+  /**
+   * Prices are written in cents, with these values standing for MKT and for
+   * no price.
+   */
+  private static final long MARKET_PRICE = Long.MIN_VALUE;
+
+  private static final long NO_PRICE = Long.MIN_VALUE + 1;
+
+  private static final MarketState[] STATES = MarketState.values();
+
+  private final File dir;
+
+  /**
+   * The sequence number of the last snapshot written or found.
+   */
+  private long sequence;
+
+  /**
+   * Opens the store in the directory passed in, creating the directory if
+   * it does not exist.
+   *
+   * @param path
+   */
+  public SnapshotStore(String path) throws IOException {
+    if (path == null || path.isEmpty()) {
+      throw new IOException("A snapshot directory is needed.");
+    }
+    dir = new File(path);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + path);
+    }
+    long[] found = sequences();
+    sequence = found.length == 0 ? 0 : found[found.length - 1];
+  }
+
+  /**
+   * Writes the snapshot passed in as the store's newest, and removes the
+   * snapshots that are no longer retained.
+   *
+   * @param s
+   * @return the snapshot's file
+   */
+  public synchronized File write(Snapshot s) throws IOException {
+    File file = new File(dir, name(sequence + 1));
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try (RandomAccessFile f = new RandomAccessFile(tmp, "rw")) {
+      f.setLength(0);
+      Output out = new Output(f.getChannel());
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putLong(s.time);
+      out.put((byte) s.state.ordinal());
+      out.putLong(s.journalPosition);
+      out.putInt(s.books.size());
+      for (BookImage b : s.books) {
+        writeBook(out, b);
+      }
+      out.finish();
+      f.getChannel().force(true);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    // The rename is only durable once the directory is, and the snapshots
+    // it replaces must not be deleted before then.
+    syncDirectory();
+    sequence++;
+    long[] found = sequences();
+    for (int i = 0; i < found.length - RETAINED; i++) {
+      new File(dir, name(found[i])).delete();
+    }
+    return file;
+  }
+
+  /**
+   * Flushes the directory's entries to disk, so the renames made in it
+   * survive a power loss.
+   */
+  private void syncDirectory() throws IOException {
+    try (FileChannel c = FileChannel.open(dir.toPath(),
+            StandardOpenOption.READ)) {
+      c.force(true);
+    }
+  }
+
+  /**
+   * Reads the newest snapshot in the store that is whole.
+   *
+   * @return the newest snapshot, or null if the store holds none
+   */
+  public Snapshot readLatest() throws IOException {
+    long[] found = sequences();
+    IOException damaged = null;
+    for (int i = found.length - 1; i >= 0; i--) {
+      try {
+        return read(new File(dir, name(found[i])));
+      } catch (IOException e) {
+        if (damaged == null) {
+          damaged = e;
+        }
+      }
+    }
+    if (damaged != null) {
+      throw damaged;
+    }
+    return null;
+  }
+
+  private void writeBook(Output out, BookImage b) throws IOException {
+    HashMap<String, Integer> users = new HashMap<>();
+    for (String u : b.userQuotes) {
+      index(users, u);
+    }
+    int[] buyUsers = indexes(users, b.buy);
+    int[] sellUsers = indexes(users, b.sell);
+    String[] table = new String[users.size()];
+    for (String u : users.keySet()) {
+      table[users.get(u)] = u;
+    }
+    out.putString(b.symbol);
+    out.put((byte) b.marketState.ordinal());
+    out.putLong(b.journalPosition);
+    out.putLong(price(b.lastSalePrice));
+    out.putInt(b.lastSaleVolume);
+    out.putInt(table.length);
+    for (String u : table) {
+      out.putString(u);
+    }
+    out.putInt(b.userQuotes.length);
+    for (String u : b.userQuotes) {
+      out.putInt(users.get(u));
+    }
+    writeSide(out, b.buy, buyUsers);
+    writeSide(out, b.sell, sellUsers);
+  }
+
+  private void writeSide(Output out, SideImage side, int[] users)
+          throws IOException {
+    out.putInt(side.count);
+    for (int i = 0; i < side.count; i++) {
+      out.putLong(side.ids[i]);
+      out.putLong(price(side.prices[i]));
+      out.putInt(side.originalVolumes[i]);
+      out.putInt(side.remainingVolumes[i]);
+      out.putInt(side.cancelledVolumes[i]);
+      out.put((byte) (side.quotes[i] ? 1 : 0));
+      out.putInt(users[i]);
+    }
+  }
+
+  private static int[] indexes(HashMap<String, Integer> users,
+          SideImage side) {
+    int[] result = new int[side.count];
+    String last = null;
+    int lastIndex = -1;
+    for (int i = 0; i < side.count; i++) {
+      // Neighbouring Tradeables are often the same user's.
+      if (side.users[i] != last) {
+        last = side.users[i];
+        lastIndex = index(users, last);
+      }
+      result[i] = lastIndex;
+    }
+    return result;
+  }
+
+  private static int index(HashMap<String, Integer> users, String u) {
+    Integer i = users.get(u);
+    if (i == null) {
+      i = users.size();
+      users.put(u, i);
+    }
+    return i;
+  }
+
+  private static long price(Price p) {
+    if (p == null) {
+      return NO_PRICE;
+    }
+    return p.isMarket() ? MARKET_PRICE : p.getValue();
+  }
+
+  private Snapshot read(File file) throws IOException {
+    try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+      long size = f.length();
+      if (size < 8 || size > Integer.MAX_VALUE) {
+        throw new IOException(file + " is not a snapshot.");
+      }
+      MappedByteBuffer in = f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+              0, size);
+      ByteBuffer body = in.duplicate();
+      body.limit((int) size - 8);
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if (crc.getValue() != in.getLong((int) size - 8)) {
+        throw new IOException(file + " is damaged.");
+      }
+      in.limit((int) size - 8);
+      try {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+          throw new IOException(file + " is not a version " + VERSION
+                  + " snapshot.");
+        }
+        Snapshot s = new Snapshot();
+        s.time = in.getLong();
+        s.state = STATES[in.get()];
+        s.journalPosition = in.getLong();
+        int books = in.getInt();
+        for (int i = 0; i < books; i++) {
+          s.books.add(readBook(in));
+        }
+        return s;
+      } catch (RuntimeException e) {
+        throw new IOException(file + " could not be read: " + e);
+      }
+    }
+  }
+
+  private BookImage readBook(ByteBuffer in) {
+    BookImage b = new BookImage();
+    b.symbol = getString(in);
+    b.marketState = STATES[in.get()];
+    b.journalPosition = in.getLong();
+    b.lastSalePrice = price(in.getLong(), null);
+    b.lastSaleVolume = in.getInt();
+    String[] table = new String[in.getInt()];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = getString(in);
+    }
+    b.userQuotes = new String[in.getInt()];
+    for (int i = 0; i < b.userQuotes.length; i++) {
+      b.userQuotes[i] = table[in.getInt()];
+    }
+    b.buy = readSide(in, table);
+    b.sell = readSide(in, table);
+    return b;
+  }
+
+  private SideImage readSide(ByteBuffer in, String[] table) {
+    SideImage side = new SideImage(in.getInt());
+    Price last = null;
+    for (int i = 0; i < side.count; i++) {
+      side.ids[i] = in.getLong();
+      last = price(in.getLong(), last);
+      side.prices[i] = last;
+      side.originalVolumes[i] = in.getInt();
+      side.remainingVolumes[i] = in.getInt();
+      side.cancelledVolumes[i] = in.getInt();
+      side.quotes[i] = in.get() != 0;
+      side.users[i] = table[in.getInt()];
+    }
+    return side;
+  }
+
+  /**
+   * Returns the Price for a written price, reusing the previous one when it
+   * is the same, as it is for every Tradeable after the first in a level.
+   */
+  private static Price price(long value, Price previous) {
+    if (value == NO_PRICE) {
+      return null;
+    }
+    if (value == MARKET_PRICE) {
+      return PriceFactory.makeMarketPrice();
+    }
+    if (previous != null && !previous.isMarket()
+            && previous.getValue() == value) {
+      return previous;
+    }
+    return PriceFactory.makeLimitPrice(value);
+  }
+
+  private static String getString(ByteBuffer in) {
+    byte[] b = new byte[in.getShort()];
+    in.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the sequence numbers of the snapshots in the directory, oldest
+   * first.
+   */
+  private long[] sequences() {
+    String[] names = dir.list();
+    if (names == null) {
+      return new long[0];
+    }
+    long[] found = new long[names.length];
+    int n = 0;
+    for (String name : names) {
+      if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+        try {
+          found[n] = Long.parseLong(name.substring(PREFIX.length(),
+                  name.length() - SUFFIX.length()));
+          n++;
+        } catch (NumberFormatException e) {
+          // Not one of ours.
+        }
+      }
+    }
+    found = Arrays.copyOf(found, n);
+    Arrays.sort(found);
+    return found;
+  }
+
+  private static String name(long seq) {
+    return String.format("%s%020d%s", PREFIX, seq, SUFFIX);
+  }
+
+  /**
+   * Writes a snapshot through a buffer to a file channel, keeping the CRC-32
+   * of everything written.
+   */
+  private static final class Output {
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+    private final CRC32 crc = new CRC32();
+
+    Output(FileChannel c) {
+      channel = c;
+    }
+
+    void put(byte b) throws IOException {
+      ensure(1);
+      buffer.put(b);
+    }
+
+    void putInt(int i) throws IOException {
+      ensure(4);
+      buffer.putInt(i);
+    }
+
+    void putLong(long l) throws IOException {
+      ensure(8);
+      buffer.putLong(l);
+    }
+
+    void putString(String s) throws IOException {
+      byte[] b = s.getBytes(StandardCharsets.UTF_8);
+      if (b.length > Short.MAX_VALUE) {
+        throw new IOException("String too long for a snapshot.");
+      }
+      ensure(2 + b.length);
+      buffer.putShort((short) b.length);
+      buffer.put(b);
+    }
+
+    /**
+     * Writes what is buffered, followed by the CRC-32 trailer.
+     */
+    void finish() throws IOException {
+      flush();
+      buffer.putLong(crc.getValue());
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    private void ensure(int n) throws IOException {
+      if (buffer.remaining() < n) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      ByteBuffer check = buffer.duplicate();
+      crc.update(check);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package tradeprocessing.tradeprocessor;
+
+import price.Price;
+import tradeable.Tradeable;
+
+
+public class FillBuffer {
+
+  /**
+   * The number of fill slots a new buffer starts with. The buffer grows by
+   * doubling and never shrinks, so once a book side has seen its largest
+   * sweep no further arrays are allocated.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * The Tradeable each fill belongs to.
+   */
+  private Tradeable[] tradeables = new Tradeable[INITIAL_CAPACITY];
+
+  /**
+   * The Price each fill traded at.
+   */
+  private Price[] prices = new Price[INITIAL_CAPACITY];
+
+  /**
+   * The volume traded by each fill.
+   */
+  private int[] volumes = new int[INITIAL_CAPACITY];
+
+  /**
+   * The volume each Tradeable had left after its fill.
+   */
+  private int[] leaving = new int[INITIAL_CAPACITY];
+
+  /**
+   * The number of fills currently held.
+   */
+  private int size;
+
+  /**
+   * The slot holding the most recent fill of the incoming Tradeable, or -1.
+   * The incoming Tradeable trades the whole level at one price before moving
+   * on, so its fills at a price are always merged into this slot.
+   */
+  private int incomingSlot = -1;
+
+  /**
+   * This method empties the buffer so it can be reused for the next trade.
+   * References are cleared so filled Tradeables are not kept reachable.
+   */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      tradeables[i] = null;
+      prices[i] = null;
+    }
+    size = 0;
+    incomingSlot = -1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public Tradeable getTradeable(int i) {
+    return tradeables[i];
+  }
+
+  public Price getPrice(int i) {
+    return prices[i];
+  }
+
+  public int getVolume(int i) {
+    return volumes[i];
+  }
+
+  public int getLeaving(int i) {
+    return leaving[i];
+  }
+
+  /**
+   * Records a fill of a Tradeable resting in the book. A resting Tradeable is
+   * only reached once per trade, so each gets a slot of its own.
+   *
+   * @param t
+   * @param p
+   * @param volume
+   * @param left
+   */
+  void addRestingFill(Tradeable t, Price p, int volume, int left) {
+    append(t, p, volume, left);
+  }
+
+  /**
+   * Records a fill of the incoming Tradeable, merging it with the previous
+   * fill at the same price.
+   *
+   * @param t
+   * @param p
+   * @param volume
+   * @param left
+   */
+  void addIncomingFill(Tradeable t, Price p, int volume, int left) {
+    if (incomingSlot >= 0 && tradeables[incomingSlot] == t
+            && prices[incomingSlot] == p) {
+      volumes[incomingSlot] += volume;
+      leaving[incomingSlot] = left;
+      return;
+    }
+    incomingSlot = append(t, p, volume, left);
+  }
+
+  private int append(Tradeable t, Price p, int volume, int left) {
+    if (size == tradeables.length) {
+      grow();
+    }
+    tradeables[size] = t;
+    prices[size] = p;
+    volumes[size] = volume;
+    leaving[size] = left;
+    return size++;
+  }
+
+  private void grow() {
+    int capacity = tradeables.length * 2;
+    Tradeable[] t = new Tradeable[capacity];
+    Price[] p = new Price[capacity];
+    int[] v = new int[capacity];
+    int[] l = new int[capacity];
+    System.arraycopy(tradeables, 0, t, 0, size);
+    System.arraycopy(prices, 0, p, 0, size);
+    System.arraycopy(volumes, 0, v, 0, size);
+    System.arraycopy(leaving, 0, l, 0, size);
+    tradeables = t;
+    prices = p;
+    volumes = v;
+    leaving = l;
+  }
+}
@@ -1,8 +1,5 @@
 package tradeprocessing.tradeprocessor;
 
-import java.util.HashMap;
-import publishers.messages.FillMessage;
-import publishers.messages.exceptions.InvalidMessageException;
 import tradeable.Tradeable;
 import tradeable.exceptions.InvalidVolumeException;
 import tradeprocessing.productbook.exceptions.ProductBookException;
@@ -16,15 +13,14 @@ public interface TradeProcessor {
    * This TradeProcessor method will be called when it has been determined that
    * a Tradable (i.e., a Buy Order, a Sell QuoteSide, etc.) can trade against
    * the content of the book.
-   * The return value from this function will be a HashMap<String, FillMessage>
-   * containing String trade identifiers (the key) and a Fill Message object
-   * (the value).
+   * The resulting fills are appended to the FillBuffer passed in, which the
+   * caller owns and reuses from trade to trade, so no fill objects are
+   * created while matching.
    *
    * @param trd
-   * @return a HashMap<String, FillMessage>
+   * @param fills
    */
-  public HashMap<String, FillMessage> doTrade(Tradeable trd)
-          throws InvalidMessageException, InvalidVolumeException,
-          ProductBookSideException, ProductBookException,
-          TradeProcessorPriceTimeImplException;
-}
\ No newline at end of file
+  public void doTrade(Tradeable trd, FillBuffer fills)
+          throws InvalidVolumeException, ProductBookSideException,
+          ProductBookException, TradeProcessorPriceTimeImplException;
+}
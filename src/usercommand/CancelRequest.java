@@ -0,0 +1,34 @@
+package usercommand;
+
+import constants.GlobalConstants.BookSide;
+
+
+public class CancelRequest {
+
+  /**
+   * The product (i.e., IBM, GOOG, AAPL, etc.) the order to cancel is for.
+   */
+  public String product;
+
+  /**
+   * The "side" (BUY/SELL) of the order to cancel.
+   */
+  public BookSide side;
+
+  /**
+   * The id of the order to cancel.
+   */
+  public String orderId;
+
+  public CancelRequest(String theProduct, BookSide theSide,
+          String theOrderId) {
+    product = theProduct;
+    side = theSide;
+    orderId = theOrderId;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Cancel %s %s order ID: %s", side, product, orderId);
+  }
+}
@@ -0,0 +1,41 @@
+package usercommand;
+
+import constants.GlobalConstants.BookSide;
+import price.Price;
+
+
+public class OrderRequest {
+
+  /**
+   * The product (i.e., IBM, GOOG, AAPL, etc.) the order is for.
+   */
+  public String product;
+
+  /**
+   * The limit or market price of the order.
+   */
+  public Price price;
+
+  /**
+   * The volume (quantity) of the order.
+   */
+  public int volume;
+
+  /**
+   * The "side" (BUY/SELL) of the order.
+   */
+  public BookSide side;
+
+  public OrderRequest(String theProduct, Price thePrice, int theVolume,
+          BookSide theSide) {
+    product = theProduct;
+    price = thePrice;
+    volume = theVolume;
+    side = theSide;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %s %s at %s", side, volume, product, price);
+  }
+}
@@ -0,0 +1,38 @@
+package usercommand;
+
+
+public class OrderResult {
+
+  /**
+   * The product (i.e., IBM, GOOG, AAPL, etc.) of the order, cancel or quote.
+   */
+  public String product;
+
+  /**
+   * The id of the order that was submitted or cancelled. Null for quotes and
+   * if an order could not be created.
+   */
+  public String id;
+
+  /**
+   * The exception the request was rejected with, or null if it was accepted.
+   */
+  public Exception failure;
+
+  public OrderResult(String theProduct, String theId, Exception theFailure) {
+    product = theProduct;
+    id = theId;
+    failure = theFailure;
+  }
+
+  public boolean isAccepted() {
+    return failure == null;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s%s %s", product,
+            id == null ? "" : " order ID: " + id,
+            failure == null ? "accepted" : "rejected: " + failure.getMessage());
+  }
+}
@@ -0,0 +1,77 @@
+package usercommand;
+
+import client.Subscriber;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * One connected user: the Subscriber it is delivered to, the connection id
+ * it was given and when it connected, plus counts of the commands it has
+ * sent. A session is created on connect, never changes user or id, and is
+ * dropped on disconnect.
+ */
+public final class Session {
+
+  private final Subscriber user;
+
+  private final long connectionId;
+
+  /**
+   * The time the user connected, in milliseconds since the epoch.
+   */
+  private final long connectTime;
+
+  /**
+   * The number of commands that have passed the session check.
+   */
+  private final AtomicLong commands = new AtomicLong();
+
+  /**
+   * The number of orders the user has submitted, accepted or not.
+   */
+  private final AtomicLong orders = new AtomicLong();
+
+  Session(Subscriber u, long connId, long time) {
+    user = u;
+    connectionId = connId;
+    connectTime = time;
+  }
+
+  public Subscriber getUser() {
+    return user;
+  }
+
+  public String getUserName() {
+    return user.getUserName();
+  }
+
+  public long getConnectionId() {
+    return connectionId;
+  }
+
+  public long getConnectTime() {
+    return connectTime;
+  }
+
+  public long getCommandCount() {
+    return commands.get();
+  }
+
+  public long getOrderCount() {
+    return orders.get();
+  }
+
+  void commandReceived() {
+    commands.incrementAndGet();
+  }
+
+  void ordersReceived(int count) {
+    orders.addAndGet(count);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (connection %d): %d commands, %d orders",
+            getUserName(), connectionId, commands.get(), orders.get());
+  }
+}
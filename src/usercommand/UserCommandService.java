@@ -1,10 +1,15 @@
 package usercommand;
 
-import client.User;
+import client.Subscriber;
 import constants.GlobalConstants.BookSide;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import price.Price;
 import publishers.CurrentMarketPublisher;
 import publishers.LastSalePublisher;
@@ -13,7 +18,9 @@ import publishers.TickerPublisher;
 import publishers.exceptions.MessagePublisherException;
 import publishers.messages.exceptions.InvalidMessageException;
 import tradeable.Order;
+import tradeable.OrderIdGenerator;
 import tradeable.Quote;
+import tradeable.QuoteDTO;
 import tradeable.TradeableDTO;
 import tradeable.exceptions.InvalidVolumeException;
 import tradeable.exceptions.TradeableException;
@@ -36,25 +43,14 @@ public class UserCommandService {
   private volatile static UserCommandService instance;
 
   /**
-   * A HashMap<String, Long> to hold user name and connection id pairs.
+   * The Session of every connected user, indexed by user name. Checking a
+   * command's user name and connection id is a single lock-free lookup, and
+   * connect and disconnect replace or remove a whole Session atomically.
    */
-  HashMap<String, Long> connectedUserIds;
-
-  /**
-   * A HashMap<String, User> to hold user name and user object pairs.
-   */
-  HashMap<String, User> connectedUsers;
-
-  /**
-   * A HashMap<String, Long> to hold user name and connection-time pairs
-   * (connection time is stored as a long).
-   */
-  HashMap<String, Long> connectedTime;
+  private final ConcurrentHashMap<String, Session> sessions =
+          new ConcurrentHashMap<>();
 
   private UserCommandService() {
-    connectedUserIds = new HashMap<>();
-    connectedUsers = new HashMap<>();
-    connectedTime = new HashMap<>();
   }
 
   public static UserCommandService getInstance() {
@@ -78,16 +74,19 @@ public class UserCommandService {
    * @throws UserNotConnectedException
    * @throws InvalidConnectionIdExceptions
    */
-  private void verifyUser(String userName, long connId)
+  private Session verifyUser(String userName, long connId)
           throws UserNotConnectedException, InvalidConnectionIdException,
           UserCommandException {
     validateInput(userName);
-    if (!connectedUserIds.containsKey(userName)) {
+    Session session = sessions.get(userName);
+    if (session == null) {
       throw new UserNotConnectedException("User not connected to the system");
     }
-    if (!connectedUserIds.get(userName).equals((Long) connId)) {
+    if (session.getConnectionId() != connId) {
       throw new InvalidConnectionIdException("Connection ID is not valid");
     }
+    session.commandReceived();
+    return session;
   }
 
   /**
@@ -97,17 +96,16 @@ public class UserCommandService {
    * @return the connectedUserId
    * @throws AlreadyConnectedException
    */
-  public synchronized long connect(User user) throws AlreadyConnectedException,
+  public long connect(Subscriber user) throws AlreadyConnectedException,
           UserCommandException {
     validateInput(user);
-    if (connectedUserIds.containsKey(user.getUserName())) {
+    Session session = new Session(user, System.nanoTime(),
+            System.currentTimeMillis());
+    if (sessions.putIfAbsent(user.getUserName(), session) != null) {
       throw new AlreadyConnectedException("User already connected to the"
               + " system.");
     }
-    connectedUserIds.put(user.getUserName(), System.nanoTime());
-    connectedUsers.put(user.getUserName(), user);
-    connectedTime.put(user.getUserName(), System.currentTimeMillis());
-    return connectedUserIds.get(user.getUserName());
+    return session.getConnectionId();
   }
 
   /**
@@ -118,13 +116,25 @@ public class UserCommandService {
    * @throws UserNotConnectedException
    * @throws InvalidConnectionIdException
    */
-  public synchronized void disconnect(String userName, long connId)
+  public void disconnect(String userName, long connId)
           throws UserNotConnectedException, InvalidConnectionIdException,
           UserCommandException {
-    verifyUser(userName, connId);
-    connectedUserIds.remove(userName);
-    connectedUsers.remove(userName);
-    connectedTime.remove(userName);
+    Session session = verifyUser(userName, connId);
+    if (!sessions.remove(userName, session)) {
+      throw new UserNotConnectedException("User not connected to the system");
+    }
+  }
+
+  /**
+   * Returns the Session of the user passed in, or null if the user is not
+   * connected.
+   *
+   * @param userName
+   * @return the user's session, or null
+   */
+  public Session getSession(String userName) throws UserCommandException {
+    validateInput(userName);
+    return sessions.get(userName);
   }
 
   /**
@@ -243,11 +253,194 @@ public class UserCommandService {
     validateInput(product);
     validateInput(price);
     validateInput(side);
-    verifyUser(userName, connId);
+    verifyUser(userName, connId).ordersReceived(1);
     Order o = new Order(userName, product, price, volume, side);
     return ProductService.getInstance().submitOrder(o);
   }
 
+  /**
+   * This method submits an order without waiting for it to be traded. The
+   * user and the order are checked before it returns; the future completes
+   * with the order id once the product's book has accepted the order, or
+   * exceptionally with the reason it was rejected. A user can keep many
+   * orders in flight this way, and orders for the same product reach the
+   * book in the order they were submitted.
+   *
+   * @param userName
+   * @param connId
+   * @param product
+   * @param price
+   * @param volume
+   * @param side
+   * @return a future for the order id
+   */
+  public CompletableFuture<String> submitOrderAsync(String userName,
+          long connId, String product, Price price, int volume, BookSide side)
+          throws UserNotConnectedException, InvalidConnectionIdException,
+          InvalidVolumeException, TradeableException,
+          InvalidMarketStateException, NoSuchProductException,
+          ProductServiceException, UserCommandException {
+    validateInput(product);
+    validateInput(price);
+    validateInput(side);
+    verifyUser(userName, connId).ordersReceived(1);
+    Order o = new Order(userName, product, price, volume, side);
+    return ProductService.getInstance().submitOrderAsync(o);
+  }
+
+  /**
+   * This method waits until every command the trading system has journaled
+   * so far has been flushed to disk. A caller that has had an order
+   * accepted through submitOrderAsync can use it to know the order will
+   * survive a crash.
+   *
+   * @throws ProductServiceException
+   */
+  public void awaitDurable() throws ProductServiceException {
+    ProductService.getInstance().awaitDurable();
+  }
+
+  /**
+   * This method returns whether the trading system is journaling commands.
+   * When it is not, awaitDurable returns straight away.
+   *
+   * @return true while the trading system is journaling
+   */
+  public boolean isJournaling() {
+    return ProductService.getInstance().isJournaling();
+  }
+
+  /**
+   * This method submits a basket of orders in one call. The user is verified
+   * once, the orders are grouped by product, and each product's orders are
+   * forwarded to the ProductService together, so its book is taken once per
+   * basket rather than once per order. Orders for different products are
+   * not run in the order given; orders for the same product are.
+   *
+   * @param userName
+   * @param connId
+   * @param requests
+   * @return one OrderResult per request, in the order of the requests
+   * @throws UserNotConnectedException
+   * @throws InvalidConnectionIdException
+   */
+  public ArrayList<OrderResult> submitOrders(String userName, long connId,
+          List<OrderRequest> requests) throws UserNotConnectedException,
+          InvalidConnectionIdException, UserCommandException {
+    validateInput(requests);
+    verifyUser(userName, connId).ordersReceived(requests.size());
+    OrderResult[] results = new OrderResult[requests.size()];
+    LinkedHashMap<String, ArrayList<Integer>> byProduct =
+            new LinkedHashMap<>();
+    ArrayList<Order> orders = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      OrderRequest r = requests.get(i);
+      Order o = null;
+      try {
+        validateInput(r);
+        validateInput(r.product);
+        validateInput(r.price);
+        validateInput(r.side);
+        o = new Order(userName, r.product, r.price, r.volume, r.side);
+      } catch (InvalidVolumeException | TradeableException
+              | UserCommandException e) {
+        results[i] = new OrderResult(r == null ? null : r.product, null, e);
+      }
+      orders.add(o);
+      if (o != null) {
+        ArrayList<Integer> group = byProduct.get(r.product);
+        if (group == null) {
+          group = new ArrayList<>();
+          byProduct.put(r.product, group);
+        }
+        group.add(i);
+      }
+    }
+    ProductService ps = ProductService.getInstance();
+    for (Map.Entry<String, ArrayList<Integer>> group : byProduct.entrySet()) {
+      String product = group.getKey();
+      ArrayList<Order> batch = new ArrayList<>(group.getValue().size());
+      for (int i : group.getValue()) {
+        batch.add(orders.get(i));
+      }
+      Exception[] failures;
+      try {
+        failures = ps.submitOrders(product, batch);
+      } catch (Exception e) {
+        failures = new Exception[batch.size()];
+        Arrays.fill(failures, e);
+      }
+      for (int j = 0; j < batch.size(); j++) {
+        results[group.getValue().get(j)] = new OrderResult(product,
+                OrderIdGenerator.toString(batch.get(j).getId()), failures[j]);
+      }
+    }
+    return new ArrayList<>(Arrays.asList(results));
+  }
+
+  /**
+   * This method cancels a batch of orders in one call, verifying the user
+   * once and taking each product's book once for all of its cancels.
+   *
+   * @param userName
+   * @param connId
+   * @param requests
+   * @return one OrderResult per request, in the order of the requests
+   * @throws UserNotConnectedException
+   * @throws InvalidConnectionIdException
+   */
+  public ArrayList<OrderResult> submitOrderCancels(String userName,
+          long connId, List<CancelRequest> requests)
+          throws UserNotConnectedException, InvalidConnectionIdException,
+          UserCommandException {
+    validateInput(requests);
+    verifyUser(userName, connId);
+    OrderResult[] results = new OrderResult[requests.size()];
+    LinkedHashMap<String, ArrayList<Integer>> byProduct =
+            new LinkedHashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      CancelRequest r = requests.get(i);
+      try {
+        validateInput(r);
+        validateInput(r.product);
+        validateInput(r.side);
+        validateInput(r.orderId);
+      } catch (UserCommandException e) {
+        results[i] = new OrderResult(r == null ? null : r.product,
+                r == null ? null : r.orderId, e);
+        continue;
+      }
+      ArrayList<Integer> group = byProduct.get(r.product);
+      if (group == null) {
+        group = new ArrayList<>();
+        byProduct.put(r.product, group);
+      }
+      group.add(i);
+    }
+    ProductService ps = ProductService.getInstance();
+    for (Map.Entry<String, ArrayList<Integer>> group : byProduct.entrySet()) {
+      String product = group.getKey();
+      ArrayList<BookSide> sides = new ArrayList<>(group.getValue().size());
+      ArrayList<String> ids = new ArrayList<>(group.getValue().size());
+      for (int i : group.getValue()) {
+        sides.add(requests.get(i).side);
+        ids.add(requests.get(i).orderId);
+      }
+      Exception[] failures;
+      try {
+        failures = ps.submitOrderCancels(product, sides, ids);
+      } catch (Exception e) {
+        failures = new Exception[ids.size()];
+        Arrays.fill(failures, e);
+      }
+      for (int j = 0; j < ids.size(); j++) {
+        results[group.getValue().get(j)] = new OrderResult(product,
+                ids.get(j), failures[j]);
+      }
+    }
+    return new ArrayList<>(Arrays.asList(results));
+  }
+
   /**
    * This method will forward the provided information to the ProductService's
    * "submitOrderCancel" method.
@@ -323,6 +516,38 @@ public class UserCommandService {
     ProductService.getInstance().submitQuote(q);
   }
 
+  /**
+   * This method replaces the user's quotes in many products in one call,
+   * for market makers that re-quote every product at once. Each product's
+   * quote replaces the user's previous quote in that product as one step;
+   * sides that have not changed are left in the book untouched.
+   *
+   * @param userName
+   * @param connId
+   * @param quotes
+   * @return one OrderResult per quote, in the order of the quotes
+   * @throws UserNotConnectedException
+   * @throws InvalidConnectionIdException
+   * @throws InvalidMarketStateException
+   * @throws ProductServiceException
+   */
+  public ArrayList<OrderResult> submitMassQuote(String userName, long connId,
+          List<QuoteDTO> quotes) throws UserNotConnectedException,
+          InvalidConnectionIdException, InvalidMarketStateException,
+          ProductServiceException, UserCommandException {
+    validateInput(quotes);
+    verifyUser(userName, connId);
+    Exception[] failures = ProductService.getInstance().submitMassQuote(
+            userName, quotes);
+    ArrayList<OrderResult> results = new ArrayList<>(quotes.size());
+    for (int i = 0; i < quotes.size(); i++) {
+      QuoteDTO q = quotes.get(i);
+      results.add(new OrderResult(q == null ? null : q.product, null,
+              failures[i]));
+    }
+    return results;
+  }
+
   /**
    * This method will forward the provided data to the ProductService's
    * "submitQuoteCancel" method.
@@ -367,8 +592,8 @@ public class UserCommandService {
           InvalidConnectionIdException, MessagePublisherException,
           UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    CurrentMarketPublisher.getInstance().subscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    CurrentMarketPublisher.getInstance().subscribe(session.getUser(),
             product);
   }
 
@@ -386,8 +611,8 @@ public class UserCommandService {
           throws UserNotConnectedException, InvalidConnectionIdException,
           MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    LastSalePublisher.getInstance().subscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    LastSalePublisher.getInstance().subscribe(session.getUser(),
             product);
   }
 
@@ -405,8 +630,8 @@ public class UserCommandService {
           throws UserNotConnectedException, InvalidConnectionIdException,
           MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    MessagePublisher.getInstance().subscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    MessagePublisher.getInstance().subscribe(session.getUser(),
             product);
   }
 
@@ -424,8 +649,8 @@ public class UserCommandService {
           throws UserNotConnectedException, InvalidConnectionIdException,
           MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    TickerPublisher.getInstance().subscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    TickerPublisher.getInstance().subscribe(session.getUser(),
             product);
   }
 
@@ -445,8 +670,8 @@ public class UserCommandService {
           InvalidConnectionIdException, MessagePublisherException,
           UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    CurrentMarketPublisher.getInstance().unSubscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    CurrentMarketPublisher.getInstance().unSubscribe(session.getUser(),
             product);
   }
 
@@ -464,8 +689,8 @@ public class UserCommandService {
           String product) throws UserNotConnectedException,
           InvalidConnectionIdException, MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    LastSalePublisher.getInstance().unSubscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    LastSalePublisher.getInstance().unSubscribe(session.getUser(),
             product);
   }
 
@@ -483,8 +708,8 @@ public class UserCommandService {
           throws UserNotConnectedException, InvalidConnectionIdException,
           MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    TickerPublisher.getInstance().unSubscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    TickerPublisher.getInstance().unSubscribe(session.getUser(),
             product);
   }
 
@@ -492,8 +717,8 @@ public class UserCommandService {
           String product) throws UserNotConnectedException,
           InvalidConnectionIdException, MessagePublisherException, UserCommandException {
     validateInput(product);
-    verifyUser(userName, connId);
-    MessagePublisher.getInstance().unSubscribe(connectedUsers.get(userName),
+    Session session = verifyUser(userName, connId);
+    MessagePublisher.getInstance().unSubscribe(session.getUser(),
             product);
   }
 